@@ -0,0 +1,244 @@
+package com.alperez.hyrocam;
+
+import com.alperez.hyrocam.orientation.AngleRingBuffer;
+import com.alperez.hyrocam.orientation.PipelineMetrics;
+import com.alperez.hyrocam.orientation.SensorSourceType;
+
+/**
+ * Drives an angles readout (a set of views) at the display refresh rate instead of the sensor rate.
+ * <p>
+ * While started, on every display frame with new data the publisher drains its own reader of the
+ * controller's angle samples (see {@link SensorsController#createAnglesReader()}), keeping only the
+ * latest sample per source. Then it reports the latest sample of each source, and only if at least
+ * one field has changed at the display precision - the changed fields are flagged, so the display
+ * can skip the views which would show the same text. The displayed values are kept per source, so
+ * the sources do not overwrite each other. Frames are scheduled with {@link FrameScheduler}, which
+ * the controller wakes up when it publishes a sample (see
+ * {@link SensorsController#addFrameScheduler(FrameScheduler)}), so nothing runs while there is no data.
+ * <p>
+ * With prediction enabled the displayed angles are extrapolated to the frame time (plus an
+ * optional extra horizon), see {@link SensorsController#predictAngles(SensorSourceType, long, float[])}.
+ * The time of each frame, the latency from each displayed sample to its frame
+ * ({@link PipelineMetrics.Stage#MOTION_TO_PHOTON}) and the samples which were read but never
+ * shown are recorded in the controller's {@link PipelineMetrics}.
+ * <p>
+ * Must be used from the main thread only. Nothing is allocated per frame.
+ */
+public class AnglesReadoutPublisher {
+
+    public static final int FIELD_YAW = 1;
+    public static final int FIELD_PITCH = 1 << 1;
+    public static final int FIELD_ROLL = 1 << 2;
+    public static final int FIELD_AZIMUTH = 1 << 3;
+    public static final int FIELD_INCLINATION = 1 << 4;
+    public static final int FIELD_TEST_SCAL_PROD = 1 << 5;
+    public static final int ALL_FIELDS = (1 << 6) - 1;
+
+    private static final int N_FIELDS = 6;
+    private static final int N_SOURCES = SensorSourceType.values().length;
+    private static final SensorSourceType[] SOURCES = SensorSourceType.values();
+
+    public interface Display {
+        /**
+         * Called on the main thread, at most once per frame and source
+         * @param srcType source of the sample
+         * @param sample the sample. It is re-used, the values are valid only during this call.
+         * @param changedFields FIELD_* flags of the values which look different at the display precision
+         */
+        void onReadoutChanged(SensorSourceType srcType, AngleRingBuffer.Sample sample, int changedFields);
+    }
+
+    private final SensorsController mController;
+    private final SensorSourceType mSource;
+    private final Display mDisplay;
+    private final FrameScheduler mScheduler;
+
+    private AngleRingBuffer.Reader mReader;
+    private boolean started;
+
+    //--- Display precision ---
+    private double mAngleScale = 10;        // 1 decimal, degrees
+    private double mScalProdScale = 1e6;    // 6 decimals
+
+    // Latest sample per source read during the current frame. Index is SensorSourceType.ordinal()
+    private final AngleRingBuffer.Sample mSample = new AngleRingBuffer.Sample();
+    private final AngleRingBuffer.Sample[] mLatest = new AngleRingBuffer.Sample[N_SOURCES];
+    // Samples read during the current frame, per source
+    private final int[] mFrameSamples = new int[N_SOURCES];
+
+    // Quantized values on display. Index is SensorSourceType.ordinal() * N_FIELDS + the bit number of the FIELD_* flag
+    private final long[] mShown = new long[N_SOURCES * N_FIELDS];
+    private final long[] mQuantized = new long[N_FIELDS];
+    private final boolean[] hasShown = new boolean[N_SOURCES];
+
+    //--- Prediction ---
+    private boolean predictionEnabled;
+    private long mExtraHorizonNs;
+    private final float[] mPredicted = new float[5];
+    private final AngleRingBuffer.Sample mPredictedSample = new AngleRingBuffer.Sample();
+
+    private long mFramesCount;
+    private long mUpdatesCount;
+    private long mSamplesCount;
+
+    /**
+     * @param controller source of the angle samples
+     * @param source the only source to display, or null to display every source
+     * @param display receiver of the readout updates
+     */
+    public AnglesReadoutPublisher(SensorsController controller, SensorSourceType source, Display display) {
+        if (controller == null) {
+            throw new IllegalArgumentException("Controller must be provided");
+        } else if (display == null) {
+            throw new IllegalArgumentException("Display must be provided");
+        }
+        mController = controller;
+        mSource = source;
+        mDisplay = display;
+        mScheduler = new FrameScheduler(mFrameTask);
+        for (int i=0; i<N_SOURCES; i++) {
+            mLatest[i] = new AngleRingBuffer.Sample();
+        }
+    }
+
+    /**
+     * Set the display precision, i.e. how many decimals are shown. Values which differ only
+     * beyond this precision are not reported as changed.
+     * @param angleDecimals decimals of the angles in degrees
+     * @param scalProdDecimals decimals of the test scalar product
+     */
+    public void setDisplayPrecision(int angleDecimals, int scalProdDecimals) {
+        mAngleScale = Math.pow(10, angleDecimals);
+        mScalProdScale = Math.pow(10, scalProdDecimals);
+        clearShown();
+    }
+
+    private void clearShown() {
+        for (int i=0; i<N_SOURCES; i++) {
+            hasShown[i] = false;
+        }
+    }
+
+    /**
+     * @param enabled display the angles predicted for the frame time instead of the latest calculated ones
+     * @param extraHorizonNs time to predict beyond the frame (vsync) time, e.g. the display
+     *                       pipeline latency, to aim at the moment the frame becomes visible
+     */
+    public void setPrediction(boolean enabled, long extraHorizonNs) {
+        predictionEnabled = enabled;
+        mExtraHorizonNs = extraHorizonNs;
+    }
+
+    /**
+     * Start publishing. Only the samples calculated from now on are displayed.
+     */
+    public void start() {
+        if (!started) {
+            started = true;
+            mReader = mController.createAnglesReader();
+            clearShown();
+            mController.addFrameScheduler(mScheduler);
+        }
+    }
+
+    public void stop() {
+        if (started) {
+            started = false;
+            mController.removeFrameScheduler(mScheduler);
+            mScheduler.cancel();
+            mReader = null;
+        }
+    }
+
+    public long getFramesCount() {
+        return mFramesCount;
+    }
+
+    /**
+     * @return number of readout updates reported to the display
+     */
+    public long getUpdatesCount() {
+        return mUpdatesCount;
+    }
+
+    /**
+     * @return number of samples consumed
+     */
+    public long getSamplesCount() {
+        return mSamplesCount;
+    }
+
+    private final FrameScheduler.FrameTask mFrameTask = new FrameScheduler.FrameTask() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!started) return;
+            mFramesCount ++;
+            final long t0 = System.nanoTime();
+            publishLatest(frameTimeNanos);
+            mController.getMetrics().record(PipelineMetrics.Stage.UI_PUBLISH, System.nanoTime() - t0);
+        }
+    };
+
+    private void publishLatest(long frameTimeNanos) {
+        //----  Drain the reader  ----
+        final AngleRingBuffer.Reader reader = mReader;
+        while (reader.poll(mSample)) {
+            mSamplesCount ++;
+            final int i = mSample.getSourceType();
+            if (mSource != null && i != mSource.ordinal()) {
+                continue;
+            }
+            mLatest[i].copyFrom(mSample);
+            mFrameSamples[i] ++;
+        }
+
+        final PipelineMetrics metrics = mController.getMetrics();
+        for (int i=0; i<N_SOURCES; i++) {
+            if (mFrameSamples[i] == 0) {
+                continue;
+            }
+            //----  Everything read but the displayed sample has been coalesced  ----
+            if (mFrameSamples[i] > 1) {
+                metrics.count(SOURCES[i], PipelineMetrics.Counter.COALESCED, mFrameSamples[i] - 1);
+            }
+            mFrameSamples[i] = 0;
+            publish(i, frameTimeNanos);
+        }
+    }
+
+    private void publish(int src, long frameTimeNanos) {
+        AngleRingBuffer.Sample s = mLatest[src];
+        mController.reportDisplayed(s.getTimestamp(), frameTimeNanos);
+        if (predictionEnabled && mController.predictAngles(SOURCES[src], frameTimeNanos + mExtraHorizonNs, mPredicted)) {
+            mPredictedSample.copyFrom(s);
+            mPredictedSample.setAngles(mPredicted[0], mPredicted[1], mPredicted[2], mPredicted[3], mPredicted[4]);
+            s = mPredictedSample;
+        }
+
+        //----  Compare with what is on display  ----
+        final long[] q = mQuantized;
+        q[0] = quantizeAngle(s.getYaw());
+        q[1] = quantizeAngle(s.getPitch());
+        q[2] = quantizeAngle(s.getRoll());
+        q[3] = quantizeAngle(s.getAzimuth());
+        q[4] = quantizeAngle(s.getInclination());
+        q[5] = Math.round(s.getResidual() * mScalProdScale);
+        final int o = src * N_FIELDS;
+        int changed = 0;
+        for (int f=0; f<N_FIELDS; f++) {
+            if (!hasShown[src] || q[f] != mShown[o + f]) {
+                changed |= (1 << f);
+                mShown[o + f] = q[f];
+            }
+        }
+        hasShown[src] = true;
+        if (changed != 0) {
+            mUpdatesCount ++;
+            mDisplay.onReadoutChanged(SOURCES[src], s, changed);
+        }
+    }
+
+    private long quantizeAngle(float radians) {
+        return Math.round(Math.toDegrees(radians) * mAngleScale);
+    }
+}
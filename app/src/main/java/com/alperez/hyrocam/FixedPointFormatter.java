@@ -0,0 +1,98 @@
+package com.alperez.hyrocam;
+
+/**
+ * Allocation-free number formatting into pre-allocated char arrays, for the display paths which
+ * run at the sensor or frame rate. The result can be shown with
+ * {@code Canvas.drawText(char[], int, int, float, float, Paint)} or
+ * {@code TextView.setText(char[], int, int)} without creating any String.
+ * <p>
+ * Values are rounded half up to the requested number of decimals, like "%.Nf" of
+ * {@link String#format(String, Object...)}, but the decimal separator is always '.'. The half-way
+ * rounding is done in binary, so a value which is exactly half-way in decimal may differ in the
+ * last digit. Values beyond ~9e18 after scaling are written as "Infinity".
+ * All methods are static and thread-safe.
+ */
+public final class FixedPointFormatter {
+
+    public static final int MAX_DECIMALS = 9;
+
+    private static final long[] POW10 = new long[]{
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    /** Scaled values above this do not fit into a long */
+    private static final double MAX_SCALED = 9.0e18;
+
+    private static final char[] NAN = "NaN".toCharArray();
+    private static final char[] INFINITY = "Infinity".toCharArray();
+
+    private FixedPointFormatter() {}
+
+    /**
+     * Maximum number of chars {@link #format(double, int, char[], int)} may write
+     */
+    public static int maxLength(int decimals) {
+        // sign + 19 digits + point + decimals
+        return 21 + decimals;
+    }
+
+    /**
+     * Write a value with a fixed number of decimals
+     *
+     * @param value value to format
+     * @param decimals number of digits after the decimal point, 0..{@link #MAX_DECIMALS}
+     * @param buf destination
+     * @param offset position in the destination to start at
+     * @return position right after the last written char
+     */
+    public static int format(double value, int decimals, char[] buf, int offset) {
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Number of decimals must be in the range 0.."+MAX_DECIMALS+" - "+decimals);
+        }
+        if (Double.isNaN(value)) {
+            return append(NAN, buf, offset);
+        }
+        int pos = offset;
+        if (value < 0 || (value == 0 && 1/value < 0)) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        final double scaled = value * POW10[decimals] + 0.5;
+        if (scaled >= MAX_SCALED) {
+            return append(INFINITY, buf, pos);
+        }
+        long v = (long) scaled;
+
+        //----  Number of integer digits  ----
+        long intPart = v / POW10[decimals];
+        int intDigits = 1;
+        while (intPart >= 10) {
+            intPart /= 10;
+            intDigits ++;
+        }
+
+        final int end = pos + intDigits + ((decimals > 0) ? (decimals + 1) : 0);
+        int p = end;
+        for (int i=0; i<decimals; i++) {
+            buf[--p] = (char)('0' + (int)(v % 10));
+            v /= 10;
+        }
+        if (decimals > 0) {
+            buf[--p] = '.';
+        }
+        do {
+            buf[--p] = (char)('0' + (int)(v % 10));
+            v /= 10;
+        } while (v > 0);
+        return end;
+    }
+
+    /**
+     * Copy the whole source array
+     * @return position right after the last written char
+     */
+    public static int append(char[] src, char[] buf, int offset) {
+        System.arraycopy(src, 0, buf, offset, src.length);
+        return offset + src.length;
+    }
+}
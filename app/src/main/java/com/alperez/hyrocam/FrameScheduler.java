@@ -0,0 +1,110 @@
+package com.alperez.hyrocam;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a task on the main thread at most once per display frame (vsync).
+ * <p>
+ * {@link #requestFrame()} can be called from any thread and any number of times - all the
+ * requests made before the next frame are coalesced into one execution of the task.
+ * On API 16+ the task is run from a {@link Choreographer} frame callback, on older
+ * platforms it is simply posted to the main looper.
+ * <p>
+ * Nothing is allocated per request.
+ */
+public class FrameScheduler {
+
+    public interface FrameTask {
+        /**
+         * Called on the main thread
+         * @param frameTimeNanos vsync time of the frame in the {@link System#nanoTime()} time base
+         */
+        void doFrame(long frameTimeNanos);
+    }
+
+    private final FrameTask mTask;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private Choreographer.FrameCallback mFrameCallback;
+    private volatile boolean released;
+
+    public FrameScheduler(FrameTask task) {
+        if (task == null) {
+            throw new IllegalArgumentException("Frame task must be provided");
+        }
+        mTask = task;
+    }
+
+    /**
+     * Request the task to be executed on the next frame. Thread-safe.
+     */
+    public void requestFrame() {
+        if (!released && mScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mPostToChoreographer);
+        }
+    }
+
+    /**
+     * Cancel the pending execution (if any). Requests made after this call are honored again.
+     * Must be called from the main thread.
+     */
+    public void cancel() {
+        mMainHandler.removeCallbacks(mPostToChoreographer);
+        if (mFrameCallback != null) {
+            removeFrameCallback();
+        }
+        mScheduled.set(false);
+    }
+
+    /**
+     * Cancel and ignore all further requests. Must be called from the main thread.
+     */
+    public void release() {
+        released = true;
+        cancel();
+    }
+
+    private final Runnable mPostToChoreographer = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                postFrameCallback();
+            } else {
+                executeTask(System.nanoTime());
+            }
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    executeTask(frameTimeNanos);
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameCallback() {
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+    }
+
+    private void executeTask(long frameTimeNanos) {
+        // Reset the flag first, so the data which arrives while the task is running
+        // schedules the next frame.
+        mScheduled.set(false);
+        if (!released) {
+            mTask.doFrame(frameTimeNanos);
+        }
+    }
+}
@@ -6,7 +6,16 @@ import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.widget.TextView;
 
-public class MainActivity extends AppCompatActivity implements SensorsController.OnAnglesListener {
+import com.alperez.hyrocam.orientation.AngleRingBuffer;
+import com.alperez.hyrocam.orientation.SensorInputType;
+import com.alperez.hyrocam.orientation.SensorSourceType;
+import com.alperez.hyrocam.orientation.filter.FilterChain;
+import com.alperez.hyrocam.orientation.filter.LowPassFilter;
+import com.alperez.hyrocam.orientation.filter.MedianFilter;
+
+import java.io.File;
+
+public class MainActivity extends AppCompatActivity implements AnglesReadoutPublisher.Display {
 
     private static final int MAXIMUM_SELF_ALT = 1000;
     private static final int MAXIMUM_TARGET_DIST = 1600;
@@ -14,6 +23,14 @@ public class MainActivity extends AppCompatActivity implements SensorsController
     private static final int INITIAL_TARGET_X = 150;
     private static final int INITIAL_TARGET_Y = 600;
     private static final int INITIAL_TARGET_ALT = 220;
+    private static final long METRICS_DUMP_INTERVAL_MS = 10000;
+    private static final float RAW_CUTOFF_HZ = 2f;
+    // Magnetometer values further than this from the median of 5 are spikes, uT
+    private static final float MAGNET_SPIKE_THRESHOLD = 3f;
+    // Orientation changes below the display resolution of 0.1 deg are not calculated, rad
+    private static final float ORIENTATION_DEAD_BAND = (float) Math.toRadians(0.05);
+    private static final String CALIBRATION_FILE_NAME = "orientation.cal";
+    private static final int AZIMUTH_DISTURBED_COLOR = 0xFFFF5722;
 
     private TextView vTxtYaw;
     private TextView vTxtPitch;
@@ -21,10 +38,13 @@ public class MainActivity extends AppCompatActivity implements SensorsController
     private TextView vTxtAzimuth;
     private TextView vTxtInclination;
     private TextView vTxtTestScalProduct;
+    private int mAzimuthColor;
 
     private TargetView vTarget;
 
     SensorsController mController;
+    private AnglesReadoutPublisher mReadoutPublisher;
+    private MetricsOverlay mMetricsOverlay;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,6 +57,7 @@ public class MainActivity extends AppCompatActivity implements SensorsController
         vTxtAzimuth = (TextView) findViewById(R.id.txt_azimuth);
         vTxtInclination = (TextView) findViewById(R.id.txt_inclination);
         vTxtTestScalProduct = (TextView) findViewById(R.id.txt_test);
+        mAzimuthColor = vTxtAzimuth.getCurrentTextColor();
         vTarget = (TargetView) findViewById(R.id.target_set_view);
         vTarget.setRealLifeMaxTargetRadius(MAXIMUM_TARGET_DIST);
         vTarget.setRealLifeTargetAltitude(INITIAL_TARGET_ALT);
@@ -57,50 +78,105 @@ public class MainActivity extends AppCompatActivity implements SensorsController
         });
 
 
-        mController = new SensorsController((SensorManager) getSystemService(Context.SENSOR_SERVICE));
+        mController = new SensorsController((SensorManager) getSystemService(Context.SENSOR_SERVICE), SensorsController.ExecutionMode.SENSOR_THREAD);
         mController.setSelfLocation(new float[]{0, 0, INITIAL_SELF_ALT});
         mController.setTargetLocation(new float[]{INITIAL_TARGET_X, INITIAL_TARGET_Y, INITIAL_TARGET_ALT});
-    }
+        // Slow sensors while the device is still, fastest ones while it turns quickly
+        mController.setAdaptiveRateEnabled(true);
+        // Exact math unless the build opts in to the approximations
+        mController.setFastMath(BuildConfig.FAST_MATH);
+        // A device lying still keeps producing sensor noise at the full rate, skip it
+        mController.setOrientationDeadBand(ORIENTATION_DEAD_BAND);
+        // Start from the gyroscope bias and magnetometer calibration of the previous session
+        mController.setCalibrationFile(new File(getFilesDir(), CALIBRATION_FILE_NAME));
+        // RAW angles come straight from the accelerometer and the magnetometer, smooth them
+        final MedianFilter magnetSpikes = new MedianFilter(3, 5);
+        magnetSpikes.setOutlierThreshold(MAGNET_SPIKE_THRESHOLD);
+        mController.setInputFilter(SensorSourceType.RAW, SensorInputType.ACCELEROMETER, new LowPassFilter(3, RAW_CUTOFF_HZ));
+        mController.setInputFilter(SensorSourceType.RAW, SensorInputType.MAGNETIC_FIELD, new FilterChain(magnetSpikes, new LowPassFilter(3, RAW_CUTOFF_HZ)));
+
+        // The azimuth cannot be trusted while the magnetic field is disturbed
+        mController.setOnMagneticStateListener(new SensorsController.OnMagneticStateListener() {
+            @Override
+            public void onMagneticStateChanged(boolean disturbed) {
+                vTxtAzimuth.setTextColor(disturbed ? AZIMUTH_DISTURBED_COLOR : mAzimuthColor);
+            }
+        });
 
+        // One set of views, so one source: the most accurate one the device has sensors for.
+        // As many times per second as the display can show, but only when it has changed.
+        mReadoutPublisher = new AnglesReadoutPublisher(mController, mController.getPreferredSource(), this);
+        mReadoutPublisher.setDisplayPrecision(1, 6);
+        // Show the orientation as of the vsync time rather than of the (older) sensor sample
+        mReadoutPublisher.setPrediction(true, 0);
 
-    @Override
-    public void onStart() {
-        super.onStart();
-        mController.addOrientationListener(this);
+        if (BuildConfig.DEBUG) {
+            mMetricsOverlay = new MetricsOverlay(this, mController.getMetrics());
+        }
     }
 
+
     @Override
     public void onResume() {
         super.onResume();
         mController.activate(SensorManager.SENSOR_DELAY_GAME);
+        mReadoutPublisher.start();
+        if (mMetricsOverlay != null) {
+            mMetricsOverlay.start();
+            mController.setMetricsDumpInterval(METRICS_DUMP_INTERVAL_MS);
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mReadoutPublisher.stop();
+        if (mMetricsOverlay != null) {
+            mMetricsOverlay.stop();
+            mController.setMetricsDumpInterval(0);
+        }
         mController.release();
     }
 
+
     @Override
-    public void onStop() {
-        super.onStop();
-        mController.removeOrientationListener(this);
+    public void onReadoutChanged(SensorSourceType srcType, AngleRingBuffer.Sample s, int changedFields) {
+        if ((changedFields & AnglesReadoutPublisher.FIELD_YAW) != 0) {
+            setDegree(vTxtYaw, mYawText, s.getYaw());
+        }
+        if ((changedFields & AnglesReadoutPublisher.FIELD_PITCH) != 0) {
+            setDegree(vTxtPitch, mPitchText, s.getPitch());
+        }
+        if ((changedFields & AnglesReadoutPublisher.FIELD_ROLL) != 0) {
+            setDegree(vTxtRoll, mRollText, s.getRoll());
+        }
+        if ((changedFields & AnglesReadoutPublisher.FIELD_AZIMUTH) != 0) {
+            setDegree(vTxtAzimuth, mAzimuthText, s.getAzimuth());
+        }
+        if ((changedFields & AnglesReadoutPublisher.FIELD_INCLINATION) != 0) {
+            setDegree(vTxtInclination, mInclinationText, s.getInclination());
+        }
+        if ((changedFields & AnglesReadoutPublisher.FIELD_TEST_SCAL_PROD) != 0) {
+            vTxtTestScalProduct.setText(mTestScalProdText, 0, FixedPointFormatter.format(s.getResidual(), 6, mTestScalProdText, 0));
+        }
     }
 
-
-    @Override
-    public void onAnglesChanged(SensorsController.SensorSourceType srcType, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
-        vTxtYaw.setText(getDegree(yaw));
-        vTxtPitch.setText(getDegree(pitch));
-        vTxtRoll.setText(getDegree(roll));
-        vTxtAzimuth.setText(getDegree(camRelAzimuth));
-        vTxtInclination.setText(getDegree(camRelInclination));
-        vTxtTestScalProduct.setText(String.format("%1$.6f", testScalProd));
+    // One buffer per TextView: setText(char[], int, int) keeps a reference to the array
+    private static final char[] DEG_SUFFIX = " deg".toCharArray();
+    private final char[] mYawText = newDegreeBuffer();
+    private final char[] mPitchText = newDegreeBuffer();
+    private final char[] mRollText = newDegreeBuffer();
+    private final char[] mAzimuthText = newDegreeBuffer();
+    private final char[] mInclinationText = newDegreeBuffer();
+    private final char[] mTestScalProdText = new char[FixedPointFormatter.maxLength(6)];
+
+    private static char[] newDegreeBuffer() {
+        return new char[FixedPointFormatter.maxLength(1) + DEG_SUFFIX.length];
     }
 
-    private static final String DEG_FORMAT = "%1$.1f deg";
-    private String getDegree(float angle) {
+    private static void setDegree(TextView v, char[] buf, float angle) {
         double deg = 180f*angle / Math.PI;
-        return String.format(DEG_FORMAT, deg);
+        final int len = FixedPointFormatter.append(DEG_SUFFIX, buf, FixedPointFormatter.format(deg, 1, buf, 0));
+        v.setText(buf, 0, len);
     }
 }
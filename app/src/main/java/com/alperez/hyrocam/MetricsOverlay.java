@@ -0,0 +1,93 @@
+package com.alperez.hyrocam;
+
+import android.app.Activity;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
+import com.alperez.hyrocam.orientation.PipelineMetrics;
+
+/**
+ * Debug overlay with the {@link PipelineMetrics} report, drawn over the whole activity content.
+ * The text is refreshed once per {@link #REFRESH_INTERVAL_MS}, so it costs nothing at the
+ * sensor or frame rate. The view is not touchable and does not take the focus.
+ * <p>
+ * Must be used from the main thread only.
+ */
+public class MetricsOverlay {
+
+    public static final long REFRESH_INTERVAL_MS = 1000;
+
+    private final PipelineMetrics mMetrics;
+    private final TextView vText;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final StringBuilder mReport = new StringBuilder(1024);
+    private boolean started;
+
+    /**
+     * Add the overlay to the activity's window. It is hidden until {@link #start()}.
+     */
+    public MetricsOverlay(Activity activity, PipelineMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics must be provided");
+        }
+        mMetrics = metrics;
+
+        vText = new TextView(activity);
+        vText.setTypeface(Typeface.MONOSPACE);
+        vText.setTextSize(TypedValue.COMPLEX_UNIT_SP, 9);
+        vText.setTextColor(Color.WHITE);
+        vText.setBackgroundColor(0xA0000000);
+        final int pad = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 4, activity.getResources().getDisplayMetrics());
+        vText.setPadding(pad, pad, pad, pad);
+        vText.setClickable(false);
+        vText.setFocusable(false);
+        vText.setVisibility(TextView.GONE);
+
+        final ViewGroup decor = (ViewGroup) activity.getWindow().getDecorView();
+        decor.addView(vText, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT,
+                ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.BOTTOM | Gravity.END));
+    }
+
+    public void start() {
+        if (!started) {
+            started = true;
+            vText.setVisibility(TextView.VISIBLE);
+            mHandler.post(mRefresh);
+        }
+    }
+
+    public void stop() {
+        if (started) {
+            started = false;
+            mHandler.removeCallbacks(mRefresh);
+            vText.setVisibility(TextView.GONE);
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!started) return;
+            final StringBuilder sb = mReport;
+            sb.setLength(0);
+            mMetrics.appendReport(sb);
+            // Drop the trailing line feed
+            if (sb.length() > 0) {
+                sb.setLength(sb.length() - 1);
+            }
+            vText.setText(sb);
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+}
@@ -1,42 +1,188 @@
 package com.alperez.hyrocam;
 
+import android.annotation.TargetApi;
+import android.hardware.GeomagneticField;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
-import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.List;
+import com.alperez.hyrocam.orientation.AdaptiveRateController;
+import com.alperez.hyrocam.orientation.AngleRingBuffer;
+import com.alperez.hyrocam.orientation.AnglesCalculator;
+import com.alperez.hyrocam.orientation.CalibrationState;
+import com.alperez.hyrocam.orientation.GeodeticFrame;
+import com.alperez.hyrocam.orientation.MagneticDisturbanceDetector;
+import com.alperez.hyrocam.orientation.OrientationPipeline;
+import com.alperez.hyrocam.orientation.OrientationPredictor;
+import com.alperez.hyrocam.orientation.PipelineMetrics;
+import com.alperez.hyrocam.orientation.SensorBatch;
+import com.alperez.hyrocam.orientation.SensorInputType;
+import com.alperez.hyrocam.orientation.SensorSourceType;
+import com.alperez.hyrocam.orientation.SensorTraceWriter;
+import com.alperez.hyrocam.orientation.SessionLogWriter;
+import com.alperez.hyrocam.orientation.TargetAnglesBuffer;
+import com.alperez.hyrocam.orientation.TargetSet;
+import com.alperez.hyrocam.orientation.filter.SampleFilter;
+import com.alperez.hyrocam.orientation.gimbal.FixedRateLoop;
+import com.alperez.hyrocam.orientation.gimbal.GimbalController;
+import com.alperez.hyrocam.orientation.gimbal.GimbalTransport;
 
-import Jama.Matrix;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by stanislav.perchenko on 23-Oct-15.
  */
-public class SensorsController implements SensorEventListener {
-
-    public enum SensorSourceType {
-        ROTATION_VECTOR, RAW;
-    }
+public class SensorsController implements SensorEventListener, OrientationPipeline.Output, OrientationPipeline.MultiTargetOutput, OrientationPipeline.MagneticStateOutput, OrientationPipeline.DeadBandOutput {
 
     public interface OnAnglesListener {
         void onAnglesChanged(SensorSourceType srcType, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd);
     }
 
+    /**
+     * Receives the angles of all the targets set by {@link #setTargets(TargetSet)}. It is called on
+     * the thread sensor events are processed on (see {@link ExecutionMode}).
+     */
+    public interface OnTargetsListener {
+        /**
+         * @param angles angles of all targets. The buffer is re-used, its content is valid only
+         *               during this call.
+         */
+        void onTargetsChanged(TargetAnglesBuffer angles);
+    }
+
+    /**
+     * Receives the changes of the magnetic field state on the main thread, see
+     * {@link #isMagneticFieldDisturbed()}.
+     */
+    public interface OnMagneticStateListener {
+        void onMagneticStateChanged(boolean disturbed);
+    }
+
+    /**
+     * Defines where sensor events are received and processed
+     */
+    public enum ExecutionMode {
+        /**
+         * Sensor events are received and processed on the main thread. Listeners are called
+         * synchronously for each result.
+         */
+        MAIN_THREAD,
+
+        /**
+         * Sensor events are received and processed on a dedicated sensor thread. Only the latest
+         * result per {@link SensorSourceType} is delivered to listeners on the main thread, at most
+         * once per display frame.
+         */
+        SENSOR_THREAD
+    }
+
+    private static final String TAG = "SensorsController";
+    private static final String SENSOR_THREAD_NAME = "SensorsController";
+    private static final int ANGLES_BUFFER_CAPACITY = 256;
+    private static final int SENSOR_BATCH_CAPACITY = 4096;
+    private static final int SESSION_LOG_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int SESSION_LOG_MAX_SEGMENTS = 32;
+    // Stages of every n-th event are timed, the clock reads cost more than the recording
+    private static final int METRICS_TIMING_INTERVAL = 8;
+
     private SensorManager mSm;
+    private final ExecutionMode mExecutionMode;
     private boolean activated;
-    private List<WeakReference<OnAnglesListener>> mListeners = new ArrayList<>();
+    private final OrientationPipeline mPipeline = new OrientationPipeline(this);
+    private final AngleRingBuffer mAnglesBuffer = new AngleRingBuffer(ANGLES_BUFFER_CAPACITY);
+
+    // Copy-on-write array of listeners. It is replaced (never modified) on add/remove, so
+    // fan-out can iterate a snapshot while listeners are being changed.
+    private final Object mListenersLock = new Object();
+    private volatile WeakReference<OnAnglesListener>[] mListeners = newListenersArray(0);
+    // Copy-on-write array of the schedulers woken up by every published sample, the same way
+    private volatile FrameScheduler[] mFrameSchedulers = new FrameScheduler[0];
+
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private FrameScheduler mFrameScheduler;
+
+    // Batched (FIFO) mode
+    private boolean batched;
+    private SensorBatch mBatch;
+
+    // Trace recording. Written on the thread sensor events come on.
+    private volatile SensorTraceWriter mTraceWriter;
+    // Session log. Written on the thread sensor events come on.
+    private volatile SessionLogWriter mSessionLog;
 
     public SensorsController(SensorManager sm) {
+        this(sm, ExecutionMode.MAIN_THREAD);
+    }
+
+    public SensorsController(SensorManager sm, ExecutionMode mode) {
         if (sm == null) {
             throw new IllegalArgumentException("Instance of the SensorManager must be provided");
+        } else if (mode == null) {
+            throw new IllegalArgumentException("Execution mode must be provided");
         }
         mSm = sm;
+        mExecutionMode = mode;
+        mPipeline.setPredictionEnabled(true);
+        mMetrics.setTimingInterval(METRICS_TIMING_INTERVAL);
+        mPipeline.setMetrics(mMetrics);
+        mPipeline.setMagneticStateOutput(this);
+        mPipeline.setDeadBandOutput(this);
     }
 
+    public ExecutionMode getExecutionMode() {
+        return mExecutionMode;
+    }
 
+    /**
+     * @return the most accurate source the device has the sensors for: FUSED if there is a
+     *         gyroscope, otherwise ROTATION_VECTOR if there is one, otherwise RAW
+     */
+    public SensorSourceType getPreferredSource() {
+        if (mSm.getDefaultSensor(Sensor.TYPE_GYROSCOPE) != null) {
+            return SensorSourceType.FUSED;
+        } else if (mSm.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR) != null) {
+            return SensorSourceType.ROTATION_VECTOR;
+        }
+        return SensorSourceType.RAW;
+    }
+
+    /**
+     * Must be called from the main thread
+     * @param periodUs
+     * @return
+     */
     public boolean activate(int periodUs) {
+        return activate(periodUs, 0);
+    }
+
+    /**
+     * Activate with optional hardware batching (FIFO mode). When maxReportLatencyUs > 0 and the
+     * platform supports it (API 19+), sensors may hold samples in their FIFO for up to this time
+     * and deliver them in bursts, so the application processor is not woken up for every sample.
+     * Each burst is collected into a {@link SensorBatch} and processed as one block
+     * (see {@link OrientationPipeline#onBatch(SensorBatch)}).
+     * <p>
+     * Must be called from the main thread
+     * @param periodUs sampling period
+     * @param maxReportLatencyUs maximum batching latency, 0 - no batching
+     * @return true if hardware batching has been requested
+     */
+    public boolean activate(int periodUs, int maxReportLatencyUs) {
         if (!activated) {
             Sensor[] sensors = new Sensor[3];
 
@@ -53,21 +199,172 @@ public class SensorsController implements SensorEventListener {
             sensors[1] = mSm.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
             sensors[2] = mSm.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
 
-            for (Sensor s : sensors) {
-                if (s != null) {
-                    mSm.registerListener(this, s, periodUs);
+            // The offset between the clocks grows while the device sleeps
+            sensorClockKnown = false;
+            mMetrics.resetDelivery();
+            // Re-checked from the first sample, the device may have been moved meanwhile
+            mPipeline.getMagneticDetector().reset();
+            synchronized (mLocationLock) {
+                pendingFusionCheck = true;
+                // The first results of every source are shown whatever the orientation
+                pendingDeadBandReset = true;
+            }
+            if (mCalibrationFile != null && !calibrationLoadStarted) {
+                calibrationLoadStarted = true;
+                startCalibrationLoad(mCalibrationFile);
+            }
+            mActivateNs = System.nanoTime();
+            mColdStartPending.set((1 << N_SOURCES) - 1);
+            if (magneticDisturbed) {
+                magneticDisturbed = false;
+                mMainHandler.post(mNotifyMagneticState);
+            }
+
+            mSensorHandler = null;
+            if (mExecutionMode == ExecutionMode.SENSOR_THREAD) {
+                mSensorThread = new HandlerThread(SENSOR_THREAD_NAME, Process.THREAD_PRIORITY_DISPLAY);
+                mSensorThread.start();
+                mSensorHandler = new Handler(mSensorThread.getLooper());
+                if (mFrameScheduler == null) {
+                    mFrameScheduler = new FrameScheduler(mFrameTask);
+                }
+            }
+
+            batched = (maxReportLatencyUs > 0) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+            if (batched) {
+                if (mSensorHandler == null) {
+                    // Bursts are drained by a message posted to the thread events come on
+                    mSensorHandler = new Handler(Looper.getMainLooper());
+                }
+                if (mBatch == null) {
+                    mBatch = new SensorBatch(SENSOR_BATCH_CAPACITY);
                 }
+                mBatch.clear();
             }
+
+            mSensors = sensors;
+            mGyro = mSm.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+            mPeriodUs = periodUs;
+            mMaxReportLatencyUs = maxReportLatencyUs;
+            if (adaptiveRate) {
+                startAdaptiveRate();
+            }
+            registerAtLevel(AdaptiveRateController.LEVEL_NORMAL);
             activated = true;
 
         }
-        return false;
+        return batched;
     }
 
+    /**
+     * Register all the sensors at the rates of the sampling level (see {@link AdaptiveRateController}).
+     * At the NORMAL level all sensors but the gyroscope run at the period passed to activate().
+     * The gyroscope drives the FUSED source, so it runs at the highest rate it supports unless the
+     * device is still.
+     */
+    private void registerAtLevel(int level) {
+        final int periodUs = getLevelPeriod(level);
+        for (Sensor s : mSensors) {
+            if (s != null) {
+                registerSensor(s, periodUs, mMaxReportLatencyUs);
+            }
+        }
+        if (mGyro != null) {
+            registerSensor(mGyro, (level == AdaptiveRateController.LEVEL_STILL) ? periodUs : getFastestPeriod(mGyro), mMaxReportLatencyUs);
+        }
+    }
+
+    private int getLevelPeriod(int level) {
+        switch (level) {
+            case AdaptiveRateController.LEVEL_STILL:
+                // Not slower than the UI rate, so the predictors do not see the gaps as a restart
+                return (toMicros(mPeriodUs, null) < STILL_PERIOD_US) ? SensorManager.SENSOR_DELAY_UI : mPeriodUs;
+            case AdaptiveRateController.LEVEL_FAST:
+                return SensorManager.SENSOR_DELAY_FASTEST;
+            default:
+                return mPeriodUs;
+        }
+    }
+
+    private static int getFastestPeriod(Sensor s) {
+        return (s.getMinDelay() > 0) ? s.getMinDelay() : SensorManager.SENSOR_DELAY_FASTEST;
+    }
+
+    /**
+     * @param period period in microseconds or one of SensorManager.SENSOR_DELAY_*
+     * @param s sensor to take the fastest period of, null - use the typical one
+     * @return nominal period in microseconds
+     */
+    private static int toMicros(int period, Sensor s) {
+        switch (period) {
+            case SensorManager.SENSOR_DELAY_FASTEST:
+                return (s != null && s.getMinDelay() > 0) ? s.getMinDelay() : FASTEST_PERIOD_US;
+            case SensorManager.SENSOR_DELAY_GAME:
+                return 20000;
+            case SensorManager.SENSOR_DELAY_UI:
+                return STILL_PERIOD_US;
+            case SensorManager.SENSOR_DELAY_NORMAL:
+                return 200000;
+            default:
+                return period;
+        }
+    }
+
+    private void registerSensor(Sensor s, int periodUs, int maxReportLatencyUs) {
+        if (batched) {
+            registerBatchedSensor(s, periodUs, maxReportLatencyUs);
+        } else {
+            mSm.registerListener(this, s, periodUs, mSensorHandler);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void registerBatchedSensor(Sensor s, int periodUs, int maxReportLatencyUs) {
+        mSm.registerListener(this, s, periodUs, maxReportLatencyUs, mSensorHandler);
+    }
+
+    public boolean isBatched() {
+        return activated && batched;
+    }
+
+    /**
+     * Must be called from the main thread
+     */
     public void release() {
         if (activated) {
             activated = false;
             mSm.unregisterListener(this);
+            stopTraceRecording();
+            stopSessionLog();
+            stopGimbalControl();
+            mAdaptiveSource = null;
+            mMainHandler.removeCallbacks(mApplyRateLevel);
+            final Handler h = mSensorHandler;
+            mSensorHandler = null;
+            if (mSensorThread != null) {
+                // After the events already queued there, then the thread is stopped
+                final HandlerThread t = mSensorThread;
+                h.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainLastBatch();
+                        saveCalibration();
+                        t.quit();
+                    }
+                });
+                mSensorThread = null;
+            } else {
+                if (h != null) {
+                    h.removeCallbacks(mDrainBatch);
+                }
+                drainLastBatch();
+                saveCalibration();
+            }
+            if (mFrameScheduler != null) {
+                mFrameScheduler.cancel();
+            }
+            // Samples left from this session must not be delivered after re-activation
+            mUiReader = null;
         }
     }
 
@@ -76,65 +373,525 @@ public class SensorsController implements SensorEventListener {
     }
 
     public void addOrientationListener(OnAnglesListener l) {
-        for (WeakReference<OnAnglesListener> wl : mListeners) {
-            if ((wl.get() != null) && (wl.get() == l)) {
-                return;
+        synchronized (mListenersLock) {
+            final WeakReference<OnAnglesListener>[] old = mListeners;
+            int nAlive = 0;
+            for (WeakReference<OnAnglesListener> wl : old) {
+                final OnAnglesListener existing = wl.get();
+                if (existing == l) {
+                    return;
+                } else if (existing != null) {
+                    nAlive ++;
+                }
             }
+            final WeakReference<OnAnglesListener>[] updated = newListenersArray(nAlive + 1);
+            int i = 0;
+            for (WeakReference<OnAnglesListener> wl : old) {
+                if (wl.get() != null) {
+                    updated[i++] = wl;
+                }
+            }
+            updated[i] = new WeakReference<>(l);
+            mListeners = updated;
         }
-        mListeners.add(new WeakReference<OnAnglesListener>(l));
     }
 
     public void removeOrientationListener(OnAnglesListener l) {
-        int index = -1;
-        int i=0;
-        for (WeakReference<OnAnglesListener> wl : mListeners) {
-            if ((wl.get() != null) && (wl.get() == l)) {
-                index = i;
-                break;
+        synchronized (mListenersLock) {
+            final WeakReference<OnAnglesListener>[] old = mListeners;
+            int nRemaining = 0;
+            for (WeakReference<OnAnglesListener> wl : old) {
+                final OnAnglesListener existing = wl.get();
+                if (existing != null && existing != l) {
+                    nRemaining ++;
+                }
+            }
+            if (nRemaining == old.length) {
+                return;
+            }
+            final WeakReference<OnAnglesListener>[] updated = newListenersArray(nRemaining);
+            int i = 0;
+            for (WeakReference<OnAnglesListener> wl : old) {
+                final OnAnglesListener existing = wl.get();
+                if (existing != null && existing != l) {
+                    updated[i++] = wl;
+                }
+            }
+            mListeners = updated;
+        }
+    }
+
+    /**
+     * Wake the scheduler up (see {@link FrameScheduler#requestFrame()}) whenever a sample is
+     * published into the angles buffer, so a consumer of a {@link #createAnglesReader() reader}
+     * runs only on the frames when there is something to read. Must be called from the main thread.
+     */
+    public void addFrameScheduler(FrameScheduler scheduler) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Scheduler must be provided");
+        }
+        synchronized (mListenersLock) {
+            final FrameScheduler[] old = mFrameSchedulers;
+            for (FrameScheduler s : old) {
+                if (s == scheduler) {
+                    return;
+                }
             }
-            i++;
+            final FrameScheduler[] updated = new FrameScheduler[old.length + 1];
+            System.arraycopy(old, 0, updated, 0, old.length);
+            updated[old.length] = scheduler;
+            mFrameSchedulers = updated;
         }
-        if (index >= 0) {
-            mListeners.remove(index);
+    }
+
+    public void removeFrameScheduler(FrameScheduler scheduler) {
+        synchronized (mListenersLock) {
+            final FrameScheduler[] old = mFrameSchedulers;
+            int index = -1;
+            for (int i=0; i<old.length; i++) {
+                if (old[i] == scheduler) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            final FrameScheduler[] updated = new FrameScheduler[old.length - 1];
+            System.arraycopy(old, 0, updated, 0, index);
+            System.arraycopy(old, index + 1, updated, index, old.length - index - 1);
+            mFrameSchedulers = updated;
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private static WeakReference<OnAnglesListener>[] newListenersArray(int size) {
+        return (WeakReference<OnAnglesListener>[]) new WeakReference[size];
+    }
+
+    /**
+     * Create a consumer of all the calculated angle samples. Samples are published by the
+     * sensor processing thread into a lock-free ring buffer and can be read by each consumer at its
+     * own pace, from any thread, without any allocation. A slow consumer does not slow down
+     * processing, it loses the oldest samples instead (see {@link AngleRingBuffer.Reader#getDropped()}).
+     */
+    public AngleRingBuffer.Reader createAnglesReader() {
+        return mAnglesBuffer.newReader();
+    }
+
     /**
-     * Set target coordinates (x, y, z)
+     * Set target coordinates (x, y, z). The new value is applied with the next sensor event.
      * @param target
      */
     public void setTargetLocation(float[] target) {
         if (target != null && target.length >= 3) {
-            System.arraycopy(target, 0, mTarget, 0, 3);
+            synchronized (mLocationLock) {
+                System.arraycopy(target, 0, mPendingTarget, 0, 3);
+                pendingTargetChanged = true;
+                mPredictionCalculator.setTargetLocation(target);
+            }
         }
     }
 
     /**
-     * Set device location (x, y, z)
+     * Set device location (x, y, z). The new value is applied with the next sensor event.
      * @param location
      */
     public void setSelfLocation(float[] location) {
         if (location != null && location.length >= 3) {
-            System.arraycopy(location, 0, mDeviceLocation, 0, 3);
+            synchronized (mLocationLock) {
+                System.arraycopy(location, 0, mPendingSelf, 0, 3);
+                pendingSelfChanged = true;
+                mPredictionCalculator.setSelfLocation(location);
+            }
+        }
+    }
+
+    /**
+     * Calculate the angles with the fast approximations of atan2, asin and 1/sqrt, see
+     * {@link OrientationPipeline#setFastMath(boolean)}. Applied with the next sensor event.
+     * Must be called from the main thread.
+     */
+    public void setFastMath(boolean enabled) {
+        synchronized (mLocationLock) {
+            pendingFastMath = enabled;
+            pendingFastMathChanged = true;
+            mPredictionCalculator.setFastMath(enabled);
+        }
+    }
+
+    /**
+     * Do not calculate nor report the orientations which differ from the previous result by less
+     * than the given angle, see {@link OrientationPipeline#setOrientationDeadBand(float)}.
+     * Applied with the next sensor event. Must be called from the main thread.
+     * @param angle rad, 0 - no dead-band
+     */
+    public void setOrientationDeadBand(float angle) {
+        if (!(angle >= 0) || angle >= Math.PI) {
+            throw new IllegalArgumentException("Dead-band must be in the range [0..PI) - "+angle);
+        }
+        synchronized (mLocationLock) {
+            mPendingDeadBand = angle;
+            pendingDeadBandChanged = true;
+        }
+    }
+
+    /**
+     * Set device location as WGS84 geodetic coordinates. The target and device locations are
+     * converted into a local East-North-Up frame around the device (see {@link GeodeticFrame}).
+     * Geodetic and x/y/z locations must not be mixed. The field of the World Magnetic Model at the
+     * location becomes the reference of the magnetic disturbance detection.
+     * Must be called from the main thread.
+     * @param latitude degrees
+     * @param longitude degrees
+     * @param altitude meters above the WGS84 ellipsoid
+     */
+    public void setSelfGeodetic(double latitude, double longitude, double altitude) {
+        // Under the lock, so a re-based target and device location are applied together
+        synchronized (mLocationLock) {
+            final boolean rebuilt = mGeoFrame.setSelf(latitude, longitude, altitude);
+            // Undisturbed field of the place from the World Magnetic Model
+            final GeomagneticField field = new GeomagneticField((float) latitude, (float) longitude, (float) altitude, System.currentTimeMillis());
+            mPendingMagneticReference[0] = field.getFieldStrength() / 1000f;
+            mPendingMagneticReference[1] = (float) Math.toRadians(field.getInclination());
+            pendingMagneticReferenceChanged = true;
+            mGeoFrame.getSelfEnu(mGeoScratch);
+            setSelfLocation(mGeoScratch);
+            if (rebuilt && hasGeoTarget) {
+                mGeoFrame.ecefToEnu(mGeoTargetEcef, mGeoScratch);
+                setTargetLocation(mGeoScratch);
+            }
+        }
+    }
+
+    /**
+     * Set target location as WGS84 geodetic coordinates. The target is applied once the
+     * device location is known (see {@link #setSelfGeodetic(double, double, double)}).
+     * Must be called from the main thread.
+     * @param latitude degrees
+     * @param longitude degrees
+     * @param altitude meters above the WGS84 ellipsoid
+     */
+    public void setTargetGeodetic(double latitude, double longitude, double altitude) {
+        synchronized (mLocationLock) {
+            GeodeticFrame.geodeticToEcef(latitude, longitude, altitude, mGeoTargetEcef);
+            hasGeoTarget = true;
+            if (mGeoFrame.hasReference()) {
+                mGeoFrame.ecefToEnu(mGeoTargetEcef, mGeoScratch);
+                setTargetLocation(mGeoScratch);
+            }
         }
     }
 
-    private float[] mTarget = new float[3];
-    private float[] mDeviceLocation = new float[3];
+    //--- Geodetic locations. Main thread only ---
+    private final GeodeticFrame mGeoFrame = new GeodeticFrame();
+    private final double[] mGeoTargetEcef = new double[3];
+    private boolean hasGeoTarget;
+    private final float[] mGeoScratch = new float[3];
+
+    // Locations are set from the UI thread but used on the sensor thread. The values are handed
+    // over through these pending buffers, so the calculator is only ever touched by one thread.
+    private final Object mLocationLock = new Object();
+    private final float[] mPendingTarget = new float[3];
+    private final float[] mPendingSelf = new float[3];
+    private boolean pendingTargetChanged;
+    private boolean pendingSelfChanged;
+
+    private void applyPendingLocations() {
+        synchronized (mLocationLock) {
+            if (pendingTargetChanged) {
+                pendingTargetChanged = false;
+                mPipeline.getCalculator().setTargetLocation(mPendingTarget);
+            }
+            if (pendingSelfChanged) {
+                pendingSelfChanged = false;
+                mPipeline.setSelfLocation(mPendingSelf);
+            }
+            if (pendingTargetsChanged) {
+                pendingTargetsChanged = false;
+                mTargets.copyFrom(mPendingTargets);
+                mPipeline.setTargets(mTargets);
+            }
+            if (pendingFovChanged) {
+                pendingFovChanged = false;
+                if (mPendingHalfFov > 0) {
+                    mPipeline.getTargetsSolver().setFieldOfView(mPendingHalfFov, mPendingRange);
+                } else {
+                    mPipeline.getTargetsSolver().clearFieldOfView();
+                }
+            }
+            if (pendingTargetsListenerChanged) {
+                pendingTargetsListenerChanged = false;
+                mTargetsListener = mPendingTargetsListener;
+                mPipeline.setMultiTargetOutput((mTargetsListener != null) ? this : null, mPendingTargetsSource);
+            }
+            if (pendingFiltersChanged) {
+                pendingFiltersChanged = false;
+                applyPendingFilters();
+            }
+            if (pendingMagneticReferenceChanged) {
+                pendingMagneticReferenceChanged = false;
+                mPipeline.getMagneticDetector().setReference(mPendingMagneticReference[0], mPendingMagneticReference[1]);
+            }
+            if (pendingFastMathChanged) {
+                pendingFastMathChanged = false;
+                mPipeline.setFastMath(pendingFastMath);
+            }
+            if (pendingDeadBandChanged) {
+                pendingDeadBandChanged = false;
+                mPipeline.setOrientationDeadBand(mPendingDeadBand);
+            }
+            if (pendingDeadBandReset) {
+                pendingDeadBandReset = false;
+                mPipeline.resetDeadBand();
+            }
+            if (pendingCalibrationChanged) {
+                pendingCalibrationChanged = false;
+                applyPendingCalibration();
+            }
+            if (pendingFusionCheck) {
+                pendingFusionCheck = false;
+                mPipeline.requestFusionCheck();
+            }
+        }
+    }
+
+    private void applyPendingFilters() {
+        for (int i=0; i<mPendingFilters.length; i++) {
+            if (pendingFilterChanged[i]) {
+                pendingFilterChanged[i] = false;
+                final SensorSourceType src = SOURCES[i / SensorInputType.COUNT];
+                mPipeline.setInputFilter(src, SensorInputType.typeAt(i % SensorInputType.COUNT), mPendingFilters[i]);
+                mPendingFilters[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Set the targets tracked in addition to the single target location. The set is copied, so
+     * it can be re-used by the caller. The new targets are applied with the next sensor event.
+     * @param targets targets, an empty set stops the multi-target calculation
+     */
+    public void setTargets(TargetSet targets) {
+        synchronized (mLocationLock) {
+            mPendingTargets.copyFrom(targets);
+            pendingTargetsChanged = true;
+        }
+    }
+
+    /**
+     * Report only the targets inside the camera view cone, see
+     * {@link com.alperez.hyrocam.orientation.MultiTargetSolver#setFieldOfView(float, float)}.
+     * @param halfAngle half of the cone opening angle in radians, 0 - report all the targets
+     * @param range maximum distance to a target
+     */
+    public void setTargetsFieldOfView(float halfAngle, float range) {
+        if (halfAngle > 0 && !(range > 0)) {
+            throw new IllegalArgumentException("Range must be positive - "+range);
+        }
+        synchronized (mLocationLock) {
+            mPendingHalfFov = halfAngle;
+            mPendingRange = range;
+            pendingFovChanged = true;
+        }
+    }
+
+    /**
+     * @param l receives the angles of all targets, null to stop the multi-target calculation
+     * @param source source which drives the multi-target calculation, null - every source.
+     *               With thousands of targets it is worth selecting only one source.
+     */
+    public void setOnTargetsListener(OnTargetsListener l, SensorSourceType source) {
+        synchronized (mLocationLock) {
+            mPendingTargetsListener = l;
+            mPendingTargetsSource = source;
+            pendingTargetsListenerChanged = true;
+        }
+    }
+
+    /**
+     * Filter the samples of an input sensor before they are used by a source, see
+     * {@link OrientationPipeline#setInputFilter(SensorSourceType, int, SampleFilter)}. The filter
+     * is applied with the next sensor event and then used on the sensor thread, so the caller
+     * must not touch it any more.
+     * @param srcType source
+     * @param inputType sensor feeding the source, one of {@link SensorInputType}
+     * @param filter filter or chain of filters, null - no filtering
+     */
+    public void setInputFilter(SensorSourceType srcType, int inputType, SampleFilter filter) {
+        if (srcType == null) {
+            throw new IllegalArgumentException("Source type must be provided");
+        } else if (!SensorInputType.isInputOf(inputType, srcType)) {
+            throw new IllegalArgumentException("Sensor "+inputType+" does not feed the "+srcType+" source");
+        }
+        final int i = SensorInputType.indexOf(inputType);
+        synchronized (mLocationLock) {
+            mPendingFilters[srcType.ordinal() * SensorInputType.COUNT + i] = filter;
+            pendingFilterChanged[srcType.ordinal() * SensorInputType.COUNT + i] = true;
+            pendingFiltersChanged = true;
+        }
+    }
+
+    // Magnetic reference field (uT, dip rad) of the device location, handed over the same way
+    private final float[] mPendingMagneticReference = new float[2];
+    private boolean pendingMagneticReferenceChanged;
+
+    private boolean pendingFastMath;
+    private boolean pendingFastMathChanged;
+
+    private float mPendingDeadBand;
+    private boolean pendingDeadBandChanged;
+    private boolean pendingDeadBandReset;
+
+    // Filters are handed over to the sensor thread the same way as the locations
+    private final SampleFilter[] mPendingFilters = new SampleFilter[N_SOURCES * SensorInputType.COUNT];
+    private final boolean[] pendingFilterChanged = new boolean[N_SOURCES * SensorInputType.COUNT];
+    private boolean pendingFiltersChanged;
+
+    // Targets are handed over to the sensor thread the same way as the locations
+    private final TargetSet mPendingTargets = new TargetSet();
+    private boolean pendingTargetsChanged;
+    private float mPendingHalfFov;
+    private float mPendingRange;
+    private boolean pendingFovChanged;
+    private OnTargetsListener mPendingTargetsListener;
+    private SensorSourceType mPendingTargetsSource;
+    private boolean pendingTargetsListenerChanged;
+    // Used on the sensor thread only
+    private final TargetSet mTargets = new TargetSet();
+    private OnTargetsListener mTargetsListener;
 
     /**********************************************************************************************/
-    /********************************   Receiving sensor events   *********************************/
+    /****************************   Trace recording and session log   *****************************/
     /**********************************************************************************************/
-    // Sensors' data
-    private float[] mAccelRawData = new float[3];
-    private boolean accelDataUpdated;
-    private float[] mMagnetRawData = new float[3];
-    private boolean magnetDataUpdated;
-    private float[] mRawRotationVector = new float[3];
 
-    private float[] mOrigRotationMatrixAccelMag = new float[9];
-    private float[] mOrigRotationMatrixRotVect = new float[9];
+    /**
+     * Start recording all raw sensor samples into a trace file, which can be replayed off-device
+     * through the same {@link OrientationPipeline} (see {@link com.alperez.hyrocam.orientation.SensorTraceReader}).
+     * Any recording in progress is stopped first.
+     * @param file destination file, it is overwritten
+     * @throws IOException if the file cannot be created
+     */
+    public void startTraceRecording(File file) throws IOException {
+        stopTraceRecording();
+        mTraceWriter = new SensorTraceWriter(file);
+    }
+
+    /**
+     * Stop recording and close the trace file. The file is closed on the sensor thread after
+     * all the events already queued there have been written.
+     */
+    public void stopTraceRecording() {
+        final SensorTraceWriter w = mTraceWriter;
+        if (w == null) {
+            return;
+        }
+        mTraceWriter = null;
+        closeOnSensorThread(w);
+    }
+
+    public boolean isTraceRecording() {
+        return mTraceWriter != null;
+    }
+
+    private void recordTrace(int type, SensorEvent event) {
+        final SensorTraceWriter w = mTraceWriter;
+        if (w != null && SensorInputType.isSupported(type)) {
+            try {
+                w.write(type, event.timestamp, event.values, event.values.length);
+            } catch (IOException e) {
+                Log.e(TAG, "Trace recording failed, stopped", e);
+                mTraceWriter = null;
+                closeQuietly(w);
+            }
+        }
+    }
+
+    /**
+     * Start logging all raw sensor inputs and all calculated angles into a binary session log
+     * (see {@link com.alperez.hyrocam.orientation.SessionLogFormat}). The log is a ring of
+     * memory-mapped segment files of 8 MB, only the latest 32 segments are kept.
+     * Any log in progress is stopped first.
+     * @param dir session directory. Segments of a previous session in it are deleted.
+     * @throws IOException if the first segment cannot be created
+     */
+    public void startSessionLog(File dir) throws IOException {
+        startSessionLog(dir, SESSION_LOG_SEGMENT_SIZE, SESSION_LOG_MAX_SEGMENTS);
+    }
+
+    public void startSessionLog(File dir, int segmentSize, int maxSegments) throws IOException {
+        stopSessionLog();
+        mSessionLog = new SessionLogWriter(dir, segmentSize, maxSegments);
+    }
+
+    /**
+     * Stop the session log. Segments are closed on the sensor thread after all the events
+     * already queued there have been logged.
+     */
+    public void stopSessionLog() {
+        final SessionLogWriter w = mSessionLog;
+        if (w != null) {
+            mSessionLog = null;
+            closeOnSensorThread(w);
+        }
+    }
+
+    public boolean isSessionLogging() {
+        return mSessionLog != null;
+    }
+
+    private void logSensor(int type, SensorEvent event) {
+        final SessionLogWriter w = mSessionLog;
+        if (w != null && SensorInputType.isSupported(type)) {
+            try {
+                w.logSensor(type, event.timestamp, event.values, event.values.length);
+            } catch (IOException e) {
+                onSessionLogFailed(w, e);
+            }
+        }
+    }
+
+    private void logAngles(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+        final SessionLogWriter w = mSessionLog;
+        if (w != null) {
+            try {
+                w.logAngles(srcType, timestamp, yaw, pitch, roll, camRelAzimuth, camRelInclination, testScalProd);
+            } catch (IOException e) {
+                onSessionLogFailed(w, e);
+            }
+        }
+    }
+
+    private void onSessionLogFailed(SessionLogWriter w, IOException e) {
+        Log.e(TAG, "Session log failed, stopped", e);
+        mSessionLog = null;
+        closeQuietly(w);
+    }
+
+    private void closeOnSensorThread(final Closeable c) {
+        final Handler h = mSensorHandler;
+        if (h != null) {
+            h.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeQuietly(c);
+                }
+            });
+        } else {
+            closeQuietly(c);
+        }
+    }
 
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close "+c, e);
+        }
+    }
+
+    /**********************************************************************************************/
+    /********************************   Receiving sensor events   *********************************/
+    /**********************************************************************************************/
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
         // Do nothing
@@ -142,130 +899,646 @@ public class SensorsController implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        switch (event.sensor.getType()) {
+        final long arrivalNs = System.nanoTime();
+        if (!sensorClockKnown) {
+            detectSensorClock(event.timestamp, arrivalNs);
+        }
+        final int type = event.sensor.getType();
+        mMetrics.recordDelivery(type, event.timestamp, arrivalNs + mSensorClockOffsetNs);
+        recordTrace(type, event);
+        logSensor(type, event);
+        if (batched) {
+            addToBatch(type, event);
+            return;
+        }
+        applyPendingLocations();
+        dispatchToPipeline(type, event);
+        updateAdaptiveRate();
+    }
+
+    private void dispatchToPipeline(int type, SensorEvent event) {
+        switch (type) {
             case Sensor.TYPE_ACCELEROMETER:
-                System.arraycopy(event.values, 0, mAccelRawData, 0, 3);
-                accelDataUpdated = true;
+                mPipeline.onAccelerometer(event.timestamp, event.values);
                 break;
             case Sensor.TYPE_MAGNETIC_FIELD:
-                System.arraycopy(event.values, 0, mMagnetRawData, 0, 3);
-                magnetDataUpdated = true;
+                mPipeline.onMagneticField(event.timestamp, event.values);
                 break;
             case Sensor.TYPE_ROTATION_VECTOR:
-                System.arraycopy(event.values, 0, mRawRotationVector, 0, 3);
-                SensorManager.getRotationMatrixFromVector(mOrigRotationMatrixRotVect, mRawRotationVector);
-                calculate(SensorSourceType.ROTATION_VECTOR, mOrigRotationMatrixRotVect);
+                mPipeline.onRotationVector(event.timestamp, event.values, event.values.length);
+                break;
+            case Sensor.TYPE_GYROSCOPE:
+                mPipeline.onGyroscope(event.timestamp, event.values);
                 break;
         }
+    }
+
+
+    /**
+     * All events of one FIFO burst are dispatched by the SensorManager within one looper
+     * message. So a drain message posted on the first event of a burst runs right after
+     * the whole burst has been collected.
+     */
+    private void addToBatch(int type, SensorEvent event) {
+        if (!SensorInputType.isSupported(type)) {
+            return;
+        }
+        if (mBatch.isEmpty()) {
+            mSensorHandler.post(mDrainBatch);
+        } else if (mBatch.isFull()) {
+            processBatch();
+        }
+        mBatch.add(type, event.timestamp, event.values, event.values.length);
+    }
 
-        if (accelDataUpdated && magnetDataUpdated) {
-            accelDataUpdated = false;
-            magnetDataUpdated = false;
-            SensorManager.getRotationMatrix(mOrigRotationMatrixAccelMag, null, mAccelRawData, mMagnetRawData);
-            calculate(SensorSourceType.RAW, mOrigRotationMatrixAccelMag);
+    private final Runnable mDrainBatch = new Runnable() {
+        @Override
+        public void run() {
+            if (batched) {
+                processBatch();
+            }
+        }
+    };
+
+    /**
+     * Process the last partial burst on release, on the thread events come on
+     */
+    private void drainLastBatch() {
+        if (batched && !mBatch.isEmpty()) {
+            processBatch();
         }
     }
 
+    private void processBatch() {
+        applyPendingLocations();
+        mPipeline.onBatch(mBatch);
+        mBatch.clear();
+        updateAdaptiveRate();
+    }
+
 
     /**********************************************************************************************/
-    /************************   Implementation of all calculations   ******************************/
+    /****************************   Prediction and latency   **************************************/
     /**********************************************************************************************/
-    private float[] mYawPitchRollAngles = new float[3];
 
+    // Sensor timestamps are in the elapsedRealtimeNanos() time base on most devices, but in the
+    // nanoTime() time base on some. sensorTime = nanoTime + offset
+    private volatile long mSensorClockOffsetNs;
+    private volatile boolean sensorClockKnown;
 
 
+    // Used from the main thread, under mLocationLock
+    private final AnglesCalculator mPredictionCalculator = new AnglesCalculator();
+    private final float[] mPredictedQ = new float[4];
 
-    private void calculate(SensorSourceType srcType, float[] rotMatrix) {
-        SensorManager.getOrientation(rotMatrix, mYawPitchRollAngles);
+    private void detectSensorClock(long eventTimestamp, long nowNs) {
+        long offset = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            final long boot = elapsedRealtimeNanos();
+            if (Math.abs(eventTimestamp - boot) < Math.abs(eventTimestamp - nowNs)) {
+                offset = boot - nowNs;
+            }
+        }
+        mSensorClockOffsetNs = offset;
+        sensorClockKnown = true;
+    }
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static long elapsedRealtimeNanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
 
-        /*
-         * 3x3 (length=9) case:
-         *   /  R[ 0]   R[ 1]   R[ 2]  \
-         *   |  R[ 3]   R[ 4]   R[ 5]  |
-         *   \  R[ 6]   R[ 7]   R[ 8]  /
-         */
-        final float[] Xort = new float[3];
-        final float[] Yort = new float[3];
-        Xort[0] = rotMatrix[0];
-        Xort[1] = rotMatrix[3];
-        Xort[2] = rotMatrix[6];
-        Yort[0] = rotMatrix[1];
-        Yort[1] = rotMatrix[4];
-        Yort[2] = rotMatrix[7];
-
-
-        //----  Constants for plane surface  ----
-        // A*x + B*y + C*z = 0
-        float A = Xort[1]*Yort[2] - Yort[1]*Xort[2];
-        float B = Yort[0]*Xort[2] - Xort[0]*Yort[2];
-        float C = Xort[0]*Yort[1] - Yort[0]*Xort[1];
-
-
-        //----  Update target vector  ----
-        float[] T = new float[3];
-        T[0] = mTarget[0] - mDeviceLocation[0];
-        T[1] = mTarget[1] - mDeviceLocation[1];
-        T[2] = mTarget[2] - mDeviceLocation[2];
-
-        //----  Projection of the target vector on the device plane  ----
-        final Matrix M = new Matrix(3, 3);
-        M.set(0, 0, B);
-        M.set(0, 1, -A);
-        M.set(0, 2, 0);
-        M.set(1, 0, C);
-        M.set(1, 1, 0);
-        M.set(1, 2, -A);
-        M.set(2, 0, A);
-        M.set(2, 1, B);
-        M.set(2, 2, C);
-
-        double det = M.det();
-
-        final Matrix V = new Matrix(3, 1);
-        V.set(0, 0, T[0]*B - T[1]*A);
-        V.set(1, 0, T[1]*C - T[2]*A);
-        V.set(2, 0, 0);
-
-        final Matrix Pmatr = M.solve(V); // Result matrix - projection point
-        final float[] P = new float[3];
-        P[0] = (float)Pmatr.get(0, 0);
-        P[1] = (float)Pmatr.get(1, 0);
-        P[2] = (float)Pmatr.get(2, 0);
-
-        //----  Check projection result  ----
-        // The angle between the vectors PO and TP must be 90degres
-        // So find scalar product
-        final double testScalProd = (0-(double)P[0])*((double)T[0]-(double)P[0]) + (0-(double)P[1])*((double)T[1]-(double)P[1]) + (0-(double)P[2])*((double)T[2]-(double)P[2]);
-
-
-        //----  Find local, plane-relative inclination  ----
-        final float[] TP = new float[]{P[0]-T[0], P[1]-T[1], P[2]-T[2]};
-        final float inclination = (float)Math.asin(Math.sqrt(TP[0]*TP[0] + TP[1]*TP[1] + TP[2]*TP[2]) / Math.sqrt(T[0]*T[0] + T[1]*T[1] + T[2]*T[2]));
-
-        //----  Find local, plane-relative azimuth  ----
-        //----  Use
-        final double lenXort = Math.sqrt(Xort[0]*Xort[0] + Xort[1]*Xort[1] + Xort[2]*Xort[2]);
-        final double lenOP = Math.sqrt(P[0]*P[0] + P[1]*P[1] + P[2]*P[2]);
-
-        final double cosTheta = (Xort[0]*P[0] + Xort[1]*P[1] + Xort[2]*P[2]) / (lenXort * lenOP);
-        final double sinTheta = ((Xort[1]*P[2] - Xort[2]*P[1]) + (Xort[2]*P[0]-Xort[0]*P[2]) + (Xort[0]*P[1] - Xort[1]*P[0])) / (lenXort * lenOP);
-
-
-        double azSin1 = Math.asin(sinTheta);
-        double azSin2 = (sinTheta >= 0) ? (Math.PI - azSin1) : (-Math.PI - azSin1);
-        double azCos = Math.acos(cosTheta);
-
-        double epsAz1 = Math.min(Math.abs(azSin1 - azCos), Math.abs(azSin1 + azCos));
-        double epsAz2 = Math.min(Math.abs(azSin2 - azCos), Math.abs(azSin2 + azCos));
-
-        final float azFinal = (float)((epsAz1 < epsAz2) ? azSin1 : azSin2);
-
-
-        //----  Report results  ----
-        for (WeakReference<OnAnglesListener> wl : mListeners) {
-            if (wl.get() != null) {
-                wl.get().onAnglesChanged(srcType, mYawPitchRollAngles[0], mYawPitchRollAngles[1], mYawPitchRollAngles[2], azFinal, inclination, testScalProd);
+    /**
+     * Predict the angles of a source at the given time, e.g. the vsync time of the frame they
+     * are going to be shown in, to compensate the motion-to-photon latency. The orientation is
+     * extrapolated with the recent angular velocity (see {@link com.alperez.hyrocam.orientation.OrientationPredictor}),
+     * and azimuth/inclination are derived from it for the current target and device locations.
+     * Must be called from the main thread.
+     *
+     * @param srcType source
+     * @param targetTimeNanos time in the {@link System#nanoTime()} time base (the same as
+     *                        Choreographer frame times)
+     * @param outAngles destination for yaw, pitch, roll, azimuth, inclination
+     * @return false if there is no orientation of this source yet
+     */
+    public boolean predictAngles(SensorSourceType srcType, long targetTimeNanos, float[] outAngles) {
+        if (!sensorClockKnown || !mPipeline.getPredictor(srcType).predict(targetTimeNanos + mSensorClockOffsetNs, mPredictedQ)) {
+            return false;
+        }
+        synchronized (mLocationLock) {
+            final AnglesCalculator c = mPredictionCalculator;
+            c.calculateFromQuaternion(mPredictedQ);
+            outAngles[0] = c.getYaw();
+            outAngles[1] = c.getPitch();
+            outAngles[2] = c.getRoll();
+            outAngles[3] = c.getAzimuth();
+            outAngles[4] = c.getInclination();
+        }
+        return true;
+    }
+
+    /**
+     * Record the end-to-end latency of a displayed sample: from the sensor sample time to
+     * the frame it has been shown in. It goes to the {@link PipelineMetrics.Stage#MOTION_TO_PHOTON}
+     * stage of {@link #getMetrics()}, so it is shown with the overlay and the periodic dump; its
+     * median is the prediction horizon to set. Must be called from the main thread.
+     * @param sampleTimestamp timestamp of the sample (sensor time base)
+     * @param frameTimeNanos vsync time of the frame (the {@link System#nanoTime()} time base)
+     */
+    public void reportDisplayed(long sampleTimestamp, long frameTimeNanos) {
+        if (sensorClockKnown) {
+            mMetrics.record(PipelineMetrics.Stage.MOTION_TO_PHOTON, frameTimeNanos + mSensorClockOffsetNs - sampleTimestamp);
+        }
+    }
+
+    /**********************************************************************************************/
+    /************************************   Metrics   *********************************************/
+    /**********************************************************************************************/
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    private Handler mMetricsDumpHandler;
+    private long mMetricsDumpIntervalMs;
+    private final StringBuilder mMetricsDumpText = new StringBuilder(1024);
+
+    /**
+     * @return per-stage latency histograms and per-source event counters of this controller. They
+     * are always recorded, and can be read from any thread.
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Periodically write the metrics report to the log.
+     * Must be called from the main thread
+     * @param intervalMs dump interval, 0 - stop dumping
+     */
+    public void setMetricsDumpInterval(long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("Interval must not be negative - "+intervalMs);
+        }
+        if (mMetricsDumpHandler == null) {
+            mMetricsDumpHandler = new Handler(Looper.getMainLooper());
+        }
+        mMetricsDumpHandler.removeCallbacks(mMetricsDump);
+        mMetricsDumpIntervalMs = intervalMs;
+        if (intervalMs > 0) {
+            mMetricsDumpHandler.postDelayed(mMetricsDump, intervalMs);
+        }
+    }
+
+    private final Runnable mMetricsDump = new Runnable() {
+        @Override
+        public void run() {
+            final StringBuilder sb = mMetricsDumpText;
+            sb.setLength(0);
+            mMetrics.appendReport(sb);
+            Log.i(TAG, "Pipeline metrics:\n" + sb);
+            if (mMetricsDumpIntervalMs > 0) {
+                mMetricsDumpHandler.postDelayed(this, mMetricsDumpIntervalMs);
+            }
+        }
+    };
+
+    /**********************************************************************************************/
+    /*****************************   Adaptive sampling rate   *************************************/
+    /**********************************************************************************************/
+    private static final int STILL_PERIOD_US = 66667;
+    private static final int FASTEST_PERIOD_US = 5000;
+
+    private final AdaptiveRateController mAdaptiveRate = new AdaptiveRateController();
+    private boolean adaptiveRate;
+    private Sensor[] mSensors;
+    private Sensor mGyro;
+    private int mPeriodUs;
+    private int mMaxReportLatencyUs;
+    // Source the angular velocity is taken from, null - the adaptive rate is off
+    private volatile SensorSourceType mAdaptiveSource;
+    private long mAdaptiveTimestamp;
+    private final float[] mAdaptiveOmega = new float[3];
+
+    /**
+     * Let the sensor rates follow the motion of the device: slow while it is still, the period
+     * passed to activate() while it moves slowly, the fastest rate during fast motion (see
+     * {@link AdaptiveRateController}). The time per level and the sensor events and CPU time saved
+     * compared to the fixed rate are reported by {@link #getMetrics()}.
+     * <p>
+     * Takes effect on the next activate(). Must be called from the main thread
+     */
+    public void setAdaptiveRateEnabled(boolean enabled) {
+        adaptiveRate = enabled;
+    }
+
+    public boolean isAdaptiveRateEnabled() {
+        return adaptiveRate;
+    }
+
+    /**
+     * @return the controller, to tune its thresholds and to read the current level
+     */
+    public AdaptiveRateController getAdaptiveRateController() {
+        return mAdaptiveRate;
+    }
+
+    private void startAdaptiveRate() {
+        final float[] rates = new float[AdaptiveRateController.LEVELS_COUNT];
+        for (int level=0; level<rates.length; level++) {
+            final int periodUs = getLevelPeriod(level);
+            for (Sensor s : mSensors) {
+                if (s != null) {
+                    rates[level] += 1e6f / toMicros(periodUs, s);
+                }
+            }
+            if (mGyro != null) {
+                rates[level] += 1e6f / toMicros((level == AdaptiveRateController.LEVEL_STILL) ? periodUs : getFastestPeriod(mGyro), mGyro);
+            }
+        }
+        mAdaptiveRate.setLevelRates(rates, AdaptiveRateController.LEVEL_NORMAL);
+        mAdaptiveRate.setMetrics(mMetrics);
+        mAdaptiveRate.reset(AdaptiveRateController.LEVEL_NORMAL);
+        mAdaptiveTimestamp = 0;
+        if (mGyro != null) {
+            mAdaptiveSource = SensorSourceType.FUSED;
+        } else {
+            mAdaptiveSource = (mSensors[0] != null) ? SensorSourceType.ROTATION_VECTOR : SensorSourceType.RAW;
+        }
+    }
+
+    /**
+     * Called on the thread sensor events are processed on, after each event or batch.
+     */
+    private void updateAdaptiveRate() {
+        final SensorSourceType src = mAdaptiveSource;
+        if (src == null) {
+            return;
+        }
+        final OrientationPredictor p = mPipeline.getPredictor(src);
+        final long ts = p.getTimestamp();
+        if (ts == mAdaptiveTimestamp || !p.getAngularVelocity(mAdaptiveOmega)) {
+            return;
+        }
+        mAdaptiveTimestamp = ts;
+        final float[] w = mAdaptiveOmega;
+        if (mAdaptiveRate.update(ts, (float) Math.sqrt(w[0]*w[0] + w[1]*w[1] + w[2]*w[2]))) {
+            mMainHandler.removeCallbacks(mApplyRateLevel);
+            mMainHandler.post(mApplyRateLevel);
+        }
+    }
+
+    // Re-registration is done on the main thread, like activate()
+    private final Runnable mApplyRateLevel = new Runnable() {
+        @Override
+        public void run() {
+            if (activated && mAdaptiveSource != null) {
+                mSm.unregisterListener(SensorsController.this);
+                registerAtLevel(mAdaptiveRate.getLevel());
+            }
+        }
+    };
+
+    /**********************************************************************************************/
+    /******************************   Magnetic disturbance   **************************************/
+    /**********************************************************************************************/
+    private volatile boolean magneticDisturbed;
+    // Used on the main thread only
+    private OnMagneticStateListener mMagneticListener;
+
+    /**
+     * @return true while the magnetic field is disturbed (e.g. by motors nearby), so the
+     * magnetometer is not used for the heading: FUSED propagates it by the gyroscope, RAW takes
+     * it from FUSED or ROTATION_VECTOR. See {@link MagneticDisturbanceDetector}.
+     */
+    public boolean isMagneticFieldDisturbed() {
+        return magneticDisturbed;
+    }
+
+    /**
+     * Must be called from the main thread
+     * @param l receives the changes of the state, null - none
+     */
+    public void setOnMagneticStateListener(OnMagneticStateListener l) {
+        mMagneticListener = l;
+    }
+
+    /**
+     * Called on the thread sensor events are processed on
+     */
+    @Override
+    public void onMagneticStateChanged(long timestamp, boolean disturbed, float magnitude, float dip) {
+        magneticDisturbed = disturbed;
+        if (disturbed) {
+            Log.w(TAG, String.format(Locale.US, "Magnetic field disturbed: |B|=%.1f uT, dip=%.1f deg", magnitude, Math.toDegrees(dip)));
+        } else {
+            Log.i(TAG, "Magnetic field is clean again");
+        }
+        mMainHandler.post(mNotifyMagneticState);
+    }
+
+    private final Runnable mNotifyMagneticState = new Runnable() {
+        @Override
+        public void run() {
+            final OnMagneticStateListener l = mMagneticListener;
+            if (l != null) {
+                l.onMagneticStateChanged(magneticDisturbed);
+            }
+        }
+    };
+
+    /**********************************************************************************************/
+    /*******************************   Persisted calibration   ************************************/
+    /**********************************************************************************************/
+    private static final String CALIBRATION_THREAD_NAME = "Calibration";
+
+    private File mCalibrationFile;
+    private boolean calibrationLoadStarted;
+    // Set on the thread sensor events are processed on, once the loaded state has been applied
+    private boolean calibrationApplied;
+
+    // Loaded state, handed over to the sensor thread under mLocationLock like the locations
+    private CalibrationState mPendingCalibration;
+    private long mPendingCalibrationLoadNs;
+    private boolean pendingCalibrationChanged;
+    private boolean pendingFusionCheck;
+
+    // Cold start: bits of the sources (1 << ordinal) which have not produced a result yet. Set on
+    // the main thread, cleared on the thread results come on. mActivateNs is written before the bits.
+    private final AtomicInteger mColdStartPending = new AtomicInteger();
+    private long mActivateNs;
+
+    /**
+     * Keep the gyroscope bias, the magnetometer calibration and the last FUSED orientation in the
+     * file between sessions (see {@link CalibrationState}). The file is read on a background thread
+     * at the first activation and applied with the first sensor event after that, so the sensors
+     * start without waiting for it. It is written on release(), off the main thread.
+     * Must be called from the main thread before the first activate().
+     * @param file null - do not persist
+     */
+    public void setCalibrationFile(File file) {
+        mCalibrationFile = file;
+    }
+
+    private void startCalibrationLoad(final File file) {
+        new Thread(CALIBRATION_THREAD_NAME) {
+            @Override
+            public void run() {
+                final long t0 = System.nanoTime();
+                CalibrationState state = null;
+                try {
+                    state = CalibrationState.read(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Calibration not restored from "+file, e);
+                }
+                final long ns = System.nanoTime() - t0;
+                synchronized (mLocationLock) {
+                    mPendingCalibration = state;
+                    mPendingCalibrationLoadNs = ns;
+                    pendingCalibrationChanged = true;
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Called on the thread sensor events are processed on, under mLocationLock
+     */
+    private void applyPendingCalibration() {
+        final CalibrationState state = mPendingCalibration;
+        mPendingCalibration = null;
+        if (state != null) {
+            mPipeline.restoreState(state);
+        }
+        calibrationApplied = true;
+        mMetrics.setCalibrationLoad(mPendingCalibrationLoadNs, state != null);
+        Log.i(TAG, String.format(Locale.US, "Calibration %s in %.1f ms", (state != null) ? "restored" : "not found", mPendingCalibrationLoadNs / 1e6));
+    }
+
+    /**
+     * Take the state on the thread sensor events are processed on, after the last one, and write
+     * it off the main thread. Nothing is written if the loaded state has not been applied yet,
+     * so the previous file is not replaced with a state that started from zero.
+     */
+    private void saveCalibration() {
+        final File file = mCalibrationFile;
+        if (file == null || !calibrationApplied) {
+            return;
+        }
+        final CalibrationState state = new CalibrationState();
+        mPipeline.saveState(state);
+        if (state.flags == 0) {
+            return;
+        }
+        final Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    state.write(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save the calibration to "+file, e);
+                }
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            new Thread(write, CALIBRATION_THREAD_NAME).start();
+        } else {
+            write.run();
+        }
+    }
+
+    /**
+     * Called on the thread results come on, once per source after each activation
+     */
+    private void recordColdStart(SensorSourceType srcType) {
+        //----  Clear the bit atomically: activate() may re-arm all of them meanwhile  ----
+        final int bit = 1 << srcType.ordinal();
+        int pending;
+        do {
+            pending = mColdStartPending.get();
+            if ((pending & bit) == 0) {
+                return;
+            }
+        } while (!mColdStartPending.compareAndSet(pending, pending & ~bit));
+        final long ns = System.nanoTime() - mActivateNs;
+        mMetrics.setColdStart(srcType, ns);
+        Log.i(TAG, String.format(Locale.US, "%s: first result %.1f ms after activation", srcType.name(), ns / 1e6));
+    }
+
+    /**********************************************************************************************/
+    /*********************************   Gimbal control   *****************************************/
+    /**********************************************************************************************/
+    private static final String GIMBAL_THREAD_NAME = "GimbalControl";
+
+    private FixedRateLoop mGimbalLoop;
+    private volatile GimbalController mGimbal;
+    private volatile SensorSourceType mGimbalSource;
+    // Used on the thread results come on
+    private final float[] mGimbalErrors = new float[2];
+
+    /**
+     * Start steering a gimbal towards the target. The azimuth and inclination calculated for the
+     * given source are converted into the camera pointing errors (see
+     * {@link GimbalController#toCameraErrors(float, float, float[])}), and a {@link GimbalController}
+     * runs its PIDs on them at a fixed rate on a dedicated thread, independently of the sensor
+     * delivery. The transport is opened on that thread. Any control in progress is stopped first.
+     * It is stopped by {@link #release()} as well, so it only runs while the sensors are active.
+     * <p>
+     * Must be called from the main thread
+     * @param transport connection to the gimbal
+     * @param srcType source of the angles to track
+     * @param rateHz control loop rate
+     * @return the controller, to tune its PIDs and to read its statistics
+     */
+    public GimbalController startGimbalControl(GimbalTransport transport, SensorSourceType srcType, int rateHz) {
+        if (srcType == null) {
+            throw new IllegalArgumentException("Source type must be provided");
+        } else if (rateHz <= 0) {
+            throw new IllegalArgumentException("Rate must be positive - "+rateHz);
+        }
+        stopGimbalControl();
+        final GimbalController gimbal = new GimbalController(transport);
+        mGimbalLoop = new FixedRateLoop(GIMBAL_THREAD_NAME, gimbal, 1000000000L / rateHz);
+        mGimbalSource = srcType;
+        mGimbal = gimbal;
+        // The loop needs the errors of a fresh result even if the device is not moving
+        synchronized (mLocationLock) {
+            pendingDeadBandReset = true;
+        }
+        mGimbalLoop.start();
+        return gimbal;
+    }
+
+    /**
+     * Stop the control loop. The gimbal is told to hold its position and the transport is closed.
+     * Must be called from the main thread
+     */
+    public void stopGimbalControl() {
+        final FixedRateLoop loop = mGimbalLoop;
+        if (loop == null) {
+            return;
+        }
+        mGimbal = null;
+        mGimbalLoop = null;
+        loop.stop();
+    }
+
+    /**
+     * @return the running gimbal controller or null
+     */
+    public GimbalController getGimbalController() {
+        return mGimbal;
+    }
+
+    /**
+     * @return the loop the gimbal controller runs on (for its jitter statistics) or null
+     */
+    public FixedRateLoop getGimbalLoop() {
+        return mGimbalLoop;
+    }
+
+    private void steerGimbal(SensorSourceType srcType, float camRelAzimuth, float camRelInclination) {
+        final GimbalController g = mGimbal;
+        if (g != null && srcType == mGimbalSource) {
+            GimbalController.toCameraErrors(camRelAzimuth, camRelInclination, mGimbalErrors);
+            g.setErrors(mGimbalErrors[0], mGimbalErrors[1]);
+        }
+    }
+
+    /**
+     * The errors have not changed, but the controller holds the gimbal if they are not refreshed
+     * within its input timeout. Repeat the last ones.
+     */
+    private void refreshGimbal(SensorSourceType srcType) {
+        final GimbalController g = mGimbal;
+        if (g != null && srcType == mGimbalSource) {
+            g.setErrors(mGimbalErrors[0], mGimbalErrors[1]);
+        }
+    }
+
+    /**********************************************************************************************/
+    /*******************************   Reporting results   ****************************************/
+    /**********************************************************************************************/
+    private static final int N_SOURCES = SensorSourceType.values().length;
+    private static final SensorSourceType[] SOURCES = SensorSourceType.values();
+
+    @Override
+    public void onAnglesCalculated(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+        mAnglesBuffer.publish(timestamp, srcType.ordinal(), yaw, pitch, roll, camRelAzimuth, camRelInclination, testScalProd);
+        if ((mColdStartPending.get() & (1 << srcType.ordinal())) != 0) {
+            recordColdStart(srcType);
+        }
+        logAngles(srcType, timestamp, yaw, pitch, roll, camRelAzimuth, camRelInclination, testScalProd);
+        steerGimbal(srcType, camRelAzimuth, camRelInclination);
+        if (mExecutionMode == ExecutionMode.MAIN_THREAD) {
+            notifyListeners(srcType, yaw, pitch, roll, camRelAzimuth, camRelInclination, testScalProd);
+        } else if (mListeners.length > 0) {
+            mFrameScheduler.requestFrame();
+        }
+        final FrameScheduler[] schedulers = mFrameSchedulers;
+        for (int i=0; i<schedulers.length; i++) {
+            schedulers[i].requestFrame();
+        }
+    }
+
+    @Override
+    public void onResultSkipped(SensorSourceType srcType, long timestamp) {
+        refreshGimbal(srcType);
+    }
+
+    @Override
+    public void onTargetsCalculated(TargetAnglesBuffer angles) {
+        final OnTargetsListener l = mTargetsListener;
+        if (l != null) {
+            l.onTargetsChanged(angles);
+        }
+    }
+
+    //--- Main thread side of the SENSOR_THREAD mode ---
+    private AngleRingBuffer.Reader mUiReader;
+    private final AngleRingBuffer.Sample mUiSample = new AngleRingBuffer.Sample();
+    // Latest sample per source read during the current frame. Index is SensorSourceType.ordinal()
+    private final AngleRingBuffer.Sample[] mUiLatest = new AngleRingBuffer.Sample[N_SOURCES];
+    private final boolean[] mUiHasData = new boolean[N_SOURCES];
+    {
+        for (int i=0; i<N_SOURCES; i++) {
+            mUiLatest[i] = new AngleRingBuffer.Sample();
+        }
+    }
+
+    private final FrameScheduler.FrameTask mFrameTask = new FrameScheduler.FrameTask() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!activated) return;
+            final long t0 = System.nanoTime();
+            if (mUiReader == null) {
+                mUiReader = mAnglesBuffer.newReader();
+            }
+            // Coalesced results are counted only when somebody displays them
+            final boolean hasListeners = mListeners.length > 0;
+            while (mUiReader.poll(mUiSample)) {
+                final int i = mUiSample.getSourceType();
+                if (mUiHasData[i] && hasListeners) {
+                    mMetrics.count(SOURCES[i], PipelineMetrics.Counter.COALESCED);
+                }
+                mUiLatest[i].copyFrom(mUiSample);
+                mUiHasData[i] = true;
+            }
+            for (int i=0; i<N_SOURCES; i++) {
+                if (mUiHasData[i]) {
+                    mUiHasData[i] = false;
+                    final AngleRingBuffer.Sample s = mUiLatest[i];
+                    notifyListeners(SOURCES[i], s.getYaw(), s.getPitch(), s.getRoll(), s.getAzimuth(), s.getInclination(), s.getResidual());
+                }
+            }
+            if (hasListeners) {
+                mMetrics.record(PipelineMetrics.Stage.UI_PUBLISH, System.nanoTime() - t0);
+            }
+        }
+    };
+
+    private void notifyListeners(SensorSourceType srcType, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+        final WeakReference<OnAnglesListener>[] listeners = mListeners;
+        for (int i=0; i<listeners.length; i++) {
+            final OnAnglesListener l = listeners[i].get();
+            if (l != null) {
+                l.onAnglesChanged(srcType, yaw, pitch, roll, camRelAzimuth, camRelInclination, testScalProd);
             }
         }
     }
@@ -3,6 +3,7 @@ package com.alperez.hyrocam;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -59,6 +60,17 @@ public class TargetView extends View {
 
     private Path mSelfMarkPath;
 
+    //--- Static layer (areas, axises, border circles, angle markings) rendered once into a bitmap ---
+    private Bitmap mStaticLayer;
+    private int mStaticLayerWidth;
+    private int mStaticLayerHeight;
+    private int mStaticLayerPadding;
+    private int mStaticLayerGridLineWidth;
+    private int mStaticLayerMarkLen;
+    private int mStaticLayerGridColor;
+    private int mStaticLayerAllowColor;
+    private int mStaticLayerDenyColor;
+
 
 
     private double targStableXnorm = 0;
@@ -241,9 +253,18 @@ public class TargetView extends View {
                 maxDrawingRadiusPx = height - y0px - mPadding;
             }
             minDrawingRadiusPx = (float)(maxDrawingRadiusPx * MIN_DISTANCE_TO_TARGET);
+
+            // Depends on the center point. The static layer checks its own key in onDraw()
+            mSelfMarkPath = null;
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseStaticLayer();
+    }
+
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
@@ -378,35 +399,8 @@ public class TargetView extends View {
         final float targetXpx = x0px + (float)(maxDrawingRadiusPx * (targetIsBeingTouched ? targInDragXnorm : targStableXnorm));
         final float targetYpx = y0px - (float)(maxDrawingRadiusPx * (targetIsBeingTouched ? targInDragYnorm : targStableYnorm));
 
-        //----  Fill canvas with deny-area color to create outer denied area  ----
-        mFillPaint.setColor(mDenyArreaColor);
-        canvas.drawRect(0, 0, cWidth, cHeight, mFillPaint);
-
-        //----  Draw circle with allow-area color to create allowed area  ----
-        mFillPaint.setColor(mAllowAreaColor);
-        canvas.drawCircle(x0px, y0px,maxDrawingRadiusPx, mFillPaint);
-
-        //----  Draw inner deny area  ----
-        mFillPaint.setColor(mDenyArreaColor);
-        canvas.drawCircle(x0px, y0px,minDrawingRadiusPx, mFillPaint);
-
-        //----  Draw axises and border circles  ----
-        final float vertPadding = y0px - maxDrawingRadiusPx;
-        final float horPadding = x0px - maxDrawingRadiusPx;
-        canvas.drawLine(x0px, vertPadding, x0px, cHeight-vertPadding, mGridPaint);
-        canvas.drawLine(horPadding, y0px, cWidth-horPadding, y0px, mGridPaint);
-        canvas.drawCircle(x0px, y0px, maxDrawingRadiusPx, mGridPaint);
-        canvas.drawCircle(x0px, y0px, minDrawingRadiusPx, mGridPaint);
-
-        //----  Draw angle markings on the outer circle  ----
-        drawAngleMark(canvas, 30.0*Math.PI / 180.0);
-        drawAngleMark(canvas, 60.0*Math.PI / 180.0);
-        drawAngleMark(canvas, 120.0*Math.PI / 180.0);
-        drawAngleMark(canvas, 150.0*Math.PI / 180.0);
-        drawAngleMark(canvas, 210.0*Math.PI / 180.0);
-        drawAngleMark(canvas, 240.0*Math.PI / 180.0);
-        drawAngleMark(canvas, 300.0*Math.PI / 180.0);
-        drawAngleMark(canvas, 330.0*Math.PI / 180.0);
+        //----  Static layer  ----
+        canvas.drawBitmap(obtainStaticLayer((int) cWidth, (int) cHeight), 0, 0, null);
 
 
         //----  Draw self-to-target line  ----
@@ -450,23 +444,102 @@ public class TargetView extends View {
         canvas.drawPath(mSelfMarkPath, mFillPaint);
 
         //----  Draw system text  ----
-        canvas.drawText(String.format(SELF_H_TEMPLATE, mRealLifeSelfAltitude), x0px + h_2, y0px + mTextSize, mTextPaint);
+        // Formatted into the re-used char buffer, drawText() copies the chars immediately
+        final char[] t = mTextBuf;
+        int len = FixedPointFormatter.format(mRealLifeSelfAltitude, 1, t, FixedPointFormatter.append(SELF_H_PREFIX, t, 0));
+        canvas.drawText(t, 0, len, x0px + h_2, y0px + mTextSize, mTextPaint);
         int targLineYpx = mPadding + mTextSize;
         canvas.drawText(TARGET_TITLE_TEXT, mPadding, targLineYpx, mTextPaint);
         targLineYpx += mTextSize;
-        canvas.drawText(String.format(TARGET_X_TEMPLATE, mRealLifeTargetX), mPadding, targLineYpx, mTextPaint);
+        len = FixedPointFormatter.format(mRealLifeTargetX, 1, t, FixedPointFormatter.append(TARGET_X_PREFIX, t, 0));
+        canvas.drawText(t, 0, len, mPadding, targLineYpx, mTextPaint);
         targLineYpx += mTextSize;
-        canvas.drawText(String.format(TARGET_Y_TEMPLATE, mRealLifeTargetY), mPadding, targLineYpx, mTextPaint);
+        len = FixedPointFormatter.format(mRealLifeTargetY, 1, t, FixedPointFormatter.append(TARGET_Y_PREFIX, t, 0));
+        canvas.drawText(t, 0, len, mPadding, targLineYpx, mTextPaint);
         targLineYpx += mTextSize;
-        canvas.drawText(String.format(TARGET_H_TEMPLATE, mRealLifeTargetAltitude), mPadding, targLineYpx, mTextPaint);
+        len = FixedPointFormatter.format(mRealLifeTargetAltitude, 1, t, FixedPointFormatter.append(TARGET_H_PREFIX, t, 0));
+        canvas.drawText(t, 0, len, mPadding, targLineYpx, mTextPaint);
 
     }
 
-    private static final String SELF_H_TEMPLATE = "H=%.1f";
+    private static final char[] SELF_H_PREFIX = "H=".toCharArray();
     private static final String TARGET_TITLE_TEXT = "Target:";
-    private static final String TARGET_X_TEMPLATE = "x=%.1f";
-    private static final String TARGET_Y_TEMPLATE = "y=%.1f";
-    private static final String TARGET_H_TEMPLATE = "h=%.1f";
+    private static final char[] TARGET_X_PREFIX = "x=".toCharArray();
+    private static final char[] TARGET_Y_PREFIX = "y=".toCharArray();
+    private static final char[] TARGET_H_PREFIX = "h=".toCharArray();
+    private final char[] mTextBuf = new char[2 + FixedPointFormatter.maxLength(1)];
+
+    /**
+     * The static part of the scene only depends on the size, padding and colors, so it is
+     * rendered once into an offscreen bitmap. The bitmap is re-rendered only if any of these
+     * has changed since.
+     */
+    private Bitmap obtainStaticLayer(int width, int height) {
+        if (mStaticLayer != null
+                && mStaticLayerWidth == width && mStaticLayerHeight == height
+                && mStaticLayerPadding == mPadding && mStaticLayerGridLineWidth == mGridLineWidth
+                && mStaticLayerMarkLen == mCircleMarkLen && mStaticLayerGridColor == mGridColor
+                && mStaticLayerAllowColor == mAllowAreaColor && mStaticLayerDenyColor == mDenyArreaColor) {
+            return mStaticLayer;
+        }
+        if (mStaticLayer == null || mStaticLayer.getWidth() != width || mStaticLayer.getHeight() != height) {
+            releaseStaticLayer();
+            mStaticLayer = Bitmap.createBitmap(Math.max(1, width), Math.max(1, height), Bitmap.Config.ARGB_8888);
+        } else {
+            mStaticLayer.eraseColor(Color.TRANSPARENT);
+        }
+        mStaticLayerWidth = width;
+        mStaticLayerHeight = height;
+        mStaticLayerPadding = mPadding;
+        mStaticLayerGridLineWidth = mGridLineWidth;
+        mStaticLayerMarkLen = mCircleMarkLen;
+        mStaticLayerGridColor = mGridColor;
+        mStaticLayerAllowColor = mAllowAreaColor;
+        mStaticLayerDenyColor = mDenyArreaColor;
+
+        final Canvas c = new Canvas(mStaticLayer);
+        final float cWidth = width;
+        final float cHeight = height;
+
+        //----  Fill canvas with deny-area color to create outer denied area  ----
+        mFillPaint.setColor(mDenyArreaColor);
+        c.drawRect(0, 0, cWidth, cHeight, mFillPaint);
+
+        //----  Draw circle with allow-area color to create allowed area  ----
+        mFillPaint.setColor(mAllowAreaColor);
+        c.drawCircle(x0px, y0px,maxDrawingRadiusPx, mFillPaint);
+
+        //----  Draw inner deny area  ----
+        mFillPaint.setColor(mDenyArreaColor);
+        c.drawCircle(x0px, y0px,minDrawingRadiusPx, mFillPaint);
+
+        //----  Draw axises and border circles  ----
+        final float vertPadding = y0px - maxDrawingRadiusPx;
+        final float horPadding = x0px - maxDrawingRadiusPx;
+        c.drawLine(x0px, vertPadding, x0px, cHeight-vertPadding, mGridPaint);
+        c.drawLine(horPadding, y0px, cWidth-horPadding, y0px, mGridPaint);
+        c.drawCircle(x0px, y0px, maxDrawingRadiusPx, mGridPaint);
+        c.drawCircle(x0px, y0px, minDrawingRadiusPx, mGridPaint);
+
+        //----  Draw angle markings on the outer circle  ----
+        drawAngleMark(c, 30.0*Math.PI / 180.0);
+        drawAngleMark(c, 60.0*Math.PI / 180.0);
+        drawAngleMark(c, 120.0*Math.PI / 180.0);
+        drawAngleMark(c, 150.0*Math.PI / 180.0);
+        drawAngleMark(c, 210.0*Math.PI / 180.0);
+        drawAngleMark(c, 240.0*Math.PI / 180.0);
+        drawAngleMark(c, 300.0*Math.PI / 180.0);
+        drawAngleMark(c, 330.0*Math.PI / 180.0);
+
+        return mStaticLayer;
+    }
+
+    private void releaseStaticLayer() {
+        if (mStaticLayer != null) {
+            mStaticLayer.recycle();
+            mStaticLayer = null;
+        }
+    }
 
     /**
      *
@@ -0,0 +1,79 @@
+package com.alperez.hyrocam;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FixedPointFormatterTest {
+
+    private final char[] mBuf = new char[64];
+
+    private String format(double value, int decimals) {
+        final int end = FixedPointFormatter.format(value, decimals, mBuf, 0);
+        return new String(mBuf, 0, end);
+    }
+
+    @Test
+    public void simpleValues() {
+        assertEquals("0", format(0, 0));
+        assertEquals("0.00", format(0, 2));
+        assertEquals("12.35", format(12.3456, 2));
+        assertEquals("-12.3", format(-12.3456, 1));
+        assertEquals("100", format(99.5, 0));
+        assertEquals("0.000000001", format(1e-9, 9));
+        assertEquals("-0.00", format(-0.001, 2));
+        assertEquals("-0.0", format(-0.0, 1));
+    }
+
+    @Test
+    public void specialValues() {
+        assertEquals("NaN", format(Double.NaN, 2));
+        assertEquals("Infinity", format(Double.POSITIVE_INFINITY, 2));
+        assertEquals("-Infinity", format(Double.NEGATIVE_INFINITY, 2));
+        assertEquals("Infinity", format(1e19, 0));
+    }
+
+    @Test
+    public void matchesStringFormat() {
+        final Random rnd = new Random(15);
+        for (int k=0; k<200000; k++) {
+            final int decimals = rnd.nextInt(FixedPointFormatter.MAX_DECIMALS + 1);
+            final double value = (rnd.nextDouble() - 0.5) * Math.pow(10, rnd.nextInt(10) - 3);
+            // Skip values close to half-way in decimal, rounded in binary here (see the class doc).
+            // Above 1e11 the fraction of the scaled double is too coarse to tell.
+            final double scaled = Math.abs(value) * Math.pow(10, decimals);
+            if (scaled > 1e11 || Math.abs(scaled - Math.floor(scaled) - 0.5) < 1e-3) {
+                continue;
+            }
+            assertEquals("value="+value+" decimals="+decimals,
+                    String.format(Locale.US, "%."+decimals+"f", value), format(value, decimals));
+        }
+    }
+
+    @Test
+    public void writesAtOffset() {
+        mBuf[0] = 'a';
+        mBuf[1] = '=';
+        final int end = FixedPointFormatter.format(-1.5, 1, mBuf, 2);
+        assertEquals(6, end);
+        assertEquals("a=-1.5", new String(mBuf, 0, end));
+    }
+
+    @Test
+    public void maxLengthIsEnough() {
+        for (int decimals=0; decimals<=FixedPointFormatter.MAX_DECIMALS; decimals++) {
+            final double value = -8.99e18 / Math.pow(10, decimals);
+            final int end = FixedPointFormatter.format(value, decimals, mBuf, 0);
+            assertTrue("end="+end, end <= FixedPointFormatter.maxLength(decimals));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decimalsAreLimited() {
+        FixedPointFormatter.format(1, FixedPointFormatter.MAX_DECIMALS + 1, mBuf, 0);
+    }
+}
@@ -0,0 +1,51 @@
+package com.alperez.hyrocam.orientation.bench;
+
+import com.alperez.hyrocam.orientation.RotationMath;
+
+import java.util.Random;
+
+/**
+ * Deterministic pseudo-random inputs shared by all benchmarks.
+ */
+final class BenchData {
+
+    /** Power of 2, so the index can be wrapped with a mask */
+    static final int SIZE = 1024;
+    static final int MASK = SIZE - 1;
+
+    static final float[] TARGET = new float[]{150, 600, 220};
+    static final float[] SELF = new float[]{0, 0, 500};
+
+    private BenchData() {}
+
+    /**
+     * @return SIZE rotation vectors (x, y, z, w) of unit quaternions, packed into one array
+     */
+    static float[] rotationVectors(long seed) {
+        final Random rnd = new Random(seed);
+        final float[] res = new float[SIZE * 4];
+        for (int i=0; i<SIZE; i++) {
+            final double x = rnd.nextGaussian(), y = rnd.nextGaussian(), z = rnd.nextGaussian(), w = rnd.nextGaussian();
+            final double len = Math.sqrt(x*x + y*y + z*z + w*w);
+            res[i*4]     = (float)(x / len);
+            res[i*4 + 1] = (float)(y / len);
+            res[i*4 + 2] = (float)(z / len);
+            res[i*4 + 3] = (float)(Math.abs(w) / len);
+        }
+        return res;
+    }
+
+    /**
+     * @return SIZE 3x3 rotation matrices (length=9 each)
+     */
+    static float[][] rotationMatrices(long seed) {
+        final float[] rv = rotationVectors(seed);
+        final float[] q = new float[4];
+        final float[][] res = new float[SIZE][9];
+        for (int i=0; i<SIZE; i++) {
+            System.arraycopy(rv, i*4, q, 0, 4);
+            RotationMath.getRotationMatrixFromVector(res[i], q, 4);
+        }
+        return res;
+    }
+}
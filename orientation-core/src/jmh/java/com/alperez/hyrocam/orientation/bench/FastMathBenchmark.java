@@ -0,0 +1,125 @@
+package com.alperez.hyrocam.orientation.bench;
+
+import com.alperez.hyrocam.orientation.AnglesCalculator;
+import com.alperez.hyrocam.orientation.FastMath;
+import com.alperez.hyrocam.orientation.MultiTargetSolver;
+import com.alperez.hyrocam.orientation.QuaternionMath;
+import com.alperez.hyrocam.orientation.TargetAnglesBuffer;
+import com.alperez.hyrocam.orientation.TargetSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FastMath} kernels against java.lang.Math, and the calculator and the multi-target solver
+ * with and without the fast math. The accuracy side is in {@code tools.FastMathCheck}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FastMathBenchmark {
+
+    private static final int TARGETS = 1000;
+
+    @Param({"false", "true"})
+    public boolean fastMath;
+
+    private final float[] mUnit = new float[BenchData.SIZE];
+    private final float[] mX = new float[BenchData.SIZE];
+    private final float[] mY = new float[BenchData.SIZE];
+    private final float[] mPositive = new float[BenchData.SIZE];
+    private float[][] mMatrices;
+    private float[] mRotationVectors;
+    private final float[] mRv = new float[4];
+    private final float[] mQ = new float[4];
+    private int mIndex;
+
+    private AnglesCalculator mCalculator;
+    private MultiTargetSolver mSolver;
+    private TargetSet mTargets;
+    private final TargetAnglesBuffer mTargetAngles = new TargetAnglesBuffer();
+
+    @Setup
+    public void setup() {
+        final Random rnd = new Random(42);
+        for (int i=0; i<BenchData.SIZE; i++) {
+            mUnit[i] = 2 * rnd.nextFloat() - 1;
+            mX[i] = (float) rnd.nextGaussian();
+            mY[i] = (float) rnd.nextGaussian();
+            mPositive[i] = 1e-3f + 1e3f * rnd.nextFloat();
+        }
+        mMatrices = BenchData.rotationMatrices(42);
+        mRotationVectors = BenchData.rotationVectors(42);
+
+        mCalculator = new AnglesCalculator();
+        mCalculator.setTargetLocation(BenchData.TARGET);
+        mCalculator.setSelfLocation(BenchData.SELF);
+        mCalculator.setFastMath(fastMath);
+
+        mSolver = new MultiTargetSolver();
+        mSolver.setSelfLocation(BenchData.SELF);
+        mSolver.setFastMath(fastMath);
+        mTargets = new TargetSet(TARGETS);
+        for (int i=0; i<TARGETS; i++) {
+            mTargets.put(i, 2000 * rnd.nextFloat() - 1000, 2000 * rnd.nextFloat() - 1000, 500 * rnd.nextFloat());
+        }
+    }
+
+    private int next() {
+        return (mIndex++) & BenchData.MASK;
+    }
+
+    @Benchmark
+    public float asin() {
+        final float x = mUnit[next()];
+        return fastMath ? FastMath.asin(x) : (float) Math.asin(x);
+    }
+
+    @Benchmark
+    public float acos() {
+        final float x = mUnit[next()];
+        return fastMath ? FastMath.acos(x) : (float) Math.acos(x);
+    }
+
+    @Benchmark
+    public float atan2() {
+        final int i = next();
+        return fastMath ? FastMath.atan2(mY[i], mX[i]) : (float) Math.atan2(mY[i], mX[i]);
+    }
+
+    @Benchmark
+    public float invSqrt() {
+        final float x = mPositive[next()];
+        return fastMath ? FastMath.invSqrt(x) : (float) (1.0 / Math.sqrt(x));
+    }
+
+    @Benchmark
+    public float calculate() {
+        mCalculator.calculate(mMatrices[next()]);
+        return mCalculator.getAzimuth() + mCalculator.getInclination();
+    }
+
+    @Benchmark
+    public float calculateFromQuaternion() {
+        final int i = next();
+        System.arraycopy(mRotationVectors, i*4, mRv, 0, 4);
+        QuaternionMath.fromRotationVector(mQ, mRv, 4);
+        mCalculator.calculateFromQuaternion(mQ);
+        return mCalculator.getAzimuth() + mCalculator.getInclination();
+    }
+
+    @Benchmark
+    public float solveTargets() {
+        mSolver.solve(mMatrices[next()], mTargets, mTargetAngles);
+        return mTargetAngles.getAzimuths()[0];
+    }
+}
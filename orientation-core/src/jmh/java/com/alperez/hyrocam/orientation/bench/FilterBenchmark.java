@@ -0,0 +1,110 @@
+package com.alperez.hyrocam.orientation.bench;
+
+import com.alperez.hyrocam.orientation.OrientationPipeline;
+import com.alperez.hyrocam.orientation.SensorInputType;
+import com.alperez.hyrocam.orientation.SensorSourceType;
+import com.alperez.hyrocam.orientation.filter.FilterChain;
+import com.alperez.hyrocam.orientation.filter.LowPassFilter;
+import com.alperez.hyrocam.orientation.filter.MedianFilter;
+import com.alperez.hyrocam.orientation.filter.MovingAverageFilter;
+import com.alperez.hyrocam.orientation.filter.OneEuroFilter;
+import com.alperez.hyrocam.orientation.filter.SampleFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of each filter stage on a 3-axis sample, and of a whole RAW event (accelerometer
+ * plus magnetometer) with the stage set on both sensors of the RAW source.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterBenchmark {
+
+    @Param({"none", "lowpass", "movavg8", "median5", "hampel5", "oneeuro", "median5+lowpass"})
+    public String stage;
+
+    private float[] mAccel;
+    private float[] mMagnet;
+    private final float[] mSample = new float[3];
+    private final float[] mSample2 = new float[3];
+    private int mIndex;
+    private long mTimestamp;
+    private SampleFilter mFilter;
+    private OrientationPipeline mPipeline;
+
+    @Setup
+    public void setup() {
+        final Random rnd = new Random(5);
+        mAccel = new float[BenchData.SIZE * 3];
+        mMagnet = new float[BenchData.SIZE * 3];
+        for (int i=0; i<BenchData.SIZE; i++) {
+            mAccel[i*3]     = 0.3f + 0.05f * (float) rnd.nextGaussian();
+            mAccel[i*3 + 1] = 0.2f + 0.05f * (float) rnd.nextGaussian();
+            mAccel[i*3 + 2] = 9.8f + 0.05f * (float) rnd.nextGaussian();
+            mMagnet[i*3]     = 2f + 0.8f * (float) rnd.nextGaussian();
+            mMagnet[i*3 + 1] = 22f + 0.8f * (float) rnd.nextGaussian();
+            mMagnet[i*3 + 2] = -40f + 0.8f * (float) rnd.nextGaussian();
+        }
+        mFilter = newStage(stage);
+        mPipeline = new OrientationPipeline(new OrientationPipeline.Output() {
+            @Override
+            public void onAnglesCalculated(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+            }
+        });
+        mPipeline.getCalculator().setTargetLocation(BenchData.TARGET);
+        mPipeline.setSelfLocation(BenchData.SELF);
+        mPipeline.setInputFilter(SensorSourceType.RAW, SensorInputType.ACCELEROMETER, newStage(stage));
+        mPipeline.setInputFilter(SensorSourceType.RAW, SensorInputType.MAGNETIC_FIELD, newStage(stage));
+    }
+
+    private static SampleFilter newStage(String stage) {
+        if ("lowpass".equals(stage)) {
+            return new LowPassFilter(3, 5f);
+        } else if ("movavg8".equals(stage)) {
+            return new MovingAverageFilter(3, 8);
+        } else if ("median5".equals(stage)) {
+            return new MedianFilter(3, 5);
+        } else if ("hampel5".equals(stage)) {
+            final MedianFilter f = new MedianFilter(3, 5);
+            f.setOutlierThreshold(2f);
+            return f;
+        } else if ("oneeuro".equals(stage)) {
+            return new OneEuroFilter(3, 1f, 0.05f, 1f);
+        } else if ("median5+lowpass".equals(stage)) {
+            return new FilterChain(new MedianFilter(3, 5), new LowPassFilter(3, 5f));
+        }
+        return null;
+    }
+
+    @Benchmark
+    public float stageSample() {
+        final int i = (mIndex++) & BenchData.MASK;
+        System.arraycopy(mAccel, i * 3, mSample, 0, 3);
+        mTimestamp += 5000000;
+        if (mFilter != null) {
+            mFilter.apply(mTimestamp, mSample, 3);
+        }
+        return mSample[0];
+    }
+
+    @Benchmark
+    public void rawEvent() {
+        final int i = (mIndex++) & BenchData.MASK;
+        System.arraycopy(mMagnet, i * 3, mSample2, 0, 3);
+        System.arraycopy(mAccel, i * 3, mSample, 0, 3);
+        mTimestamp += 5000000;
+        mPipeline.onMagneticField(mTimestamp, mSample2);
+        mPipeline.onAccelerometer(mTimestamp + 1000, mSample);
+    }
+}
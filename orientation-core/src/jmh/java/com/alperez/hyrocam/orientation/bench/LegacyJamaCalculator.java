@@ -0,0 +1,94 @@
+package com.alperez.hyrocam.orientation.bench;
+
+import com.alperez.hyrocam.orientation.RotationMath;
+
+import Jama.Matrix;
+
+/**
+ * Verbatim copy of the original SensorsController.calculate() (Jama-based, allocating per call,
+ * including the typo in the right-hand side).
+ * Kept here only as the baseline for the benchmarks - do not use it anywhere else.
+ */
+class LegacyJamaCalculator {
+
+    private final float[] mYawPitchRollAngles = new float[3];
+    private final float[] mTarget;
+    private final float[] mDeviceLocation;
+
+    float azimuth;
+    float inclination;
+    double testScalProd;
+    double det;
+
+    LegacyJamaCalculator(float[] target, float[] deviceLocation) {
+        mTarget = target;
+        mDeviceLocation = deviceLocation;
+    }
+
+    float calculate(float[] rotMatrix) {
+        RotationMath.getOrientation(rotMatrix, mYawPitchRollAngles);
+
+        final float[] Xort = new float[3];
+        final float[] Yort = new float[3];
+        Xort[0] = rotMatrix[0];
+        Xort[1] = rotMatrix[3];
+        Xort[2] = rotMatrix[6];
+        Yort[0] = rotMatrix[1];
+        Yort[1] = rotMatrix[4];
+        Yort[2] = rotMatrix[7];
+
+        float A = Xort[1]*Yort[2] - Yort[1]*Xort[2];
+        float B = Yort[0]*Xort[2] - Xort[0]*Yort[2];
+        float C = Xort[0]*Yort[1] - Yort[0]*Xort[1];
+
+        float[] T = new float[3];
+        T[0] = mTarget[0] - mDeviceLocation[0];
+        T[1] = mTarget[1] - mDeviceLocation[1];
+        T[2] = mTarget[2] - mDeviceLocation[2];
+
+        final Matrix M = new Matrix(3, 3);
+        M.set(0, 0, B);
+        M.set(0, 1, -A);
+        M.set(0, 2, 0);
+        M.set(1, 0, C);
+        M.set(1, 1, 0);
+        M.set(1, 2, -A);
+        M.set(2, 0, A);
+        M.set(2, 1, B);
+        M.set(2, 2, C);
+
+        det = M.det();
+
+        final Matrix V = new Matrix(3, 1);
+        V.set(0, 0, T[0]*B - T[1]*A);
+        V.set(1, 0, T[1]*C - T[2]*A);
+        V.set(2, 0, 0);
+
+        final Matrix Pmatr = M.solve(V);
+        final float[] P = new float[3];
+        P[0] = (float)Pmatr.get(0, 0);
+        P[1] = (float)Pmatr.get(1, 0);
+        P[2] = (float)Pmatr.get(2, 0);
+
+        testScalProd = (0-(double)P[0])*((double)T[0]-(double)P[0]) + (0-(double)P[1])*((double)T[1]-(double)P[1]) + (0-(double)P[2])*((double)T[2]-(double)P[2]);
+
+        final float[] TP = new float[]{P[0]-T[0], P[1]-T[1], P[2]-T[2]};
+        inclination = (float)Math.asin(Math.sqrt(TP[0]*TP[0] + TP[1]*TP[1] + TP[2]*TP[2]) / Math.sqrt(T[0]*T[0] + T[1]*T[1] + T[2]*T[2]));
+
+        final double lenXort = Math.sqrt(Xort[0]*Xort[0] + Xort[1]*Xort[1] + Xort[2]*Xort[2]);
+        final double lenOP = Math.sqrt(P[0]*P[0] + P[1]*P[1] + P[2]*P[2]);
+
+        final double cosTheta = (Xort[0]*P[0] + Xort[1]*P[1] + Xort[2]*P[2]) / (lenXort * lenOP);
+        final double sinTheta = ((Xort[1]*P[2] - Xort[2]*P[1]) + (Xort[2]*P[0]-Xort[0]*P[2]) + (Xort[0]*P[1] - Xort[1]*P[0])) / (lenXort * lenOP);
+
+        double azSin1 = Math.asin(sinTheta);
+        double azSin2 = (sinTheta >= 0) ? (Math.PI - azSin1) : (-Math.PI - azSin1);
+        double azCos = Math.acos(cosTheta);
+
+        double epsAz1 = Math.min(Math.abs(azSin1 - azCos), Math.abs(azSin1 + azCos));
+        double epsAz2 = Math.min(Math.abs(azSin2 - azCos), Math.abs(azSin2 + azCos));
+
+        azimuth = (float)((epsAz1 < epsAz2) ? azSin1 : azSin2);
+        return azimuth;
+    }
+}
@@ -0,0 +1,75 @@
+package com.alperez.hyrocam.orientation.bench;
+
+import com.alperez.hyrocam.orientation.LatencyHistogram;
+import com.alperez.hyrocam.orientation.OrientationPipeline;
+import com.alperez.hyrocam.orientation.PipelineMetrics;
+import com.alperez.hyrocam.orientation.SensorSourceType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the pipeline instrumentation: one {@link LatencyHistogram#record(long)}, and a whole
+ * ROTATION_VECTOR event without metrics ("0"), with every event timed ("1") and with every 16-th
+ * event timed ("16").
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    @Param({"0", "1", "16"})
+    public int timingInterval;
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+    private long[] mValues;
+    private float[] mRotationVectors;
+    private final float[] mRv = new float[4];
+    private int mIndex;
+    private long mTimestamp;
+    private OrientationPipeline mPipeline;
+
+    @Setup
+    public void setup() {
+        final Random rnd = new Random(3);
+        mValues = new long[BenchData.SIZE];
+        for (int i=0; i<BenchData.SIZE; i++) {
+            // 100 ns .. 10 ms, log-uniform
+            mValues[i] = (long) Math.exp(Math.log(100) + rnd.nextDouble() * Math.log(1e5));
+        }
+        mRotationVectors = BenchData.rotationVectors(42);
+        mPipeline = new OrientationPipeline(new OrientationPipeline.Output() {
+            @Override
+            public void onAnglesCalculated(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+            }
+        });
+        mPipeline.getCalculator().setTargetLocation(BenchData.TARGET);
+        mPipeline.setSelfLocation(BenchData.SELF);
+        if (timingInterval > 0) {
+            final PipelineMetrics metrics = new PipelineMetrics();
+            metrics.setTimingInterval(timingInterval);
+            mPipeline.setMetrics(metrics);
+        }
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        mHistogram.record(mValues[(mIndex++) & BenchData.MASK]);
+    }
+
+    @Benchmark
+    public void rotationVectorEvent() {
+        System.arraycopy(mRotationVectors, ((mIndex++) & BenchData.MASK) * 4, mRv, 0, 4);
+        mTimestamp += 5000000;
+        mPipeline.onRotationVector(mTimestamp, mRv, 4);
+    }
+}
@@ -0,0 +1,97 @@
+package com.alperez.hyrocam.orientation.bench;
+
+import com.alperez.hyrocam.orientation.AnglesCalculator;
+import com.alperez.hyrocam.orientation.MultiTargetSolver;
+import com.alperez.hyrocam.orientation.QuaternionMath;
+import com.alperez.hyrocam.orientation.TargetAnglesBuffer;
+import com.alperez.hyrocam.orientation.TargetSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of solving N targets for one orientation: the SoA batch kernel against calling the
+ * single-target calculator N times, and the kernel with view cone culling (60 degrees, 1000 units
+ * range) over targets spread on a 4000 x 4000 area. The time is per orientation (one sensor event), so it can
+ * be compared directly with the sensor period.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultiTargetBenchmark {
+
+    @Param({"16", "1024", "4096"})
+    public int targets;
+
+    private float[] mRotationVectors;
+    private final float[] mQ = new float[4];
+    private final float[] mRv = new float[4];
+    private int mIndex;
+
+    private TargetSet mTargets;
+    private float[][] mTargetLocations;
+    private MultiTargetSolver mSolver;
+    private MultiTargetSolver mCullingSolver;
+    private TargetAnglesBuffer mOut;
+    private AnglesCalculator mCalculator;
+
+    @Setup
+    public void setup() {
+        mRotationVectors = BenchData.rotationVectors(42);
+        final Random rnd = new Random(7);
+        mTargets = new TargetSet(targets);
+        mTargetLocations = new float[targets][];
+        for (int i=0; i<targets; i++) {
+            final float[] t = new float[]{rnd.nextFloat()*4000 - 2000, rnd.nextFloat()*4000 - 2000, rnd.nextFloat()*500};
+            mTargets.put(i, t[0], t[1], t[2]);
+            mTargetLocations[i] = t;
+        }
+        mSolver = new MultiTargetSolver();
+        mSolver.setSelfLocation(BenchData.SELF);
+        mCullingSolver = new MultiTargetSolver();
+        mCullingSolver.setSelfLocation(BenchData.SELF);
+        mCullingSolver.setFieldOfView((float)Math.toRadians(30), 1000);
+        mOut = new TargetAnglesBuffer();
+        mCalculator = new AnglesCalculator();
+        mCalculator.setSelfLocation(BenchData.SELF);
+    }
+
+    private float[] nextQuaternion() {
+        System.arraycopy(mRotationVectors, ((mIndex++) & BenchData.MASK) * 4, mRv, 0, 4);
+        QuaternionMath.fromRotationVector(mQ, mRv, 4);
+        return mQ;
+    }
+
+    @Benchmark
+    public float batchKernel() {
+        mSolver.solveFromQuaternion(nextQuaternion(), mTargets, mOut);
+        return mOut.getAzimuths()[targets - 1];
+    }
+
+    @Benchmark
+    public int culledBatchKernel() {
+        mCullingSolver.solveFromQuaternion(nextQuaternion(), mTargets, mOut);
+        return mOut.size();
+    }
+
+    @Benchmark
+    public float singleTargetLoop() {
+        final float[] q = nextQuaternion();
+        float acc = 0;
+        for (int i=0; i<targets; i++) {
+            mCalculator.setTargetLocation(mTargetLocations[i]);
+            mCalculator.calculateFromQuaternion(q);
+            acc += mCalculator.getAzimuth();
+        }
+        return acc;
+    }
+}
@@ -0,0 +1,108 @@
+package com.alperez.hyrocam.orientation.bench;
+
+import com.alperez.hyrocam.orientation.AnglesCalculator;
+import com.alperez.hyrocam.orientation.OrientationPipeline;
+import com.alperez.hyrocam.orientation.PlaneProjectionSolver;
+import com.alperez.hyrocam.orientation.QuaternionMath;
+import com.alperez.hyrocam.orientation.SensorSourceType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotation-matrix-to-angles hot path: the original Jama implementation against the optimized
+ * variants. Run with the "gc" profiler (configured in build.gradle) to get bytes/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProjectionBenchmark {
+
+    private float[][] mMatrices;
+    private float[] mRotationVectors;
+    private final float[] mRv = new float[4];
+    private final float[] mQ = new float[4];
+    private int mIndex;
+
+    private LegacyJamaCalculator mLegacy;
+    private AnglesCalculator mCalculator;
+    private PlaneProjectionSolver mSolver;
+    private OrientationPipeline mPipeline;
+    private final float[] mT = new float[3];
+    private final float[] mP = new float[3];
+
+    private Blackhole mBh;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        mBh = bh;
+        mMatrices = BenchData.rotationMatrices(42);
+        mRotationVectors = BenchData.rotationVectors(42);
+        mLegacy = new LegacyJamaCalculator(BenchData.TARGET, BenchData.SELF);
+        mCalculator = new AnglesCalculator();
+        mCalculator.setTargetLocation(BenchData.TARGET);
+        mCalculator.setSelfLocation(BenchData.SELF);
+        mSolver = new PlaneProjectionSolver();
+        for (int i=0; i<3; i++) {
+            mT[i] = BenchData.TARGET[i] - BenchData.SELF[i];
+        }
+        mPipeline = new OrientationPipeline(new OrientationPipeline.Output() {
+            @Override
+            public void onAnglesCalculated(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+                mBh.consume(camRelAzimuth);
+                mBh.consume(camRelInclination);
+            }
+        });
+        mPipeline.getCalculator().setTargetLocation(BenchData.TARGET);
+        mPipeline.getCalculator().setSelfLocation(BenchData.SELF);
+    }
+
+    private float[] nextMatrix() {
+        return mMatrices[(mIndex++) & BenchData.MASK];
+    }
+
+    @Benchmark
+    public float legacyJamaCalculate() {
+        return mLegacy.calculate(nextMatrix());
+    }
+
+    @Benchmark
+    public float closedFormProjectionOnly() {
+        final float[] R = nextMatrix();
+        final float A = R[3]*R[7] - R[4]*R[6];
+        final float B = R[1]*R[6] - R[0]*R[7];
+        final float C = R[0]*R[4] - R[1]*R[3];
+        mSolver.project(A, B, C, mT, mP);
+        return mP[0] + mP[1] + mP[2];
+    }
+
+    @Benchmark
+    public float anglesCalculator() {
+        mCalculator.calculate(nextMatrix());
+        return mCalculator.getAzimuth() + mCalculator.getInclination();
+    }
+
+    @Benchmark
+    public float quaternionCalculator() {
+        final int i = (mIndex++) & BenchData.MASK;
+        System.arraycopy(mRotationVectors, i*4, mRv, 0, 4);
+        QuaternionMath.fromRotationVector(mQ, mRv, 4);
+        mCalculator.calculateFromQuaternion(mQ);
+        return mCalculator.getAzimuth() + mCalculator.getInclination();
+    }
+
+    @Benchmark
+    public void rotationVectorPipeline() {
+        final int i = (mIndex++) & BenchData.MASK;
+        System.arraycopy(mRotationVectors, i*4, mRv, 0, 4);
+        mPipeline.onRotationVector(i, mRv, 4);
+    }
+}
@@ -0,0 +1,210 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Picks the sensor sampling level from the motion of the device: a slow rate while it is still
+ * (e.g. on a tripod), the normal rate while it moves slowly, the fastest rate during fast motion.
+ * <p>
+ * The input is the magnitude of the angular velocity of the calculated orientation (see
+ * {@link OrientationPredictor#getAngularVelocity(float[])}), smoothed with an exponential
+ * moving average. Changes have hysteresis, so re-registration of the sensors does not thrash:
+ * <pre>
+ *     up (immediately):   w &gt; fastEnter           -&gt; FAST
+ *                         w &gt; normalEnter, STILL  -&gt; NORMAL
+ *     down (after dwell): FAST,   w &lt; fastExit for fastDwell    -&gt; NORMAL
+ *                         NORMAL, w &lt; stillEnter for stillDwell -&gt; STILL
+ * </pre>
+ * with stillEnter &lt; normalEnter and fastExit &lt; fastEnter. Stepping down also needs at least
+ * {@link #setMinSwitchIntervalNs(long) the minimum interval} since the previous change.
+ * <p>
+ * With the nominal event rate of each level (see {@link #setLevelRates(float[], int)}) the time
+ * spent in each level is converted into the number of sensor events saved against always running
+ * at the baseline level, and recorded in {@link PipelineMetrics}.
+ * <p>
+ * Instances are not thread-safe: {@link #update(long, float)} is called on the sensor thread,
+ * {@link #getLevel()} can be read from any thread. Nothing is allocated.
+ */
+public class AdaptiveRateController {
+
+    public static final int LEVEL_STILL = 0;
+    public static final int LEVEL_NORMAL = 1;
+    public static final int LEVEL_FAST = 2;
+    public static final int LEVELS_COUNT = 3;
+
+    private static final float SMOOTHING = 0.2f;
+
+    /** Samples further apart than this are not counted in the time per level (sensors stopped) */
+    private static final long MAX_ACCOUNTED_STEP_NS = 1000000000L;
+
+    //--- Thresholds, rad/s ---
+    private float mStillEnter = 0.03f;
+    private float mNormalEnter = 0.1f;
+    private float mFastExit = 0.4f;
+    private float mFastEnter = 0.8f;
+    private long mStillDwellNs = 3000000000L;
+    private long mFastDwellNs = 1000000000L;
+    private long mMinSwitchIntervalNs = 500000000L;
+
+    private volatile int mLevel = LEVEL_NORMAL;
+    private float mOmega;
+    private boolean hasOmega;
+    private long mLastTimestamp;
+    private long mLastSwitchTimestamp;
+    // Start of the current run of samples below the step-down threshold, 0 - not below
+    private long mBelowSince;
+
+    private final float[] mLevelRates = new float[LEVELS_COUNT];
+    private int mBaselineLevel = LEVEL_NORMAL;
+    private PipelineMetrics mMetrics;
+
+    /**
+     * @param stillEnter below this the device is considered still, rad/s
+     * @param normalEnter above this a still device is considered moving
+     * @param fastExit below this a fast moving device is considered moving slowly
+     * @param fastEnter above this the device is considered moving fast
+     */
+    public void setThresholds(float stillEnter, float normalEnter, float fastExit, float fastEnter) {
+        if (!(0 <= stillEnter && stillEnter < normalEnter && normalEnter <= fastExit && fastExit < fastEnter)) {
+            throw new IllegalArgumentException("Thresholds must grow: stillEnter < normalEnter <= fastExit < fastEnter");
+        }
+        mStillEnter = stillEnter;
+        mNormalEnter = normalEnter;
+        mFastExit = fastExit;
+        mFastEnter = fastEnter;
+    }
+
+    /**
+     * @param stillDwellNs how long the device must be still before the rate goes down to STILL
+     * @param fastDwellNs how long the motion must be slow before the rate goes down to NORMAL
+     */
+    public void setDwellTimes(long stillDwellNs, long fastDwellNs) {
+        if (stillDwellNs < 0 || fastDwellNs < 0) {
+            throw new IllegalArgumentException("Dwell times must not be negative");
+        }
+        mStillDwellNs = stillDwellNs;
+        mFastDwellNs = fastDwellNs;
+    }
+
+    public void setMinSwitchIntervalNs(long intervalNs) {
+        if (intervalNs < 0) {
+            throw new IllegalArgumentException("Interval must not be negative - "+intervalNs);
+        }
+        mMinSwitchIntervalNs = intervalNs;
+    }
+
+    /**
+     * @param eventsPerSecond nominal number of sensor events per second at each level (index is LEVEL_*)
+     * @param baselineLevel level the savings are counted against
+     */
+    public void setLevelRates(float[] eventsPerSecond, int baselineLevel) {
+        if (eventsPerSecond.length < LEVELS_COUNT) {
+            throw new IllegalArgumentException("Rates of all "+LEVELS_COUNT+" levels must be provided");
+        } else if (baselineLevel < 0 || baselineLevel >= LEVELS_COUNT) {
+            throw new IllegalArgumentException("Wrong baseline level - "+baselineLevel);
+        }
+        System.arraycopy(eventsPerSecond, 0, mLevelRates, 0, LEVELS_COUNT);
+        mBaselineLevel = baselineLevel;
+    }
+
+    /**
+     * @param metrics receives the time per level, the switches and the saved events, null - none
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Start over at the given level, e.g. after the sensors have been registered.
+     */
+    public void reset(int level) {
+        if (level < 0 || level >= LEVELS_COUNT) {
+            throw new IllegalArgumentException("Wrong level - "+level);
+        }
+        mLevel = level;
+        hasOmega = false;
+        mLastTimestamp = 0;
+        mLastSwitchTimestamp = 0;
+        mBelowSince = 0;
+    }
+
+    /**
+     * @return current LEVEL_*
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return smoothed angular velocity magnitude, rad/s
+     */
+    public float getSmoothedOmega() {
+        return mOmega;
+    }
+
+    /**
+     * Feed one angular velocity sample.
+     * @param timestamp sample time, ns. Samples not newer than the previous one are ignored.
+     * @param omega angular velocity magnitude, rad/s
+     * @return true if the level has changed
+     */
+    public boolean update(long timestamp, float omega) {
+        if (mLastTimestamp != 0 && timestamp <= mLastTimestamp) {
+            return false;
+        }
+        final int level = mLevel;
+        if (mLastTimestamp != 0) {
+            account(level, timestamp - mLastTimestamp);
+        }
+        mLastTimestamp = timestamp;
+        mOmega = hasOmega ? (mOmega + SMOOTHING * (omega - mOmega)) : omega;
+        hasOmega = true;
+        final float w = mOmega;
+
+        //----  Up - immediately  ----
+        if (w > mFastEnter && level != LEVEL_FAST) {
+            return switchTo(LEVEL_FAST, timestamp);
+        } else if (w > mNormalEnter && level == LEVEL_STILL) {
+            return switchTo(LEVEL_NORMAL, timestamp);
+        }
+
+        //----  Down - after the dwell time  ----
+        final float exitThreshold;
+        final long dwell;
+        if (level == LEVEL_FAST) {
+            exitThreshold = mFastExit;
+            dwell = mFastDwellNs;
+        } else if (level == LEVEL_NORMAL) {
+            exitThreshold = mStillEnter;
+            dwell = mStillDwellNs;
+        } else {
+            return false;
+        }
+        if (w >= exitThreshold) {
+            mBelowSince = 0;
+            return false;
+        } else if (mBelowSince == 0) {
+            mBelowSince = timestamp;
+        }
+        if (timestamp - mBelowSince >= dwell && timestamp - mLastSwitchTimestamp >= mMinSwitchIntervalNs) {
+            return switchTo(level - 1, timestamp);
+        }
+        return false;
+    }
+
+    private boolean switchTo(int level, long timestamp) {
+        mLevel = level;
+        mLastSwitchTimestamp = timestamp;
+        mBelowSince = 0;
+        if (mMetrics != null) {
+            mMetrics.countRateSwitch();
+        }
+        return true;
+    }
+
+    private void account(int level, long dtNs) {
+        final PipelineMetrics m = mMetrics;
+        if (m == null || dtNs > MAX_ACCOUNTED_STEP_NS) {
+            return;
+        }
+        m.addSamplingTime(level, dtNs, (mLevelRates[mBaselineLevel] - mLevelRates[level]) * (dtNs / 1e9));
+    }
+}
@@ -0,0 +1,299 @@
+package com.alperez.hyrocam.orientation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free single-producer / multi-consumer ring buffer of angle samples.
+ * <p>
+ * Every slot is stored in pre-allocated primitive arrays (structure of arrays), so neither
+ * the producer nor the consumers allocate anything per sample. The producer never blocks:
+ * if a consumer falls behind by more than the capacity, the oldest samples are overwritten
+ * and the consumer detects it by the sequence numbers (see {@link Reader#getDropped()}).
+ * <p>
+ * Each slot is guarded by its own sequence number (seqlock): the producer marks the slot as
+ * "being written", writes the data and then publishes the sequence of the sample. A consumer
+ * copies the data and re-checks the slot sequence afterwards. If it has changed the sample
+ * was overwritten while being read and the copy is discarded.
+ */
+public final class AngleRingBuffer {
+
+    private static final long SLOT_WRITING = -2;
+    private static final long SLOT_EMPTY = -1;
+
+    private final int mCapacity;
+    private final int mMask;
+
+    private final AtomicLongArray mSlotSeq;
+    private final long[] mTimestamp;
+    private final int[] mSourceType;
+    private final float[] mYaw;
+    private final float[] mPitch;
+    private final float[] mRoll;
+    private final float[] mAzimuth;
+    private final float[] mInclination;
+    private final double[] mResidual;
+
+    /** Sequence of the last published sample, -1 if nothing was published yet */
+    private final AtomicLong mPublishedSeq = new AtomicLong(-1);
+
+    /** Producer-local copy of the next sequence */
+    private long mNextSeq;
+
+    /**
+     * @param capacity number of slots. Must be a power of 2.
+     */
+    public AngleRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a positive power of 2 - "+capacity);
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mSlotSeq = new AtomicLongArray(capacity);
+        for (int i=0; i<capacity; i++) {
+            mSlotSeq.set(i, SLOT_EMPTY);
+        }
+        mTimestamp = new long[capacity];
+        mSourceType = new int[capacity];
+        mYaw = new float[capacity];
+        mPitch = new float[capacity];
+        mRoll = new float[capacity];
+        mAzimuth = new float[capacity];
+        mInclination = new float[capacity];
+        mResidual = new double[capacity];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return sequence number of the latest published sample or -1 if the buffer is empty
+     */
+    public long getPublishedSequence() {
+        return mPublishedSeq.get();
+    }
+
+    /**
+     * Publish a new sample. Must be called from the single producer thread only.
+     * @return sequence number of the published sample
+     */
+    public long publish(long timestamp, int sourceType, float yaw, float pitch, float roll, float azimuth, float inclination, double residual) {
+        final long seq = mNextSeq++;
+        final int i = (int) seq & mMask;
+
+        mSlotSeq.set(i, SLOT_WRITING);
+        // Volatile read after the volatile write keeps the data writes below from being
+        // reordered before the "writing" mark.
+        mSlotSeq.get(i);
+
+        mTimestamp[i] = timestamp;
+        mSourceType[i] = sourceType;
+        mYaw[i] = yaw;
+        mPitch[i] = pitch;
+        mRoll[i] = roll;
+        mAzimuth[i] = azimuth;
+        mInclination[i] = inclination;
+        mResidual[i] = residual;
+
+        mSlotSeq.lazySet(i, seq);
+        mPublishedSeq.lazySet(seq);
+        return seq;
+    }
+
+    /**
+     * Create a new independent consumer. The reader starts after the latest published sample,
+     * so it will only see samples published from now on.
+     * Each Reader must be used by a single thread.
+     */
+    public Reader newReader() {
+        return new Reader(mPublishedSeq.get() + 1);
+    }
+
+    /**
+     * Mutable holder for one sample. Owned by the consumer and re-used between reads.
+     */
+    public static final class Sample {
+        private long sequence = -1;
+        private long timestamp;
+        private int sourceType;
+        private float yaw;
+        private float pitch;
+        private float roll;
+        private float azimuth;
+        private float inclination;
+        private double residual;
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return {@link SensorSourceType#ordinal()} of the source of this sample
+         */
+        public int getSourceType() {
+            return sourceType;
+        }
+
+        public float getYaw() {
+            return yaw;
+        }
+
+        public float getPitch() {
+            return pitch;
+        }
+
+        public float getRoll() {
+            return roll;
+        }
+
+        public float getAzimuth() {
+            return azimuth;
+        }
+
+        public float getInclination() {
+            return inclination;
+        }
+
+        public double getResidual() {
+            return residual;
+        }
+
+        public void copyFrom(Sample other) {
+            sequence = other.sequence;
+            timestamp = other.timestamp;
+            sourceType = other.sourceType;
+            yaw = other.yaw;
+            pitch = other.pitch;
+            roll = other.roll;
+            azimuth = other.azimuth;
+            inclination = other.inclination;
+            residual = other.residual;
+        }
+
+        /**
+         * Replace the angles, e.g. with the values predicted for the display time.
+         * The timestamp is kept, it still refers to the sensor sample.
+         */
+        public void setAngles(float yaw, float pitch, float roll, float azimuth, float inclination) {
+            this.yaw = yaw;
+            this.pitch = pitch;
+            this.roll = roll;
+            this.azimuth = azimuth;
+            this.inclination = inclination;
+        }
+    }
+
+    /**
+     * Consumer-side cursor. Reads samples in order at the consumer's own pace.
+     */
+    public final class Reader {
+        private long mNextToRead;
+        private long mDropped;
+
+        /**
+         * Used only as a memory fence: a volatile write after the plain data reads keeps them
+         * from being reordered after the second sequence check.
+         */
+        private volatile long mFence;
+
+        private Reader(long startSeq) {
+            mNextToRead = startSeq;
+        }
+
+        /**
+         * Read the next sample in order.
+         * @param out destination
+         * @return false if there is no new sample
+         */
+        public boolean poll(Sample out) {
+            while (true) {
+                final long published = mPublishedSeq.get();
+                if (mNextToRead > published) {
+                    return false;
+                }
+                final long oldestAvailable = published - mCapacity + 1;
+                if (mNextToRead < oldestAvailable) {
+                    mDropped += oldestAvailable - mNextToRead;
+                    mNextToRead = oldestAvailable;
+                }
+                if (tryRead(mNextToRead, out)) {
+                    mNextToRead ++;
+                    return true;
+                }
+                // Overwritten while reading - retry from the new oldest available position
+            }
+        }
+
+        /**
+         * Skip everything up to the latest published sample and read it.
+         * All skipped samples are counted as dropped.
+         * @param out destination
+         * @return false if there is no new sample since the last read
+         */
+        public boolean pollLatest(Sample out) {
+            final long published = mPublishedSeq.get();
+            if (mNextToRead > published) {
+                return false;
+            }
+            mDropped += published - mNextToRead;
+            mNextToRead = published;
+            return poll(out);
+        }
+
+        /**
+         * @return number of published samples not read by this reader yet
+         */
+        public long getLag() {
+            final long lag = mPublishedSeq.get() + 1 - mNextToRead;
+            return (lag > 0) ? lag : 0;
+        }
+
+        /**
+         * @return total number of samples this reader has skipped or lost to overwriting
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        /**
+         * Must be called only for an already published sequence.
+         * @return false if the slot has been overwritten by a newer sample
+         */
+        private boolean tryRead(long seq, Sample out) {
+            final int i = (int) seq & mMask;
+            if (mSlotSeq.get(i) != seq) {
+                return false;
+            }
+
+            final long timestamp = mTimestamp[i];
+            final int sourceType = mSourceType[i];
+            final float yaw = mYaw[i];
+            final float pitch = mPitch[i];
+            final float roll = mRoll[i];
+            final float azimuth = mAzimuth[i];
+            final float inclination = mInclination[i];
+            final double residual = mResidual[i];
+
+            mFence = seq;
+            if (mSlotSeq.get(i) != seq) {
+                return false;
+            }
+
+            out.sequence = seq;
+            out.timestamp = timestamp;
+            out.sourceType = sourceType;
+            out.yaw = yaw;
+            out.pitch = pitch;
+            out.roll = roll;
+            out.azimuth = azimuth;
+            out.inclination = inclination;
+            out.residual = residual;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Converts the device orientation into the orientation angles (yaw, pitch, roll) and the
+ * plane-relative azimuth and inclination of the target.
+ * <p>
+ * The input is either a rotation matrix ({@link #calculate(float[])}) or a unit quaternion
+ * ({@link #calculateFromQuaternion(float[])}). The results of the last call are available via
+ * getters. All scratch data is pre-allocated, so nothing is allocated per call.
+ * With {@link #setFastMath(boolean) fast math} the trigonometry is done by the {@link FastMath}
+ * approximations. Instances are not thread-safe.
+ * <p>
+ * The target and the device locations change at the rate of user interaction, not of the
+ * sensors, so the target vector T = target - device and its length are calculated once per
+ * change of them (see {@link #getLocationsVersion()}) and reused by every following call.
+ */
+public class AnglesCalculator {
+
+    private final float[] mTarget = new float[3];
+    private final float[] mDeviceLocation = new float[3];
+
+    // Pre-allocated scratch arrays for calculate(). No allocations must happen per sensor event.
+    private final float[] mT = new float[3];
+    private final float[] mP = new float[3];
+    private final PlaneProjectionSolver mSolver = new PlaneProjectionSolver();
+
+    //--- Results of the last calculation ---
+    private final float[] mYawPitchRollAngles = new float[3];
+    private float mAzimuth;
+    private float mInclination;
+    private double mTestScalProd;
+
+    private boolean fastMath;
+
+    //--- Target vector T = mTarget - mDeviceLocation, valid while mTargetVectorVersion == mLocationsVersion ---
+    private long mLocationsVersion;
+    private long mTargetVectorVersion = -1;
+    private final double[] mTd = new double[3];
+    private float mLenT2;
+    private double mLenT2d;
+    private long mTargetVectorUpdates;
+    private long mTargetVectorReuses;
+
+    /**
+     * Set target coordinates (x, y, z)
+     * @param target
+     */
+    public void setTargetLocation(float[] target) {
+        if (target != null && target.length >= 3) {
+            setLocation(target, mTarget);
+        }
+    }
+
+    /**
+     * Set device location (x, y, z)
+     * @param location
+     */
+    public void setSelfLocation(float[] location) {
+        if (location != null && location.length >= 3) {
+            setLocation(location, mDeviceLocation);
+        }
+    }
+
+    private void setLocation(float[] src, float[] dst) {
+        if (src[0] != dst[0] || src[1] != dst[1] || src[2] != dst[2]) {
+            System.arraycopy(src, 0, dst, 0, 3);
+            mLocationsVersion ++;
+        }
+    }
+
+    /**
+     * @return counter incremented by every change of the target or the device location. Setting
+     *         the same location again is not a change.
+     */
+    public long getLocationsVersion() {
+        return mLocationsVersion;
+    }
+
+    /**
+     * @return true if the next calculation reuses the target vector of the previous one, i.e.
+     *         the locations have not changed since
+     */
+    public boolean isTargetVectorValid() {
+        return mTargetVectorVersion == mLocationsVersion;
+    }
+
+    /**
+     * @return number of calculations which had to update the target vector
+     */
+    public long getTargetVectorUpdatesCount() {
+        return mTargetVectorUpdates;
+    }
+
+    /**
+     * @return number of calculations which reused the target vector of the previous one
+     */
+    public long getTargetVectorReusesCount() {
+        return mTargetVectorReuses;
+    }
+
+    /**
+     * Bring mT, mTd and the squared lengths up to date with the locations
+     * @param calculations number of calculations which are going to use them
+     */
+    private void updateTargetVector(int calculations) {
+        if (mTargetVectorVersion == mLocationsVersion) {
+            mTargetVectorReuses += calculations;
+            return;
+        }
+        final float[] T = mT;
+        T[0] = mTarget[0] - mDeviceLocation[0];
+        T[1] = mTarget[1] - mDeviceLocation[1];
+        T[2] = mTarget[2] - mDeviceLocation[2];
+        mLenT2 = T[0]*T[0] + T[1]*T[1] + T[2]*T[2];
+        final double[] Td = mTd;
+        Td[0] = (double)mTarget[0] - mDeviceLocation[0];
+        Td[1] = (double)mTarget[1] - mDeviceLocation[1];
+        Td[2] = (double)mTarget[2] - mDeviceLocation[2];
+        mLenT2d = Td[0]*Td[0] + Td[1]*Td[1] + Td[2]*Td[2];
+        mTargetVectorVersion = mLocationsVersion;
+        mTargetVectorUpdates ++;
+        mTargetVectorReuses += calculations - 1;
+    }
+
+    /**
+     * Use the {@link FastMath} approximations of atan2, asin and 1/sqrt instead of java.lang.Math.
+     * They add less than 5e-6 rad to the error of the angles; the inclination is taken by atan2
+     * rather than asin, so it is even closer near 90 deg than in the exact mode
+     * (see {@code tools.FastMathCheck}). Off by default.
+     */
+    public void setFastMath(boolean enabled) {
+        fastMath = enabled;
+    }
+
+    public boolean isFastMath() {
+        return fastMath;
+    }
+
+    public float getYaw() {
+        return mYawPitchRollAngles[0];
+    }
+
+    public float getPitch() {
+        return mYawPitchRollAngles[1];
+    }
+
+    public float getRoll() {
+        return mYawPitchRollAngles[2];
+    }
+
+    /**
+     * @return plane-relative azimuth of the target in radians
+     */
+    public float getAzimuth() {
+        return mAzimuth;
+    }
+
+    /**
+     * @return plane-relative inclination of the target in radians
+     */
+    public float getInclination() {
+        return mInclination;
+    }
+
+    /**
+     * @return scalar product of the PO and TP vectors. Must be ~0 for a correct projection.
+     */
+    public double getTestScalProd() {
+        return mTestScalProd;
+    }
+
+    /**
+     * Calculate all angles for the rotation matrix.
+     * @param rotMatrix 3x3 rotation matrix (length=9)
+     */
+    public void calculate(float[] rotMatrix) {
+        updateTargetVector(1);
+        calculateMatrixAt(rotMatrix, 0);
+    }
+
+    /**
+     * Kernel of {@link #calculate(float[])} for the matrix at the offset. The target vector must
+     * be up to date.
+     */
+    private void calculateMatrixAt(float[] R, int o) {
+        /*
+         * 3x3 (length=9) case:
+         *   /  R[ 0]   R[ 1]   R[ 2]  \
+         *   |  R[ 3]   R[ 4]   R[ 5]  |
+         *   \  R[ 6]   R[ 7]   R[ 8]  /
+         * The device X axis is the first column, the Y axis is the second one.
+         */
+        final float x0 = R[o], x1 = R[o + 3], x2 = R[o + 6];
+        final float y0 = R[o + 1], y1 = R[o + 4], y2 = R[o + 7];
+        final float r8 = R[o + 8];
+
+        //----  Yaw, pitch, roll, see RotationMath.getOrientation()  ----
+        final float[] ypr = mYawPitchRollAngles;
+        if (fastMath) {
+            ypr[0] = FastMath.atan2(y0, y1);
+            ypr[1] = FastMath.asin(Math.max(-1f, Math.min(1f, -y2)));
+            ypr[2] = FastMath.atan2(-x2, r8);
+        } else {
+            ypr[0] = (float)Math.atan2(y0, y1);
+            ypr[1] = (float)Math.asin(-y2);
+            ypr[2] = (float)Math.atan2(-x2, r8);
+        }
+
+
+        //----  Constants for plane surface  ----
+        // A*x + B*y + C*z = 0
+        final float A = x1*y2 - y1*x2;
+        final float B = y0*x2 - x0*y2;
+        final float C = x0*y1 - y0*x1;
+
+        //----  Projection of the target vector on the device plane  ----
+        // P = T - (n*T / n*n) * n, see PlaneProjectionSolver
+        final float[] T = mT;
+        final float[] P = mP;
+        mSolver.project(A, B, C, T, P);
+
+        //----  Check projection result  ----
+        // The angle between the vectors PO and TP must be 90degres
+        // So find scalar product
+        mTestScalProd = (0-(double)P[0])*((double)T[0]-(double)P[0]) + (0-(double)P[1])*((double)T[1]-(double)P[1]) + (0-(double)P[2])*((double)T[2]-(double)P[2]);
+
+
+        //----  Find local, plane-relative inclination  ----
+        // sin(inclination) = |TP| / |T|
+        final float tp0 = P[0]-T[0];
+        final float tp1 = P[1]-T[1];
+        final float tp2 = P[2]-T[2];
+        final float lenTP2 = tp0*tp0 + tp1*tp1 + tp2*tp2;
+
+        //----  Find local, plane-relative azimuth  ----
+        // Signed angle from the device X axis to OP around the plane normal n = (A, B, C), which
+        // is the device Z axis: cos ~ X.OP, sin ~ (X x OP).n. atan2 takes them unnormalized.
+        final float cx = x1*P[2] - x2*P[1];
+        final float cy = x2*P[0] - x0*P[2];
+        final float cz = x0*P[1] - x1*P[0];
+        final float sinTerm = cx*A + cy*B + cz*C;
+        final float cosTerm = x0*P[0] + x1*P[1] + x2*P[2];
+
+        if (fastMath) {
+            // As atan2(|TP|, |OP|): asin is too steep near 90 deg for the approximated lengths
+            final float lenOP2 = P[0]*P[0] + P[1]*P[1] + P[2]*P[2];
+            mInclination = FastMath.atan2(lenTP2 * FastMath.invSqrt(lenTP2), lenOP2 * FastMath.invSqrt(lenOP2));
+            mAzimuth = FastMath.atan2(sinTerm, cosTerm);
+        } else {
+            final float lenT2 = mLenT2;
+            mInclination = (lenT2 > 0) ? (float)Math.asin(Math.min(1.0, Math.sqrt(lenTP2 / lenT2))) : 0;
+            mAzimuth = (float)Math.atan2(sinTerm, cosTerm);
+        }
+    }
+
+
+    /**
+     * Calculate all angles for the device orientation given as a unit quaternion.
+     * <p>
+     * The target vector is rotated into the device frame (t = q' * T * q), where the device plane
+     * is simply z = 0. So the projection is (t.x, t.y, 0), and
+     * <pre>
+     *     azimuth = atan2(t.y, t.x)
+     *     inclination = asin(|t.z| / |T|)
+     * </pre>
+     * This is far less arithmetic than the matrix path. It has no singular configurations:
+     * only the yaw/pitch/roll Euler angles are ill-defined near +-90 degrees pitch,
+     * while azimuth and inclination are not.
+     * <p>
+     * The azimuth is the signed angle from the device X axis to the projection, measured around
+     * the device Z axis, the same as in the matrix path. The test scalar product is 0 by
+     * construction here.
+     *
+     * @param q unit quaternion (w, x, y, z), see {@link QuaternionMath}
+     */
+    public void calculateFromQuaternion(float[] q) {
+        updateTargetVector(1);
+        calculateQuaternionAt(q, 0);
+    }
+
+    /**
+     * Kernel of {@link #calculateFromQuaternion(float[])} for the quaternion at the offset.
+     * The target vector must be up to date.
+     */
+    private void calculateQuaternionAt(float[] q, int o) {
+        final float w = q[o], x = q[o + 1], y = q[o + 2], z = q[o + 3];
+
+        //----  Yaw, pitch, roll from the 5 needed elements of the rotation matrix, see QuaternionMath.getOrientation()  ----
+        final float r1 = 2 * (x*y - w*z);
+        final float r4 = 1 - 2 * (x*x + z*z);
+        final float r6 = 2 * (x*z - w*y);
+        final float r7 = 2 * (y*z + w*x);
+        final float r8 = 1 - 2 * (x*x + y*y);
+
+        //----  t = q' * T * q, see QuaternionMath.rotateInverse()  ----
+        final double[] Td = mTd;
+        final double vx = Td[0], vy = Td[1], vz = Td[2];
+        final double dw = w;
+        final double ux = -x, uy = -y, uz = -z;
+        final double tx = 2 * (uy*vz - uz*vy);
+        final double ty = 2 * (uz*vx - ux*vz);
+        final double tz = 2 * (ux*vy - uy*vx);
+        final double t0 = vx + dw*tx + (uy*tz - uz*ty);
+        final double t1 = vy + dw*ty + (uz*tx - ux*tz);
+        final double t2 = vz + dw*tz + (ux*ty - uy*tx);
+
+        final float[] ypr = mYawPitchRollAngles;
+        if (fastMath) {
+            ypr[0] = FastMath.atan2(r1, r4);
+            ypr[1] = FastMath.asin(Math.max(-1f, Math.min(1f, -r7)));
+            ypr[2] = FastMath.atan2(-r6, r8);
+            mAzimuth = FastMath.atan2((float) t1, (float) t0);
+            // As atan2(|t.z|, |(t.x, t.y)|): asin is too steep near 90 deg for the approximated length
+            final float hyp2 = (float) (t0*t0 + t1*t1);
+            mInclination = FastMath.atan2((float) Math.abs(t2), hyp2 * FastMath.invSqrt(hyp2));
+        } else {
+            ypr[0] = (float)Math.atan2(r1, r4);
+            ypr[1] = (float)Math.asin(Math.max(-1f, Math.min(1f, -r7)));
+            ypr[2] = (float)Math.atan2(-r6, r8);
+            final double lenT2 = mLenT2d;
+            mAzimuth = (float)Math.atan2(t1, t0);
+            mInclination = (lenT2 > 0) ? (float)Math.asin(Math.min(1.0, Math.abs(t2) / Math.sqrt(lenT2))) : 0;
+        }
+        mTestScalProd = 0;
+    }
+
+
+    /**
+     * Number of values per sample in the output arrays of the batch methods:
+     * yaw, pitch, roll, azimuth, inclination
+     */
+    public static final int BATCH_OUT_STRIDE = 5;
+
+    /**
+     * Block version of {@link #calculate(float[])}: the matrices are read in place, and the
+     * target vector is brought up to date once for the whole block, as the locations cannot
+     * change within it. The results are the same as of the calls one by one, the getters return
+     * those of the last matrix.
+     *
+     * @param rotMatrices count 3x3 matrices, 9 values each
+     * @param count number of matrices
+     * @param outAngles destination, {@link #BATCH_OUT_STRIDE} values per matrix
+     * @param outScalProd destination for the test scalar products, one per matrix
+     */
+    public void calculateBatch(float[] rotMatrices, int count, float[] outAngles, double[] outScalProd) {
+        if (count <= 0) {
+            return;
+        }
+        updateTargetVector(count);
+        for (int k=0; k<count; k++) {
+            calculateMatrixAt(rotMatrices, k*9);
+            storeResult(k, outAngles, outScalProd);
+        }
+    }
+
+    /**
+     * Block version of {@link #calculateFromQuaternion(float[])}, the same way as
+     * {@link #calculateBatch(float[], int, float[], double[])}.
+     *
+     * @param quaternions count unit quaternions, 4 values (w, x, y, z) each
+     * @param count number of quaternions
+     * @param outAngles destination, {@link #BATCH_OUT_STRIDE} values per quaternion
+     * @param outScalProd destination for the test scalar products, one per quaternion
+     */
+    public void calculateBatchFromQuaternions(float[] quaternions, int count, float[] outAngles, double[] outScalProd) {
+        if (count <= 0) {
+            return;
+        }
+        updateTargetVector(count);
+        for (int k=0; k<count; k++) {
+            calculateQuaternionAt(quaternions, k*4);
+            storeResult(k, outAngles, outScalProd);
+        }
+    }
+
+    private void storeResult(int k, float[] outAngles, double[] outScalProd) {
+        final int o = k * BATCH_OUT_STRIDE;
+        outAngles[o]     = mYawPitchRollAngles[0];
+        outAngles[o + 1] = mYawPitchRollAngles[1];
+        outAngles[o + 2] = mYawPitchRollAngles[2];
+        outAngles[o + 3] = mAzimuth;
+        outAngles[o + 4] = mInclination;
+        outScalProd[k] = mTestScalProd;
+    }
+}
@@ -0,0 +1,146 @@
+package com.alperez.hyrocam.orientation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Calibration and filter state worth keeping between sessions, so the pipeline does not have to
+ * re-converge after every start: the gyroscope bias, the magnetometer hard/soft-iron calibration
+ * and the last FUSED orientation. See {@link OrientationPipeline#saveState(CalibrationState)}.
+ * <p>
+ * Stored in a compact binary file:
+ * <pre>
+ *   int   magic        'HYCA'
+ *   short version
+ *   short flags        FLAG_* of the valid parts
+ *   long  savedAtMs    wall-clock time of the save
+ *   float gyroBias[3]          rad/s
+ *   float magnetOffset[3]      uT
+ *   float magnetSoftIron[9]    row-major
+ *   float fusedQuaternion[4]   (w, x, y, z)
+ *   int   crc32        of all the bytes above
+ * </pre>
+ * {@link #FILE_SIZE} bytes, little-endian. The file is written to a temporary file first and
+ * synced and renamed, so a crash or a power loss while saving leaves the previous one intact.
+ */
+public class CalibrationState {
+
+    public static final int MAGIC = 0x48594341; // "HYCA"
+    public static final short VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    public static final int FILE_SIZE = 16 + 19 * 4 + 4;
+
+    public static final int FLAG_GYRO_BIAS = 1;
+    public static final int FLAG_MAGNET_CALIBRATION = 2;
+    public static final int FLAG_FUSED_ORIENTATION = 4;
+
+    public int flags;
+    public long savedAtMs;
+    public final float[] gyroBias = new float[3];
+    public final float[] magnetOffset = new float[3];
+    public final float[] magnetSoftIron = new float[9];
+    public final float[] fusedQuaternion = new float[4];
+
+    public boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public void clear() {
+        flags = 0;
+        savedAtMs = 0;
+    }
+
+    /**
+     * @return the state or null if there is no file
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static CalibrationState read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        final byte[] data = new byte[FILE_SIZE];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < FILE_SIZE) {
+                final int r = in.read(data, n, FILE_SIZE - n);
+                if (r < 0) {
+                    throw new IOException("Calibration file is truncated - "+n+" bytes");
+                }
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+
+        final ByteBuffer b = ByteBuffer.wrap(data).order(BYTE_ORDER);
+        if (b.getInt() != MAGIC) {
+            throw new IOException("Not a calibration file");
+        }
+        final short version = b.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported calibration file version - "+version);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, FILE_SIZE - 4);
+        if ((int) crc.getValue() != b.getInt(FILE_SIZE - 4)) {
+            throw new IOException("Calibration file is corrupted (CRC mismatch)");
+        }
+
+        final CalibrationState s = new CalibrationState();
+        s.flags = b.getShort();
+        s.savedAtMs = b.getLong();
+        getFloats(b, s.gyroBias);
+        getFloats(b, s.magnetOffset);
+        getFloats(b, s.magnetSoftIron);
+        getFloats(b, s.fusedQuaternion);
+        return s;
+    }
+
+    public void write(File file) throws IOException {
+        final ByteBuffer b = ByteBuffer.allocate(FILE_SIZE).order(BYTE_ORDER);
+        b.putInt(MAGIC);
+        b.putShort(VERSION);
+        b.putShort((short) flags);
+        b.putLong(savedAtMs);
+        putFloats(b, gyroBias);
+        putFloats(b, magnetOffset);
+        putFloats(b, magnetSoftIron);
+        putFloats(b, fusedQuaternion);
+        final CRC32 crc = new CRC32();
+        crc.update(b.array(), 0, b.position());
+        b.putInt((int) crc.getValue());
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(b.array(), 0, FILE_SIZE);
+            // The data must be on the disk before the rename, or a power loss can leave an empty file
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace "+file);
+        }
+    }
+
+    private static void getFloats(ByteBuffer b, float[] dst) {
+        for (int i=0; i<dst.length; i++) {
+            dst[i] = b.getFloat();
+        }
+    }
+
+    private static void putFloats(ByteBuffer b, float[] src) {
+        for (float v : src) {
+            b.putFloat(v);
+        }
+    }
+}
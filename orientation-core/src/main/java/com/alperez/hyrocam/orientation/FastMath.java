@@ -0,0 +1,104 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Approximations of the few transcendental functions on the per-event path, in float. They trade
+ * the last bits of accuracy, which the sensors never had, for speed: no argument reduction beyond
+ * the octant, no special cases beyond NaN, float arithmetic (but for one square root in asin/acos).
+ * <p>
+ * Maximum errors, measured against java.lang.Math over the whole input domain by
+ * {@code tools.FastMathCheck}:
+ * <pre>
+ *     atan2    polynomial, degree 11    2.0e-6 rad absolute  (~0.0001 deg)
+ *     asin     polynomial, degree 7     3.0e-7 rad absolute
+ *     acos     polynomial, degree 7     4.4e-7 rad absolute
+ *     invSqrt  bit trick + 2 Newton     4.7e-6 relative
+ * </pre>
+ * The errors are well below the noise of any orientation sensor (~0.1 deg at best).
+ * See {@link AnglesCalculator#setFastMath(boolean)}.
+ */
+public final class FastMath {
+
+    public static final float PI = (float) Math.PI;
+    public static final float HALF_PI = (float) (Math.PI / 2);
+
+    //--- atan(a) on [0, 1], odd minimax polynomial (Hastings) ---
+    private static final float ATAN_C1 = 0.99997726f;
+    private static final float ATAN_C3 = -0.33262347f;
+    private static final float ATAN_C5 = 0.19354346f;
+    private static final float ATAN_C7 = -0.11643287f;
+    private static final float ATAN_C9 = 0.05265332f;
+    private static final float ATAN_C11 = -0.01172120f;
+
+    //--- acos(x) = sqrt(1 - x) * P(x) on [0, 1] (Abramowitz & Stegun 4.4.46) ---
+    private static final float ACOS_A0 = 1.5707963050f;
+    private static final float ACOS_A1 = -0.2145988016f;
+    private static final float ACOS_A2 = 0.0889789874f;
+    private static final float ACOS_A3 = -0.0501743046f;
+    private static final float ACOS_A4 = 0.0308918810f;
+    private static final float ACOS_A5 = -0.0170881256f;
+    private static final float ACOS_A6 = 0.0066700901f;
+    private static final float ACOS_A7 = -0.0012624911f;
+
+    private FastMath() {
+    }
+
+    /**
+     * Same as Math.atan2(y, x) in (-PI, PI], except that atan2(0, 0) is 0 for all the signs of
+     * the zeros.
+     */
+    public static float atan2(float y, float x) {
+        final float ax = Math.abs(x);
+        final float ay = Math.abs(y);
+        final boolean steep = ay > ax;
+        final float max = steep ? ay : ax;
+        if (max == 0) {
+            return 0;
+        }
+        // Reduced to the first octant: a in [0, 1]
+        final float a = (steep ? ax : ay) / max;
+        final float s = a * a;
+        float r = (((((ATAN_C11*s + ATAN_C9)*s + ATAN_C7)*s + ATAN_C5)*s + ATAN_C3)*s + ATAN_C1) * a;
+        if (steep) {
+            r = HALF_PI - r;
+        }
+        if (x < 0) {
+            r = PI - r;
+        }
+        return (y < 0) ? -r : r;
+    }
+
+    /**
+     * Same as Math.asin(x): NaN outside [-1, 1]
+     */
+    public static float asin(float x) {
+        final float ax = Math.abs(x);
+        final float r = HALF_PI - acosPositive(ax);
+        return (x < 0) ? -r : r;
+    }
+
+    /**
+     * Same as Math.acos(x): NaN outside [-1, 1]
+     */
+    public static float acos(float x) {
+        final float r = acosPositive(Math.abs(x));
+        return (x < 0) ? PI - r : r;
+    }
+
+    private static float acosPositive(float x) {
+        final float p = ((((((ACOS_A7*x + ACOS_A6)*x + ACOS_A5)*x + ACOS_A4)*x + ACOS_A3)*x + ACOS_A2)*x + ACOS_A1)*x + ACOS_A0;
+        return (float) Math.sqrt(1 - x) * p;
+    }
+
+    /**
+     * 1 / sqrt(x) for a positive normal x. The initial guess comes from the bit pattern of the
+     * float (the exponent halved and negated), two Newton steps refine it. Returns a large finite
+     * value instead of infinity for 0, and garbage for subnormal or negative x.
+     */
+    public static float invSqrt(float x) {
+        final float half = 0.5f * x;
+        float y = Float.intBitsToFloat(0x5f375a86 - (Float.floatToRawIntBits(x) >> 1));
+        y = y * (1.5f - half*y*y);
+        y = y * (1.5f - half*y*y);
+        return y;
+    }
+}
@@ -0,0 +1,153 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Local East-North-Up frame for geodetic (WGS84 latitude, longitude, altitude) coordinates.
+ * ENU is the world frame of the orientation sensors: X east, Y north, Z up.
+ * <p>
+ * The frame origin is the device location. Building the frame (the ECEF origin and the
+ * ECEF-to-ENU rotation) takes trigonometry, so it is cached and rebuilt only when the device
+ * has moved further than the rebuild distance from the origin. In between, the device and target
+ * positions are converted with a matrix-vector multiply. The tilt of a stale frame is
+ * distance / earth radius, about 0.01 degree per kilometre.
+ * <p>
+ * All the math is done in double precision. The ENU results are small numbers around the
+ * device, so they can be handed over as floats without losing precision at kilometre ranges.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class GeodeticFrame {
+
+    /** WGS84 semi-major axis, m */
+    private static final double WGS84_A = 6378137.0;
+    /** WGS84 first eccentricity squared */
+    private static final double WGS84_E2 = 6.69437999014e-3;
+
+    public static final double DEFAULT_REBUILD_DISTANCE_M = 1000;
+
+    private double mRebuildDistance2 = DEFAULT_REBUILD_DISTANCE_M * DEFAULT_REBUILD_DISTANCE_M;
+
+    private boolean hasReference;
+    private final double[] mOrigin = new double[3];
+    private final double[] mRotation = new double[9];
+    private long mRebuildCount;
+
+    private final double[] mSelfEcef = new double[3];
+    private final double[] mEcef = new double[3];
+
+    /**
+     * @param meters the frame is rebuilt when the device gets further than this from the origin
+     */
+    public void setRebuildDistance(double meters) {
+        if (!(meters > 0)) {
+            throw new IllegalArgumentException("Rebuild distance must be positive - "+meters);
+        }
+        mRebuildDistance2 = meters * meters;
+    }
+
+    public boolean hasReference() {
+        return hasReference;
+    }
+
+    /**
+     * @return number of times the frame has been (re-)built
+     */
+    public long getRebuildCount() {
+        return mRebuildCount;
+    }
+
+    /**
+     * Update the device location
+     * @param latitude degrees
+     * @param longitude degrees
+     * @param altitude meters above the ellipsoid
+     * @return true if the frame has been rebuilt. All previously converted positions are
+     * invalid then and must be converted again.
+     */
+    public boolean setSelf(double latitude, double longitude, double altitude) {
+        geodeticToEcef(latitude, longitude, altitude, mSelfEcef);
+        if (hasReference) {
+            final double dx = mSelfEcef[0] - mOrigin[0];
+            final double dy = mSelfEcef[1] - mOrigin[1];
+            final double dz = mSelfEcef[2] - mOrigin[2];
+            if (dx*dx + dy*dy + dz*dz <= mRebuildDistance2) {
+                return false;
+            }
+        }
+        build(latitude, longitude);
+        return true;
+    }
+
+    private void build(double latitude, double longitude) {
+        final double phi = Math.toRadians(latitude);
+        final double lambda = Math.toRadians(longitude);
+        final double sinPhi = Math.sin(phi), cosPhi = Math.cos(phi);
+        final double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+        final double[] R = mRotation;
+        // East
+        R[0] = -sinLambda;
+        R[1] = cosLambda;
+        R[2] = 0;
+        // North
+        R[3] = -sinPhi * cosLambda;
+        R[4] = -sinPhi * sinLambda;
+        R[5] = cosPhi;
+        // Up
+        R[6] = cosPhi * cosLambda;
+        R[7] = cosPhi * sinLambda;
+        R[8] = sinPhi;
+        System.arraycopy(mSelfEcef, 0, mOrigin, 0, 3);
+        hasReference = true;
+        mRebuildCount ++;
+    }
+
+    /**
+     * @param out destination for the device location in the frame (x, y, z), m
+     */
+    public void getSelfEnu(float[] out) {
+        ecefToEnu(mSelfEcef, out);
+    }
+
+    /**
+     * Convert a geodetic position into the frame. The frame must have a reference (see
+     * {@link #setSelf(double, double, double)}).
+     * @param out destination (x, y, z), m
+     */
+    public void toEnu(double latitude, double longitude, double altitude, float[] out) {
+        geodeticToEcef(latitude, longitude, altitude, mEcef);
+        ecefToEnu(mEcef, out);
+    }
+
+    /**
+     * Convert an ECEF position into the frame, a matrix-vector multiply
+     * @param out destination (x, y, z), m
+     */
+    public void ecefToEnu(double[] ecef, float[] out) {
+        if (!hasReference) {
+            throw new IllegalStateException("Device location has not been set yet");
+        }
+        final double dx = ecef[0] - mOrigin[0];
+        final double dy = ecef[1] - mOrigin[1];
+        final double dz = ecef[2] - mOrigin[2];
+        final double[] R = mRotation;
+        out[0] = (float)(R[0]*dx + R[1]*dy + R[2]*dz);
+        out[1] = (float)(R[3]*dx + R[4]*dy + R[5]*dz);
+        out[2] = (float)(R[6]*dx + R[7]*dy + R[8]*dz);
+    }
+
+    /**
+     * WGS84 geodetic to Earth-Centered Earth-Fixed coordinates
+     * @param latitude degrees
+     * @param longitude degrees
+     * @param altitude meters above the ellipsoid
+     * @param out destination (x, y, z), m
+     */
+    public static void geodeticToEcef(double latitude, double longitude, double altitude, double[] out) {
+        final double phi = Math.toRadians(latitude);
+        final double lambda = Math.toRadians(longitude);
+        final double sinPhi = Math.sin(phi), cosPhi = Math.cos(phi);
+        final double N = WGS84_A / Math.sqrt(1 - WGS84_E2 * sinPhi * sinPhi);
+        out[0] = (N + altitude) * cosPhi * Math.cos(lambda);
+        out[1] = (N + altitude) * cosPhi * Math.sin(lambda);
+        out[2] = (N * (1 - WGS84_E2) + altitude) * sinPhi;
+    }
+}
@@ -0,0 +1,231 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Gyroscope-driven orientation filter with accelerometer/magnetometer correction.
+ * <p>
+ * This is a nonlinear complementary filter on the unit quaternion (Mahony et al.): the
+ * orientation is propagated by integrating the gyroscope rates at the gyroscope rate,
+ * and the drift is pulled back towards the accelerometer "up" and magnetometer "north"
+ * directions by a proportional-integral feedback. The integral term is an online estimate
+ * of the gyroscope bias.
+ * <pre>
+ *     e = up_meas x up_est + magWeight * (north_meas x north_est)     (device frame)
+ *     b += -kI * e * dt
+ *     w' = w_gyro - b + kP * e
+ *     q += 0.5 * q * (0, w') * dt
+ * </pre>
+ * The quaternion (w, x, y, z) rotates device coordinates into world coordinates, the same
+ * convention as in {@link QuaternionMath}. World frame is Android's: X east, Y north, Z up.
+ * <p>
+ * Instances are not thread-safe and allocate nothing after construction.
+ */
+public class GyroFusionFilter {
+
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    private static final float STANDARD_GRAVITY = 9.80665f;
+
+    /** Gyroscope samples further apart than this are not integrated (sensor gap) */
+    private static final float MAX_INTEGRATION_STEP_S = 0.1f;
+
+    private float mKp = 1.0f;
+    private float mKi = 0.05f;
+    private float mMagWeight = 0.3f;
+    // Scale of mMagWeight, 0 while the magnetic field is disturbed
+    private float mMagTrust = 1;
+
+    /** Relative deviation of |accel| from 1g above which the accelerometer is not trusted */
+    private float mAccelRejectThreshold = 0.15f;
+
+    private final float[] mQ = new float[]{1, 0, 0, 0};
+    private final float[] mBias = new float[3];
+    private long mLastGyroTimestamp;
+    private boolean initialized;
+
+    // Scratch
+    private final float[] mInitMatrix = new float[9];
+
+    /**
+     * @param kp proportional gain of the correction (rad/s per unit of error)
+     * @param ki integral gain, i.e. how fast the gyroscope bias estimate follows the error
+     * @param magWeight weight of the heading (magnetometer) error relative to the tilt
+     *                  (accelerometer) error, 0 disables the heading correction
+     */
+    public void setGains(float kp, float ki, float magWeight) {
+        mKp = kp;
+        mKi = ki;
+        mMagWeight = magWeight;
+    }
+
+    /**
+     * @param trust scale of the heading correction weight, 0..1. 0 - the heading is propagated by
+     *              the gyroscope only, e.g. while the magnetic field is disturbed (see
+     *              {@link MagneticDisturbanceDetector#getWeight()}).
+     */
+    public void setMagnetTrust(float trust) {
+        mMagTrust = (trust > 1) ? 1 : ((trust > 0) ? trust : 0);
+    }
+
+    public float getMagnetTrust() {
+        return mMagTrust;
+    }
+
+    public void setAccelRejectThreshold(float relativeDeviation) {
+        mAccelRejectThreshold = relativeDeviation;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public void reset() {
+        initialized = false;
+        mLastGyroTimestamp = 0;
+        mQ[0] = 1;
+        mQ[1] = mQ[2] = mQ[3] = 0;
+    }
+
+    /**
+     * Initialize the orientation from an accelerometer/magnetometer pair. Does nothing if the
+     * pair does not define an orientation (free fall, field parallel to gravity).
+     * @return true if the filter has been initialized
+     */
+    public boolean initialize(float[] accel, float[] magnet) {
+        if (RotationMath.getRotationMatrix(mInitMatrix, accel, magnet)) {
+            QuaternionMath.fromRotationMatrix(mQ, mInitMatrix);
+            initialized = true;
+            mLastGyroTimestamp = 0;
+        }
+        return initialized;
+    }
+
+    /**
+     * Initialize the orientation from another source, e.g. the rotation vector when the
+     * magnetometer cannot be trusted.
+     * @param q orientation (w, x, y, z)
+     */
+    public void initializeFromQuaternion(float[] q) {
+        System.arraycopy(q, 0, mQ, 0, 4);
+        QuaternionMath.normalize(mQ);
+        initialized = true;
+        mLastGyroTimestamp = 0;
+    }
+
+    /**
+     * @return timestamp of the latest gyroscope sample, 0 if none since the initialization
+     */
+    public long getTimestamp() {
+        return mLastGyroTimestamp;
+    }
+
+    /**
+     * Propagate the orientation with one gyroscope sample and apply the correction.
+     *
+     * @param timestamp gyroscope sample timestamp, ns
+     * @param gyro angular rates around device x, y, z (rad/s)
+     * @param accel latest accelerometer sample or null to skip the correction
+     * @param magnet latest magnetometer sample or null to skip the heading correction
+     * @return false if the filter is not initialized yet, or this is the first gyroscope sample
+     */
+    public boolean update(long timestamp, float[] gyro, float[] accel, float[] magnet) {
+        if (!initialized) {
+            return false;
+        }
+        final long prevTimestamp = mLastGyroTimestamp;
+        mLastGyroTimestamp = timestamp;
+        if (prevTimestamp == 0) {
+            return false;
+        }
+        final float dt = (timestamp - prevTimestamp) * NS2S;
+        if (dt <= 0 || dt > MAX_INTEGRATION_STEP_S) {
+            return false;
+        }
+
+        final float[] q = mQ;
+        final float qw = q[0], qx = q[1], qy = q[2], qz = q[3];
+
+        //----  Error between measured and estimated reference directions (device frame)  ----
+        float ex = 0, ey = 0, ez = 0;
+        if (accel != null) {
+            final float ax = accel[0], ay = accel[1], az = accel[2];
+            final float aNorm = (float)Math.sqrt(ax*ax + ay*ay + az*az);
+            if (Math.abs(aNorm - STANDARD_GRAVITY) <= mAccelRejectThreshold * STANDARD_GRAVITY) {
+                final float inv = 1f / aNorm;
+                final float ux = ax*inv, uy = ay*inv, uz = az*inv;
+
+                // Estimated "up" in the device frame - 3rd row of the rotation matrix
+                final float vx = 2*(qx*qz - qw*qy);
+                final float vy = 2*(qy*qz + qw*qx);
+                final float vz = 1 - 2*(qx*qx + qy*qy);
+
+                ex += uy*vz - uz*vy;
+                ey += uz*vx - ux*vz;
+                ez += ux*vy - uy*vx;
+
+                final float magWeight = mMagWeight * mMagTrust;
+                if (magnet != null && magWeight > 0) {
+                    // Measured horizontal "north" = up x (magnet x up), same as getRotationMatrix()
+                    final float mx = magnet[0], my = magnet[1], mz = magnet[2];
+                    final float hx = my*uz - mz*uy;
+                    final float hy = mz*ux - mx*uz;
+                    final float hz = mx*uy - my*ux;
+                    float nx = uy*hz - uz*hy;
+                    float ny = uz*hx - ux*hz;
+                    float nz = ux*hy - uy*hx;
+                    final float nNorm = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+                    if (nNorm > 0.1f) {
+                        final float invN = 1f / nNorm;
+                        nx *= invN;
+                        ny *= invN;
+                        nz *= invN;
+
+                        // Estimated "north" in the device frame - 2nd row of the rotation matrix
+                        final float wx = 2*(qx*qy + qw*qz);
+                        final float wy = 1 - 2*(qx*qx + qz*qz);
+                        final float wz = 2*(qy*qz - qw*qx);
+
+                        ex += magWeight * (ny*wz - nz*wy);
+                        ey += magWeight * (nz*wx - nx*wz);
+                        ez += magWeight * (nx*wy - ny*wx);
+                    }
+                }
+            }
+        }
+
+        //----  PI feedback  ----
+        if (mKi > 0) {
+            mBias[0] -= mKi * ex * dt;
+            mBias[1] -= mKi * ey * dt;
+            mBias[2] -= mKi * ez * dt;
+        }
+        final float gx = gyro[0] - mBias[0] + mKp * ex;
+        final float gy = gyro[1] - mBias[1] + mKp * ey;
+        final float gz = gyro[2] - mBias[2] + mKp * ez;
+
+        //----  Integrate q' = 0.5 * q * (0, w)  ----
+        final float h = 0.5f * dt;
+        q[0] = qw + h * (-qx*gx - qy*gy - qz*gz);
+        q[1] = qx + h * ( qw*gx + qy*gz - qz*gy);
+        q[2] = qy + h * ( qw*gy - qx*gz + qz*gx);
+        q[3] = qz + h * ( qw*gz + qx*gy - qy*gx);
+        QuaternionMath.normalize(q);
+        return true;
+    }
+
+    /**
+     * @return current orientation (w, x, y, z). The array is owned by the filter, do not modify.
+     */
+    public float[] getQuaternion() {
+        return mQ;
+    }
+
+    /**
+     * @param out destination for the current gyroscope bias estimate (x, y, z), rad/s
+     */
+    public void getGyroBias(float[] out) {
+        System.arraycopy(mBias, 0, out, 0, 3);
+    }
+
+    public void setGyroBias(float[] bias) {
+        System.arraycopy(bias, 0, mBias, 0, 3);
+    }
+}
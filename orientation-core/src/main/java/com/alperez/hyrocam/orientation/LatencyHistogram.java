@@ -0,0 +1,195 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * HDR-style histogram of latencies in nanoseconds, cheap enough to stay on in production.
+ * <p>
+ * Buckets are log-linear: values below 64 ns have a bucket each, every next power-of-two range
+ * is split into 32 equal buckets. So any recorded value is known with a relative error below
+ * 1/32 (3%) over the whole range of 0 .. {@link #MAX_VALUE_NS} (~36 minutes), with 1184 int counters.
+ * Recording is an index calculation from the position of the highest bit plus an array increment,
+ * a few ns, and allocates nothing.
+ * <pre>
+ *     v &lt; 64:   index = v
+ *     v &gt;= 64:  shift = msb(v) - 5, index = shift * 32 + (v &gt;&gt;&gt; shift)     (v &gt;&gt;&gt; shift in [32, 64))
+ * </pre>
+ * Each histogram must be recorded by one thread. Any thread can read it: the counters are ints,
+ * so their reads are atomic, but a snapshot taken while recording is in progress may be off by
+ * the samples recorded meanwhile. Use {@link #copyInto(LatencyHistogram)} to take a consistent
+ * copy for the percentile queries.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 35;
+
+    /** Bigger values are recorded as this one */
+    public static final long MAX_VALUE_NS = (1L << (MAX_SHIFT + SUB_BUCKET_BITS + 1)) - 1;
+
+    public static final int BUCKETS_COUNT = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final int[] mCounts = new int[BUCKETS_COUNT];
+    private volatile long mMaxNs;
+
+    /**
+     * Record one value. Negative values are recorded as 0.
+     */
+    public void record(long valueNs) {
+        mCounts[indexOf(valueNs)] ++;
+        if (valueNs > mMaxNs) {
+            mMaxNs = valueNs;
+        }
+    }
+
+    /**
+     * Record the same value count times
+     */
+    public void record(long valueNs, int count) {
+        mCounts[indexOf(valueNs)] += count;
+        if (valueNs > mMaxNs) {
+            mMaxNs = valueNs;
+        }
+    }
+
+    static int indexOf(long v) {
+        if (v < 2 * SUB_BUCKETS) {
+            return (v < 0) ? 0 : (int) v;
+        } else if (v > MAX_VALUE_NS) {
+            v = MAX_VALUE_NS;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (v >>> shift);
+    }
+
+    /**
+     * @return the lowest value which falls into the bucket
+     */
+    static long lowestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return the highest value which falls into the bucket
+     */
+    static long highestValueOf(int index) {
+        return (index + 1 < BUCKETS_COUNT) ? (lowestValueOf(index + 1) - 1) : MAX_VALUE_NS;
+    }
+
+    public void reset() {
+        final int[] c = mCounts;
+        for (int i=0; i<c.length; i++) {
+            c[i] = 0;
+        }
+        mMaxNs = 0;
+    }
+
+    /**
+     * Copy the counters into another histogram, e.g. to query the percentiles of a snapshot
+     * without stopping the recording thread. Nothing is allocated.
+     */
+    public void copyInto(LatencyHistogram dst) {
+        System.arraycopy(mCounts, 0, dst.mCounts, 0, BUCKETS_COUNT);
+        dst.mMaxNs = mMaxNs;
+    }
+
+    /**
+     * Add all the values of another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        final int[] c = mCounts;
+        final int[] o = other.mCounts;
+        for (int i=0; i<BUCKETS_COUNT; i++) {
+            c[i] += o[i];
+        }
+        if (other.mMaxNs > mMaxNs) {
+            mMaxNs = other.mMaxNs;
+        }
+    }
+
+    public long getCount() {
+        final int[] c = mCounts;
+        long n = 0;
+        for (int i=0; i<BUCKETS_COUNT; i++) {
+            n += c[i];
+        }
+        return n;
+    }
+
+    /**
+     * @return the exact maximum recorded value, 0 if empty
+     */
+    public long getMaxNs() {
+        return mMaxNs;
+    }
+
+    /**
+     * @return mean of the recorded values, each taken as the middle of its bucket
+     */
+    public long getMeanNs() {
+        final int[] c = mCounts;
+        long n = 0;
+        double sum = 0;
+        for (int i=0; i<BUCKETS_COUNT; i++) {
+            if (c[i] != 0) {
+                n += c[i];
+                sum += (double) c[i] * ((lowestValueOf(i) + highestValueOf(i)) / 2);
+            }
+        }
+        return (n > 0) ? (long) (sum / n) : 0;
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return the highest value of the bucket the percentile falls into (so the real value is
+     * not greater than the result), 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be in 0..100 - "+percentile);
+        }
+        final long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        final int[] c = mCounts;
+        long n = 0;
+        for (int i=0; i<BUCKETS_COUNT; i++) {
+            n += c[i];
+            if (n >= rank) {
+                return Math.min(highestValueOf(i), mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+
+    /**
+     * Short one-line summary: count, p50, p90, p99, p99.9 and max in microseconds.
+     */
+    public void appendSummary(StringBuilder sb) {
+        sb.append("n=").append(getCount());
+        appendUs(sb, " p50=", getValueAtPercentile(50));
+        appendUs(sb, " p90=", getValueAtPercentile(90));
+        appendUs(sb, " p99=", getValueAtPercentile(99));
+        appendUs(sb, " p99.9=", getValueAtPercentile(99.9));
+        appendUs(sb, " max=", getMaxNs());
+        sb.append("us");
+    }
+
+    private static void appendUs(StringBuilder sb, String label, long ns) {
+        sb.append(label);
+        final long tenths = (ns + 50) / 100;
+        sb.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(96);
+        appendSummary(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Running statistics of a latency: count, last, min, max, mean and an exponential moving
+ * average which follows the recent values.
+ * <p>
+ * Thread-safe: values are recorded by one thread and can be read from any other.
+ * Nothing is allocated.
+ */
+public class LatencyStats {
+
+    private static final double EMA_ALPHA = 0.05;
+
+    private long mCount;
+    private long mLastNs;
+    private long mMinNs = Long.MAX_VALUE;
+    private long mMaxNs = Long.MIN_VALUE;
+    private long mSumNs;
+    private double mEmaNs;
+
+    public synchronized void record(long latencyNs) {
+        mLastNs = latencyNs;
+        if (latencyNs < mMinNs) mMinNs = latencyNs;
+        if (latencyNs > mMaxNs) mMaxNs = latencyNs;
+        mSumNs += latencyNs;
+        mEmaNs = (mCount == 0) ? latencyNs : (mEmaNs + EMA_ALPHA * (latencyNs - mEmaNs));
+        mCount ++;
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mLastNs = 0;
+        mMinNs = Long.MAX_VALUE;
+        mMaxNs = Long.MIN_VALUE;
+        mSumNs = 0;
+        mEmaNs = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getLastNs() {
+        return mLastNs;
+    }
+
+    /**
+     * @return minimum or 0 if nothing has been recorded
+     */
+    public synchronized long getMinNs() {
+        return (mCount > 0) ? mMinNs : 0;
+    }
+
+    /**
+     * @return maximum or 0 if nothing has been recorded
+     */
+    public synchronized long getMaxNs() {
+        return (mCount > 0) ? mMaxNs : 0;
+    }
+
+    public synchronized long getMeanNs() {
+        return (mCount > 0) ? (mSumNs / mCount) : 0;
+    }
+
+    /**
+     * @return exponential moving average of the recent values
+     */
+    public synchronized long getRecentNs() {
+        return (long) mEmaNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d last=%.2fms mean=%.2fms recent=%.2fms min=%.2fms max=%.2fms",
+                mCount, mLastNs / 1e6, getMeanNs() / 1e6, mEmaNs / 1e6, getMinNs() / 1e6, getMaxNs() / 1e6);
+    }
+}
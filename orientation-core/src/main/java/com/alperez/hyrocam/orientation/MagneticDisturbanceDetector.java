@@ -0,0 +1,319 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Detects a magnetic field disturbed by nearby motors, magnets or steel, so the magnetometer is
+ * not trusted for the heading while it lasts.
+ * <p>
+ * The undisturbed Earth field has a known strength and dip (inclination) angle at a place. Both
+ * are measured from each magnetometer sample - the dip against the gravity direction of the
+ * latest accelerometer sample, skipped while the device accelerates - and compared with the
+ * reference:
+ * <pre>
+ *     dip      = asin(-(m . a) / (|m| * |a|))
+ *     severity = max(| |m| - B | / (B * magnitudeTolerance), |dip - dip0| / dipTolerance)
+ * </pre>
+ * The field is disturbed as soon as the severity exceeds 1, and clean again once it has stayed
+ * below {@link #CLEAN_RATIO} for the {@link #setCleanHoldNs(long) hold time}. The magnetometer
+ * weight ({@link #getWeight()}) is 1 below half the tolerance, falls linearly to 0 at the
+ * tolerance and is 0 while disturbed.
+ * <p>
+ * The reference is either set (e.g. from the World Magnetic Model for the current location) or
+ * learned from the first {@link #LEARN_TIME_NS} of samples, provided they are consistent.
+ * <p>
+ * Instances are not thread-safe and allocate nothing.
+ */
+public class MagneticDisturbanceDetector {
+
+    public static final float DEFAULT_MAGNITUDE_TOLERANCE = 0.15f;
+    public static final float DEFAULT_DIP_TOLERANCE = (float) Math.toRadians(8);
+    public static final long DEFAULT_CLEAN_HOLD_NS = 1000000000L;
+
+    /** The field is clean again below this part of the tolerance */
+    public static final float CLEAN_RATIO = 0.7f;
+
+    /** Time the reference is learned over, if it is not set */
+    public static final long LEARN_TIME_NS = 2000000000L;
+
+    private static final float STANDARD_GRAVITY = 9.80665f;
+    /** Relative deviation of |accel| from 1g above which the dip is not measured */
+    private static final float ACCEL_TOLERANCE = 0.15f;
+
+    private float mMagnitudeTolerance = DEFAULT_MAGNITUDE_TOLERANCE;
+    private float mDipTolerance = DEFAULT_DIP_TOLERANCE;
+    private long mCleanHoldNs = DEFAULT_CLEAN_HOLD_NS;
+
+    //--- Reference ---
+    private boolean hasReference;
+    private boolean hasReferenceDip;
+    private boolean referenceLearned;
+    private float mRefMagnitude;
+    private float mRefDip;
+
+    //--- Learning of the reference ---
+    private long mLearnStart;
+    private int mLearnCount;
+    private int mLearnDipCount;
+    private double mLearnMagnitudeSum;
+    private double mLearnDipSum;
+    private float mLearnMin;
+    private float mLearnMax;
+
+    //--- Current state ---
+    private float mMagnitude;
+    private float mDip;
+    private boolean hasDip;
+    private float mSeverity;
+    private float mWeight = 1;
+    private boolean disturbed;
+    private long mCleanSince;
+    private long mDisturbedSince;
+    private long mLastTimestamp;
+    private int mDisturbedCount;
+    private long mDisturbedTimeNs;
+
+    /**
+     * @param magnitudeTolerance allowed relative deviation of the field strength, e.g. 0.15
+     * @param dipTolerance allowed deviation of the dip angle, rad
+     */
+    public void setTolerances(float magnitudeTolerance, float dipTolerance) {
+        if (!(magnitudeTolerance > 0)) {
+            throw new IllegalArgumentException("Magnitude tolerance must be positive - "+magnitudeTolerance);
+        } else if (!(dipTolerance > 0)) {
+            throw new IllegalArgumentException("Dip tolerance must be positive - "+dipTolerance);
+        }
+        mMagnitudeTolerance = magnitudeTolerance;
+        mDipTolerance = dipTolerance;
+    }
+
+    /**
+     * @param holdNs how long the field must stay clean before the magnetometer is trusted again
+     */
+    public void setCleanHoldNs(long holdNs) {
+        if (holdNs < 0) {
+            throw new IllegalArgumentException("Hold time must not be negative - "+holdNs);
+        }
+        mCleanHoldNs = holdNs;
+    }
+
+    /**
+     * Set the undisturbed field of the place.
+     * @param magnitude field strength, uT
+     * @param dip inclination of the field below the horizon, rad (positive in the northern hemisphere)
+     */
+    public void setReference(float magnitude, float dip) {
+        if (!(magnitude > 0)) {
+            throw new IllegalArgumentException("Magnitude must be positive - "+magnitude);
+        }
+        mRefMagnitude = magnitude;
+        mRefDip = dip;
+        hasReference = true;
+        hasReferenceDip = true;
+        referenceLearned = false;
+    }
+
+    /**
+     * Forget the reference and learn it again from the next samples.
+     */
+    public void resetReference() {
+        hasReference = false;
+        hasReferenceDip = false;
+        mLearnCount = 0;
+    }
+
+    public boolean hasReference() {
+        return hasReference;
+    }
+
+    /**
+     * @return true if the reference has been learned from the samples rather than set
+     */
+    public boolean isReferenceLearned() {
+        return hasReference && referenceLearned;
+    }
+
+    public float getReferenceMagnitude() {
+        return mRefMagnitude;
+    }
+
+    public float getReferenceDip() {
+        return mRefDip;
+    }
+
+    /**
+     * Forget the state (not the reference), e.g. after the sensors have been stopped.
+     */
+    public void reset() {
+        disturbed = false;
+        mWeight = 1;
+        mSeverity = 0;
+        hasDip = false;
+        mCleanSince = 0;
+        mLastTimestamp = 0;
+        if (!hasReference) {
+            mLearnCount = 0;
+        }
+    }
+
+    /**
+     * Check one magnetometer sample.
+     * @param timestamp sample time, ns
+     * @param magnet field in the device frame, uT
+     * @param accel latest accelerometer sample, null - unknown (the dip is not checked)
+     * @return true if the disturbed state has changed
+     */
+    public boolean update(long timestamp, float[] magnet, float[] accel) {
+        final float mx = magnet[0], my = magnet[1], mz = magnet[2];
+        final float m = (float) Math.sqrt(mx*mx + my*my + mz*mz);
+        mMagnitude = m;
+        hasDip = false;
+        if (accel != null && m > 0) {
+            final float ax = accel[0], ay = accel[1], az = accel[2];
+            final float a = (float) Math.sqrt(ax*ax + ay*ay + az*az);
+            if (Math.abs(a - STANDARD_GRAVITY) <= ACCEL_TOLERANCE * STANDARD_GRAVITY) {
+                float s = -(mx*ax + my*ay + mz*az) / (m * a);
+                s = (s > 1) ? 1 : ((s < -1) ? -1 : s);
+                mDip = (float) Math.asin(s);
+                hasDip = true;
+            }
+        }
+        if (disturbed && mLastTimestamp != 0 && timestamp > mLastTimestamp) {
+            mDisturbedTimeNs += timestamp - mLastTimestamp;
+        }
+        mLastTimestamp = timestamp;
+
+        if (!hasReference) {
+            learn(timestamp);
+            return false;
+        }
+
+        //----  Severity: deviation from the reference in the units of the tolerances  ----
+        float severity = Math.abs(m - mRefMagnitude) / (mRefMagnitude * mMagnitudeTolerance);
+        if (hasDip && hasReferenceDip) {
+            final float dipSeverity = Math.abs(mDip - mRefDip) / mDipTolerance;
+            if (dipSeverity > severity) {
+                severity = dipSeverity;
+            }
+        }
+        mSeverity = severity;
+
+        boolean changed = false;
+        if (!disturbed) {
+            if (severity > 1) {
+                disturbed = true;
+                mDisturbedSince = timestamp;
+                mDisturbedCount ++;
+                changed = true;
+            }
+        } else if (severity < CLEAN_RATIO) {
+            if (mCleanSince == 0) {
+                mCleanSince = timestamp;
+            }
+            if (timestamp - mCleanSince >= mCleanHoldNs) {
+                disturbed = false;
+                changed = true;
+            }
+        } else {
+            mCleanSince = 0;
+        }
+        if (changed) {
+            mCleanSince = 0;
+        }
+
+        if (disturbed) {
+            mWeight = 0;
+        } else {
+            final float w = 2 * (1 - severity);
+            mWeight = (w > 1) ? 1 : ((w < 0) ? 0 : w);
+        }
+        return changed;
+    }
+
+    private void learn(long timestamp) {
+        final float m = mMagnitude;
+        if (mLearnCount == 0) {
+            mLearnStart = timestamp;
+            mLearnMagnitudeSum = 0;
+            mLearnDipSum = 0;
+            mLearnDipCount = 0;
+            mLearnMin = mLearnMax = m;
+        }
+        mLearnCount ++;
+        mLearnMagnitudeSum += m;
+        if (hasDip) {
+            mLearnDipCount ++;
+            mLearnDipSum += mDip;
+        }
+        if (m < mLearnMin) mLearnMin = m;
+        if (m > mLearnMax) mLearnMax = m;
+
+        if (timestamp - mLearnStart >= LEARN_TIME_NS) {
+            final float mean = (float) (mLearnMagnitudeSum / mLearnCount);
+            if (mean > 0 && (mLearnMax - mLearnMin) <= mMagnitudeTolerance * mean) {
+                mRefMagnitude = mean;
+                hasReference = true;
+                referenceLearned = true;
+                hasReferenceDip = mLearnDipCount > 0;
+                mRefDip = hasReferenceDip ? (float) (mLearnDipSum / mLearnDipCount) : 0;
+            } else {
+                // Not consistent - the field is not clean yet, try again
+                mLearnCount = 0;
+            }
+        }
+    }
+
+    /**
+     * @return true while the magnetometer should not be used for the heading
+     */
+    public boolean isDisturbed() {
+        return disturbed;
+    }
+
+    /**
+     * @return trust in the magnetometer, 0..1
+     */
+    public float getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return deviation of the latest sample from the reference in units of the tolerance
+     */
+    public float getSeverity() {
+        return mSeverity;
+    }
+
+    /**
+     * @return field strength of the latest sample, uT
+     */
+    public float getMagnitude() {
+        return mMagnitude;
+    }
+
+    /**
+     * @return dip angle of the latest sample, rad. NaN if it could not be measured.
+     */
+    public float getDip() {
+        return hasDip ? mDip : Float.NaN;
+    }
+
+    /**
+     * @return start of the current disturbed interval. Undefined if not disturbed.
+     */
+    public long getDisturbedSince() {
+        return mDisturbedSince;
+    }
+
+    /**
+     * @return number of the disturbed intervals so far
+     */
+    public int getDisturbedCount() {
+        return mDisturbedCount;
+    }
+
+    /**
+     * @return total time spent disturbed, ns
+     */
+    public long getDisturbedTimeNs() {
+        return mDisturbedTimeNs;
+    }
+}
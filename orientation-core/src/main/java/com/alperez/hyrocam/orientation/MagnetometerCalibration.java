@@ -0,0 +1,91 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Hard-iron and soft-iron correction of the magnetometer:
+ * <pre>
+ *     m_cal = S * (m - b)
+ * </pre>
+ * where b is the hard-iron offset (fields of magnetized parts of the device, uT) and S is the
+ * soft-iron matrix (distortion of the Earth field by the ferrous parts), row-major 3x3.
+ * Identity by default. Instances are not thread-safe and allocate nothing.
+ */
+public class MagnetometerCalibration {
+
+    private final float[] mOffset = new float[3];
+    private final float[] mSoftIron = new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private boolean identity = true;
+
+    public void setIdentity() {
+        for (int i=0; i<9; i++) {
+            mSoftIron[i] = (i % 4 == 0) ? 1 : 0;
+        }
+        mOffset[0] = mOffset[1] = mOffset[2] = 0;
+        identity = true;
+    }
+
+    /**
+     * @param offset hard-iron offset (x, y, z), uT
+     * @param softIron soft-iron matrix, row-major 3x3
+     */
+    public void set(float[] offset, float[] softIron) {
+        System.arraycopy(offset, 0, mOffset, 0, 3);
+        System.arraycopy(softIron, 0, mSoftIron, 0, 9);
+        identity = false;
+    }
+
+    public void copyFrom(MagnetometerCalibration other) {
+        System.arraycopy(other.mOffset, 0, mOffset, 0, 3);
+        System.arraycopy(other.mSoftIron, 0, mSoftIron, 0, 9);
+        identity = other.identity;
+    }
+
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    /**
+     * @param maxOffset allowed difference of the offsets per axis, uT
+     * @param maxScale allowed difference of the soft-iron elements
+     */
+    public boolean isCloseTo(MagnetometerCalibration other, float maxOffset, float maxScale) {
+        for (int i=0; i<3; i++) {
+            if (Math.abs(mOffset[i] - other.mOffset[i]) > maxOffset) {
+                return false;
+            }
+        }
+        for (int i=0; i<9; i++) {
+            if (Math.abs(mSoftIron[i] - other.mSoftIron[i]) > maxScale) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void getOffset(float[] out) {
+        System.arraycopy(mOffset, 0, out, 0, 3);
+    }
+
+    public void getSoftIron(float[] out) {
+        System.arraycopy(mSoftIron, 0, out, 0, 9);
+    }
+
+    /**
+     * @param in raw sample (x, y, z)
+     * @param out destination for the corrected sample, can be the same array
+     */
+    public void apply(float[] in, float[] out) {
+        if (identity) {
+            if (out != in) {
+                System.arraycopy(in, 0, out, 0, 3);
+            }
+            return;
+        }
+        final float x = in[0] - mOffset[0];
+        final float y = in[1] - mOffset[1];
+        final float z = in[2] - mOffset[2];
+        final float[] s = mSoftIron;
+        out[0] = s[0]*x + s[1]*y + s[2]*z;
+        out[1] = s[3]*x + s[4]*y + s[5]*z;
+        out[2] = s[6]*x + s[7]*y + s[8]*z;
+    }
+}
@@ -0,0 +1,227 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Online estimation of the magnetometer calibration from the samples seen while the device is
+ * turned around. The samples of an undistorted field lie on a sphere; hard iron moves its center,
+ * soft iron stretches it into an ellipsoid. An axis-aligned ellipsoid is fitted by linear least
+ * squares (the x^2 coefficient is fixed to 1, which works wherever the center is):
+ * <pre>
+ *     x^2 + B y^2 + C z^2 + D x + E y + F z + G = 0
+ *     center  b = (-D / 2, -E / 2B, -F / 2C)
+ *     radii   r_x = sqrt(H), r_y = sqrt(H / B), r_z = sqrt(H / C),   H = b_x^2 + B b_y^2 + C b_z^2 - G
+ *     scale   S = diag(r / r_x, r / r_y, r / r_z),   r = cbrt(r_x * r_y * r_z)
+ * </pre>
+ * Only the 6x6 normal equations are accumulated, no samples are stored. A sample is taken only
+ * if its direction differs from the previously taken one by more than ~5 degrees, so holding the
+ * device still does not skew the fit, and a fit is attempted only once the samples surround
+ * their centroid from all the 6 axis directions. The result is accepted if the ellipsoid is
+ * plausible (the radius and the scales in a sane range).
+ * <p>
+ * Instances are not thread-safe and allocate nothing after construction.
+ */
+public class MagnetometerCalibrator {
+
+    /** Samples are divided by this before the accumulation, to keep the equations well conditioned */
+    private static final double UNIT = 50.0;
+    private static final float MIN_DIRECTION_COS = 0.996f; // ~5 deg
+    private static final int MIN_SAMPLES_PER_DIRECTION = 4;
+    private static final int MIN_SAMPLES = 60;
+    private static final float MIN_RADIUS = 15f;
+    private static final float MAX_RADIUS = 90f;
+    private static final float MAX_SCALE_DEVIATION = 0.3f;
+
+    private final double[] mAtA = new double[36];
+    private final double[] mAtb = new double[6];
+    private final int[] mDirectionCounts = new int[6];
+    private int mCount;
+    private final double[] mSum = new double[3];
+    private final float[] mLastTaken = new float[3];
+    private boolean hasLastTaken;
+
+    // Scratch of the solver
+    private final double[] mM = new double[36];
+    private final double[] mX = new double[6];
+    private final double[] mPhi = new double[6];
+
+    private final float[] mOffset = new float[3];
+    private final float[] mSoftIron = new float[9];
+    private float mRadius;
+    private int mFitsCount;
+
+    public void reset() {
+        for (int i=0; i<36; i++) {
+            mAtA[i] = 0;
+        }
+        for (int i=0; i<6; i++) {
+            mAtb[i] = 0;
+            mDirectionCounts[i] = 0;
+        }
+        mSum[0] = mSum[1] = mSum[2] = 0;
+        mCount = 0;
+        hasLastTaken = false;
+    }
+
+    /**
+     * Add one raw (uncalibrated) sample.
+     * @return true if a new calibration has been fitted, see {@link #getCalibration(MagnetometerCalibration)}
+     */
+    public boolean update(float[] raw) {
+        final float x = raw[0], y = raw[1], z = raw[2];
+        final float len = (float) Math.sqrt(x*x + y*y + z*z);
+        if (!(len > 0)) {
+            return false;
+        }
+        if (hasLastTaken) {
+            final float[] l = mLastTaken;
+            if ((x*l[0] + y*l[1] + z*l[2]) / len > MIN_DIRECTION_COS) {
+                return false;
+            }
+        }
+        mLastTaken[0] = x / len;
+        mLastTaken[1] = y / len;
+        mLastTaken[2] = z / len;
+        hasLastTaken = true;
+
+        //----  Accumulate the normal equations  ----
+        final double u = x / UNIT, v = y / UNIT, w = z / UNIT;
+        final double[] phi = mPhi;
+        phi[0] = v*v; phi[1] = w*w; phi[2] = u; phi[3] = v; phi[4] = w; phi[5] = 1;
+        for (int i=0; i<6; i++) {
+            for (int j=0; j<6; j++) {
+                mAtA[i*6 + j] += phi[i] * phi[j];
+            }
+            mAtb[i] -= phi[i] * u*u;
+        }
+        mCount ++;
+
+        //----  Coverage: direction from the centroid, which tends to the center  ----
+        mSum[0] += x;
+        mSum[1] += y;
+        mSum[2] += z;
+        final double dx = x - mSum[0] / mCount, dy = y - mSum[1] / mCount, dz = z - mSum[2] / mCount;
+        final double ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+        final int dir = (ax >= ay && ax >= az) ? ((dx > 0) ? 0 : 1) : ((ay >= az) ? ((dy > 0) ? 2 : 3) : ((dz > 0) ? 4 : 5));
+        mDirectionCounts[dir] ++;
+
+        if (mCount < MIN_SAMPLES || (mCount % 10) != 0) {
+            return false;
+        }
+        for (int c : mDirectionCounts) {
+            if (c < MIN_SAMPLES_PER_DIRECTION) {
+                return false;
+            }
+        }
+        return fit();
+    }
+
+    private boolean fit() {
+        System.arraycopy(mAtA, 0, mM, 0, 36);
+        System.arraycopy(mAtb, 0, mX, 0, 6);
+        if (!solve(mM, mX)) {
+            return false;
+        }
+        final double[] p = mX;
+        final double b = p[0], c = p[1];
+        if (!(b > 0 && c > 0)) {
+            return false;
+        }
+        final double cx = -p[2] / 2, cy = -p[3] / (2*b), cz = -p[4] / (2*c);
+        final double h = cx*cx + b*cy*cy + c*cz*cz - p[5];
+        if (!(h > 0)) {
+            return false;
+        }
+        final double rx = Math.sqrt(h), ry = Math.sqrt(h / b), rz = Math.sqrt(h / c);
+        final double r = Math.cbrt(rx * ry * rz);
+        final float radius = (float) (r * UNIT);
+        final double sx = r / rx, sy = r / ry, sz = r / rz;
+        if (radius < MIN_RADIUS || radius > MAX_RADIUS
+                || Math.abs(sx - 1) > MAX_SCALE_DEVIATION || Math.abs(sy - 1) > MAX_SCALE_DEVIATION || Math.abs(sz - 1) > MAX_SCALE_DEVIATION) {
+            return false;
+        }
+        mOffset[0] = (float) (cx * UNIT);
+        mOffset[1] = (float) (cy * UNIT);
+        mOffset[2] = (float) (cz * UNIT);
+        for (int i=0; i<9; i++) {
+            mSoftIron[i] = 0;
+        }
+        mSoftIron[0] = (float) sx;
+        mSoftIron[4] = (float) sy;
+        mSoftIron[8] = (float) sz;
+        mRadius = radius;
+        mFitsCount ++;
+        return true;
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting, in place.
+     * @param m 6x6 matrix, destroyed
+     * @param x right-hand side, replaced by the solution
+     * @return false if the matrix is singular
+     */
+    private static boolean solve(double[] m, double[] x) {
+        final int n = 6;
+        for (int col=0; col<n; col++) {
+            int pivot = col;
+            for (int r=col+1; r<n; r++) {
+                if (Math.abs(m[r*n + col]) > Math.abs(m[pivot*n + col])) {
+                    pivot = r;
+                }
+            }
+            if (Math.abs(m[pivot*n + col]) < 1e-12) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int k=0; k<n; k++) {
+                    final double t = m[col*n + k];
+                    m[col*n + k] = m[pivot*n + k];
+                    m[pivot*n + k] = t;
+                }
+                final double t = x[col];
+                x[col] = x[pivot];
+                x[pivot] = t;
+            }
+            for (int r=col+1; r<n; r++) {
+                final double f = m[r*n + col] / m[col*n + col];
+                for (int k=col; k<n; k++) {
+                    m[r*n + k] -= f * m[col*n + k];
+                }
+                x[r] -= f * x[col];
+            }
+        }
+        for (int r=n-1; r>=0; r--) {
+            double s = x[r];
+            for (int k=r+1; k<n; k++) {
+                s -= m[r*n + k] * x[k];
+            }
+            x[r] = s / m[r*n + r];
+        }
+        return true;
+    }
+
+    /**
+     * @param out receives the latest fitted calibration
+     * @return false if nothing has been fitted yet
+     */
+    public boolean getCalibration(MagnetometerCalibration out) {
+        if (mFitsCount == 0) {
+            return false;
+        }
+        out.set(mOffset, mSoftIron);
+        return true;
+    }
+
+    /**
+     * @return radius of the fitted sphere, i.e. the calibrated field strength, uT
+     */
+    public float getRadius() {
+        return mRadius;
+    }
+
+    public int getFitsCount() {
+        return mFitsCount;
+    }
+
+    public int getSamplesCount() {
+        return mCount;
+    }
+}
@@ -0,0 +1,247 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Batch kernel: plane-relative azimuth and inclination of all targets of a {@link TargetSet}
+ * for one device orientation, in one pass.
+ * <p>
+ * The orientation is reduced to the 9 elements of the rotation matrix once per call. Then each
+ * target vector T = target - self is rotated into the device frame (t = R' * T), where the device
+ * plane is z = 0, so
+ * <pre>
+ *     azimuth = atan2(t.y, t.x)
+ *     inclination = asin(|t.z| / |T|)
+ * </pre>
+ * This is the same definition as {@link AnglesCalculator#calculateFromQuaternion(float[])}, also
+ * for rotation matrix input. The loop runs over the primitive coordinate arrays with no
+ * allocation and no per-target method calls other than the trigonometry, which can be done by
+ * the {@link FastMath} approximations ({@link #setFastMath(boolean)}).
+ * <p>
+ * With a field of view set ({@link #setFieldOfView(float, float)}) only the targets inside the
+ * camera view cone are solved. They are found with a {@link TargetGridIndex}, so the cost per call
+ * scales with the number of visible targets rather than the total number.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class MultiTargetSolver {
+
+    /** Default grid cell of the culling index, world units */
+    public static final float DEFAULT_CELL_SIZE = 100f;
+    private static final int INDEX_BUCKETS = 4096;
+
+    private final float[] mSelf = new float[3];
+    private final float[] mR = new float[9];
+
+    //--- View cone culling ---
+    private boolean culling;
+    private float mHalfFov;
+    private float mRange;
+    private TargetGridIndex mIndex;
+    private int[] mVisible = new int[0];
+    private int mLastSolvedCount;
+
+    private boolean fastMath;
+    private long mVersion;
+
+    /**
+     * Set device location (x, y, z)
+     */
+    public void setSelfLocation(float[] location) {
+        if (location != null && location.length >= 3
+                && (location[0] != mSelf[0] || location[1] != mSelf[1] || location[2] != mSelf[2])) {
+            System.arraycopy(location, 0, mSelf, 0, 3);
+            mVersion ++;
+        }
+    }
+
+    /**
+     * @return counter incremented by every change of the settings which affects the results:
+     *         the device location, the field of view, the fast math
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Use the {@link FastMath} approximations, see {@link AnglesCalculator#setFastMath(boolean)}
+     */
+    public void setFastMath(boolean enabled) {
+        if (fastMath != enabled) {
+            fastMath = enabled;
+            mVersion ++;
+        }
+    }
+
+    public boolean isFastMath() {
+        return fastMath;
+    }
+
+    /**
+     * Solve only the targets inside the camera view cone. The camera looks along the negative
+     * device Z axis (the back camera).
+     * @param halfAngle half of the cone opening angle in radians
+     * @param range maximum distance to a target, world units
+     */
+    public void setFieldOfView(float halfAngle, float range) {
+        setFieldOfView(halfAngle, range, DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize grid cell of the culling index, about the typical distance between targets
+     * @see #setFieldOfView(float, float)
+     */
+    public void setFieldOfView(float halfAngle, float range, float cellSize) {
+        if (!(halfAngle > 0) || !(range > 0)) {
+            throw new IllegalArgumentException("Field of view must be positive - "+halfAngle+", "+range);
+        }
+        mHalfFov = halfAngle;
+        mRange = range;
+        if (mIndex == null || mIndex.getCellSize() != cellSize) {
+            mIndex = new TargetGridIndex(cellSize, INDEX_BUCKETS);
+        }
+        culling = true;
+        mVersion ++;
+    }
+
+    /**
+     * Solve all the targets (default)
+     */
+    public void clearFieldOfView() {
+        culling = false;
+        mVersion ++;
+    }
+
+    /**
+     * @return culling index or null if no field of view has been set
+     */
+    public TargetGridIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return number of targets solved by the last call
+     */
+    public int getLastSolvedCount() {
+        return mLastSolvedCount;
+    }
+
+    /**
+     * @param rotMatrix 3x3 rotation matrix (length=9), device to world
+     * @param targets targets to solve
+     * @param out destination, resized to the number of targets
+     */
+    public void solve(float[] rotMatrix, TargetSet targets, TargetAnglesBuffer out) {
+        solveKernel(rotMatrix, targets, out);
+    }
+
+    /**
+     * @param q unit quaternion (w, x, y, z), see {@link QuaternionMath}
+     * @param targets targets to solve
+     * @param out destination, resized to the number of targets
+     */
+    public void solveFromQuaternion(float[] q, TargetSet targets, TargetAnglesBuffer out) {
+        final float w = q[0], x = q[1], y = q[2], z = q[3];
+        final float[] R = mR;
+        R[0] = 1 - 2*(y*y + z*z);
+        R[1] = 2*(x*y - w*z);
+        R[2] = 2*(x*z + w*y);
+        R[3] = 2*(x*y + w*z);
+        R[4] = 1 - 2*(x*x + z*z);
+        R[5] = 2*(y*z - w*x);
+        R[6] = 2*(x*z - w*y);
+        R[7] = 2*(y*z + w*x);
+        R[8] = 1 - 2*(x*x + y*y);
+        solveKernel(R, targets, out);
+    }
+
+    private void solveKernel(float[] R, TargetSet targets, TargetAnglesBuffer out) {
+        if (culling) {
+            solveVisible(R, targets, out);
+            return;
+        }
+        final int n = targets.size();
+        mLastSolvedCount = n;
+        out.setSize(n);
+        System.arraycopy(targets.idArray(), 0, out.getIds(), 0, n);
+
+        final float r0 = R[0], r1 = R[1], r2 = R[2];
+        final float r3 = R[3], r4 = R[4], r5 = R[5];
+        final float r6 = R[6], r7 = R[7], r8 = R[8];
+        final float sx = mSelf[0], sy = mSelf[1], sz = mSelf[2];
+        final float[] X = targets.xArray();
+        final float[] Y = targets.yArray();
+        final float[] Z = targets.zArray();
+        final float[] azimuth = out.getAzimuths();
+        final float[] inclination = out.getInclinations();
+        final boolean fast = fastMath;
+
+        for (int i=0; i<n; i++) {
+            final float tx = X[i] - sx;
+            final float ty = Y[i] - sy;
+            final float tz = Z[i] - sz;
+
+            // Target vector in the device frame (R transposed)
+            final float dx = r0*tx + r3*ty + r6*tz;
+            final float dy = r1*tx + r4*ty + r7*tz;
+            final float dz = r2*tx + r5*ty + r8*tz;
+
+            if (fast) {
+                // As atan2(|dz|, |(dx, dy)|), see AnglesCalculator
+                final float hyp2 = dx*dx + dy*dy;
+                azimuth[i] = FastMath.atan2(dy, dx);
+                inclination[i] = FastMath.atan2(Math.abs(dz), hyp2 * FastMath.invSqrt(hyp2));
+            } else {
+                azimuth[i] = (float)Math.atan2(dy, dx);
+                final float lenT = (float)Math.sqrt(tx*tx + ty*ty + tz*tz);
+                inclination[i] = (lenT > 0) ? (float)Math.asin(Math.min(1f, Math.abs(dz) / lenT)) : 0;
+            }
+        }
+    }
+
+    private void solveVisible(float[] R, TargetSet targets, TargetAnglesBuffer out) {
+        mIndex.refresh(targets);
+        if (mVisible.length < targets.size()) {
+            mVisible = new int[Math.max(targets.size(), mVisible.length * 2)];
+        }
+        // Camera axis = -Z of the device, in the world frame: -(3rd column of R)
+        final int[] visible = mVisible;
+        final int n = mIndex.query(mSelf, -R[2], -R[5], -R[8], mHalfFov, mRange, visible);
+        mLastSolvedCount = n;
+        out.setSize(n);
+
+        final float r0 = R[0], r1 = R[1], r2 = R[2];
+        final float r3 = R[3], r4 = R[4], r5 = R[5];
+        final float r6 = R[6], r7 = R[7], r8 = R[8];
+        final float sx = mSelf[0], sy = mSelf[1], sz = mSelf[2];
+        final float[] X = targets.xArray();
+        final float[] Y = targets.yArray();
+        final float[] Z = targets.zArray();
+        final int[] ids = targets.idArray();
+        final int[] outIds = out.getIds();
+        final float[] azimuth = out.getAzimuths();
+        final float[] inclination = out.getInclinations();
+        final boolean fast = fastMath;
+
+        for (int k=0; k<n; k++) {
+            final int i = visible[k];
+            final float tx = X[i] - sx;
+            final float ty = Y[i] - sy;
+            final float tz = Z[i] - sz;
+
+            final float dx = r0*tx + r3*ty + r6*tz;
+            final float dy = r1*tx + r4*ty + r7*tz;
+            final float dz = r2*tx + r5*ty + r8*tz;
+
+            outIds[k] = ids[i];
+            if (fast) {
+                // As atan2(|dz|, |(dx, dy)|), see AnglesCalculator
+                final float hyp2 = dx*dx + dy*dy;
+                azimuth[k] = FastMath.atan2(dy, dx);
+                inclination[k] = FastMath.atan2(Math.abs(dz), hyp2 * FastMath.invSqrt(hyp2));
+            } else {
+                azimuth[k] = (float)Math.atan2(dy, dx);
+                final float lenT = (float)Math.sqrt(tx*tx + ty*ty + tz*tz);
+                inclination[k] = (lenT > 0) ? (float)Math.asin(Math.min(1f, Math.abs(dz) / lenT)) : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,1205 @@
+package com.alperez.hyrocam.orientation;
+
+import com.alperez.hyrocam.orientation.filter.SampleFilter;
+
+/**
+ * Sensor-samples-to-angles pipeline. This is everything SensorsController does with a sensor
+ * event, minus the Android plumbing: build the rotation matrix for each source, then
+ * calculate the angles and report them to the {@link Output}.
+ * <p>
+ * Timestamps are in nanoseconds, the same time base as {@code SensorEvent.timestamp}.
+ * Instances are not thread-safe: all the on*() methods must be called from one thread.
+ */
+public class OrientationPipeline {
+
+    public interface Output {
+        void onAnglesCalculated(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd);
+    }
+
+    public interface MultiTargetOutput {
+        /**
+         * @param angles angles of all the targets. The buffer is re-used, its content is valid
+         *               only during this call.
+         */
+        void onTargetsCalculated(TargetAnglesBuffer angles);
+    }
+
+    public interface MagneticStateOutput {
+        /**
+         * @param disturbed true - the magnetometer is not used for the heading from now on,
+         *                  false - it is used again
+         * @param magnitude field strength, uT
+         * @param dip dip angle, rad, NaN if unknown
+         */
+        void onMagneticStateChanged(long timestamp, boolean disturbed, float magnitude, float dip);
+    }
+
+    public interface DeadBandOutput {
+        /**
+         * A result of the source has been skipped by the dead-band, i.e. it would be the same as
+         * the previous one (see {@link #setOrientationDeadBand(float)}). Consumers which must be
+         * fed at the sensor rate can repeat the previous result.
+         */
+        void onResultSkipped(SensorSourceType srcType, long timestamp);
+    }
+
+    private final AnglesCalculator mCalculator = new AnglesCalculator();
+    private final Output mOutput;
+
+    /** Default maximum time distance between paired accelerometer and magnetometer values */
+    public static final long DEFAULT_MAX_RAW_ALIGNMENT_NS = 40000000L;
+
+    /**
+     * Default limit of the magnetometer extrapolation ahead of its latest sample: a bit over
+     * the period at 50 Hz, as the accelerometer sample is up to a period newer
+     */
+    public static final long DEFAULT_MAX_RAW_EXTRAPOLATION_NS = 25000000L;
+
+    private static final int MAGNET_HISTORY_SIZE = 16;
+
+    // At least one accel/magnet sample has been received
+    private boolean hasAccel;
+    private boolean hasMagnet;
+
+    //--- RAW source: accelerometer samples paired with the magnetometer value at the same time ---
+    private final SensorSampleHistory mMagnetHistory = new SensorSampleHistory(MAGNET_HISTORY_SIZE);
+    private final float[] mMagnetAligned = new float[3];
+    private long mMaxRawAlignmentNs = DEFAULT_MAX_RAW_ALIGNMENT_NS;
+    private long mRawPairs;
+    private long mRawPairsInterpolated;
+    private long mRawPairsExtrapolated;
+    private long mRawPairsRejected;
+    private long mRawAlignmentErrorSumNs;
+    private long mRawAlignmentErrorMaxNs;
+
+    //--- Input filters, per source and sensor. Index is source.ordinal() * SensorInputType.COUNT + SensorInputType.indexOf() ---
+    private final SampleFilter[] mInputFilters = new SampleFilter[SensorSourceType.values().length * SensorInputType.COUNT];
+    // Filtered inputs of the RAW and the FUSED source, the same as the raw ones without filters
+    private final float[] mRawAccel = new float[3];
+    private final float[] mRawMagnet = new float[3];
+    private final float[] mFusedAccel = new float[3];
+    private final float[] mFusedMagnet = new float[3];
+    private final float[] mFusedGyro = new float[3];
+    // The rotation vector has up to 5 values (the 5-th is the heading accuracy)
+    private final float[] mFilteredRotVect = new float[5];
+
+    //--- Magnetic disturbance. While disturbed, RAW takes the heading from FUSED or ROTATION_VECTOR ---
+    /** Fallback orientation further than this in time from the accelerometer sample is not used */
+    public static final long MAX_HEADING_FALLBACK_AGE_NS = 200000000L;
+    private final MagneticDisturbanceDetector mMagDetector = new MagneticDisturbanceDetector();
+    private boolean magneticDetection = true;
+    private MagneticStateOutput mMagneticOutput;
+    // Latest accelerometer sample as is, for the dip angle
+    private final float[] mAccelRawData = new float[3];
+    private long mRotVectTimestamp;
+    // The latest rotation vector is in mRotVectQuaternion, otherwise in mOrigRotationMatrixRotVect
+    private boolean rotVectIsQuaternion;
+    private final float[] mFallbackQ = new float[4];
+    private final double[] mFallbackNorth = new double[3];
+    private long mRawHeadingFallbacks;
+
+    private final float[] mOrigRotationMatrixAccelMag = new float[9];
+    private final float[] mOrigRotationMatrixRotVect = new float[9];
+    private final float[] mRotVectQuaternion = new float[4];
+
+    private final GyroFusionFilter mFusion = new GyroFusionFilter();
+
+    private boolean useQuaternionEngine = true;
+
+    //--- Magnetometer calibration and the persisted state, see saveState() ---
+    /** A restored orientation further than this from the first accel/magnet pair is replaced */
+    public static final float MAX_FUSION_SEED_ERROR = (float) Math.toRadians(10);
+    private static final float STANDARD_GRAVITY = 9.80665f;
+    // A fitted calibration is adopted if it differs from the current one by more than this
+    private static final float CALIBRATION_OFFSET_STEP = 1f;
+    private static final float CALIBRATION_SCALE_STEP = 0.01f;
+    private final MagnetometerCalibration mMagCalibration = new MagnetometerCalibration();
+    private final MagnetometerCalibration mMagCalibrationFit = new MagnetometerCalibration();
+    private final MagnetometerCalibrator mMagCalibrator = new MagnetometerCalibrator();
+    private boolean onlineMagnetCalibration = true;
+    private final float[] mMagnetCalibrated = new float[3];
+    private long mMagnetCalibrationUpdates;
+    // The orientation of FUSED is checked against the next fresh accel/magnet pair
+    private boolean fusionCheckPending;
+    private boolean fusionCheckAccel;
+    private boolean fusionCheckMagnet;
+    private final GyroFusionFilter mFusionCheck = new GyroFusionFilter();
+    private float mFusionSeedError = Float.NaN;
+    private long mFusionReseeds;
+
+    //--- Multiple targets ---
+    private final MultiTargetSolver mTargetsSolver = new MultiTargetSolver();
+    private final TargetAnglesBuffer mTargetAngles = new TargetAnglesBuffer();
+    private final float[] mTargetsOrientation = new float[9];
+    private TargetSet mTargets;
+    private MultiTargetOutput mTargetsOutput;
+    private SensorSourceType mTargetsSource;
+
+    //--- Orientation prediction, per source. Index is SensorSourceType.ordinal() ---
+    private final OrientationPredictor[] mPredictors = new OrientationPredictor[SensorSourceType.values().length];
+    private final float[] mPredictorQ = new float[4];
+    private boolean predictionEnabled;
+
+    //--- Orientation dead-band, per source. Index is SensorSourceType.ordinal() ---
+    private float mDeadBand;
+    // Thresholds of the squared distance to the reference: 8 sin^2(a/2) between rotation
+    // matrices, 4 sin^2(a/4) between quaternions, where a is the rotation angle between them
+    private float mDeadBandMatrixDist2;
+    private float mDeadBandQuaternionDist2;
+    // Orientation of the latest calculated result: a matrix (9 values) or a quaternion (first 4)
+    private final float[] mDeadBandReference = new float[SensorSourceType.values().length * 9];
+    private final boolean[] deadBandReferenceValid = new boolean[SensorSourceType.values().length];
+    // Versions of the inputs the reference result was calculated with
+    private final long[] mDeadBandLocationsVersion = new long[SensorSourceType.values().length];
+    private final long[] mDeadBandTargetsVersion = new long[SensorSourceType.values().length];
+    private final long[] mDeadBandSolverVersion = new long[SensorSourceType.values().length];
+    private DeadBandOutput mDeadBandOutput;
+
+    //--- Metrics ---
+    private PipelineMetrics mMetrics;
+    // The stages of the current event are timed
+    private boolean timed;
+    private long mStageStartNs;
+
+    public OrientationPipeline(Output output) {
+        if (output == null) {
+            throw new IllegalArgumentException("Output must be provided");
+        }
+        mOutput = output;
+        mMagnetHistory.setMaxExtrapolationNs(DEFAULT_MAX_RAW_EXTRAPOLATION_NS);
+        for (int i=0; i<mPredictors.length; i++) {
+            mPredictors[i] = new OrientationPredictor();
+        }
+    }
+
+    public AnglesCalculator getCalculator() {
+        return mCalculator;
+    }
+
+    public GyroFusionFilter getFusionFilter() {
+        return mFusion;
+    }
+
+    /**
+     * @return solver of the multiple targets, e.g. to set the field of view
+     */
+    public MultiTargetSolver getTargetsSolver() {
+        return mTargetsSolver;
+    }
+
+    /**
+     * Set device location (x, y, z) for both the single target calculator and the multi-target solver
+     */
+    public void setSelfLocation(float[] location) {
+        mCalculator.setSelfLocation(location);
+        mTargetsSolver.setSelfLocation(location);
+    }
+
+    /**
+     * Set the targets tracked in addition to the single target of the calculator. The set is
+     * used by reference and must only be modified from the thread this pipeline runs on.
+     * @param targets targets or null to stop the multi-target calculation
+     */
+    public void setTargets(TargetSet targets) {
+        if (targets != mTargets) {
+            mTargets = targets;
+            resetDeadBand();
+        }
+    }
+
+    /**
+     * @param output receives the angles of all targets for each result of the given source
+     * @param source source which drives the multi-target calculation, null - every source. With
+     *               thousands of targets it is worth selecting only one source.
+     */
+    public void setMultiTargetOutput(MultiTargetOutput output, SensorSourceType source) {
+        mTargetsOutput = output;
+        mTargetsSource = source;
+        resetDeadBand();
+    }
+
+    /**
+     * Feed every calculated orientation into the per-source predictors (see {@link #getPredictor(SensorSourceType)})
+     */
+    public void setPredictionEnabled(boolean enabled) {
+        predictionEnabled = enabled;
+    }
+
+    /**
+     * @return predictor of the orientation of the given source. It can be queried from any thread.
+     */
+    public OrientationPredictor getPredictor(SensorSourceType srcType) {
+        return mPredictors[srcType.ordinal()];
+    }
+
+    /**
+     * @param metrics receives the stage timings and the event counters, null - no metrics
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+        timed = false;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Select how ROTATION_VECTOR samples are processed: directly as quaternions (default)
+     * or through the 3x3 rotation matrix like the RAW source.
+     */
+    public void setQuaternionEngineEnabled(boolean enabled) {
+        if (enabled != useQuaternionEngine) {
+            useQuaternionEngine = enabled;
+            resetDeadBand();
+        }
+    }
+
+    public boolean isQuaternionEngineEnabled() {
+        return useQuaternionEngine;
+    }
+
+    /**
+     * Calculate the angles of the target and of all the tracked targets with the {@link FastMath}
+     * approximations (see {@link AnglesCalculator#setFastMath(boolean)}). Off by default.
+     */
+    public void setFastMath(boolean enabled) {
+        if (enabled != mCalculator.isFastMath()) {
+            mCalculator.setFastMath(enabled);
+            resetDeadBand();
+        }
+        mTargetsSolver.setFastMath(enabled);
+    }
+
+    public boolean isFastMath() {
+        return mCalculator.isFastMath();
+    }
+
+    /**
+     * Skip the orientations which differ from the one of the previous result of their source by
+     * less than the given angle: the angles are not calculated and nothing is reported to the
+     * output and the targets output, only the {@link #setDeadBandOutput(DeadBandOutput) dead-band
+     * output} is told. The predictors are still fed with every orientation, so their angular
+     * velocity stays current. Such changes are below the noise of the sensors anyway, while a
+     * device lying on a table keeps producing them at the full rate.
+     * The change is always measured from the latest calculated result, so a slow rotation is not
+     * lost, it is reported in steps of the dead-band. A change of the locations, the targets or
+     * the settings of the targets solver is always calculated. Skipped events are counted as
+     * {@link PipelineMetrics.Counter#SKIPPED}.
+     * @param angle rotation angle, rad. 0 - no dead-band (default).
+     */
+    public void setOrientationDeadBand(float angle) {
+        if (!(angle >= 0) || angle >= Math.PI) {
+            throw new IllegalArgumentException("Dead-band must be in the range [0..PI) - "+angle);
+        }
+        mDeadBand = angle;
+        final double s2 = Math.sin(angle / 2);
+        final double s4 = Math.sin(angle / 4);
+        mDeadBandMatrixDist2 = (float) (8 * s2*s2);
+        mDeadBandQuaternionDist2 = (float) (4 * s4*s4);
+        resetDeadBand();
+    }
+
+    public float getOrientationDeadBand() {
+        return mDeadBand;
+    }
+
+    /**
+     * @param output receives the results skipped by the dead-band, null - none. In a batch they
+     *               are reported while the batch is collected, before its calculated results.
+     */
+    public void setDeadBandOutput(DeadBandOutput output) {
+        mDeadBandOutput = output;
+    }
+
+    /**
+     * Calculate the next orientation of every source regardless of the dead-band, e.g. after the
+     * sensors have been re-registered, so the outputs get a fresh result.
+     */
+    public void resetDeadBand() {
+        for (int i=0; i<deadBandReferenceValid.length; i++) {
+            deadBandReferenceValid[i] = false;
+        }
+    }
+
+    /**
+     * @param o rotation matrix or unit quaternion (w, x, y, z) at the offset
+     * @param quaternion o is a quaternion
+     * @return true if the orientation and all the inputs of the calculation are within the
+     *         dead-band of the previous result of the source. Otherwise the orientation becomes
+     *         the new reference and false is returned.
+     */
+    private boolean isWithinDeadBand(SensorSourceType srcType, float[] o, int offset, boolean quaternion) {
+        if (mDeadBand == 0) {
+            return false;
+        }
+        final int src = srcType.ordinal();
+        final float[] ref = mDeadBandReference;
+        final int r = src * 9;
+        final long locationsVersion = mCalculator.getLocationsVersion();
+        final long targetsVersion = (mTargets != null) ? mTargets.getVersion() : -1;
+        final long solverVersion = mTargetsSolver.getVersion();
+        if (deadBandReferenceValid[src] && mDeadBandLocationsVersion[src] == locationsVersion
+                && mDeadBandTargetsVersion[src] == targetsVersion && mDeadBandSolverVersion[src] == solverVersion) {
+            //----  Squared distance to the reference, precise for small angles unlike (trace-1)/2 or a dot  ----
+            float d2 = 0;
+            if (quaternion) {
+                // q and -q are the same rotation
+                final float dot = o[offset]*ref[r] + o[offset+1]*ref[r+1] + o[offset+2]*ref[r+2] + o[offset+3]*ref[r+3];
+                final float sign = (dot < 0) ? -1 : 1;
+                for (int i=0; i<4; i++) {
+                    final float d = o[offset + i] - sign*ref[r + i];
+                    d2 += d*d;
+                }
+            } else {
+                for (int i=0; i<9; i++) {
+                    final float d = o[offset + i] - ref[r + i];
+                    d2 += d*d;
+                }
+            }
+            if (d2 <= (quaternion ? mDeadBandQuaternionDist2 : mDeadBandMatrixDist2)) {
+                if (mMetrics != null) {
+                    mMetrics.count(srcType, PipelineMetrics.Counter.SKIPPED);
+                }
+                return true;
+            }
+        }
+        System.arraycopy(o, offset, ref, r, quaternion ? 4 : 9);
+        deadBandReferenceValid[src] = true;
+        mDeadBandLocationsVersion[src] = locationsVersion;
+        mDeadBandTargetsVersion[src] = targetsVersion;
+        mDeadBandSolverVersion[src] = solverVersion;
+        return false;
+    }
+
+    /**
+     * Accelerometer samples which can not be paired with a magnetometer value closer than this
+     * do not produce a RAW result.
+     */
+    public void setMaxRawAlignmentNs(long maxAlignmentNs) {
+        mMaxRawAlignmentNs = maxAlignmentNs;
+    }
+
+    /**
+     * Accelerometer samples newer than the latest magnetometer sample are paired with the
+     * magnetometer value extrapolated from its last two samples, up to this far ahead (and not
+     * further than their interval). 0 - pair with the latest sample as is.
+     */
+    public void setMaxRawExtrapolationNs(long maxExtrapolationNs) {
+        mMagnetHistory.setMaxExtrapolationNs(maxExtrapolationNs);
+    }
+
+    /**
+     * @return number of accelerometer samples paired with a magnetometer value (RAW results)
+     */
+    public long getRawPairsCount() {
+        return mRawPairs;
+    }
+
+    /**
+     * @return number of pairs where the magnetometer value was interpolated exactly at the
+     * accelerometer timestamp (alignment error 0)
+     */
+    public long getRawPairsInterpolatedCount() {
+        return mRawPairsInterpolated;
+    }
+
+    /**
+     * @return number of pairs where the magnetometer value was extrapolated ahead of its latest
+     * sample to the accelerometer timestamp (alignment error 0 as well)
+     */
+    public long getRawPairsExtrapolatedCount() {
+        return mRawPairsExtrapolated;
+    }
+
+    /**
+     * @return number of accelerometer samples dropped because the alignment error was too big
+     */
+    public long getRawPairsRejectedCount() {
+        return mRawPairsRejected;
+    }
+
+    public long getRawAlignmentErrorMaxNs() {
+        return mRawAlignmentErrorMaxNs;
+    }
+
+    public long getRawAlignmentErrorMeanNs() {
+        return (mRawPairs > 0) ? (mRawAlignmentErrorSumNs / mRawPairs) : 0;
+    }
+
+    /**
+     * Filter the samples of an input sensor before they are used by a source. The accelerometer
+     * and the magnetometer feed both the RAW and the FUSED source, each has its own filter, e.g.
+     * the RAW source may need heavy smoothing while the FUSED one is already smoothed by the
+     * fusion. Filters see every sample of their sensor in timestamp order. The rotation vector
+     * is filtered component-wise, which is only suitable for light smoothing.
+     * @param srcType source
+     * @param inputType sensor feeding the source, one of {@link SensorInputType}
+     * @param filter filter or chain of filters (it must not be shared), null - no filtering
+     */
+    public void setInputFilter(SensorSourceType srcType, int inputType, SampleFilter filter) {
+        if (!SensorInputType.isInputOf(inputType, srcType)) {
+            throw new IllegalArgumentException("Sensor "+inputType+" does not feed the "+srcType+" source");
+        }
+        if (filter != null) {
+            filter.reset();
+        }
+        mInputFilters[srcType.ordinal() * SensorInputType.COUNT + SensorInputType.indexOf(inputType)] = filter;
+    }
+
+    public SampleFilter getInputFilter(SensorSourceType srcType, int inputType) {
+        final int i = SensorInputType.indexOf(inputType);
+        return (i < 0) ? null : mInputFilters[srcType.ordinal() * SensorInputType.COUNT + i];
+    }
+
+    /**
+     * Restart all the input filters, e.g. after the sensors have been re-registered.
+     */
+    public void resetInputFilters() {
+        for (SampleFilter f : mInputFilters) {
+            if (f != null) {
+                f.reset();
+            }
+        }
+    }
+
+    /**
+     * dst = filtered copy of the 3 values, or the plain copy if there is no filter
+     */
+    private void filterInput(SensorSourceType srcType, int inputType, long timestamp, float[] values, float[] dst) {
+        System.arraycopy(values, 0, dst, 0, 3);
+        final SampleFilter f = mInputFilters[srcType.ordinal() * SensorInputType.COUNT + SensorInputType.indexOf(inputType)];
+        if (f != null) {
+            f.apply(timestamp, dst, 3);
+        }
+    }
+
+    /**
+     * @return filtered copy of the rotation vector, or the values as they are if there is no filter
+     */
+    private float[] filterRotationVector(long timestamp, float[] values, int len) {
+        final SampleFilter f = mInputFilters[SensorSourceType.ROTATION_VECTOR.ordinal() * SensorInputType.COUNT + SensorInputType.indexOf(SensorInputType.ROTATION_VECTOR)];
+        if (f == null) {
+            return values;
+        }
+        System.arraycopy(values, 0, mFilteredRotVect, 0, len);
+        f.apply(timestamp, mFilteredRotVect, len);
+        return mFilteredRotVect;
+    }
+
+    /**
+     * @return detector of the magnetic disturbances, e.g. to set the reference field
+     */
+    public MagneticDisturbanceDetector getMagneticDetector() {
+        return mMagDetector;
+    }
+
+    /**
+     * Check every magnetometer sample against the reference field (see {@link MagneticDisturbanceDetector}).
+     * While the field is disturbed the FUSED source does not correct its heading by the magnetometer,
+     * and the RAW source takes the heading from FUSED (or ROTATION_VECTOR if there is no gyroscope),
+     * with the tilt still from the accelerometer. On by default.
+     */
+    public void setMagneticDisturbanceDetection(boolean enabled) {
+        if (!enabled && magneticDetection) {
+            mMagDetector.reset();
+            mFusion.setMagnetTrust(1);
+        }
+        magneticDetection = enabled;
+    }
+
+    /**
+     * @param output receives the changes of the disturbed state, null - none
+     */
+    public void setMagneticStateOutput(MagneticStateOutput output) {
+        mMagneticOutput = output;
+    }
+
+    public boolean isMagneticFieldDisturbed() {
+        return magneticDetection && mMagDetector.isDisturbed();
+    }
+
+    /**
+     * @return number of RAW results built with the heading of the fallback source
+     */
+    public long getRawHeadingFallbackCount() {
+        return mRawHeadingFallbacks;
+    }
+
+    /**
+     * @return hard/soft-iron calibration applied to every magnetometer sample. Read it on the
+     *         thread the samples come on.
+     */
+    public MagnetometerCalibration getMagnetCalibration() {
+        return mMagCalibration;
+    }
+
+    public MagnetometerCalibrator getMagnetCalibrator() {
+        return mMagCalibrator;
+    }
+
+    /**
+     * Fit the magnetometer calibration from the samples while the device is turned around (see
+     * {@link MagnetometerCalibrator}). Until the first fit every sample is used, as an uncalibrated
+     * hard-iron offset itself looks like a disturbance while turning; afterwards only the samples
+     * of an undisturbed field. On by default.
+     */
+    public void setOnlineMagnetCalibration(boolean enabled) {
+        onlineMagnetCalibration = enabled;
+    }
+
+    /**
+     * @return number of times the magnetometer calibration has changed (fitted or restored)
+     */
+    public long getMagnetCalibrationUpdatesCount() {
+        return mMagnetCalibrationUpdates;
+    }
+
+    /**
+     * Take the state worth keeping between sessions: the gyroscope bias and the FUSED orientation
+     * (if FUSED has been initialized) and the magnetometer calibration (if there is one).
+     */
+    public void saveState(CalibrationState out) {
+        out.clear();
+        out.savedAtMs = System.currentTimeMillis();
+        if (mFusion.isInitialized()) {
+            mFusion.getGyroBias(out.gyroBias);
+            System.arraycopy(mFusion.getQuaternion(), 0, out.fusedQuaternion, 0, 4);
+            out.flags |= CalibrationState.FLAG_GYRO_BIAS | CalibrationState.FLAG_FUSED_ORIENTATION;
+        }
+        if (!mMagCalibration.isIdentity()) {
+            mMagCalibration.getOffset(out.magnetOffset);
+            mMagCalibration.getSoftIron(out.magnetSoftIron);
+            out.flags |= CalibrationState.FLAG_MAGNET_CALIBRATION;
+        }
+    }
+
+    /**
+     * Restore the state taken by {@link #saveState(CalibrationState)}, e.g. in the previous
+     * session. The calibrations are applied as they are. If FUSED has not been initialized yet,
+     * it starts from the saved orientation right away, so it produces results from the first
+     * gyroscope samples. The device may have been moved meanwhile, so the orientation is checked
+     * against the first accel/magnet pair and replaced if it is off (see {@link #requestFusionCheck()}).
+     */
+    public void restoreState(CalibrationState state) {
+        if (state.has(CalibrationState.FLAG_MAGNET_CALIBRATION)) {
+            mMagCalibrationFit.set(state.magnetOffset, state.magnetSoftIron);
+            setMagnetCalibration(mMagCalibrationFit);
+        }
+        if (state.has(CalibrationState.FLAG_GYRO_BIAS)) {
+            mFusion.setGyroBias(state.gyroBias);
+        }
+        if (state.has(CalibrationState.FLAG_FUSED_ORIENTATION) && !mFusion.isInitialized()) {
+            mFusion.initializeFromQuaternion(state.fusedQuaternion);
+            requestFusionCheck();
+        }
+    }
+
+    /**
+     * Check the FUSED orientation against the next fresh accelerometer/magnetometer pair taken
+     * while the device is not accelerating and the field is clean, and re-initialize it from the
+     * pair if they differ by more than {@link #MAX_FUSION_SEED_ERROR}. The gyroscope bias is kept.
+     * Call it when the sensors are started again, as the device may have been moved while they
+     * were stopped.
+     */
+    public void requestFusionCheck() {
+        fusionCheckPending = true;
+        fusionCheckAccel = false;
+        fusionCheckMagnet = false;
+    }
+
+    /**
+     * @return angle between the FUSED orientation and the accel/magnet pair at the latest check, rad.
+     *         NaN if there has not been a check.
+     */
+    public float getFusionSeedError() {
+        return mFusionSeedError;
+    }
+
+    /**
+     * @return number of times FUSED has been re-initialized by the check
+     */
+    public long getFusionReseedCount() {
+        return mFusionReseeds;
+    }
+
+    private void setMagnetCalibration(MagnetometerCalibration calibration) {
+        mMagCalibration.copyFrom(calibration);
+        mMagnetCalibrationUpdates ++;
+        // The field strength changes with the calibration, a reference learned before is stale
+        if (mMagDetector.isReferenceLearned()) {
+            mMagDetector.resetReference();
+        }
+    }
+
+    private void checkFusion() {
+        if (!fusionCheckPending || !fusionCheckAccel || !fusionCheckMagnet || isMagneticFieldDisturbed()) {
+            return;
+        }
+        final float[] a = mFusedAccel;
+        final float g = (float) Math.sqrt(a[0]*a[0] + a[1]*a[1] + a[2]*a[2]);
+        if (Math.abs(g - STANDARD_GRAVITY) > 0.15f * STANDARD_GRAVITY || !mFusionCheck.initialize(a, mFusedMagnet)) {
+            // Wait for a better pair
+            fusionCheckAccel = fusionCheckMagnet = false;
+            return;
+        }
+        fusionCheckPending = false;
+        if (!mFusion.isInitialized()) {
+            // Will be initialized from this pair anyway
+            return;
+        }
+        final float[] q = mFusion.getQuaternion();
+        final float[] m = mFusionCheck.getQuaternion();
+        float dot = Math.abs(q[0]*m[0] + q[1]*m[1] + q[2]*m[2] + q[3]*m[3]);
+        if (dot > 1) {
+            dot = 1;
+        }
+        mFusionSeedError = 2 * (float) Math.acos(dot);
+        if (mFusionSeedError > MAX_FUSION_SEED_ERROR) {
+            mFusion.initializeFromQuaternion(m);
+            mFusionReseeds ++;
+        }
+    }
+
+    /**
+     * Accelerometer sample. Drives the RAW source: every sample is paired with the magnetometer
+     * value at the same timestamp, so RAW results come at the accelerometer rate.
+     */
+    public void onAccelerometer(long timestamp, float[] values) {
+        beginEvent(SensorSourceType.RAW);
+        final boolean built = buildRawRotationMatrix(timestamp, values);
+        endStage(PipelineMetrics.Stage.ROTATION_BUILD);
+        if (built) {
+            calculate(SensorSourceType.RAW, timestamp, mOrigRotationMatrixAccelMag);
+        } else {
+            countDropped(SensorSourceType.RAW);
+        }
+    }
+
+    public void onMagneticField(long timestamp, float[] values) {
+        beginEvent(SensorSourceType.RAW);
+        addMagneticField(timestamp, values, false);
+        endStage(PipelineMetrics.Stage.ROTATION_BUILD);
+    }
+
+    /**
+     * @param rawAdded the sample has already been put into the RAW pairing history, see
+     *                 {@link #addRawMagnetAhead(SensorBatch, int, long)}
+     */
+    private void addMagneticField(long timestamp, float[] values, boolean rawAdded) {
+        hasMagnet = true;
+        final float[] calibrated = mMagnetCalibrated;
+        mMagCalibration.apply(values, calibrated);
+        filterInput(SensorSourceType.FUSED, SensorInputType.MAGNETIC_FIELD, timestamp, calibrated, mFusedMagnet);
+        if (!rawAdded) {
+            addRawMagnet(timestamp, calibrated);
+        }
+        if (magneticDetection) {
+            final MagneticDisturbanceDetector d = mMagDetector;
+            if (d.update(timestamp, calibrated, hasAccel ? mAccelRawData : null) && mMagneticOutput != null) {
+                mMagneticOutput.onMagneticStateChanged(timestamp, d.isDisturbed(), d.getMagnitude(), d.getDip());
+            }
+            mFusion.setMagnetTrust(d.getWeight());
+        }
+        if (onlineMagnetCalibration && (mMagCalibration.isIdentity() || !isMagneticFieldDisturbed())
+                && mMagCalibrator.update(values) && mMagCalibrator.getCalibration(mMagCalibrationFit)
+                && !mMagCalibrationFit.isCloseTo(mMagCalibration, CALIBRATION_OFFSET_STEP, CALIBRATION_SCALE_STEP)) {
+            setMagnetCalibration(mMagCalibrationFit);
+        }
+        fusionCheckMagnet = true;
+        checkFusion();
+    }
+
+    private void addRawMagnet(long timestamp, float[] calibrated) {
+        filterInput(SensorSourceType.RAW, SensorInputType.MAGNETIC_FIELD, timestamp, calibrated, mRawMagnet);
+        mMagnetHistory.add(timestamp, mRawMagnet);
+    }
+
+    /**
+     * @param len number of valid values. The 4-th (scalar) component is re-calculated if absent
+     */
+    public void onRotationVector(long timestamp, float[] values, int len) {
+        beginEvent(SensorSourceType.ROTATION_VECTOR);
+        values = filterRotationVector(timestamp, values, len);
+        mRotVectTimestamp = timestamp;
+        rotVectIsQuaternion = useQuaternionEngine;
+        if (useQuaternionEngine) {
+            QuaternionMath.fromRotationVector(mRotVectQuaternion, values, len);
+            endStage(PipelineMetrics.Stage.ROTATION_BUILD);
+            calculateFromQuaternion(SensorSourceType.ROTATION_VECTOR, timestamp, mRotVectQuaternion);
+        } else {
+            RotationMath.getRotationMatrixFromVector(mOrigRotationMatrixRotVect, values, len);
+            endStage(PipelineMetrics.Stage.ROTATION_BUILD);
+            calculate(SensorSourceType.ROTATION_VECTOR, timestamp, mOrigRotationMatrixRotVect);
+        }
+    }
+
+    /**
+     * Gyroscope sample. Produces a FUSED result once the filter has been initialized from the
+     * first accelerometer/magnetometer pair.
+     * @param values angular rates around device x, y, z (rad/s)
+     */
+    public void onGyroscope(long timestamp, float[] values) {
+        beginEvent(SensorSourceType.FUSED);
+        final boolean stepped = stepFusion(timestamp, values);
+        endStage(PipelineMetrics.Stage.ROTATION_BUILD);
+        if (stepped) {
+            calculateFromQuaternion(SensorSourceType.FUSED, timestamp, mFusion.getQuaternion());
+        } else {
+            countDropped(SensorSourceType.FUSED);
+        }
+    }
+
+    /**
+     * Pair the accelerometer sample with the magnetometer and build the RAW rotation matrix
+     * into mOrigRotationMatrixAccelMag.
+     * @return true if the matrix has been built
+     */
+    private boolean buildRawRotationMatrix(long timestamp, float[] accel) {
+        System.arraycopy(accel, 0, mAccelRawData, 0, 3);
+        hasAccel = true;
+        filterInput(SensorSourceType.FUSED, SensorInputType.ACCELEROMETER, timestamp, accel, mFusedAccel);
+        filterInput(SensorSourceType.RAW, SensorInputType.ACCELEROMETER, timestamp, accel, mRawAccel);
+        fusionCheckAccel = true;
+        checkFusion();
+
+        if (isMagneticFieldDisturbed()) {
+            // Tilt from the accelerometer, heading from the fallback source
+            if (!getFallbackNorth(timestamp, mMagnetAligned)) {
+                return false;
+            }
+            mRawHeadingFallbacks ++;
+            return RotationMath.getRotationMatrix(mOrigRotationMatrixAccelMag, mRawAccel, mMagnetAligned);
+        }
+
+        final long alignmentErr = mMagnetHistory.getAt(timestamp, mMagnetAligned);
+        if (alignmentErr < 0) {
+            return false;
+        } else if (alignmentErr > mMaxRawAlignmentNs) {
+            mRawPairsRejected ++;
+            return false;
+        }
+        mRawPairs ++;
+        if (alignmentErr == 0) {
+            if (timestamp > mMagnetHistory.getLatestTimestamp()) {
+                mRawPairsExtrapolated ++;
+            } else {
+                mRawPairsInterpolated ++;
+            }
+        } else if (alignmentErr > mRawAlignmentErrorMaxNs) {
+            mRawAlignmentErrorMaxNs = alignmentErr;
+        }
+        mRawAlignmentErrorSumNs += alignmentErr;
+        return RotationMath.getRotationMatrix(mOrigRotationMatrixAccelMag, mRawAccel, mMagnetAligned);
+    }
+
+    /**
+     * Advance the fusion filter by one gyroscope sample.
+     * @return true if the filter has a new orientation
+     */
+    private boolean stepFusion(long timestamp, float[] gyro) {
+        final GyroFusionFilter f = mFusion;
+        if (!f.isInitialized()) {
+            if (isMagneticFieldDisturbed()) {
+                // The magnetometer would give a wrong heading, start from the rotation vector
+                final float[] q = getFallbackQuaternion(timestamp, false);
+                if (q != null) {
+                    f.initializeFromQuaternion(q);
+                }
+            } else if (hasAccel && hasMagnet) {
+                f.initialize(mFusedAccel, mFusedMagnet);
+            }
+            if (!f.isInitialized()) {
+                return false;
+            }
+        }
+        // The latest accel/magnet values are applied at every gyroscope step. They are slower,
+        // but the correction gain is low, so holding the last value is fine.
+        filterInput(SensorSourceType.FUSED, SensorInputType.GYROSCOPE, timestamp, gyro, mFusedGyro);
+        return f.update(timestamp, mFusedGyro, mFusedAccel, mFusedMagnet);
+    }
+
+
+    /**
+     * @param useFused FUSED can be used (it must not be when it is being initialized)
+     * @return the latest FUSED or ROTATION_VECTOR orientation close enough in time, or null
+     */
+    private float[] getFallbackQuaternion(long timestamp, boolean useFused) {
+        final GyroFusionFilter f = mFusion;
+        if (useFused && f.isInitialized() && f.getTimestamp() != 0 && Math.abs(timestamp - f.getTimestamp()) <= MAX_HEADING_FALLBACK_AGE_NS) {
+            return f.getQuaternion();
+        } else if (mRotVectTimestamp != 0 && Math.abs(timestamp - mRotVectTimestamp) <= MAX_HEADING_FALLBACK_AGE_NS) {
+            if (rotVectIsQuaternion) {
+                return mRotVectQuaternion;
+            }
+            QuaternionMath.fromRotationMatrix(mFallbackQ, mOrigRotationMatrixRotVect);
+            return mFallbackQ;
+        }
+        return null;
+    }
+
+    /**
+     * Replace the magnetometer value by the north direction of the fallback orientation in the
+     * device frame. Only its direction matters for the rotation matrix.
+     * @return false if there is no fallback orientation
+     */
+    private boolean getFallbackNorth(long timestamp, float[] out) {
+        final float[] q = getFallbackQuaternion(timestamp, true);
+        if (q == null) {
+            return false;
+        }
+        QuaternionMath.rotateInverse(q, 0, 1, 0, mFallbackNorth);
+        out[0] = (float) mFallbackNorth[0];
+        out[1] = (float) mFallbackNorth[1];
+        out[2] = (float) mFallbackNorth[2];
+        return true;
+    }
+
+
+    /**********************************************************************************************/
+    /******************************   Batched (bulk) processing   *********************************/
+    /**********************************************************************************************/
+    private final float[] mBatchValues = new float[SensorBatch.MAX_VALUES];
+    private final float[] mBatchMagnetValues = new float[SensorBatch.MAX_VALUES];
+    private final float[] mBatchMagnetCalibrated = new float[3];
+
+    // Blocks of rotation matrices and quaternions collected from one batch, with the
+    // corresponding timestamps, sources and calculation results.
+    private int mBlockCapacity;
+    private float[] mBlockMatrices;
+    private long[] mBlockMatrixTs;
+    private int[] mBlockMatrixSrc;
+    private float[] mBlockMatrixOut;
+    private double[] mBlockMatrixScalProd;
+    private float[] mBlockQuaternions;
+    private long[] mBlockQuaternionTs;
+    private int[] mBlockQuaternionSrc;
+    private float[] mBlockQuaternionOut;
+    private double[] mBlockQuaternionScalProd;
+
+    private static final SensorSourceType[] SOURCES = SensorSourceType.values();
+
+    /**
+     * Process a whole burst of samples (e.g. a hardware FIFO flush) as a block.
+     * <p>
+     * Samples are first put in timestamp order and run through the sequential part of the
+     * pipeline (pairing, fusion). The collected rotation matrices and quaternions are then
+     * processed with the array-oriented calculator methods, and the results are reported in
+     * timestamp order. The result is the same as feeding the samples one by one in time order,
+     * except for the RAW pairing: the magnetometer samples later in the burst are already known,
+     * so an accelerometer sample is paired with the value interpolated between the magnetometer
+     * samples around it rather than extrapolated from the older ones.
+     * Blocks are allocated once, on the first batch (or a batch of a bigger capacity).
+     *
+     * @param batch samples. The batch is sorted by this method but not cleared.
+     */
+    public void onBatch(SensorBatch batch) {
+        final int n = batch.size();
+        if (n == 0) {
+            return;
+        }
+        ensureBlockCapacity(batch.getCapacity());
+        final PipelineMetrics m = mMetrics;
+        // The stages of a batch are timed as a whole and recorded as the mean per sample
+        final boolean timedBatch = (m != null) && m.beginTimedSample();
+        long t0 = timedBatch ? System.nanoTime() : 0;
+        batch.sortByTimestamp();
+
+        //----  Sequential stage  ----
+        int nMat = 0;
+        int nQuat = 0;
+        // Sorted position up to which the magnetometer samples are in the RAW pairing history
+        int magnetAhead = 0;
+        final float[] v = mBatchValues;
+        for (int k=0; k<n; k++) {
+            final int idx = batch.indexAt(k);
+            final long ts = batch.getTimestamp(idx);
+            batch.getValues(idx, v);
+            final int type = batch.getType(idx);
+            if (m != null) {
+                m.countInput(type, PipelineMetrics.Counter.RECEIVED);
+            }
+            switch (type) {
+                case SensorInputType.ACCELEROMETER:
+                    if (mMagnetHistory.isEmpty() || mMagnetHistory.getLatestTimestamp() < ts) {
+                        magnetAhead = addRawMagnetAhead(batch, Math.max(magnetAhead, k + 1), ts);
+                    }
+                    if (buildRawRotationMatrix(ts, v)) {
+                        System.arraycopy(mOrigRotationMatrixAccelMag, 0, mBlockMatrices, nMat*9, 9);
+                        if (!isWithinDeadBand(SensorSourceType.RAW, mBlockMatrices, nMat*9, false)) {
+                            mBlockMatrixTs[nMat] = ts;
+                            mBlockMatrixSrc[nMat++] = SensorSourceType.RAW.ordinal();
+                        } else {
+                            reportSkipped(SensorSourceType.RAW, ts);
+                        }
+                        updatePredictorFromMatrix(SensorSourceType.RAW, ts, mOrigRotationMatrixAccelMag);
+                    } else {
+                        countDropped(SensorSourceType.RAW);
+                    }
+                    break;
+                case SensorInputType.MAGNETIC_FIELD:
+                    final boolean rawAdded = (k < magnetAhead);
+                    addMagneticField(ts, v, rawAdded);
+                    if (!rawAdded) {
+                        magnetAhead = k + 1;
+                    }
+                    break;
+                case SensorInputType.ROTATION_VECTOR:
+                    final float[] rv = filterRotationVector(ts, v, batch.getLength(idx));
+                    mRotVectTimestamp = ts;
+                    rotVectIsQuaternion = useQuaternionEngine;
+                    if (useQuaternionEngine) {
+                        QuaternionMath.fromRotationVector(mRotVectQuaternion, rv, batch.getLength(idx));
+                        System.arraycopy(mRotVectQuaternion, 0, mBlockQuaternions, nQuat*4, 4);
+                        if (!isWithinDeadBand(SensorSourceType.ROTATION_VECTOR, mBlockQuaternions, nQuat*4, true)) {
+                            mBlockQuaternionTs[nQuat] = ts;
+                            mBlockQuaternionSrc[nQuat++] = SensorSourceType.ROTATION_VECTOR.ordinal();
+                        } else {
+                            reportSkipped(SensorSourceType.ROTATION_VECTOR, ts);
+                        }
+                        updatePredictor(SensorSourceType.ROTATION_VECTOR, ts, mRotVectQuaternion);
+                    } else {
+                        RotationMath.getRotationMatrixFromVector(mOrigRotationMatrixRotVect, rv, batch.getLength(idx));
+                        System.arraycopy(mOrigRotationMatrixRotVect, 0, mBlockMatrices, nMat*9, 9);
+                        if (!isWithinDeadBand(SensorSourceType.ROTATION_VECTOR, mBlockMatrices, nMat*9, false)) {
+                            mBlockMatrixTs[nMat] = ts;
+                            mBlockMatrixSrc[nMat++] = SensorSourceType.ROTATION_VECTOR.ordinal();
+                        } else {
+                            reportSkipped(SensorSourceType.ROTATION_VECTOR, ts);
+                        }
+                        updatePredictorFromMatrix(SensorSourceType.ROTATION_VECTOR, ts, mOrigRotationMatrixRotVect);
+                    }
+                    break;
+                case SensorInputType.GYROSCOPE:
+                    if (stepFusion(ts, v)) {
+                        System.arraycopy(mFusion.getQuaternion(), 0, mBlockQuaternions, nQuat*4, 4);
+                        if (!isWithinDeadBand(SensorSourceType.FUSED, mBlockQuaternions, nQuat*4, true)) {
+                            mBlockQuaternionTs[nQuat] = ts;
+                            mBlockQuaternionSrc[nQuat++] = SensorSourceType.FUSED.ordinal();
+                        } else {
+                            reportSkipped(SensorSourceType.FUSED, ts);
+                        }
+                        updatePredictor(SensorSourceType.FUSED, ts, mFusion.getQuaternion());
+                    } else {
+                        countDropped(SensorSourceType.FUSED);
+                    }
+                    break;
+            }
+        }
+        if (timedBatch) {
+            final long t1 = System.nanoTime();
+            m.record(PipelineMetrics.Stage.ROTATION_BUILD, (t1 - t0) / n, n);
+            t0 = t1;
+        }
+
+        //----  Array stage  ----
+        countTargetVector(nMat + nQuat);
+        mCalculator.calculateBatch(mBlockMatrices, nMat, mBlockMatrixOut, mBlockMatrixScalProd);
+        mCalculator.calculateBatchFromQuaternions(mBlockQuaternions, nQuat, mBlockQuaternionOut, mBlockQuaternionScalProd);
+        final int nResults = nMat + nQuat;
+        if (timedBatch && nResults > 0) {
+            final long t1 = System.nanoTime();
+            m.record(PipelineMetrics.Stage.PROJECTION, (t1 - t0) / nResults, nResults);
+            t0 = t1;
+        }
+
+        //----  Report results in timestamp order (merge of the two blocks)  ----
+        int i = 0, j = 0;
+        while (i < nMat || j < nQuat) {
+            if (j >= nQuat || (i < nMat && mBlockMatrixTs[i] <= mBlockQuaternionTs[j])) {
+                final SensorSourceType src = SOURCES[mBlockMatrixSrc[i]];
+                report(src, mBlockMatrixTs[i], mBlockMatrixOut, i, mBlockMatrixScalProd[i]);
+                if (isTargetsSource(src)) {
+                    System.arraycopy(mBlockMatrices, i*9, mTargetsOrientation, 0, 9);
+                    solveTargets(src, mBlockMatrixTs[i], mTargetsOrientation);
+                }
+                i++;
+            } else {
+                final SensorSourceType src = SOURCES[mBlockQuaternionSrc[j]];
+                report(src, mBlockQuaternionTs[j], mBlockQuaternionOut, j, mBlockQuaternionScalProd[j]);
+                if (isTargetsSource(src)) {
+                    System.arraycopy(mBlockQuaternions, j*4, mTargetsOrientation, 0, 4);
+                    solveTargetsFromQuaternion(src, mBlockQuaternionTs[j], mTargetsOrientation);
+                }
+                j++;
+            }
+        }
+        if (timedBatch && nResults > 0) {
+            m.record(PipelineMetrics.Stage.FAN_OUT, (System.nanoTime() - t0) / nResults, nResults);
+        }
+    }
+
+    private void report(SensorSourceType src, long ts, float[] out, int k, double scalProd) {
+        final int o = k * AnglesCalculator.BATCH_OUT_STRIDE;
+        mOutput.onAnglesCalculated(src, ts, out[o], out[o + 1], out[o + 2], out[o + 3], out[o + 4], scalProd);
+        if (mMetrics != null) {
+            mMetrics.count(src, PipelineMetrics.Counter.CALCULATED);
+        }
+    }
+
+    /**
+     * Put the magnetometer samples of the burst into the RAW pairing history ahead of their
+     * turn, up to the first one not older than the accelerometer sample, so that sample can be
+     * interpolated. Only the RAW input filter sees them now, the rest of the magnetometer
+     * processing (calibration fit, disturbance detection, fusion) still comes in time order.
+     * The calibration in effect now is applied to them.
+     *
+     * @param from sorted position to start from
+     * @param timestamp accelerometer sample time
+     * @return sorted position up to which all the magnetometer samples have been added
+     */
+    private int addRawMagnetAhead(SensorBatch batch, int from, long timestamp) {
+        final int n = batch.size();
+        for (int k=from; k<n; k++) {
+            final int idx = batch.indexAt(k);
+            if (batch.getType(idx) != SensorInputType.MAGNETIC_FIELD) {
+                continue;
+            }
+            final long ts = batch.getTimestamp(idx);
+            batch.getValues(idx, mBatchMagnetValues);
+            mMagCalibration.apply(mBatchMagnetValues, mBatchMagnetCalibrated);
+            addRawMagnet(ts, mBatchMagnetCalibrated);
+            if (ts >= timestamp) {
+                return k + 1;
+            }
+        }
+        return n;
+    }
+
+    private void ensureBlockCapacity(int capacity) {
+        if (mBlockCapacity >= capacity) {
+            return;
+        }
+        mBlockCapacity = capacity;
+        mBlockMatrices = new float[capacity * 9];
+        mBlockMatrixTs = new long[capacity];
+        mBlockMatrixSrc = new int[capacity];
+        mBlockMatrixOut = new float[capacity * AnglesCalculator.BATCH_OUT_STRIDE];
+        mBlockMatrixScalProd = new double[capacity];
+        mBlockQuaternions = new float[capacity * 4];
+        mBlockQuaternionTs = new long[capacity];
+        mBlockQuaternionSrc = new int[capacity];
+        mBlockQuaternionOut = new float[capacity * AnglesCalculator.BATCH_OUT_STRIDE];
+        mBlockQuaternionScalProd = new double[capacity];
+    }
+
+    private void calculate(SensorSourceType srcType, long timestamp, float[] rotMatrix) {
+        if (isWithinDeadBand(srcType, rotMatrix, 0, false)) {
+            updatePredictorFromMatrix(srcType, timestamp, rotMatrix);
+            reportSkipped(srcType, timestamp);
+            return;
+        }
+        final AnglesCalculator c = mCalculator;
+        countTargetVector(1);
+        c.calculate(rotMatrix);
+        endStage(PipelineMetrics.Stage.PROJECTION);
+        output(srcType, timestamp);
+        solveTargets(srcType, timestamp, rotMatrix);
+        updatePredictorFromMatrix(srcType, timestamp, rotMatrix);
+    }
+
+    private void calculateFromQuaternion(SensorSourceType srcType, long timestamp, float[] q) {
+        if (isWithinDeadBand(srcType, q, 0, true)) {
+            updatePredictor(srcType, timestamp, q);
+            reportSkipped(srcType, timestamp);
+            return;
+        }
+        final AnglesCalculator c = mCalculator;
+        countTargetVector(1);
+        c.calculateFromQuaternion(q);
+        endStage(PipelineMetrics.Stage.PROJECTION);
+        output(srcType, timestamp);
+        solveTargetsFromQuaternion(srcType, timestamp, q);
+        updatePredictor(srcType, timestamp, q);
+    }
+
+    private void output(SensorSourceType srcType, long timestamp) {
+        final AnglesCalculator c = mCalculator;
+        mOutput.onAnglesCalculated(srcType, timestamp, c.getYaw(), c.getPitch(), c.getRoll(), c.getAzimuth(), c.getInclination(), c.getTestScalProd());
+        endStage(PipelineMetrics.Stage.FAN_OUT);
+        if (mMetrics != null) {
+            mMetrics.count(srcType, PipelineMetrics.Counter.CALCULATED);
+        }
+    }
+
+    //----  Metrics of the single event path  ----
+    private void beginEvent(SensorSourceType srcType) {
+        final PipelineMetrics m = mMetrics;
+        if (m != null) {
+            m.count(srcType, PipelineMetrics.Counter.RECEIVED);
+            timed = m.beginTimedSample();
+            if (timed) {
+                mStageStartNs = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Record the time since the end of the previous stage of a timed event
+     */
+    private void endStage(PipelineMetrics.Stage stage) {
+        if (timed) {
+            final long now = System.nanoTime();
+            mMetrics.record(stage, now - mStageStartNs);
+            mStageStartNs = now;
+        }
+    }
+
+    /**
+     * Account the next n calculations as updating or reusing the target vector
+     */
+    private void countTargetVector(int n) {
+        if (mMetrics != null && n > 0) {
+            if (mCalculator.isTargetVectorValid()) {
+                mMetrics.countTargetVector(0, n);
+            } else {
+                mMetrics.countTargetVector(1, n - 1);
+            }
+        }
+    }
+
+    private void reportSkipped(SensorSourceType srcType, long timestamp) {
+        if (mDeadBandOutput != null) {
+            mDeadBandOutput.onResultSkipped(srcType, timestamp);
+        }
+    }
+
+    private void countDropped(SensorSourceType srcType) {
+        if (mMetrics != null) {
+            mMetrics.count(srcType, PipelineMetrics.Counter.DROPPED);
+        }
+    }
+
+    private void updatePredictor(SensorSourceType srcType, long timestamp, float[] q) {
+        if (predictionEnabled) {
+            mPredictors[srcType.ordinal()].update(timestamp, q);
+        }
+    }
+
+    private void updatePredictorFromMatrix(SensorSourceType srcType, long timestamp, float[] rotMatrix) {
+        if (predictionEnabled) {
+            QuaternionMath.fromRotationMatrix(mPredictorQ, rotMatrix);
+            mPredictors[srcType.ordinal()].update(timestamp, mPredictorQ);
+        }
+    }
+
+    private boolean isTargetsSource(SensorSourceType srcType) {
+        return mTargetsOutput != null && mTargets != null && (mTargetsSource == null || mTargetsSource == srcType);
+    }
+
+    private void solveTargets(SensorSourceType srcType, long timestamp, float[] rotMatrix) {
+        if (isTargetsSource(srcType)) {
+            mTargetsSolver.solve(rotMatrix, mTargets, mTargetAngles);
+            mTargetAngles.setMeta(srcType, timestamp);
+            mTargetsOutput.onTargetsCalculated(mTargetAngles);
+        }
+    }
+
+    private void solveTargetsFromQuaternion(SensorSourceType srcType, long timestamp, float[] q) {
+        if (isTargetsSource(srcType)) {
+            mTargetsSolver.solveFromQuaternion(q, mTargets, mTargetAngles);
+            mTargetAngles.setMeta(srcType, timestamp);
+            mTargetsOutput.onTargetsCalculated(mTargetAngles);
+        }
+    }
+}
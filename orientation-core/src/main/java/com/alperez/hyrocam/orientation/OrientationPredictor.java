@@ -0,0 +1,164 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Extrapolates the device orientation to a given time, to compensate the latency between
+ * a sensor sample and the moment its result is shown (motion-to-photon latency).
+ * <p>
+ * The angular velocity is estimated from each pair of consecutive orientations: the relative
+ * rotation dq = q_prev' * q is turned into angle/axis and divided by the time step, then smoothed
+ * with an exponential moving average. The prediction applies the rotation of that velocity over
+ * the horizon: q_pred = q * exp(w * dt / 2). Both are in the device (body) frame.
+ * The horizon is limited by {@link #setMaxHorizonNs(long)}, so a stale orientation is never
+ * extrapolated far.
+ * <p>
+ * {@link #update(long, float[])} must be called from a single producer thread, while
+ * {@link #predict(long, float[])} may be called from any thread. Both hold the instance lock
+ * only for a few field copies. Nothing is allocated.
+ */
+public class OrientationPredictor {
+
+    public static final long DEFAULT_MAX_HORIZON_NS = 100000000L;
+    private static final float NS2S = 1.0f / 1000000000.0f;
+
+    /** Samples further apart than this restart the velocity estimation (sensor gap) */
+    private static final long MAX_SAMPLE_GAP_NS = 200000000L;
+
+    private long mMaxHorizonNs = DEFAULT_MAX_HORIZON_NS;
+    private float mSmoothing = 0.3f;
+
+    //--- State, guarded by this ---
+    private boolean hasOrientation;
+    private boolean hasVelocity;
+    private long mTimestamp;
+    private final float[] mQ = new float[4];
+    private final float[] mOmega = new float[3];
+
+    //--- Producer scratch ---
+    private final float[] mPrevConj = new float[4];
+    private final float[] mDelta = new float[4];
+
+    //--- Consumer scratch, guarded by this ---
+    private final float[] mStep = new float[4];
+
+    /**
+     * @param maxHorizonNs maximum extrapolation time
+     */
+    public synchronized void setMaxHorizonNs(long maxHorizonNs) {
+        mMaxHorizonNs = maxHorizonNs;
+    }
+
+    /**
+     * @param alpha weight of the newest velocity estimate, (0..1]. 1 - no smoothing.
+     */
+    public synchronized void setSmoothing(float alpha) {
+        if (!(alpha > 0) || alpha > 1) {
+            throw new IllegalArgumentException("Smoothing must be in the range (0..1] - "+alpha);
+        }
+        mSmoothing = alpha;
+    }
+
+    public synchronized void reset() {
+        hasOrientation = false;
+        hasVelocity = false;
+    }
+
+    /**
+     * Add a new orientation
+     * @param timestamp ns
+     * @param q unit quaternion (w, x, y, z), see {@link QuaternionMath}
+     */
+    public synchronized void update(long timestamp, float[] q) {
+        final long dtNs = timestamp - mTimestamp;
+        if (hasOrientation && dtNs > 0 && dtNs <= MAX_SAMPLE_GAP_NS) {
+            //----  dq = q_prev' * q, shortest arc  ----
+            final float[] c = mPrevConj;
+            c[0] = mQ[0];
+            c[1] = -mQ[1];
+            c[2] = -mQ[2];
+            c[3] = -mQ[3];
+            final float[] d = mDelta;
+            QuaternionMath.multiply(c, q, d);
+            if (d[0] < 0) {
+                d[0] = -d[0];
+                d[1] = -d[1];
+                d[2] = -d[2];
+                d[3] = -d[3];
+            }
+            final float sinHalf = (float)Math.sqrt(d[1]*d[1] + d[2]*d[2] + d[3]*d[3]);
+            final float dt = dtNs * NS2S;
+            float wx = 0, wy = 0, wz = 0;
+            if (sinHalf > 1e-9f) {
+                final float k = 2f * (float)Math.atan2(sinHalf, d[0]) / (sinHalf * dt);
+                wx = d[1] * k;
+                wy = d[2] * k;
+                wz = d[3] * k;
+            }
+            if (hasVelocity) {
+                final float a = mSmoothing;
+                mOmega[0] += a * (wx - mOmega[0]);
+                mOmega[1] += a * (wy - mOmega[1]);
+                mOmega[2] += a * (wz - mOmega[2]);
+            } else {
+                mOmega[0] = wx;
+                mOmega[1] = wy;
+                mOmega[2] = wz;
+                hasVelocity = true;
+            }
+        } else if (hasOrientation && dtNs != 0) {
+            hasVelocity = false;
+        }
+        System.arraycopy(q, 0, mQ, 0, 4);
+        mTimestamp = timestamp;
+        hasOrientation = true;
+    }
+
+    /**
+     * Extrapolate the orientation
+     * @param targetTime time to predict the orientation at, ns, same time base as the samples
+     * @param out destination (w, x, y, z)
+     * @return false if there is no orientation yet
+     */
+    public synchronized boolean predict(long targetTime, float[] out) {
+        if (!hasOrientation) {
+            return false;
+        }
+        final long horizon = Math.max(0, Math.min(targetTime - mTimestamp, mMaxHorizonNs));
+        if (!hasVelocity || horizon == 0) {
+            System.arraycopy(mQ, 0, out, 0, 4);
+            return true;
+        }
+        final float dt = horizon * NS2S;
+        final float wx = mOmega[0], wy = mOmega[1], wz = mOmega[2];
+        final float w = (float)Math.sqrt(wx*wx + wy*wy + wz*wz);
+        final float[] step = mStep;
+        if (w * dt < 1e-9f) {
+            System.arraycopy(mQ, 0, out, 0, 4);
+            return true;
+        }
+        final float halfAngle = 0.5f * w * dt;
+        final float k = (float)Math.sin(halfAngle) / w;
+        step[0] = (float)Math.cos(halfAngle);
+        step[1] = wx * k;
+        step[2] = wy * k;
+        step[3] = wz * k;
+        QuaternionMath.multiply(mQ, step, out);
+        QuaternionMath.normalize(out);
+        return true;
+    }
+
+    /**
+     * @return timestamp of the latest orientation, ns
+     */
+    public synchronized long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @param out destination for the estimated angular velocity in the device frame (x, y, z), rad/s
+     * @return false if there is no estimate yet
+     */
+    public synchronized boolean getAngularVelocity(float[] out) {
+        System.arraycopy(mOmega, 0, out, 0, 3);
+        return hasVelocity;
+    }
+}
@@ -0,0 +1,403 @@
+package com.alperez.hyrocam.orientation;
+
+import java.util.Locale;
+
+/**
+ * Where the time goes between a sensor event and its angles on screen: a {@link LatencyHistogram}
+ * per {@link Stage} plus event counters per {@link SensorSourceType}.
+ * <p>
+ * Recording allocates nothing and costs a few ns per value. Timing a stage needs two clock reads,
+ * which cost more than that, so the pipeline times only every {@link #setTimingInterval(int) N-th}
+ * event (see {@link #beginTimedSample()}), while the counters and the delivery stages are recorded
+ * for every event.
+ * <p>
+ * Each histogram and each counter must be recorded by one thread (the sensor thread for
+ * everything but {@link Stage#UI_PUBLISH}, {@link Stage#MOTION_TO_PHOTON} and
+ * {@link Counter#COALESCED}, which are recorded on the main thread). They can be read from any thread, see {@link LatencyHistogram}.
+ */
+public class PipelineMetrics {
+
+    public enum Stage {
+        /** From the sensor timestamp to the delivery of the event */
+        SENSOR_DELIVERY,
+        /** Deviation of the delivery interval from the timestamp interval, per sensor */
+        DELIVERY_JITTER,
+        /** Rotation matrix or quaternion build, including pairing and fusion */
+        ROTATION_BUILD,
+        /** Angles calculation (plane projection) */
+        PROJECTION,
+        /** Output of one result: ring buffer publish, listeners, logging */
+        FAN_OUT,
+        /** One UI frame of publishing the results */
+        UI_PUBLISH,
+        /**
+         * From the sensor timestamp of a shown result to the vsync time of its frame: the
+         * prediction horizon needed to show the orientation as of the frame
+         */
+        MOTION_TO_PHOTON
+    }
+
+    public enum Counter {
+        /** Sensor events feeding the source */
+        RECEIVED,
+        /** Angles calculated */
+        CALCULATED,
+        /** Results superseded by a newer one before they were shown */
+        COALESCED,
+        /** Events which produced no result: unpaired, rejected, lost to a full batch */
+        DROPPED,
+        /** Orientations within the dead-band of the previous result: not calculated, not reported */
+        SKIPPED
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final SensorSourceType[] SOURCES = SensorSourceType.values();
+    private static final int N_COUNTERS = COUNTERS.length;
+    private static final String[] COUNTER_LABELS = new String[N_COUNTERS];
+    static {
+        for (int i=0; i<N_COUNTERS; i++) {
+            COUNTER_LABELS[i] = COUNTERS[i].name().toLowerCase(Locale.US);
+        }
+    }
+
+    // Per-sensor delivery state, index is SensorInputType.indexOf()
+    private static final int N_INPUTS = SensorInputType.COUNT;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+    private final long[] mCounters = new long[SOURCES.length * N_COUNTERS];
+
+    private final long[] mPrevTimestamp = new long[N_INPUTS];
+    private final long[] mPrevArrival = new long[N_INPUTS];
+
+    //--- Adaptive sampling, see AdaptiveRateController ---
+    private static final String[] LEVEL_LABELS = {"still", "normal", "fast"};
+    private final long[] mLevelTimeNs = new long[AdaptiveRateController.LEVELS_COUNT];
+    private long mRateSwitches;
+    private double mSavedEvents;
+
+    //--- Calculation work saved: target vector reuse, see AnglesCalculator ---
+    private long mTargetVectorUpdates;
+    private long mTargetVectorReuses;
+
+    //--- Cold start: from the activation to the first result, per source ---
+    private final long[] mColdStartNs = new long[SOURCES.length];
+    private long mCalibrationLoadNs = -1;
+    private boolean calibrationRestored;
+
+    private volatile int mTimingInterval = 1;
+    private int mTimingCountdown;
+
+    // Scratch copy for reports
+    private final LatencyHistogram mSnapshot = new LatencyHistogram();
+
+    public PipelineMetrics() {
+        for (int i=0; i<mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param interval time every interval-th event, 1 - every event
+     */
+    public void setTimingInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval must be positive - "+interval);
+        }
+        mTimingInterval = interval;
+    }
+
+    /**
+     * Called by the pipeline once per event.
+     * @return true if the stages of this event should be timed
+     */
+    public boolean beginTimedSample() {
+        if (--mTimingCountdown > 0) {
+            return false;
+        }
+        mTimingCountdown = mTimingInterval;
+        return true;
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void record(Stage stage, long ns) {
+        mHistograms[stage.ordinal()].record(ns);
+    }
+
+    /**
+     * Record the same value count times, e.g. the mean time per sample of a batch
+     */
+    public void record(Stage stage, long ns, int count) {
+        mHistograms[stage.ordinal()].record(ns, count);
+    }
+
+    /**
+     * Record the delivery of a sensor event: its latency and the delivery jitter.
+     * @param inputType one of {@link SensorInputType}
+     * @param timestamp event timestamp
+     * @param arrival time of the delivery, in the time base of the event timestamps
+     */
+    public void recordDelivery(int inputType, long timestamp, long arrival) {
+        mHistograms[Stage.SENSOR_DELIVERY.ordinal()].record(arrival - timestamp);
+        final int i = SensorInputType.indexOf(inputType);
+        if (i < 0) {
+            return;
+        }
+        if (mPrevArrival[i] != 0) {
+            final long d = (arrival - mPrevArrival[i]) - (timestamp - mPrevTimestamp[i]);
+            mHistograms[Stage.DELIVERY_JITTER.ordinal()].record((d < 0) ? -d : d);
+        }
+        mPrevTimestamp[i] = timestamp;
+        mPrevArrival[i] = arrival;
+    }
+
+    /**
+     * Forget the previous deliveries, e.g. after the sensors have been re-registered.
+     */
+    public void resetDelivery() {
+        for (int i=0; i<N_INPUTS; i++) {
+            mPrevArrival[i] = 0;
+            mPrevTimestamp[i] = 0;
+        }
+    }
+
+    public void count(SensorSourceType srcType, Counter counter) {
+        mCounters[srcType.ordinal() * N_COUNTERS + counter.ordinal()] ++;
+    }
+
+    public void count(SensorSourceType srcType, Counter counter, long n) {
+        mCounters[srcType.ordinal() * N_COUNTERS + counter.ordinal()] += n;
+    }
+
+    /**
+     * Count an event of the given sensor as {@link Counter#RECEIVED} or {@link Counter#DROPPED}
+     * by the source it feeds.
+     */
+    public void countInput(int inputType, Counter counter) {
+        final SensorSourceType src = sourceOf(inputType);
+        if (src != null) {
+            count(src, counter);
+        }
+    }
+
+    public long getCount(SensorSourceType srcType, Counter counter) {
+        return mCounters[srcType.ordinal() * N_COUNTERS + counter.ordinal()];
+    }
+
+    /**
+     * Account the time spent at a sampling level of the {@link AdaptiveRateController}.
+     * @param level AdaptiveRateController.LEVEL_*
+     * @param savedEvents sensor events not delivered during this time compared to the baseline
+     *                    level, negative if more were delivered
+     */
+    public void addSamplingTime(int level, long ns, double savedEvents) {
+        mLevelTimeNs[level] += ns;
+        mSavedEvents += savedEvents;
+    }
+
+    public void countRateSwitch() {
+        mRateSwitches ++;
+    }
+
+    public long getSamplingTimeNs(int level) {
+        return mLevelTimeNs[level];
+    }
+
+    public long getRateSwitchesCount() {
+        return mRateSwitches;
+    }
+
+    /**
+     * @return sensor events saved by the adaptive sampling against the baseline rate
+     */
+    public double getSavedEvents() {
+        return mSavedEvents;
+    }
+
+    /**
+     * Estimate of the CPU time saved by the adaptive sampling: the saved events multiplied by the
+     * mean processing time of one event.
+     */
+    public long getSavedCpuNs() {
+        final long perEvent = mHistograms[Stage.ROTATION_BUILD.ordinal()].getMeanNs()
+                + mHistograms[Stage.PROJECTION.ordinal()].getMeanNs()
+                + mHistograms[Stage.FAN_OUT.ordinal()].getMeanNs();
+        return (long) (mSavedEvents * perEvent);
+    }
+
+    /**
+     * Account calculations of the angles by whether they had to update the target vector
+     * (see {@link AnglesCalculator#isTargetVectorValid()})
+     */
+    public void countTargetVector(int updates, int reuses) {
+        mTargetVectorUpdates += updates;
+        mTargetVectorReuses += reuses;
+    }
+
+    public long getTargetVectorUpdatesCount() {
+        return mTargetVectorUpdates;
+    }
+
+    public long getTargetVectorReusesCount() {
+        return mTargetVectorReuses;
+    }
+
+    /**
+     * @return results of all the sources {@link Counter#SKIPPED skipped} by the orientation dead-band
+     */
+    public long getSkippedCount() {
+        long n = 0;
+        for (SensorSourceType src : SOURCES) {
+            n += getCount(src, Counter.SKIPPED);
+        }
+        return n;
+    }
+
+    /**
+     * Estimate of the CPU time saved by the orientation dead-band: the skipped results multiplied
+     * by the mean time of calculating and reporting one result.
+     */
+    public long getSkippedCpuNs() {
+        final long perResult = mHistograms[Stage.PROJECTION.ordinal()].getMeanNs()
+                + mHistograms[Stage.FAN_OUT.ordinal()].getMeanNs();
+        return getSkippedCount() * perResult;
+    }
+
+    /**
+     * @param ns time from the activation of the sensors to the first result of the source
+     */
+    public void setColdStart(SensorSourceType srcType, long ns) {
+        mColdStartNs[srcType.ordinal()] = ns;
+    }
+
+    /**
+     * @return time to the first result of the latest activation, ns. 0 - no result yet.
+     */
+    public long getColdStartNs(SensorSourceType srcType) {
+        return mColdStartNs[srcType.ordinal()];
+    }
+
+    /**
+     * @param ns time spent loading the persisted calibration
+     * @param restored true if a calibration has been found and restored
+     */
+    public void setCalibrationLoad(long ns, boolean restored) {
+        mCalibrationLoadNs = ns;
+        calibrationRestored = restored;
+    }
+
+    /**
+     * @return -1 if the calibration has not been loaded
+     */
+    public long getCalibrationLoadNs() {
+        return mCalibrationLoadNs;
+    }
+
+    public boolean isCalibrationRestored() {
+        return calibrationRestored;
+    }
+
+    /**
+     * @return source fed by the sensor, or null for an unsupported sensor
+     */
+    public static SensorSourceType sourceOf(int inputType) {
+        switch (inputType) {
+            case SensorInputType.ACCELEROMETER:
+            case SensorInputType.MAGNETIC_FIELD:
+                return SensorSourceType.RAW;
+            case SensorInputType.GYROSCOPE:
+                return SensorSourceType.FUSED;
+            case SensorInputType.ROTATION_VECTOR:
+                return SensorSourceType.ROTATION_VECTOR;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reset all histograms and counters. Must not race with recording, e.g. call it on the
+     * sensor thread or while the sensors are stopped.
+     */
+    public void reset() {
+        for (LatencyHistogram h : mHistograms) {
+            h.reset();
+        }
+        for (int i=0; i<mCounters.length; i++) {
+            mCounters[i] = 0;
+        }
+        for (int i=0; i<mLevelTimeNs.length; i++) {
+            mLevelTimeNs[i] = 0;
+        }
+        mRateSwitches = 0;
+        mSavedEvents = 0;
+        mTargetVectorUpdates = 0;
+        mTargetVectorReuses = 0;
+        for (int i=0; i<mColdStartNs.length; i++) {
+            mColdStartNs[i] = 0;
+        }
+        resetDelivery();
+    }
+
+    /**
+     * Append a multi-line report: one line per stage, one line per source and, if the adaptive
+     * sampling is in use, the time per sampling level and the savings, the work saved by the
+     * dead-band and the cached target vector, and the cold start times of the latest activation.
+     * Nothing but the
+     * builder's own growth is allocated. Can be called from any thread.
+     */
+    public synchronized void appendReport(StringBuilder sb) {
+        for (Stage s : STAGES) {
+            mHistograms[s.ordinal()].copyInto(mSnapshot);
+            sb.append(s.name()).append(": ");
+            mSnapshot.appendSummary(sb);
+            sb.append('\n');
+        }
+        for (SensorSourceType src : SOURCES) {
+            sb.append(src.name()).append(':');
+            for (Counter c : COUNTERS) {
+                sb.append(' ').append(COUNTER_LABELS[c.ordinal()]).append('=').append(getCount(src, c));
+            }
+            sb.append('\n');
+        }
+        if (mRateSwitches > 0 || mSavedEvents != 0) {
+            sb.append("SAMPLING:");
+            for (int i=0; i<mLevelTimeNs.length; i++) {
+                sb.append(' ').append(LEVEL_LABELS[i]).append('=').append(mLevelTimeNs[i] / 1000000000L).append('s');
+            }
+            sb.append(" switches=").append(mRateSwitches);
+            sb.append(" saved_events=").append((long) mSavedEvents);
+            sb.append(" saved_cpu=").append(getSavedCpuNs() / 1000000L).append("ms\n");
+        }
+        final long skipped = getSkippedCount();
+        if (skipped > 0 || mTargetVectorUpdates > 0 || mTargetVectorReuses > 0) {
+            sb.append("SAVED_WORK: skipped=").append(skipped);
+            sb.append(" skipped_cpu=").append(getSkippedCpuNs() / 1000000L).append("ms");
+            sb.append(" target_vector_updates=").append(mTargetVectorUpdates);
+            sb.append(" target_vector_reuses=").append(mTargetVectorReuses).append('\n');
+        }
+        sb.append("COLD_START:");
+        for (SensorSourceType src : SOURCES) {
+            sb.append(' ').append(src.name()).append('=');
+            if (mColdStartNs[src.ordinal()] > 0) {
+                sb.append(mColdStartNs[src.ordinal()] / 1000000L).append("ms");
+            } else {
+                sb.append('-');
+            }
+        }
+        if (mCalibrationLoadNs >= 0) {
+            sb.append(" calibration_load=").append(mCalibrationLoadNs / 1000000L).append("ms");
+            sb.append(calibrationRestored ? " (restored)" : " (none)");
+        }
+        sb.append('\n');
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(1024);
+        appendReport(sb);
+        return sb.toString();
+    }
+}
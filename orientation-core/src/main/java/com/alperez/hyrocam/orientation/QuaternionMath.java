@@ -0,0 +1,175 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Unit quaternion helpers. A quaternion is stored in a float[4] array as (w, x, y, z).
+ * <p>
+ * The quaternion q of a rotation vector rotates device coordinates into world coordinates
+ * (v_world = q * v_device * q'), the same rotation as the matrix built by
+ * {@link RotationMath#getRotationMatrixFromVector(float[], float[], int)}.
+ * <p>
+ * All methods are static and allocation-free.
+ */
+public final class QuaternionMath {
+
+    private QuaternionMath() {}
+
+    /**
+     * Build a normalized quaternion from the rotation vector sensor values.
+     *
+     * @param q destination (w, x, y, z)
+     * @param rotationVector sensor values (x*sin(a/2), y*sin(a/2), z*sin(a/2) [, cos(a/2)])
+     * @param len number of valid values. If less than 4, the scalar component is
+     *            re-calculated from the first three.
+     */
+    public static void fromRotationVector(float[] q, float[] rotationVector, int len) {
+        final float x = rotationVector[0];
+        final float y = rotationVector[1];
+        final float z = rotationVector[2];
+        float w;
+        if (len >= 4) {
+            w = rotationVector[3];
+        } else {
+            w = 1 - x*x - y*y - z*z;
+            w = (w > 0) ? (float)Math.sqrt(w) : 0;
+        }
+        q[0] = w;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+        normalize(q);
+    }
+
+    /**
+     * Build a normalized quaternion from a 3x3 rotation matrix (Shepperd's method, picks the
+     * numerically best branch).
+     *
+     * @param q destination (w, x, y, z), w >= 0
+     * @param R rotation matrix (length=9)
+     */
+    public static void fromRotationMatrix(float[] q, float[] R) {
+        final float trace = R[0] + R[4] + R[8];
+        float w, x, y, z;
+        if (trace > 0) {
+            final float s = (float)Math.sqrt(trace + 1f) * 2f;
+            w = 0.25f * s;
+            x = (R[7] - R[5]) / s;
+            y = (R[2] - R[6]) / s;
+            z = (R[3] - R[1]) / s;
+        } else if (R[0] > R[4] && R[0] > R[8]) {
+            final float s = (float)Math.sqrt(1f + R[0] - R[4] - R[8]) * 2f;
+            w = (R[7] - R[5]) / s;
+            x = 0.25f * s;
+            y = (R[1] + R[3]) / s;
+            z = (R[2] + R[6]) / s;
+        } else if (R[4] > R[8]) {
+            final float s = (float)Math.sqrt(1f + R[4] - R[0] - R[8]) * 2f;
+            w = (R[2] - R[6]) / s;
+            x = (R[1] + R[3]) / s;
+            y = 0.25f * s;
+            z = (R[5] + R[7]) / s;
+        } else {
+            final float s = (float)Math.sqrt(1f + R[8] - R[0] - R[4]) * 2f;
+            w = (R[3] - R[1]) / s;
+            x = (R[2] + R[6]) / s;
+            y = (R[5] + R[7]) / s;
+            z = 0.25f * s;
+        }
+        if (w < 0) {
+            w = -w;
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+        q[0] = w;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+        normalize(q);
+    }
+
+    /**
+     * Hamilton product out = a * b. The output may be the same array as one of the inputs.
+     */
+    public static void multiply(float[] a, float[] b, float[] out) {
+        final float aw = a[0], ax = a[1], ay = a[2], az = a[3];
+        final float bw = b[0], bx = b[1], by = b[2], bz = b[3];
+        out[0] = aw*bw - ax*bx - ay*by - az*bz;
+        out[1] = aw*bx + ax*bw + ay*bz - az*by;
+        out[2] = aw*by - ax*bz + ay*bw + az*bx;
+        out[3] = aw*bz + ax*by - ay*bx + az*bw;
+    }
+
+    /**
+     * Normalize in place. A zero quaternion becomes identity.
+     */
+    public static void normalize(float[] q) {
+        final double nn = (double)q[0]*q[0] + (double)q[1]*q[1] + (double)q[2]*q[2] + (double)q[3]*q[3];
+        if (nn == 0) {
+            q[0] = 1;
+            q[1] = q[2] = q[3] = 0;
+        } else if (nn != 1) {
+            final double inv = 1.0 / Math.sqrt(nn);
+            q[0] = (float)(q[0] * inv);
+            q[1] = (float)(q[1] * inv);
+            q[2] = (float)(q[2] * inv);
+            q[3] = (float)(q[3] * inv);
+        }
+    }
+
+    /**
+     * Rotate a world vector into the device frame: v_device = q' * v_world * q.
+     * Uses v' = v + 2w(u x v) + 2u x (u x v) with u = -(x, y, z), so no rotation matrix
+     * has to be built.
+     *
+     * @param q unit quaternion (w, x, y, z)
+     * @param out destination (x, y, z)
+     */
+    public static void rotateInverse(float[] q, double vx, double vy, double vz, double[] out) {
+        final double w = q[0];
+        final double ux = -q[1];
+        final double uy = -q[2];
+        final double uz = -q[3];
+
+        // t = 2 * (u x v)
+        final double tx = 2 * (uy*vz - uz*vy);
+        final double ty = 2 * (uz*vx - ux*vz);
+        final double tz = 2 * (ux*vy - uy*vx);
+
+        // v' = v + w*t + u x t
+        out[0] = vx + w*tx + (uy*tz - uz*ty);
+        out[1] = vy + w*ty + (uz*tx - ux*tz);
+        out[2] = vz + w*tz + (ux*ty - uy*tx);
+    }
+
+    /**
+     * Yaw (azimuth), pitch and roll in radians directly from the quaternion. Same convention
+     * as {@link RotationMath#getOrientation(float[], float[])}, only the 5 needed elements of
+     * the rotation matrix are evaluated.
+     */
+    public static void getOrientation(float[] q, float[] values) {
+        final float w = q[0], x = q[1], y = q[2], z = q[3];
+        final float r1 = 2 * (x*y - w*z);
+        final float r4 = 1 - 2 * (x*x + z*z);
+        final float r6 = 2 * (x*z - w*y);
+        final float r7 = 2 * (y*z + w*x);
+        final float r8 = 1 - 2 * (x*x + y*y);
+        values[0] = (float)Math.atan2(r1, r4);
+        values[1] = (float)Math.asin(Math.max(-1f, Math.min(1f, -r7)));
+        values[2] = (float)Math.atan2(-r6, r8);
+    }
+
+    /**
+     * Same as {@link #getOrientation(float[], float[])} with the {@link FastMath} kernels
+     */
+    public static void getOrientationFast(float[] q, float[] values) {
+        final float w = q[0], x = q[1], y = q[2], z = q[3];
+        final float r1 = 2 * (x*y - w*z);
+        final float r4 = 1 - 2 * (x*x + z*z);
+        final float r6 = 2 * (x*z - w*y);
+        final float r7 = 2 * (y*z + w*x);
+        final float r8 = 1 - 2 * (x*x + y*y);
+        values[0] = FastMath.atan2(r1, r4);
+        values[1] = FastMath.asin(Math.max(-1f, Math.min(1f, -r7)));
+        values[2] = FastMath.atan2(-r6, r8);
+    }
+}
@@ -0,0 +1,141 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Pure Java equivalents of the {@code android.hardware.SensorManager} rotation helpers which
+ * are used by the orientation pipeline. The formulas are the same as in AOSP, so the results
+ * are identical to the framework ones for the 3x3 (length=9) matrix case.
+ * <p>
+ * All methods are static, allocation-free and work on caller-provided arrays.
+ */
+public final class RotationMath {
+
+    /**
+     * Squared acceleration below which the device is considered to be in free fall
+     * (10% of the standard gravity)
+     */
+    private static final float FREE_FALL_GRAVITY_SQUARED = 0.01f * 9.81f * 9.81f;
+
+    private RotationMath() {}
+
+    /**
+     * Equivalent of {@code SensorManager.getRotationMatrix(R, null, gravity, geomagnetic)}
+     * for a 3x3 matrix.
+     *
+     * @param R destination rotation matrix (length=9). Left untouched on failure.
+     * @param gravity accelerometer values (x, y, z)
+     * @param geomagnetic magnetic field values (x, y, z)
+     * @return true on success, false if the device is in free fall or the field is
+     * (nearly) parallel to the gravity vector.
+     */
+    public static boolean getRotationMatrix(float[] R, float[] gravity, float[] geomagnetic) {
+        float Ax = gravity[0];
+        float Ay = gravity[1];
+        float Az = gravity[2];
+
+        final float normsqA = (Ax*Ax + Ay*Ay + Az*Az);
+        if (normsqA < FREE_FALL_GRAVITY_SQUARED) {
+            // gravity less than 10% of normal value
+            return false;
+        }
+
+        final float Ex = geomagnetic[0];
+        final float Ey = geomagnetic[1];
+        final float Ez = geomagnetic[2];
+        float Hx = Ey*Az - Ez*Ay;
+        float Hy = Ez*Ax - Ex*Az;
+        float Hz = Ex*Ay - Ey*Ax;
+        final float normH = (float)Math.sqrt(Hx*Hx + Hy*Hy + Hz*Hz);
+        if (normH < 0.1f) {
+            // device is close to free fall (or in space?), or close to
+            // magnetic north pole. Typical values are  > 100.
+            return false;
+        }
+        final float invH = 1.0f / normH;
+        Hx *= invH;
+        Hy *= invH;
+        Hz *= invH;
+        final float invA = 1.0f / (float)Math.sqrt(normsqA);
+        Ax *= invA;
+        Ay *= invA;
+        Az *= invA;
+        final float Mx = Ay*Hz - Az*Hy;
+        final float My = Az*Hx - Ax*Hz;
+        final float Mz = Ax*Hy - Ay*Hx;
+
+        R[0] = Hx;  R[1] = Hy;  R[2] = Hz;
+        R[3] = Mx;  R[4] = My;  R[5] = Mz;
+        R[6] = Ax;  R[7] = Ay;  R[8] = Az;
+        return true;
+    }
+
+    /**
+     * Equivalent of {@code SensorManager.getRotationMatrixFromVector(R, rotationVector)}
+     * for a 3x3 matrix.
+     *
+     * @param R destination rotation matrix (length=9)
+     * @param rotationVector rotation vector values (x*sin(a/2), y*sin(a/2), z*sin(a/2) [, cos(a/2)])
+     * @param len number of valid values in rotationVector. If less than 4, the scalar
+     *            component is re-calculated from the first three.
+     */
+    public static void getRotationMatrixFromVector(float[] R, float[] rotationVector, int len) {
+        float q0;
+        final float q1 = rotationVector[0];
+        final float q2 = rotationVector[1];
+        final float q3 = rotationVector[2];
+
+        if (len >= 4) {
+            q0 = rotationVector[3];
+        } else {
+            q0 = 1 - q1*q1 - q2*q2 - q3*q3;
+            q0 = (q0 > 0) ? (float)Math.sqrt(q0) : 0;
+        }
+
+        final float sq_q1 = 2 * q1 * q1;
+        final float sq_q2 = 2 * q2 * q2;
+        final float sq_q3 = 2 * q3 * q3;
+        final float q1_q2 = 2 * q1 * q2;
+        final float q3_q0 = 2 * q3 * q0;
+        final float q1_q3 = 2 * q1 * q3;
+        final float q2_q0 = 2 * q2 * q0;
+        final float q2_q3 = 2 * q2 * q3;
+        final float q1_q0 = 2 * q1 * q0;
+
+        R[0] = 1 - sq_q2 - sq_q3;
+        R[1] = q1_q2 - q3_q0;
+        R[2] = q1_q3 + q2_q0;
+
+        R[3] = q1_q2 + q3_q0;
+        R[4] = 1 - sq_q1 - sq_q3;
+        R[5] = q2_q3 - q1_q0;
+
+        R[6] = q1_q3 - q2_q0;
+        R[7] = q2_q3 + q1_q0;
+        R[8] = 1 - sq_q1 - sq_q2;
+    }
+
+    /**
+     * Equivalent of {@code SensorManager.getOrientation(R, values)} for a 3x3 matrix.
+     *
+     * @param R rotation matrix (length=9)
+     * @param values destination for azimuth (yaw), pitch and roll in radians
+     */
+    public static void getOrientation(float[] R, float[] values) {
+        /*
+         *   /  R[ 0]   R[ 1]   R[ 2]  \
+         *   |  R[ 3]   R[ 4]   R[ 5]  |
+         *   \  R[ 6]   R[ 7]   R[ 8]  /
+         */
+        values[0] = (float)Math.atan2(R[1], R[4]);
+        values[1] = (float)Math.asin(-R[7]);
+        values[2] = (float)Math.atan2(-R[6], R[8]);
+    }
+
+    /**
+     * Same as {@link #getOrientation(float[], float[])} with the {@link FastMath} kernels
+     */
+    public static void getOrientationFast(float[] R, float[] values) {
+        values[0] = FastMath.atan2(R[1], R[4]);
+        values[1] = FastMath.asin(Math.max(-1f, Math.min(1f, -R[7])));
+        values[2] = FastMath.atan2(-R[6], R[8]);
+    }
+}
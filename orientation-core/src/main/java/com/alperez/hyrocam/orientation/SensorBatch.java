@@ -0,0 +1,142 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Block of sensor samples accumulated from one delivery burst (e.g. a hardware FIFO flush),
+ * stored as pre-allocated primitive arrays. Samples of different sensors come in the burst
+ * grouped per sensor, {@link #sortByTimestamp()} restores the time order before processing.
+ * <p>
+ * Instances are not thread-safe and allocate nothing after construction.
+ */
+public class SensorBatch {
+
+    /** Maximum number of values per sample: 5 for the rotation vector with the heading accuracy */
+    public static final int MAX_VALUES = 5;
+
+    private final int mCapacity;
+    private final int[] mType;
+    private final long[] mTimestamp;
+    private final int[] mLength;
+    private final float[] mValues;
+
+    // Processing order - indices sorted by timestamp
+    private int[] mOrder;
+    private int[] mSortBuffer;
+    private int mSize;
+
+    public SensorBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive - "+capacity);
+        }
+        mCapacity = capacity;
+        mType = new int[capacity];
+        mTimestamp = new long[capacity];
+        mLength = new int[capacity];
+        mValues = new float[capacity * MAX_VALUES];
+        mOrder = new int[capacity];
+        mSortBuffer = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean isFull() {
+        return mSize == mCapacity;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Append a sample. Only the first {@link #MAX_VALUES} values are kept.
+     * @param type one of {@link SensorInputType}
+     * @return false if the batch is full and the sample was not added
+     */
+    public boolean add(int type, long timestamp, float[] values, int len) {
+        if (mSize == mCapacity) {
+            return false;
+        }
+        final int i = mSize++;
+        final int n = Math.min(len, MAX_VALUES);
+        mType[i] = type;
+        mTimestamp[i] = timestamp;
+        mLength[i] = n;
+        System.arraycopy(values, 0, mValues, i * MAX_VALUES, n);
+        mOrder[i] = i;
+        return true;
+    }
+
+    /**
+     * Sort the processing order by timestamp. Stable bottom-up merge sort over a pre-allocated
+     * buffer: O(n*log(n)) even for a big FIFO flush which consists of long per-sensor runs.
+     */
+    public void sortByTimestamp() {
+        final long[] ts = mTimestamp;
+        final int n = mSize;
+        int[] src = mOrder;
+        int[] dst = mSortBuffer;
+        for (int width=1; width<n; width *= 2) {
+            for (int lo=0; lo<n; lo += 2*width) {
+                final int mid = Math.min(lo + width, n);
+                final int hi = Math.min(lo + 2*width, n);
+                if (mid == hi || ts[src[mid - 1]] <= ts[src[mid]]) {
+                    // Already in order (typical for runs of one sensor)
+                    System.arraycopy(src, lo, dst, lo, hi - lo);
+                    continue;
+                }
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    dst[k++] = (ts[src[j]] < ts[src[i]]) ? src[j++] : src[i++];
+                }
+                while (i < mid) {
+                    dst[k++] = src[i++];
+                }
+                while (j < hi) {
+                    dst[k++] = src[j++];
+                }
+            }
+            final int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        mOrder = src;
+        mSortBuffer = dst;
+    }
+
+    /**
+     * @param n position in the processing order
+     * @return index of the sample to be used with the getters below
+     */
+    public int indexAt(int n) {
+        return mOrder[n];
+    }
+
+    public int getType(int index) {
+        return mType[index];
+    }
+
+    public long getTimestamp(int index) {
+        return mTimestamp[index];
+    }
+
+    public int getLength(int index) {
+        return mLength[index];
+    }
+
+    /**
+     * Copy the values of a sample.
+     * @param out destination, length >= {@link #getLength(int)}
+     */
+    public void getValues(int index, float[] out) {
+        System.arraycopy(mValues, index * MAX_VALUES, out, 0, mLength[index]);
+    }
+}
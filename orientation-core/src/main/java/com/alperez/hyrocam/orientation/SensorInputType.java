@@ -0,0 +1,70 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Identifiers of the input sensors of the pipeline. The values are the same as the
+ * corresponding {@code android.hardware.Sensor.TYPE_*} constants, so an Android sensor type can
+ * be used as is.
+ */
+public final class SensorInputType {
+
+    public static final int ACCELEROMETER = 1;
+    public static final int MAGNETIC_FIELD = 2;
+    public static final int GYROSCOPE = 4;
+    public static final int ROTATION_VECTOR = 11;
+
+    /** Number of the supported sensors, see {@link #indexOf(int)} */
+    public static final int COUNT = 4;
+
+    private static final int[] TYPES = {ACCELEROMETER, MAGNETIC_FIELD, GYROSCOPE, ROTATION_VECTOR};
+
+    private SensorInputType() {}
+
+    public static boolean isSupported(int type) {
+        return (type == ACCELEROMETER) || (type == MAGNETIC_FIELD) || (type == GYROSCOPE) || (type == ROTATION_VECTOR);
+    }
+
+    /**
+     * @return index of the sensor in 0..COUNT-1, to keep per-sensor state in arrays. -1 for an
+     * unsupported sensor.
+     */
+    public static int indexOf(int type) {
+        switch (type) {
+            case ACCELEROMETER:
+                return 0;
+            case MAGNETIC_FIELD:
+                return 1;
+            case GYROSCOPE:
+                return 2;
+            case ROTATION_VECTOR:
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @param index index returned by {@link #indexOf(int)}
+     * @return the sensor type
+     */
+    public static int typeAt(int index) {
+        return TYPES[index];
+    }
+
+    /**
+     * @return true if the sensor feeds the source: the accelerometer and the magnetometer feed
+     * RAW and FUSED, the gyroscope feeds FUSED, the rotation vector feeds ROTATION_VECTOR.
+     */
+    public static boolean isInputOf(int type, SensorSourceType srcType) {
+        switch (type) {
+            case ACCELEROMETER:
+            case MAGNETIC_FIELD:
+                return (srcType == SensorSourceType.RAW) || (srcType == SensorSourceType.FUSED);
+            case GYROSCOPE:
+                return srcType == SensorSourceType.FUSED;
+            case ROTATION_VECTOR:
+                return srcType == SensorSourceType.ROTATION_VECTOR;
+            default:
+                return false;
+        }
+    }
+}
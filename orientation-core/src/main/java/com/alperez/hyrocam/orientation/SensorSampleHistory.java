@@ -0,0 +1,140 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Short history of timestamped 3-axis sensor samples, stored in pre-allocated primitive
+ * arrays. Used to get a sensor value at an arbitrary timestamp, so samples of two sensors
+ * can be paired at the same moment of time.
+ * <p>
+ * A sample of the other sensor usually arrives after the latest stored one, so the value
+ * can be extrapolated linearly ahead of the latest sample, see {@link #setMaxExtrapolationNs(long)}.
+ * <p>
+ * Samples must be added in timestamp order. Instances are not thread-safe and allocate
+ * nothing after construction.
+ */
+public class SensorSampleHistory {
+
+    private final int mMask;
+    private final long[] mTimestamps;
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+
+    /** Total number of samples ever added */
+    private long mCount;
+
+    private long mMaxExtrapolationNs;
+
+    /**
+     * @param capacity number of samples to keep. Must be a power of 2.
+     */
+    public SensorSampleHistory(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a positive power of 2 - "+capacity);
+        }
+        mMask = capacity - 1;
+        mTimestamps = new long[capacity];
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mZ = new float[capacity];
+    }
+
+    /**
+     * Allow {@link #getAt(long, float[])} to extrapolate the value after the latest sample from
+     * the last two, not further ahead than this and than the interval between them.
+     * @param maxExtrapolationNs 0 (default) - the latest sample is used as is
+     */
+    public void setMaxExtrapolationNs(long maxExtrapolationNs) {
+        if (maxExtrapolationNs < 0) {
+            throw new IllegalArgumentException("Maximum extrapolation must not be negative - "+maxExtrapolationNs);
+        }
+        mMaxExtrapolationNs = maxExtrapolationNs;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return timestamp of the latest sample. Undefined if empty.
+     */
+    public long getLatestTimestamp() {
+        return mTimestamps[(int)(mCount - 1) & mMask];
+    }
+
+    public void add(long timestamp, float[] values) {
+        final int i = (int) mCount & mMask;
+        mTimestamps[i] = timestamp;
+        mX[i] = values[0];
+        mY[i] = values[1];
+        mZ[i] = values[2];
+        mCount ++;
+    }
+
+    /**
+     * Get the value at the given time. If the time is bracketed by two stored samples the value
+     * is linearly interpolated between them. If it is after the latest sample, within the
+     * {@link #setMaxExtrapolationNs(long) extrapolation limits}, the value is extrapolated from
+     * the last two samples. Otherwise the closest stored sample (the latest or the oldest one)
+     * is used as is.
+     *
+     * @param timestamp requested time, ns
+     * @param out destination (x, y, z)
+     * @return alignment error in ns: 0 if the value was interpolated or extrapolated, otherwise
+     * the distance between the requested time and the used sample. -1 if the history is empty.
+     */
+    public long getAt(long timestamp, float[] out) {
+        if (mCount == 0) {
+            return -1;
+        }
+        final int capacity = mMask + 1;
+        final long newest = mCount - 1;
+        final long oldest = (mCount > capacity) ? (mCount - capacity) : 0;
+
+        int i = (int) newest & mMask;
+        if (timestamp >= mTimestamps[i]) {
+            final long ahead = timestamp - mTimestamps[i];
+            if (ahead > 0 && ahead <= mMaxExtrapolationNs && newest > oldest) {
+                final int j = (int) (newest - 1) & mMask;
+                final long interval = mTimestamps[i] - mTimestamps[j];
+                if (ahead <= interval) {
+                    final float k = (float)((double) ahead / (double) interval);
+                    out[0] = mX[i] + k * (mX[i] - mX[j]);
+                    out[1] = mY[i] + k * (mY[i] - mY[j]);
+                    out[2] = mZ[i] + k * (mZ[i] - mZ[j]);
+                    return 0;
+                }
+            }
+            copy(i, out);
+            return ahead;
+        }
+
+        // Walk back from the newest sample - the requested time is normally very close to it
+        for (long n = newest - 1; n >= oldest; n--) {
+            final int j = (int) n & mMask;
+            if (mTimestamps[j] <= timestamp) {
+                final long t0 = mTimestamps[j];
+                final long t1 = mTimestamps[i];
+                final float k = (t1 == t0) ? 0 : (float)((double)(timestamp - t0) / (double)(t1 - t0));
+                out[0] = mX[j] + k * (mX[i] - mX[j]);
+                out[1] = mY[j] + k * (mY[i] - mY[j]);
+                out[2] = mZ[j] + k * (mZ[i] - mZ[j]);
+                return 0;
+            }
+            i = j;
+        }
+
+        // Older than everything stored
+        copy(i, out);
+        return mTimestamps[i] - timestamp;
+    }
+
+    private void copy(int i, float[] out) {
+        out[0] = mX[i];
+        out[1] = mY[i];
+        out[2] = mZ[i];
+    }
+}
@@ -0,0 +1,16 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Source of the rotation matrix the angles were calculated from.
+ *
+ * Created by stanislav.perchenko on 23-Oct-15.
+ */
+public enum SensorSourceType {
+    ROTATION_VECTOR, RAW,
+
+    /**
+     * Gyroscope integration corrected by the accelerometer and magnetometer, produced at the
+     * gyroscope rate. See {@link GyroFusionFilter}
+     */
+    FUSED;
+}
@@ -0,0 +1,34 @@
+package com.alperez.hyrocam.orientation;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the binary sensor trace file.
+ * <pre>
+ *   Header (16 bytes):
+ *     int   magic        'HYTR'
+ *     short version
+ *     short recordSize   bytes per record (32)
+ *     long  createdAtMs  wall-clock time of the recording start
+ *
+ *   Record (32 bytes), repeated until the end of the file:
+ *     int   type         one of {@link SensorInputType}
+ *     int   length       number of valid values (1..4)
+ *     long  timestamp    SensorEvent.timestamp, ns
+ *     float v0, v1, v2, v3
+ * </pre>
+ * Fixed-size records allow memory-mapped reading with plain index arithmetic. The byte order is
+ * little-endian (native for Android devices and x86 build boxes).
+ */
+public final class SensorTraceFormat {
+
+    public static final int MAGIC = 0x48595452; // "HYTR"
+    public static final short VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 32;
+    public static final int MAX_VALUES = 4;
+
+    private SensorTraceFormat() {}
+}
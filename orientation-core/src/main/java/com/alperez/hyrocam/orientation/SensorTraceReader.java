@@ -0,0 +1,139 @@
+package com.alperez.hyrocam.orientation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped reader of a binary sensor trace (see {@link SensorTraceFormat}).
+ * <p>
+ * Records are read in place from the mapped file, so iterating does not allocate.
+ * An incomplete record at the end of the file (e.g. the recorder was killed) is ignored.
+ * Instances are not thread-safe.
+ */
+public class SensorTraceReader implements Closeable {
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final long mCreatedAtMs;
+    private final int mRecordsCount;
+
+    private int mPosition;
+
+    //--- Current record ---
+    private int mType;
+    private int mLength;
+    private long mTimestamp;
+    private final float[] mValues = new float[SensorTraceFormat.MAX_VALUES];
+
+    public SensorTraceReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel ch = mFile.getChannel();
+            final long size = ch.size();
+            if (size < SensorTraceFormat.HEADER_SIZE) {
+                throw new IOException("Not a sensor trace - file is too short: "+file);
+            } else if (size > Integer.MAX_VALUE) {
+                throw new IOException("Trace is too big to be mapped at once: "+file);
+            }
+            mMap = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mMap.order(SensorTraceFormat.BYTE_ORDER);
+
+            if (mMap.getInt(0) != SensorTraceFormat.MAGIC) {
+                throw new IOException("Not a sensor trace - wrong magic: "+file);
+            }
+            final short version = mMap.getShort(4);
+            final short recordSize = mMap.getShort(6);
+            if (version != SensorTraceFormat.VERSION || recordSize != SensorTraceFormat.RECORD_SIZE) {
+                throw new IOException(String.format("Unsupported trace version %d (record size %d): %s", version, recordSize, file));
+            }
+            mCreatedAtMs = mMap.getLong(8);
+            mRecordsCount = (int)((size - SensorTraceFormat.HEADER_SIZE) / SensorTraceFormat.RECORD_SIZE);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public long getCreatedAtMs() {
+        return mCreatedAtMs;
+    }
+
+    public int getRecordsCount() {
+        return mRecordsCount;
+    }
+
+    /**
+     * Go back to the first record
+     */
+    public void rewind() {
+        mPosition = 0;
+    }
+
+    /**
+     * Move to the next record.
+     * @return false if there are no more records
+     */
+    public boolean next() {
+        if (mPosition >= mRecordsCount) {
+            return false;
+        }
+        final int offset = SensorTraceFormat.HEADER_SIZE + mPosition * SensorTraceFormat.RECORD_SIZE;
+        final MappedByteBuffer m = mMap;
+        mType = m.getInt(offset);
+        mLength = m.getInt(offset + 4);
+        mTimestamp = m.getLong(offset + 8);
+        for (int i=0; i<SensorTraceFormat.MAX_VALUES; i++) {
+            mValues[i] = m.getFloat(offset + 16 + 4*i);
+        }
+        mPosition ++;
+        return true;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return values of the current record. The array is re-used for every record.
+     */
+    public float[] getValues() {
+        return mValues;
+    }
+
+    /**
+     * Feed the current record into the pipeline
+     */
+    public void dispatchTo(OrientationPipeline pipeline) {
+        switch (mType) {
+            case SensorInputType.ACCELEROMETER:
+                pipeline.onAccelerometer(mTimestamp, mValues);
+                break;
+            case SensorInputType.MAGNETIC_FIELD:
+                pipeline.onMagneticField(mTimestamp, mValues);
+                break;
+            case SensorInputType.ROTATION_VECTOR:
+                pipeline.onRotationVector(mTimestamp, mValues, mLength);
+                break;
+            case SensorInputType.GYROSCOPE:
+                pipeline.onGyroscope(mTimestamp, mValues);
+                break;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,80 @@
+package com.alperez.hyrocam.orientation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes sensor samples into a binary trace file (see {@link SensorTraceFormat}).
+ * <p>
+ * Records are put into a pre-allocated direct buffer which is written to the file channel
+ * when full, so {@link #write(int, long, float[], int)} does not allocate.
+ * Instances are not thread-safe.
+ */
+public class SensorTraceWriter implements Closeable {
+
+    private static final int BUFFER_RECORDS = 2048;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private long mRecordsCount;
+    private boolean closed;
+
+    public SensorTraceWriter(File file) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mBuffer = ByteBuffer.allocateDirect(SensorTraceFormat.RECORD_SIZE * BUFFER_RECORDS).order(SensorTraceFormat.BYTE_ORDER);
+
+        mBuffer.putInt(SensorTraceFormat.MAGIC);
+        mBuffer.putShort(SensorTraceFormat.VERSION);
+        mBuffer.putShort((short) SensorTraceFormat.RECORD_SIZE);
+        mBuffer.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * @param type one of {@link SensorInputType}
+     * @param len number of values, only the first {@link SensorTraceFormat#MAX_VALUES} are stored
+     */
+    public void write(int type, long timestamp, float[] values, int len) throws IOException {
+        if (mBuffer.remaining() < SensorTraceFormat.RECORD_SIZE) {
+            flushBuffer();
+        }
+        final int n = Math.min(len, SensorTraceFormat.MAX_VALUES);
+        final ByteBuffer b = mBuffer;
+        b.putInt(type);
+        b.putInt(n);
+        b.putLong(timestamp);
+        for (int i=0; i<SensorTraceFormat.MAX_VALUES; i++) {
+            b.putFloat((i < n) ? values[i] : 0);
+        }
+        mRecordsCount ++;
+    }
+
+    public long getRecordsCount() {
+        return mRecordsCount;
+    }
+
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                flushBuffer();
+            } finally {
+                mStream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.alperez.hyrocam.orientation;
+
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Layout of the binary session log. A session is a directory with a ring of segment files
+ * named {@code session-NNNNNN.hsl}, each one of a fixed size.
+ * <pre>
+ *   Segment header (32 bytes):
+ *     int   magic         'HYSL'
+ *     short version
+ *     short recordSize    bytes per record (48)
+ *     long  createdAtMs   wall-clock time the segment was started
+ *     int   segmentIndex  sequential number of the segment within the session
+ *     int   recordsCount  number of valid records, updated after every record
+ *     long  reserved
+ *
+ *   Record (48 bytes):
+ *     short kind          {@link #KIND_SENSOR} or {@link #KIND_ANGLES}
+ *     short type          sensor: one of {@link SensorInputType}, angles: {@link SensorSourceType#ordinal()}
+ *     int   length        number of valid values
+ *     long  timestamp     ns
+ *     float v0..v4        sensor: raw values; angles: yaw, pitch, roll, azimuth, inclination
+ *     int   reserved
+ *     double residual     angles: test scalar product
+ * </pre>
+ * The records count in the header is kept up to date by the writer, so a segment is readable
+ * even if the process has been killed in the middle of a session. Byte order is little-endian.
+ */
+public final class SessionLogFormat {
+
+    public static final int MAGIC = 0x4859534C; // "HYSL"
+    public static final short VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 48;
+    public static final int MAX_VALUES = 5;
+
+    public static final short KIND_SENSOR = 1;
+    public static final short KIND_ANGLES = 2;
+
+    //--- Header field offsets ---
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_RECORD_SIZE = 6;
+    static final int OFFSET_CREATED_AT = 8;
+    static final int OFFSET_SEGMENT_INDEX = 16;
+    static final int OFFSET_RECORDS_COUNT = 20;
+
+    //--- Record field offsets ---
+    static final int OFFSET_TYPE = 2;
+    static final int OFFSET_LENGTH = 4;
+    static final int OFFSET_TIMESTAMP = 8;
+    static final int OFFSET_VALUES = 16;
+    static final int OFFSET_RESIDUAL = 40;
+
+    static final String SEGMENT_PREFIX = "session-";
+    static final String SEGMENT_EXTENSION = ".hsl";
+
+    private SessionLogFormat() {}
+
+    public static String segmentFileName(int segmentIndex) {
+        return String.format(Locale.US, "%s%06d%s", SEGMENT_PREFIX, segmentIndex, SEGMENT_EXTENSION);
+    }
+
+    /**
+     * @return segment index encoded in the file name, -1 if this is not a segment file
+     */
+    public static int parseSegmentIndex(String fileName) {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_EXTENSION)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.alperez.hyrocam.orientation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Streams back all records of a session log (see {@link SessionLogFormat}), segment after
+ * segment in the order they were written.
+ * <p>
+ * Segments are memory-mapped one at a time and records are read in place, so iterating does
+ * not allocate except for mapping the next segment. Instances are not thread-safe.
+ */
+public class SessionLogReader implements Closeable {
+
+    private static final SensorSourceType[] SOURCES = SensorSourceType.values();
+
+    private final File[] mSegmentFiles;
+    private int mNextSegment;
+
+    private MappedByteBuffer mMap;
+    private int mSegmentIndex = -1;
+    private long mSegmentCreatedAtMs;
+    private int mSegmentRecords;
+    private int mPosition;
+
+    //--- Current record ---
+    private short mKind;
+    private int mType;
+    private int mLength;
+    private long mTimestamp;
+    private final float[] mValues = new float[SessionLogFormat.MAX_VALUES];
+    private double mResidual;
+
+    /**
+     * @param dir session directory
+     */
+    public SessionLogReader(File dir) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: "+dir);
+        }
+        int n = 0;
+        final int[] indices = new int[files.length];
+        for (File f : files) {
+            final int index = SessionLogFormat.parseSegmentIndex(f.getName());
+            if (index >= 0) {
+                indices[n++] = index;
+            }
+        }
+        Arrays.sort(indices, 0, n);
+        mSegmentFiles = new File[n];
+        for (int i=0; i<n; i++) {
+            mSegmentFiles[i] = new File(dir, SessionLogFormat.segmentFileName(indices[i]));
+        }
+    }
+
+    public int getSegmentsCount() {
+        return mSegmentFiles.length;
+    }
+
+    /**
+     * Move to the next record.
+     * @return false if there are no more records
+     */
+    public boolean next() throws IOException {
+        while (mMap == null || mPosition >= mSegmentRecords) {
+            if (mNextSegment >= mSegmentFiles.length) {
+                return false;
+            }
+            openSegment(mSegmentFiles[mNextSegment++]);
+        }
+        final int offset = SessionLogFormat.HEADER_SIZE + mPosition * SessionLogFormat.RECORD_SIZE;
+        final MappedByteBuffer m = mMap;
+        mKind = m.getShort(offset);
+        mType = m.getShort(offset + SessionLogFormat.OFFSET_TYPE);
+        mLength = m.getInt(offset + SessionLogFormat.OFFSET_LENGTH);
+        mTimestamp = m.getLong(offset + SessionLogFormat.OFFSET_TIMESTAMP);
+        for (int i=0; i<SessionLogFormat.MAX_VALUES; i++) {
+            mValues[i] = m.getFloat(offset + SessionLogFormat.OFFSET_VALUES + 4*i);
+        }
+        mResidual = m.getDouble(offset + SessionLogFormat.OFFSET_RESIDUAL);
+        mPosition ++;
+        return true;
+    }
+
+    private void openSegment(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel ch = raf.getChannel();
+            final long size = ch.size();
+            if (size < SessionLogFormat.HEADER_SIZE) {
+                throw new IOException("Not a session log segment - file is too short: "+file);
+            }
+            mMap = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+        mMap.order(SessionLogFormat.BYTE_ORDER);
+        if (mMap.getInt(0) != SessionLogFormat.MAGIC) {
+            throw new IOException("Not a session log segment - wrong magic: "+file);
+        }
+        final short version = mMap.getShort(SessionLogFormat.OFFSET_VERSION);
+        final short recordSize = mMap.getShort(SessionLogFormat.OFFSET_RECORD_SIZE);
+        if (version != SessionLogFormat.VERSION || recordSize != SessionLogFormat.RECORD_SIZE) {
+            throw new IOException(String.format("Unsupported session log version %d (record size %d): %s", version, recordSize, file));
+        }
+        mSegmentCreatedAtMs = mMap.getLong(SessionLogFormat.OFFSET_CREATED_AT);
+        mSegmentIndex = mMap.getInt(SessionLogFormat.OFFSET_SEGMENT_INDEX);
+        final long capacity = (mMap.capacity() - SessionLogFormat.HEADER_SIZE) / SessionLogFormat.RECORD_SIZE;
+        mSegmentRecords = (int) Math.min(capacity, mMap.getInt(SessionLogFormat.OFFSET_RECORDS_COUNT));
+        mPosition = 0;
+    }
+
+    public int getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    public long getSegmentCreatedAtMs() {
+        return mSegmentCreatedAtMs;
+    }
+
+    /**
+     * @return {@link SessionLogFormat#KIND_SENSOR} or {@link SessionLogFormat#KIND_ANGLES}
+     */
+    public short getKind() {
+        return mKind;
+    }
+
+    public boolean isAngles() {
+        return mKind == SessionLogFormat.KIND_ANGLES;
+    }
+
+    /**
+     * @return sensor type of a {@link SessionLogFormat#KIND_SENSOR} record, see {@link SensorInputType}
+     */
+    public int getSensorType() {
+        return mType;
+    }
+
+    /**
+     * @return source of a {@link SessionLogFormat#KIND_ANGLES} record
+     */
+    public SensorSourceType getSourceType() {
+        return SOURCES[mType];
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return values of the current record: raw sensor values or yaw, pitch, roll, azimuth,
+     * inclination. The array is re-used for every record.
+     */
+    public float[] getValues() {
+        return mValues;
+    }
+
+    /**
+     * @return test scalar product of a {@link SessionLogFormat#KIND_ANGLES} record
+     */
+    public double getResidual() {
+        return mResidual;
+    }
+
+    @Override
+    public void close() {
+        mMap = null;
+        mNextSegment = mSegmentFiles.length;
+    }
+}
@@ -0,0 +1,176 @@
+package com.alperez.hyrocam.orientation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the session log (see {@link SessionLogFormat}): raw sensor inputs and calculated angles.
+ * <p>
+ * Each segment file is pre-sized and memory-mapped, records are stored straight into the mapped
+ * pages, so writing a record is a handful of memory stores - no system call, no copy and no
+ * allocation. The kernel writes the dirty pages back on its own, also after the process has died.
+ * When a segment is full the next one is started. Only the last maxSegments segments are kept,
+ * the oldest one is deleted on rollover, so a session never takes more than
+ * maxSegments * segmentSize bytes of storage.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class SessionLogWriter implements Closeable {
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mRecordsPerSegment;
+    private final File[] mSegments;
+
+    private int mSegmentIndex = -1;
+    private MappedByteBuffer mMap;
+    private int mSegmentRecords;
+    private long mRecordsCount;
+    private boolean closed;
+
+    /**
+     * @param dir session directory. It is created if it does not exist. Segments of a previous
+     *            session left in it are deleted.
+     * @param segmentSize size of one segment file in bytes
+     * @param maxSegments number of the latest segments to keep
+     */
+    public SessionLogWriter(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < SessionLogFormat.HEADER_SIZE + SessionLogFormat.RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small - "+segmentSize);
+        } else if (maxSegments < 1) {
+            throw new IllegalArgumentException("At least one segment must be kept - "+maxSegments);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the session directory: "+dir);
+        }
+        final File[] old = dir.listFiles();
+        if (old != null) {
+            for (File f : old) {
+                if (SessionLogFormat.parseSegmentIndex(f.getName()) >= 0) {
+                    f.delete();
+                }
+            }
+        }
+        mDir = dir;
+        mRecordsPerSegment = (segmentSize - SessionLogFormat.HEADER_SIZE) / SessionLogFormat.RECORD_SIZE;
+        mSegmentSize = SessionLogFormat.HEADER_SIZE + mRecordsPerSegment * SessionLogFormat.RECORD_SIZE;
+        mSegments = new File[maxSegments];
+        startNextSegment();
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    public long getRecordsCount() {
+        return mRecordsCount;
+    }
+
+    /**
+     * Log one raw sensor sample
+     * @param type one of {@link SensorInputType}
+     * @param len number of values, only the first {@link SessionLogFormat#MAX_VALUES} are stored
+     */
+    public void logSensor(int type, long timestamp, float[] values, int len) throws IOException {
+        final int offset = nextRecordOffset();
+        final int n = Math.min(len, SessionLogFormat.MAX_VALUES);
+        final MappedByteBuffer m = mMap;
+        m.putShort(offset, SessionLogFormat.KIND_SENSOR);
+        m.putShort(offset + SessionLogFormat.OFFSET_TYPE, (short) type);
+        m.putInt(offset + SessionLogFormat.OFFSET_LENGTH, n);
+        m.putLong(offset + SessionLogFormat.OFFSET_TIMESTAMP, timestamp);
+        for (int i=0; i<SessionLogFormat.MAX_VALUES; i++) {
+            m.putFloat(offset + SessionLogFormat.OFFSET_VALUES + 4*i, (i < n) ? values[i] : 0);
+        }
+        m.putDouble(offset + SessionLogFormat.OFFSET_RESIDUAL, 0);
+        commitRecord();
+    }
+
+    /**
+     * Log one set of the calculated angles
+     */
+    public void logAngles(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) throws IOException {
+        final int offset = nextRecordOffset();
+        final int v = offset + SessionLogFormat.OFFSET_VALUES;
+        final MappedByteBuffer m = mMap;
+        m.putShort(offset, SessionLogFormat.KIND_ANGLES);
+        m.putShort(offset + SessionLogFormat.OFFSET_TYPE, (short) srcType.ordinal());
+        m.putInt(offset + SessionLogFormat.OFFSET_LENGTH, SessionLogFormat.MAX_VALUES);
+        m.putLong(offset + SessionLogFormat.OFFSET_TIMESTAMP, timestamp);
+        m.putFloat(v, yaw);
+        m.putFloat(v + 4, pitch);
+        m.putFloat(v + 8, roll);
+        m.putFloat(v + 12, camRelAzimuth);
+        m.putFloat(v + 16, camRelInclination);
+        m.putDouble(offset + SessionLogFormat.OFFSET_RESIDUAL, testScalProd);
+        commitRecord();
+    }
+
+    private int nextRecordOffset() throws IOException {
+        if (closed) {
+            throw new IOException("Session log is closed");
+        }
+        if (mSegmentRecords == mRecordsPerSegment) {
+            startNextSegment();
+        }
+        return SessionLogFormat.HEADER_SIZE + mSegmentRecords * SessionLogFormat.RECORD_SIZE;
+    }
+
+    /**
+     * The header count is updated only after the whole record has been stored
+     */
+    private void commitRecord() {
+        mSegmentRecords ++;
+        mRecordsCount ++;
+        mMap.putInt(SessionLogFormat.OFFSET_RECORDS_COUNT, mSegmentRecords);
+    }
+
+    private void startNextSegment() throws IOException {
+        mSegmentIndex ++;
+        final int slot = mSegmentIndex % mSegments.length;
+        if (mSegments[slot] != null) {
+            mSegments[slot].delete();
+        }
+        final File f = new File(mDir, SessionLogFormat.segmentFileName(mSegmentIndex));
+        mSegments[slot] = f;
+
+        final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(mSegmentSize);
+            // The mapping stays valid after the file has been closed
+            mMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } finally {
+            raf.close();
+        }
+        mMap.order(SessionLogFormat.BYTE_ORDER);
+        mMap.putInt(0, SessionLogFormat.MAGIC);
+        mMap.putShort(SessionLogFormat.OFFSET_VERSION, SessionLogFormat.VERSION);
+        mMap.putShort(SessionLogFormat.OFFSET_RECORD_SIZE, (short) SessionLogFormat.RECORD_SIZE);
+        mMap.putLong(SessionLogFormat.OFFSET_CREATED_AT, System.currentTimeMillis());
+        mMap.putInt(SessionLogFormat.OFFSET_SEGMENT_INDEX, mSegmentIndex);
+        mMap.putInt(SessionLogFormat.OFFSET_RECORDS_COUNT, 0);
+        mSegmentRecords = 0;
+    }
+
+    /**
+     * Flush the current segment to the storage. Writing continues to be possible.
+     */
+    public void flush() {
+        if (!closed) {
+            mMap.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            mMap.force();
+            closed = true;
+            mMap = null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Reusable output of {@link MultiTargetSolver}: the plane-relative azimuth and inclination
+ * of every target for one device orientation, stored as a structure of arrays in the order
+ * of the {@link TargetSet}. With view cone culling only the visible targets are present,
+ * so targets must be identified by their ids.
+ * <p>
+ * The arrays grow on demand and are re-used for every calculation, so the content is only
+ * valid until the next one. Instances are not thread-safe.
+ */
+public class TargetAnglesBuffer {
+
+    private int[] mIds = new int[0];
+    private float[] mAzimuth = new float[0];
+    private float[] mInclination = new float[0];
+    private int mSize;
+
+    private SensorSourceType mSourceType;
+    private long mTimestamp;
+
+    public int size() {
+        return mSize;
+    }
+
+    public SensorSourceType getSourceType() {
+        return mSourceType;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getId(int index) {
+        checkIndex(index);
+        return mIds[index];
+    }
+
+    /**
+     * @return plane-relative azimuth of the target in radians
+     */
+    public float getAzimuth(int index) {
+        checkIndex(index);
+        return mAzimuth[index];
+    }
+
+    /**
+     * @return plane-relative inclination of the target in radians
+     */
+    public float getInclination(int index) {
+        checkIndex(index);
+        return mInclination[index];
+    }
+
+    /**
+     * Direct access for bulk consumers. Only the first {@link #size()} elements are valid.
+     * The array is replaced when the buffer grows.
+     */
+    public int[] getIds() {
+        return mIds;
+    }
+
+    /**
+     * @see #getIds()
+     */
+    public float[] getAzimuths() {
+        return mAzimuth;
+    }
+
+    /**
+     * @see #getIds()
+     */
+    public float[] getInclinations() {
+        return mInclination;
+    }
+
+    void setMeta(SensorSourceType srcType, long timestamp) {
+        mSourceType = srcType;
+        mTimestamp = timestamp;
+    }
+
+    void setSize(int size) {
+        if (size > mIds.length) {
+            final int capacity = Math.max(size, mIds.length * 2);
+            mIds = new int[capacity];
+            mAzimuth = new float[capacity];
+            mInclination = new float[capacity];
+        }
+        mSize = size;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index "+index+", size "+mSize);
+        }
+    }
+}
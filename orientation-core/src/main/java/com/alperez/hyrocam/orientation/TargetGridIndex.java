@@ -0,0 +1,249 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * Spatial index of a {@link TargetSet} for view cone culling: a uniform grid of cubic cells,
+ * hashed into a fixed number of buckets. Every bucket is a doubly-linked list of target indices,
+ * kept in primitive arrays.
+ * <p>
+ * Targets are indexed by their absolute (world) positions, so moving the device costs nothing.
+ * {@link #refresh(TargetSet)} is incremental: it re-checks the cell of each target, which is a
+ * few arithmetic operations, and re-links only the targets which have moved to another cell.
+ * It does nothing at all if the set has not changed since the last call.
+ * <p>
+ * {@link #query(float[], float, float, float, float, float, int[])} only visits the cells
+ * overlapping the bounding box of the cone, so its cost depends on the number of targets
+ * near the cone rather than on the total number. When the box covers more cells than there
+ * are targets, it scans all the targets linearly instead.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class TargetGridIndex {
+
+    private static final int NONE = -1;
+
+    private final float mCellSize;
+    private final float mInvCellSize;
+    private final int mBucketMask;
+    private final int[] mHead;
+
+    //--- Per target, by index in the TargetSet ---
+    private int[] mNext = new int[0];
+    private int[] mPrev = new int[0];
+    private int[] mBucket = new int[0];
+    private int[] mCellX = new int[0];
+    private int[] mCellY = new int[0];
+    private int[] mCellZ = new int[0];
+    private int mSize;
+
+    private TargetSet mSyncedSet;
+    private long mSyncedVersion;
+    private long mRelinkedCount;
+
+    /**
+     * @param cellSize edge of a grid cell, in world units. A good value is about the typical
+     *                 distance between neighbouring targets.
+     * @param buckets number of hash buckets. Must be a power of 2.
+     */
+    public TargetGridIndex(float cellSize, int buckets) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive - "+cellSize);
+        } else if (buckets <= 0 || (buckets & (buckets - 1)) != 0) {
+            throw new IllegalArgumentException("Number of buckets must be a positive power of 2 - "+buckets);
+        }
+        mCellSize = cellSize;
+        mInvCellSize = 1f / cellSize;
+        mBucketMask = buckets - 1;
+        mHead = new int[buckets];
+        for (int i=0; i<buckets; i++) {
+            mHead[i] = NONE;
+        }
+    }
+
+    public float getCellSize() {
+        return mCellSize;
+    }
+
+    /**
+     * @return total number of times a target has been (re-)linked into a cell. Shows how much
+     * work the incremental updates do.
+     */
+    public long getRelinkedCount() {
+        return mRelinkedCount;
+    }
+
+    /**
+     * Bring the index in line with the target set
+     */
+    public void refresh(TargetSet targets) {
+        if (targets == mSyncedSet && targets.getVersion() == mSyncedVersion) {
+            return;
+        }
+        final int n = targets.size();
+        ensureCapacity(n);
+        final float[] X = targets.xArray();
+        final float[] Y = targets.yArray();
+        final float[] Z = targets.zArray();
+        for (int i=0; i<n; i++) {
+            final int cx = cell(X[i]);
+            final int cy = cell(Y[i]);
+            final int cz = cell(Z[i]);
+            if (i < mSize) {
+                if (cx == mCellX[i] && cy == mCellY[i] && cz == mCellZ[i]) {
+                    continue;
+                }
+                unlink(i);
+            }
+            link(i, cx, cy, cz);
+        }
+        for (int i=n; i<mSize; i++) {
+            unlink(i);
+        }
+        mSize = n;
+        mSyncedSet = targets;
+        mSyncedVersion = targets.getVersion();
+    }
+
+    /**
+     * Find the targets inside a view cone. The index must be refreshed with the same set.
+     *
+     * @param apex cone apex (the device location), x, y, z
+     * @param ax cone axis, unit vector in the world frame
+     * @param ay cone axis
+     * @param az cone axis
+     * @param halfAngle half of the cone opening angle in radians, 0..PI
+     * @param range maximum distance from the apex
+     * @param outIndices destination for the indices of the targets inside the cone. Must fit all
+     *                   the targets of the set.
+     * @return number of targets found
+     */
+    public int query(float[] apex, float ax, float ay, float az, float halfAngle, float range, int[] outIndices) {
+        final TargetSet targets = mSyncedSet;
+        if (targets == null || mSize == 0) {
+            return 0;
+        }
+        final float sx = apex[0], sy = apex[1], sz = apex[2];
+        final float cosHalf = (float)Math.cos(halfAngle);
+
+        //----  Bounding box of the cone, limited by the range sphere  ----
+        float minX = sx - range, maxX = sx + range;
+        float minY = sy - range, maxY = sy + range;
+        float minZ = sz - range, maxZ = sz + range;
+        if (halfAngle < Math.PI / 3) {
+            // Cone = apex + disk of radius range*tan(halfAngle) at the distance range along the axis
+            final float r = range * (float)Math.tan(halfAngle);
+            final float cx = sx + ax*range, cy = sy + ay*range, cz = sz + az*range;
+            final float ex = r * (float)Math.sqrt(Math.max(0, 1 - ax*ax));
+            final float ey = r * (float)Math.sqrt(Math.max(0, 1 - ay*ay));
+            final float ez = r * (float)Math.sqrt(Math.max(0, 1 - az*az));
+            minX = Math.max(minX, Math.min(sx, cx - ex));
+            maxX = Math.min(maxX, Math.max(sx, cx + ex));
+            minY = Math.max(minY, Math.min(sy, cy - ey));
+            maxY = Math.min(maxY, Math.max(sy, cy + ey));
+            minZ = Math.max(minZ, Math.min(sz, cz - ez));
+            maxZ = Math.min(maxZ, Math.max(sz, cz + ez));
+        }
+        final int x0 = cell(minX), x1 = cell(maxX);
+        final int y0 = cell(minY), y1 = cell(maxY);
+        final int z0 = cell(minZ), z1 = cell(maxZ);
+
+        final float[] X = targets.xArray();
+        final float[] Y = targets.yArray();
+        final float[] Z = targets.zArray();
+        final float range2 = range * range;
+        int n = 0;
+
+        final long nCells = (long)(x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1);
+        if (nCells > mSize) {
+            //----  Linear scan is cheaper  ----
+            for (int i=0; i<mSize; i++) {
+                if (isInside(X[i] - sx, Y[i] - sy, Z[i] - sz, ax, ay, az, cosHalf, range2)) {
+                    outIndices[n++] = i;
+                }
+            }
+            return n;
+        }
+
+        for (int cx=x0; cx<=x1; cx++) {
+            for (int cy=y0; cy<=y1; cy++) {
+                for (int cz=z0; cz<=z1; cz++) {
+                    for (int i = mHead[hash(cx, cy, cz)]; i != NONE; i = mNext[i]) {
+                        // A bucket is shared by all cells with the same hash
+                        if (mCellX[i] == cx && mCellY[i] == cy && mCellZ[i] == cz
+                                && isInside(X[i] - sx, Y[i] - sy, Z[i] - sz, ax, ay, az, cosHalf, range2)) {
+                            outIndices[n++] = i;
+                        }
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    private static boolean isInside(float vx, float vy, float vz, float ax, float ay, float az, float cosHalf, float range2) {
+        final float d2 = vx*vx + vy*vy + vz*vz;
+        if (d2 > range2) {
+            return false;
+        }
+        final float dot = vx*ax + vy*ay + vz*az;
+        // dot >= |v|*cos, squared without the sqrt. Both signs of cos are handled.
+        if (cosHalf >= 0) {
+            return dot >= 0 && dot*dot >= d2 * cosHalf*cosHalf;
+        } else {
+            return dot >= 0 || dot*dot <= d2 * cosHalf*cosHalf;
+        }
+    }
+
+    private int cell(float v) {
+        return (int)Math.floor(v * mInvCellSize);
+    }
+
+    private int hash(int cx, int cy, int cz) {
+        return ((cx * 73856093) ^ (cy * 19349663) ^ (cz * 83492791)) & mBucketMask;
+    }
+
+    private void link(int i, int cx, int cy, int cz) {
+        final int b = hash(cx, cy, cz);
+        mCellX[i] = cx;
+        mCellY[i] = cy;
+        mCellZ[i] = cz;
+        mBucket[i] = b;
+        mPrev[i] = NONE;
+        mNext[i] = mHead[b];
+        if (mHead[b] != NONE) {
+            mPrev[mHead[b]] = i;
+        }
+        mHead[b] = i;
+        mRelinkedCount ++;
+    }
+
+    private void unlink(int i) {
+        final int prev = mPrev[i];
+        final int next = mNext[i];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead[mBucket[i]] = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mNext.length) {
+            final int newCapacity = Math.max(capacity, mNext.length * 2);
+            mNext = grow(mNext, newCapacity);
+            mPrev = grow(mPrev, newCapacity);
+            mBucket = grow(mBucket, newCapacity);
+            mCellX = grow(mCellX, newCapacity);
+            mCellY = grow(mCellY, newCapacity);
+            mCellZ = grow(mCellZ, newCapacity);
+        }
+    }
+
+    private int[] grow(int[] a, int newCapacity) {
+        final int[] b = new int[newCapacity];
+        System.arraycopy(a, 0, b, 0, mSize);
+        return b;
+    }
+}
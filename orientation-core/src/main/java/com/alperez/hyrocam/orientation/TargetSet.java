@@ -0,0 +1,194 @@
+package com.alperez.hyrocam.orientation;
+
+/**
+ * A set of targets (waypoints, beacons) stored as a structure of arrays: x[], y[], z[], id[].
+ * The coordinates are in the same world frame as the device location, see
+ * {@link AnglesCalculator#setSelfLocation(float[])}.
+ * <p>
+ * Keeping each coordinate in its own primitive array lets {@link MultiTargetSolver} run over
+ * all the targets in one linear, cache-friendly pass. The arrays grow on demand when targets are
+ * added, nothing is allocated by the other methods. Every change increments the version, which
+ * can be used to detect changes cheaply.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class TargetSet {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private float[] mX;
+    private float[] mY;
+    private float[] mZ;
+    private int[] mIds;
+    private int mSize;
+    private long mVersion;
+
+    public TargetSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TargetSet(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative - "+initialCapacity);
+        }
+        mX = new float[initialCapacity];
+        mY = new float[initialCapacity];
+        mZ = new float[initialCapacity];
+        mIds = new int[initialCapacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return counter incremented by every change of the set
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Add a target or move an existing one with the same id
+     * @return index of the target
+     */
+    public int put(int id, float x, float y, float z) {
+        int i = indexOf(id);
+        if (i < 0) {
+            ensureCapacity(mSize + 1);
+            i = mSize++;
+            mIds[i] = id;
+        }
+        mX[i] = x;
+        mY[i] = y;
+        mZ[i] = z;
+        mVersion ++;
+        return i;
+    }
+
+    /**
+     * Move the target at the given index
+     */
+    public void setLocation(int index, float x, float y, float z) {
+        checkIndex(index);
+        mX[index] = x;
+        mY[index] = y;
+        mZ[index] = z;
+        mVersion ++;
+    }
+
+    /**
+     * Remove the target. The last target is moved into its place, so indices of the other
+     * targets are not stable across removals.
+     * @return true if the target was found
+     */
+    public boolean remove(int id) {
+        final int i = indexOf(id);
+        if (i < 0) {
+            return false;
+        }
+        final int last = --mSize;
+        mX[i] = mX[last];
+        mY[i] = mY[last];
+        mZ[i] = mZ[last];
+        mIds[i] = mIds[last];
+        mVersion ++;
+        return true;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mVersion ++;
+    }
+
+    /**
+     * @return index of the target with the given id, -1 if there is no such target
+     */
+    public int indexOf(int id) {
+        final int[] ids = mIds;
+        for (int i=0; i<mSize; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getId(int index) {
+        checkIndex(index);
+        return mIds[index];
+    }
+
+    public float getX(int index) {
+        checkIndex(index);
+        return mX[index];
+    }
+
+    public float getY(int index) {
+        checkIndex(index);
+        return mY[index];
+    }
+
+    public float getZ(int index) {
+        checkIndex(index);
+        return mZ[index];
+    }
+
+    /**
+     * Replace the content with a copy of another set. The arrays are re-used if big enough.
+     */
+    public void copyFrom(TargetSet other) {
+        ensureCapacity(other.mSize);
+        System.arraycopy(other.mX, 0, mX, 0, other.mSize);
+        System.arraycopy(other.mY, 0, mY, 0, other.mSize);
+        System.arraycopy(other.mZ, 0, mZ, 0, other.mSize);
+        System.arraycopy(other.mIds, 0, mIds, 0, other.mSize);
+        mSize = other.mSize;
+        mVersion ++;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > mIds.length) {
+            final int newCapacity = Math.max(capacity, mIds.length * 2);
+            mX = grow(mX, newCapacity);
+            mY = grow(mY, newCapacity);
+            mZ = grow(mZ, newCapacity);
+            final int[] ids = new int[newCapacity];
+            System.arraycopy(mIds, 0, ids, 0, mSize);
+            mIds = ids;
+        }
+    }
+
+    private float[] grow(float[] a, int newCapacity) {
+        final float[] b = new float[newCapacity];
+        System.arraycopy(a, 0, b, 0, mSize);
+        return b;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index "+index+", size "+mSize);
+        }
+    }
+
+    //--- Direct access for the batch kernels. Only the first size() elements are valid ---
+    float[] xArray() {
+        return mX;
+    }
+
+    float[] yArray() {
+        return mY;
+    }
+
+    float[] zArray() {
+        return mZ;
+    }
+
+    int[] idArray() {
+        return mIds;
+    }
+}
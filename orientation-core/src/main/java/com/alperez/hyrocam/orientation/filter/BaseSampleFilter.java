@@ -0,0 +1,75 @@
+package com.alperez.hyrocam.orientation.filter;
+
+/**
+ * Base of the stages: the number of channels, the time step and the restarts. The first sample
+ * after {@link #reset()}, after a gap longer than {@link #setMaxGapNs(long) the maximum gap},
+ * after a timestamp going back or with a different number of channels to filter (a shorter or
+ * longer sample) restarts the stage: the history is dropped and the sample passes through as is,
+ * so a stopped sensor does not leave a stale state to converge from, and the channels left out
+ * of a short sample do not fall out of step with the others.
+ */
+public abstract class BaseSampleFilter implements SampleFilter {
+
+    public static final long DEFAULT_MAX_GAP_NS = 1000000000L;
+
+    private static final float NS2S = 1.0f / 1000000000.0f;
+
+    protected final int mChannels;
+    private long mMaxGapNs = DEFAULT_MAX_GAP_NS;
+    private long mLastTimestamp;
+    private int mLastN;
+    private boolean started;
+
+    /**
+     * @param channels number of values of a sample to filter
+     */
+    protected BaseSampleFilter(int channels) {
+        if (channels <= 0) {
+            throw new IllegalArgumentException("Number of channels must be positive - "+channels);
+        }
+        mChannels = channels;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public void setMaxGapNs(long maxGapNs) {
+        if (maxGapNs <= 0) {
+            throw new IllegalArgumentException("Maximum gap must be positive - "+maxGapNs);
+        }
+        mMaxGapNs = maxGapNs;
+    }
+
+    @Override
+    public final void apply(long timestamp, float[] values, int len) {
+        final int n = (len < mChannels) ? len : mChannels;
+        final long dt = timestamp - mLastTimestamp;
+        if (!started || n != mLastN || dt < 0 || dt > mMaxGapNs) {
+            started = true;
+            mLastN = n;
+            onStart(values, n);
+        } else {
+            onSample(dt * NS2S, values, n);
+        }
+        mLastTimestamp = timestamp;
+    }
+
+    @Override
+    public final void reset() {
+        started = false;
+    }
+
+    /**
+     * First sample after a restart. Initialize the state from it, the values must stay as they are.
+     * @param n number of channels to use
+     */
+    protected abstract void onStart(float[] values, int n);
+
+    /**
+     * Filter the next sample in place.
+     * @param dt time since the previous sample, seconds. Can be 0 for samples with the same timestamp.
+     * @param n number of channels to filter
+     */
+    protected abstract void onSample(float dt, float[] values, int n);
+}
@@ -0,0 +1,45 @@
+package com.alperez.hyrocam.orientation.filter;
+
+/**
+ * Stages applied one after another to the same buffer, e.g. outlier rejection followed by a
+ * low-pass:
+ * <pre>
+ *     new FilterChain(new MedianFilter(3, 5), new LowPassFilter(3, 5f))
+ * </pre>
+ */
+public class FilterChain implements SampleFilter {
+
+    private final SampleFilter[] mStages;
+
+    public FilterChain(SampleFilter... stages) {
+        for (SampleFilter s : stages) {
+            if (s == null) {
+                throw new IllegalArgumentException("Stage must not be null");
+            }
+        }
+        mStages = stages.clone();
+    }
+
+    public int size() {
+        return mStages.length;
+    }
+
+    public SampleFilter getStage(int index) {
+        return mStages[index];
+    }
+
+    @Override
+    public void apply(long timestamp, float[] values, int len) {
+        final SampleFilter[] stages = mStages;
+        for (int i=0; i<stages.length; i++) {
+            stages[i].apply(timestamp, values, len);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (SampleFilter s : mStages) {
+            s.reset();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.alperez.hyrocam.orientation.filter;
+
+/**
+ * First-order low-pass (exponential smoothing) with the cut-off given in Hz. The weight of the
+ * new sample is derived from the actual time step, so the response does not change with the
+ * sampling rate:
+ * <pre>
+ *     tau = 1 / (2 * pi * fc),  a = dt / (tau + dt),  y += a * (x - y)
+ * </pre>
+ * The lag is about tau: ~32 ms at 5 Hz.
+ */
+public class LowPassFilter extends BaseSampleFilter {
+
+    private final float[] mState;
+    private float mTau;
+
+    public LowPassFilter(int channels, float cutoffHz) {
+        super(channels);
+        mState = new float[channels];
+        setCutoff(cutoffHz);
+    }
+
+    public void setCutoff(float cutoffHz) {
+        if (!(cutoffHz > 0)) {
+            throw new IllegalArgumentException("Cut-off frequency must be positive - "+cutoffHz);
+        }
+        mTau = (float) (1.0 / (2 * Math.PI * cutoffHz));
+    }
+
+    @Override
+    protected void onStart(float[] values, int n) {
+        System.arraycopy(values, 0, mState, 0, n);
+    }
+
+    @Override
+    protected void onSample(float dt, float[] values, int n) {
+        final float a = dt / (mTau + dt);
+        final float[] y = mState;
+        for (int i=0; i<n; i++) {
+            y[i] += a * (values[i] - y[i]);
+            values[i] = y[i];
+        }
+    }
+}
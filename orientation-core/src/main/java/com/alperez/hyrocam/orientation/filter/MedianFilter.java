@@ -0,0 +1,109 @@
+package com.alperez.hyrocam.orientation.filter;
+
+/**
+ * Running median of the last N samples, per channel. Removes spikes (e.g. a magnetometer sample
+ * disturbed by a motor) without smearing them into the neighbours like the averaging stages do.
+ * <p>
+ * With an outlier threshold set, it works as an outlier rejector instead (Hampel filter): a value
+ * is replaced by the median only if it is further than the threshold from it, other values pass
+ * through unchanged and without lag. Without the threshold the output is the median, which lags
+ * by (N - 1) / 2 samples.
+ * <p>
+ * A sorted copy of each window is kept along with it: the value leaving the window is removed
+ * from it and the new one inserted, O(N) per value for the short windows this is meant for
+ * (3..{@link #MAX_WINDOW}).
+ */
+public class MedianFilter extends BaseSampleFilter {
+
+    public static final int MAX_WINDOW = 31;
+
+    private final int mWindow;
+    // Window of each channel: mHistory[channel * mWindow + position]
+    private final float[] mHistory;
+    // Sorted windows, same layout. The first mCount values of each are valid.
+    private final float[] mSorted;
+    private int mPos;
+    private int mCount;
+    private float mThreshold;
+
+    /**
+     * @param window number of samples, odd, 3..MAX_WINDOW
+     */
+    public MedianFilter(int channels, int window) {
+        super(channels);
+        if (window < 3 || window > MAX_WINDOW || (window & 1) == 0) {
+            throw new IllegalArgumentException("Window must be odd and in 3.."+MAX_WINDOW+" - "+window);
+        }
+        mWindow = window;
+        mHistory = new float[channels * window];
+        mSorted = new float[channels * window];
+    }
+
+    /**
+     * @param threshold replace only the values further than this from the median, in the units
+     *                  of the sensor. 0 - always output the median.
+     */
+    public void setOutlierThreshold(float threshold) {
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("Threshold must not be negative - "+threshold);
+        }
+        mThreshold = threshold;
+    }
+
+    @Override
+    protected void onStart(float[] values, int n) {
+        for (int i=0; i<n; i++) {
+            mHistory[i * mWindow] = values[i];
+            mSorted[i * mWindow] = values[i];
+        }
+        mPos = 1;
+        mCount = 1;
+    }
+
+    @Override
+    protected void onSample(float dt, float[] values, int n) {
+        final int w = mWindow;
+        final int pos = (mPos == w) ? 0 : mPos;
+        final boolean full = (mCount == w);
+        final int count = full ? w : (mCount + 1);
+        final float[] h = mHistory;
+        final float[] s = mSorted;
+        final float threshold = mThreshold;
+        for (int i=0; i<n; i++) {
+            final int base = i * w;
+            final float v = values[i];
+
+            //----  Remove the leaving value from the sorted window, insert the new one  ----
+            int j;
+            if (full) {
+                final float old = h[base + pos];
+                // Bounded, as a NaN is never equal to itself
+                int k = base;
+                while (k < base + w - 1 && s[k] != old) {
+                    k++;
+                }
+                // Shift the tail down over the removed value
+                for (j=k; j<base + w - 1; j++) {
+                    s[j] = s[j + 1];
+                }
+                j = base + w - 2;
+            } else {
+                j = base + mCount - 1;
+            }
+            while (j >= base && s[j] > v) {
+                s[j + 1] = s[j];
+                j--;
+            }
+            s[j + 1] = v;
+            h[base + pos] = v;
+
+            final int mid = base + (count >> 1);
+            final float median = ((count & 1) != 0) ? s[mid] : 0.5f * (s[mid - 1] + s[mid]);
+            if (threshold == 0 || Math.abs(v - median) > threshold) {
+                values[i] = median;
+            }
+        }
+        mPos = pos + 1;
+        mCount = count;
+    }
+}
@@ -0,0 +1,77 @@
+package com.alperez.hyrocam.orientation.filter;
+
+/**
+ * Mean of the last N samples (boxcar). The running sums are kept in doubles and re-calculated
+ * from the window once per N samples, so rounding errors do not accumulate; the cost per sample
+ * does not depend on N. The lag is (N - 1) / 2 samples.
+ */
+public class MovingAverageFilter extends BaseSampleFilter {
+
+    private final int mWindow;
+    // Window of each channel: mHistory[channel * mWindow + position]
+    private final float[] mHistory;
+    private final double[] mSums;
+    private int mPos;
+    private int mCount;
+
+    /**
+     * @param window number of samples to average
+     */
+    public MovingAverageFilter(int channels, int window) {
+        super(channels);
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive - "+window);
+        }
+        mWindow = window;
+        mHistory = new float[channels * window];
+        mSums = new double[channels];
+    }
+
+    @Override
+    protected void onStart(float[] values, int n) {
+        for (int i=0; i<n; i++) {
+            mHistory[i * mWindow] = values[i];
+            mSums[i] = values[i];
+        }
+        mPos = 1;
+        mCount = 1;
+    }
+
+    @Override
+    protected void onSample(float dt, float[] values, int n) {
+        final int w = mWindow;
+        final int pos = (mPos == w) ? 0 : mPos;
+        final boolean full = (mCount == w);
+        if (!full) {
+            mCount ++;
+        }
+        final float[] h = mHistory;
+        for (int i=0; i<n; i++) {
+            final int k = i * w + pos;
+            if (full) {
+                mSums[i] -= h[k];
+            }
+            h[k] = values[i];
+            mSums[i] += values[i];
+        }
+        mPos = pos + 1;
+        if (full && mPos == w) {
+            resum(n);
+        }
+        final float inv = 1.0f / mCount;
+        for (int i=0; i<n; i++) {
+            values[i] = (float) (mSums[i] * inv);
+        }
+    }
+
+    private void resum(int n) {
+        final int w = mWindow;
+        for (int i=0; i<n; i++) {
+            double s = 0;
+            for (int k=i*w, end=k+w; k<end; k++) {
+                s += mHistory[k];
+            }
+            mSums[i] = s;
+        }
+    }
+}
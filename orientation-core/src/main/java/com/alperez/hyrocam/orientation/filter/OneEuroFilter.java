@@ -0,0 +1,82 @@
+package com.alperez.hyrocam.orientation.filter;
+
+/**
+ * The "1-Euro" filter (Casiez, Roussel, Vogel, CHI 2012): a low-pass whose cut-off grows with the
+ * speed of the signal. Slow changes are smoothed hard (no jitter while the device is held still),
+ * fast ones get through with little lag.
+ * <pre>
+ *     dx = lowpass((x - x_prev) / dt, dCutoff)
+ *     fc = minCutoff + beta * |dx|
+ *     y  = lowpass(x, fc)
+ * </pre>
+ * Tuning: with the device still lower minCutoff until the jitter is acceptable, then with fast
+ * motion raise beta until the lag is acceptable.
+ */
+public class OneEuroFilter extends BaseSampleFilter {
+
+    private static final float TWO_PI = (float) (2 * Math.PI);
+
+    private final float[] mValue;
+    private final float[] mDerivative;
+    private float mMinCutoff;
+    private float mBeta;
+    private float mDerivativeCutoff;
+
+    /**
+     * @param minCutoff cut-off at zero speed, Hz
+     * @param beta growth of the cut-off with the speed, Hz per (unit/s)
+     * @param derivativeCutoff cut-off of the speed estimate, Hz
+     */
+    public OneEuroFilter(int channels, float minCutoff, float beta, float derivativeCutoff) {
+        super(channels);
+        mValue = new float[channels];
+        mDerivative = new float[channels];
+        setParameters(minCutoff, beta, derivativeCutoff);
+    }
+
+    public void setParameters(float minCutoff, float beta, float derivativeCutoff) {
+        if (!(minCutoff > 0)) {
+            throw new IllegalArgumentException("Minimum cut-off must be positive - "+minCutoff);
+        } else if (!(beta >= 0)) {
+            throw new IllegalArgumentException("Beta must not be negative - "+beta);
+        } else if (!(derivativeCutoff > 0)) {
+            throw new IllegalArgumentException("Derivative cut-off must be positive - "+derivativeCutoff);
+        }
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mDerivativeCutoff = derivativeCutoff;
+    }
+
+    @Override
+    protected void onStart(float[] values, int n) {
+        for (int i=0; i<n; i++) {
+            mValue[i] = values[i];
+            mDerivative[i] = 0;
+        }
+    }
+
+    @Override
+    protected void onSample(float dt, float[] values, int n) {
+        if (dt <= 0) {
+            System.arraycopy(mValue, 0, values, 0, n);
+            return;
+        }
+        final float aD = alpha(mDerivativeCutoff, dt);
+        final float[] y = mValue;
+        final float[] d = mDerivative;
+        for (int i=0; i<n; i++) {
+            final float x = values[i];
+            d[i] += aD * ((x - y[i]) / dt - d[i]);
+            final float cutoff = mMinCutoff + mBeta * Math.abs(d[i]);
+            y[i] += alpha(cutoff, dt) * (x - y[i]);
+            values[i] = y[i];
+        }
+    }
+
+    /**
+     * Weight of the new sample of a first-order low-pass, 1 / (1 + tau / dt)
+     */
+    private static float alpha(float cutoff, float dt) {
+        return dt / (dt + 1.0f / (TWO_PI * cutoff));
+    }
+}
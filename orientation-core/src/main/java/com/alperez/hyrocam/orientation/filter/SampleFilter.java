@@ -0,0 +1,27 @@
+package com.alperez.hyrocam.orientation.filter;
+
+/**
+ * One stage of sensor sample filtering. A stage works in place on a primitive float buffer and
+ * keeps its state in arrays allocated by its constructor, so filtering allocates nothing.
+ * Stages are composed with {@link FilterChain} and set per source and per input sensor with
+ * {@link com.alperez.hyrocam.orientation.OrientationPipeline#setInputFilter}.
+ * <p>
+ * Instances are stateful and not thread-safe: a stage must filter the samples of one sensor
+ * only, in timestamp order, on one thread.
+ */
+public interface SampleFilter {
+
+    /**
+     * Filter one sample in place.
+     * @param timestamp sample time, ns
+     * @param values sample values, replaced by the filtered ones
+     * @param len number of valid values. Values above the number of channels of the stage are
+     *            left as they are.
+     */
+    void apply(long timestamp, float[] values, int len);
+
+    /**
+     * Forget the history, the next sample passes through as is.
+     */
+    void reset();
+}
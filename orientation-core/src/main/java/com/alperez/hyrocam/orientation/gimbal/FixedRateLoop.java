@@ -0,0 +1,193 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+import com.alperez.hyrocam.orientation.LatencyStats;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task on a dedicated thread at a fixed rate, independently of whatever feeds it.
+ * <p>
+ * Deadlines are absolute (start + n * period), so the errors of individual wake-ups do not
+ * accumulate. The thread parks until shortly before the deadline and busy-waits the last
+ * {@link #setSpinThresholdNanos(long) spin threshold}, trading some CPU for a lower wake-up jitter.
+ * If a tick overruns the next deadline, the deadlines which have already passed are skipped
+ * (and counted) instead of being run back to back.
+ * <p>
+ * The jitter (actual start of a tick - its deadline) and the duration of the ticks are
+ * recorded in {@link LatencyStats}.
+ */
+public class FixedRateLoop {
+
+    public interface Task {
+        /**
+         * Called once on the loop thread before the first tick.
+         */
+        void onLoopStarted();
+
+        /**
+         * @param deadlineNanos scheduled time of this tick, {@link System#nanoTime()} time base
+         * @param periodNanos loop period
+         */
+        void onTick(long deadlineNanos, long periodNanos);
+
+        /**
+         * Called once on the loop thread after the last tick.
+         */
+        void onLoopStopped();
+    }
+
+    private static final long DEFAULT_SPIN_THRESHOLD_NS = 200000;
+
+    private final String mName;
+    private final Task mTask;
+    private final long mPeriodNs;
+    private volatile long mSpinThresholdNs = DEFAULT_SPIN_THRESHOLD_NS;
+
+    private Thread mThread;
+    private volatile boolean running;
+
+    private final LatencyStats mJitter = new LatencyStats();
+    private final LatencyStats mTickDuration = new LatencyStats();
+    private volatile long mTicksCount;
+    private volatile long mMissedCount;
+
+    /**
+     * @param name name of the loop thread
+     * @param task task to run
+     * @param periodNanos loop period
+     */
+    public FixedRateLoop(String name, Task task, long periodNanos) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task must be provided");
+        } else if (periodNanos <= 0) {
+            throw new IllegalArgumentException("Period must be positive - "+periodNanos);
+        }
+        mName = name;
+        mTask = task;
+        mPeriodNs = periodNanos;
+    }
+
+    /**
+     * @param thresholdNs the last part of each wait which is busy-waited instead of parking
+     *                    the thread. 0 - never spin.
+     */
+    public void setSpinThresholdNanos(long thresholdNs) {
+        if (thresholdNs < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative - "+thresholdNs);
+        }
+        mSpinThresholdNs = thresholdNs;
+    }
+
+    public long getPeriodNanos() {
+        return mPeriodNs;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        running = true;
+        mThread = new Thread(mLoop, mName);
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop the loop and wait for the loop thread to finish.
+     */
+    public synchronized void stop() {
+        final Thread t = mThread;
+        if (t == null) {
+            return;
+        }
+        running = false;
+        mThread = null;
+        LockSupport.unpark(t);
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return wake-up jitter: actual start of a tick minus its deadline
+     */
+    public LatencyStats getJitterStats() {
+        return mJitter;
+    }
+
+    public LatencyStats getTickDurationStats() {
+        return mTickDuration;
+    }
+
+    public long getTicksCount() {
+        return mTicksCount;
+    }
+
+    /**
+     * @return number of deadlines skipped because of overrunning ticks
+     */
+    public long getMissedCount() {
+        return mMissedCount;
+    }
+
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            final long period = mPeriodNs;
+            mTask.onLoopStarted();
+            try {
+                long deadline = System.nanoTime() + period;
+                while (running) {
+                    if (!waitUntil(deadline)) {
+                        break;
+                    }
+                    final long start = System.nanoTime();
+                    mJitter.record(start - deadline);
+                    mTask.onTick(deadline, period);
+                    final long end = System.nanoTime();
+                    mTickDuration.record(end - start);
+                    mTicksCount ++;
+
+                    deadline += period;
+                    if (end > deadline) {
+                        final long missed = (end - deadline) / period + 1;
+                        deadline += missed * period;
+                        mMissedCount += missed;
+                    }
+                }
+            } finally {
+                mTask.onLoopStopped();
+            }
+        }
+    };
+
+    /**
+     * @return false if the loop has been stopped while waiting
+     */
+    private boolean waitUntil(long deadline) {
+        while (running) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            final long spin = mSpinThresholdNs;
+            if (remaining > spin) {
+                LockSupport.parkNanos(this, remaining - spin);
+            }
+        }
+        return false;
+    }
+}
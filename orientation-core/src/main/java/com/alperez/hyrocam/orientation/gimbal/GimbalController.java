@@ -0,0 +1,394 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+import com.alperez.hyrocam.orientation.LatencyStats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Closed-loop output stage which steers a pan/tilt gimbal towards the target.
+ * <p>
+ * The pointing errors are set from any thread whenever new angles are calculated
+ * ({@link #setErrors(float, float)}), at the sensor rate. The controller itself is a
+ * {@link FixedRateLoop.Task}: on every tick it runs one {@link PidController} per axis on the
+ * latest errors and sends the resulting axis rates as a {@link GimbalPacket#TYPE_RATE_COMMAND}
+ * over the {@link GimbalTransport}. Then it reads the status packets sent back by the gimbal,
+ * which echo the command time, so the command round trip is measured.
+ * <p>
+ * If no error has been set for longer than the {@link #setInputTimeout(long) input timeout}
+ * (sensors stopped, target lost) the controller commands zero rates without {@link GimbalPacket#FLAG_ACTIVE},
+ * i.e. "hold", and resets the integrators.
+ * <p>
+ * The transport is opened in {@link #onLoopStarted()} and closed in {@link #onLoopStopped()},
+ * both on the loop thread. The connection is completed by polling {@link GimbalTransport#finishOpen()}
+ * on the ticks, so the loop keeps its rate while connecting; a connection not complete within
+ * {@link #CONNECT_TIMEOUT_NS} fails. If it fails, it is re-opened once per {@link #REOPEN_INTERVAL_NS}.
+ * Nothing is allocated per tick.
+ */
+public class GimbalController implements FixedRateLoop.Task {
+
+    public static final long REOPEN_INTERVAL_NS = 1000000000L;
+    public static final long CONNECT_TIMEOUT_NS = 3000000000L;
+    private static final long DEFAULT_INPUT_TIMEOUT_NS = 250000000L;
+
+    private final GimbalTransport mTransport;
+    private final PidController mPanPid = new PidController(4f, 0.5f, 0.05f);
+    private final PidController mTiltPid = new PidController(4f, 0.5f, 0.05f);
+    private volatile long mInputTimeoutNs = DEFAULT_INPUT_TIMEOUT_NS;
+
+    //--- Input, set from any thread ---
+    private final Object mInputLock = new Object();
+    private float mPanError;
+    private float mTiltError;
+    private float mPanFeedForward;
+    private float mTiltFeedForward;
+    private long mInputTimeNs;
+    private boolean hasInput;
+
+    //--- Loop thread state ---
+    private final ByteBuffer mTxBuffer = ByteBuffer.allocateDirect(GimbalPacket.SIZE);
+    private final ByteBuffer mRxBuffer = ByteBuffer.allocateDirect(GimbalPacket.SIZE * 64);
+    private final GimbalPacket mTxPacket = new GimbalPacket();
+    private final GimbalPacket mRxPacket = new GimbalPacket();
+    private int mSeq;
+    private boolean holding = true;
+    private long mLastOpenAttemptNs;
+    private boolean connecting;
+
+    //--- Results and statistics, read from any thread ---
+    private volatile float mPanCommand;
+    private volatile float mTiltCommand;
+    private volatile float mReportedPan;
+    private volatile float mReportedTilt;
+    private volatile long mStatusCount;
+    private volatile long mSentCount;
+    private volatile long mDroppedCount;
+    private volatile long mHoldTicksCount;
+    private volatile long mTransportErrorsCount;
+    private volatile IOException mLastTransportError;
+    private final LatencyStats mRoundTrip = new LatencyStats();
+    private final LatencyStats mInputAge = new LatencyStats();
+
+    public GimbalController(GimbalTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("Transport must be provided");
+        }
+        mTransport = transport;
+    }
+
+    /**
+     * Both PIDs take a pointing error in radians and output an axis rate in rad/s. Configure
+     * them before the loop is started.
+     */
+    public PidController getPanPid() {
+        return mPanPid;
+    }
+
+    public PidController getTiltPid() {
+        return mTiltPid;
+    }
+
+    /**
+     * @param maxRate maximum axis rate to command, rad/s
+     */
+    public void setMaxRate(float maxRate) {
+        mPanPid.setOutputLimit(maxRate);
+        mTiltPid.setOutputLimit(maxRate);
+    }
+
+    public void setInputTimeout(long timeoutNs) {
+        if (timeoutNs <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive - "+timeoutNs);
+        }
+        mInputTimeoutNs = timeoutNs;
+    }
+
+    /**
+     * Convert the plane-relative azimuth and inclination of the target (as reported by
+     * {@link com.alperez.hyrocam.orientation.AnglesCalculator}) into the pointing errors of the
+     * camera, which looks along the device -Z axis.
+     * <p>
+     * The target direction in the device frame is (cos(i)cos(a), cos(i)sin(a), -sin(i)): the
+     * inclination is unsigned, so the target is assumed to be in front of the camera. The pan error is
+     * the rotation around the device Y axis, the tilt error is the rotation around the device X axis:
+     * <pre>
+     *     pan  = atan2(cos(i)cos(a), sin(i))
+     *     tilt = asin(cos(i)sin(a))
+     * </pre>
+     * Both are 0 when the target is on the camera axis (inclination = pi/2). A positive pan error
+     * means the target is towards the device +X axis, a positive tilt error - towards +Y.
+     *
+     * @param azimuth plane-relative azimuth, rad
+     * @param inclination plane-relative inclination, rad
+     * @param out destination (pan, tilt), rad
+     */
+    public static void toCameraErrors(float azimuth, float inclination, float[] out) {
+        final double ci = Math.cos(inclination);
+        final double tx = ci * Math.cos(azimuth);
+        final double ty = ci * Math.sin(azimuth);
+        out[0] = (float) Math.atan2(tx, Math.sin(inclination));
+        out[1] = (float) Math.asin(Math.max(-1.0, Math.min(1.0, ty)));
+    }
+
+    /**
+     * Set the latest pointing errors. Can be called from any thread.
+     * @param panError rad, positive - the gimbal must pan in the positive direction
+     * @param tiltError rad
+     */
+    public void setErrors(float panError, float tiltError) {
+        setErrors(panError, tiltError, 0, 0);
+    }
+
+    /**
+     * @param panFeedForward feed-forward input of the pan PID, e.g. the known angular rate of the target, rad/s
+     * @param tiltFeedForward feed-forward input of the tilt PID
+     */
+    public void setErrors(float panError, float tiltError, float panFeedForward, float tiltFeedForward) {
+        final long now = System.nanoTime();
+        synchronized (mInputLock) {
+            mPanError = panError;
+            mTiltError = tiltError;
+            mPanFeedForward = panFeedForward;
+            mTiltFeedForward = tiltFeedForward;
+            mInputTimeNs = now;
+            hasInput = true;
+        }
+    }
+
+    /**
+     * Drop the current errors, so the gimbal holds its position from the next tick.
+     */
+    public void clearErrors() {
+        synchronized (mInputLock) {
+            hasInput = false;
+        }
+    }
+
+    /**********************************************************************************************/
+    /***********************************   Loop thread   ******************************************/
+    /**********************************************************************************************/
+
+    @Override
+    public void onLoopStarted() {
+        mPanPid.reset();
+        mTiltPid.reset();
+        holding = true;
+        connecting = false;
+        mRxBuffer.clear();
+        openTransport(System.nanoTime());
+    }
+
+    @Override
+    public void onTick(long deadlineNanos, long periodNanos) {
+        final long now = System.nanoTime();
+        if (!mTransport.isOpen() && !openTransport(now)) {
+            return;
+        }
+
+        float panError, tiltError, panFF, tiltFF;
+        long inputTime;
+        boolean active;
+        synchronized (mInputLock) {
+            panError = mPanError;
+            tiltError = mTiltError;
+            panFF = mPanFeedForward;
+            tiltFF = mTiltFeedForward;
+            inputTime = mInputTimeNs;
+            active = hasInput;
+        }
+        active = active && (now - inputTime <= mInputTimeoutNs);
+
+        //----  Control  ----
+        float panRate = 0, tiltRate = 0;
+        if (active) {
+            final float dt = periodNanos / 1e9f;
+            panRate = mPanPid.update(panError, panFF, dt);
+            tiltRate = mTiltPid.update(tiltError, tiltFF, dt);
+            mInputAge.record(now - inputTime);
+            holding = false;
+        } else {
+            if (!holding) {
+                mPanPid.reset();
+                mTiltPid.reset();
+                holding = true;
+            }
+            mHoldTicksCount ++;
+        }
+        mPanCommand = panRate;
+        mTiltCommand = tiltRate;
+
+        //----  Send the command, read the status  ----
+        mTxPacket.setRateCommand(mSeq++, (int) (now / 1000), panRate, tiltRate, active ? GimbalPacket.FLAG_ACTIVE : 0);
+        mTxBuffer.clear();
+        mTxPacket.encode(mTxBuffer);
+        mTxBuffer.flip();
+        try {
+            if (mTransport.send(mTxBuffer)) {
+                mSentCount ++;
+            } else {
+                mDroppedCount ++;
+            }
+            receiveStatus();
+        } catch (IOException e) {
+            onTransportError(e);
+        }
+    }
+
+    @Override
+    public void onLoopStopped() {
+        try {
+            if (mTransport.isOpen()) {
+                // Leave the gimbal holding its position
+                mTxPacket.setRateCommand(mSeq++, (int) (System.nanoTime() / 1000), 0, 0, 0);
+                mTxBuffer.clear();
+                mTxPacket.encode(mTxBuffer);
+                mTxBuffer.flip();
+                mTransport.send(mTxBuffer);
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            mTransport.close();
+        } catch (IOException e) {
+            // Nothing to do about it
+        }
+    }
+
+    /**
+     * Start opening the transport, or advance the opening in progress. Never blocks.
+     * @return true if the transport is open
+     */
+    private boolean openTransport(long now) {
+        if (!connecting) {
+            if (mLastOpenAttemptNs != 0 && now - mLastOpenAttemptNs < REOPEN_INTERVAL_NS) {
+                return false;
+            }
+            mLastOpenAttemptNs = now;
+            try {
+                mTransport.open();
+            } catch (IOException e) {
+                onTransportError(e);
+                return false;
+            }
+            connecting = true;
+        }
+        try {
+            if (mTransport.finishOpen()) {
+                connecting = false;
+                mRxBuffer.clear();
+                return true;
+            } else if (now - mLastOpenAttemptNs > CONNECT_TIMEOUT_NS) {
+                throw new IOException("Connection timed out");
+            }
+        } catch (IOException e) {
+            onTransportError(e);
+        }
+        return false;
+    }
+
+    private void receiveStatus() throws IOException {
+        final ByteBuffer rx = mRxBuffer;
+        final int n = mTransport.receive(rx);
+        if (n < 0) {
+            throw new IOException("Transport closed by the gimbal");
+        }
+        rx.flip();
+        final int nowUs = (int) (System.nanoTime() / 1000);
+        while (mRxPacket.decode(rx)) {
+            if (mRxPacket.type == GimbalPacket.TYPE_STATUS) {
+                // 32-bit microseconds wrap around, the difference is still correct
+                mRoundTrip.record((nowUs - mRxPacket.timeUs) * 1000L);
+                mReportedPan = mRxPacket.pan;
+                mReportedTilt = mRxPacket.tilt;
+                mStatusCount ++;
+            }
+        }
+        rx.compact();
+    }
+
+    private void onTransportError(IOException e) {
+        mTransportErrorsCount ++;
+        mLastTransportError = e;
+        connecting = false;
+        try {
+            mTransport.close();
+        } catch (IOException ignore) {
+            // Re-opened on one of the next ticks
+        }
+    }
+
+    /**********************************************************************************************/
+    /********************************   Results and statistics   **********************************/
+    /**********************************************************************************************/
+
+    /**
+     * @return pan rate sent with the last command, rad/s
+     */
+    public float getPanCommand() {
+        return mPanCommand;
+    }
+
+    public float getTiltCommand() {
+        return mTiltCommand;
+    }
+
+    /**
+     * @return pan angle reported by the last gimbal status, rad
+     */
+    public float getReportedPan() {
+        return mReportedPan;
+    }
+
+    public float getReportedTilt() {
+        return mReportedTilt;
+    }
+
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return number of commands dropped by the transport because of congestion
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public long getStatusCount() {
+        return mStatusCount;
+    }
+
+    /**
+     * @return number of ticks in which the gimbal has been told to hold (no recent input)
+     */
+    public long getHoldTicksCount() {
+        return mHoldTicksCount;
+    }
+
+    public long getTransportErrorsCount() {
+        return mTransportErrorsCount;
+    }
+
+    /**
+     * @return the last transport error or null
+     */
+    public IOException getLastTransportError() {
+        return mLastTransportError;
+    }
+
+    /**
+     * @return time from sending a command to reading the status which echoes it. Statuses are
+     * read once per tick, so this includes up to one loop period of waiting to be read.
+     */
+    public LatencyStats getRoundTripStats() {
+        return mRoundTrip;
+    }
+
+    /**
+     * @return age of the errors a command has been calculated from, at the time it is sent
+     */
+    public LatencyStats getInputAgeStats() {
+        return mInputAge;
+    }
+}
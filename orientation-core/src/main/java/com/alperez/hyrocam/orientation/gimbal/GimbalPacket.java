@@ -0,0 +1,149 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary packet exchanged with the gimbal, and its codec.
+ * <pre>
+ *   Packet (14 bytes):
+ *     byte  sync         0xA5
+ *     byte  type         {@link #TYPE_RATE_COMMAND} or {@link #TYPE_STATUS}
+ *     short seq          sequence number, wraps around
+ *     int   timeUs       sender time, us (truncated to 32 bits). Echoed back in the status
+ *     short pan          pan axis value
+ *     short tilt         tilt axis value
+ *     byte  flags        {@link #FLAG_ACTIVE}
+ *     byte  crc          CRC-8 (poly 0x07) of the preceding 13 bytes
+ * </pre>
+ * In a rate command the axis values are angular rates in {@link #RATE_UNITS_PER_RAD_S} units
+ * (1 mrad/s, so up to +-32 rad/s). In a status packet they are the axis angles in
+ * {@link #ANGLE_UNITS_PER_RAD} units (0.1 mrad, wrapped to +-pi). The byte order is little-endian,
+ * native for the microcontrollers the servo boards run on.
+ * <p>
+ * Packets are self-synchronizing: a reader skips bytes until it finds the sync byte followed by
+ * a packet with a valid CRC, so a stream can be joined at any point, and the same framing works
+ * over a serial line. Instances are mutable holders, nothing is allocated per packet.
+ */
+public class GimbalPacket {
+
+    public static final int SIZE = 14;
+    public static final byte SYNC = (byte) 0xA5;
+
+    /** Controller -> gimbal: axis angular rates */
+    public static final int TYPE_RATE_COMMAND = 1;
+    /** Gimbal -> controller: axis angles, echoes seq and timeUs of the last command */
+    public static final int TYPE_STATUS = 2;
+
+    /** Set while tracking. A command without it means "hold position" */
+    public static final int FLAG_ACTIVE = 0x01;
+
+    public static final float RATE_UNITS_PER_RAD_S = 1000f;
+    public static final float ANGLE_UNITS_PER_RAD = 10000f;
+
+    private static final byte[] CRC8_TABLE = new byte[256];
+    static {
+        for (int i=0; i<256; i++) {
+            int c = i;
+            for (int b=0; b<8; b++) {
+                c = ((c & 0x80) != 0) ? ((c << 1) ^ 0x07) : (c << 1);
+            }
+            CRC8_TABLE[i] = (byte) c;
+        }
+    }
+
+    public int type;
+    public int seq;
+    public int timeUs;
+    public float pan;
+    public float tilt;
+    public int flags;
+
+    public void setRateCommand(int seq, int timeUs, float panRate, float tiltRate, int flags) {
+        this.type = TYPE_RATE_COMMAND;
+        this.seq = seq & 0xFFFF;
+        this.timeUs = timeUs;
+        this.pan = panRate;
+        this.tilt = tiltRate;
+        this.flags = flags;
+    }
+
+    public void setStatus(int seq, int timeUs, float panAngle, float tiltAngle, int flags) {
+        this.type = TYPE_STATUS;
+        this.seq = seq & 0xFFFF;
+        this.timeUs = timeUs;
+        this.pan = panAngle;
+        this.tilt = tiltAngle;
+        this.flags = flags;
+    }
+
+    /**
+     * Append the encoded packet at the position of the buffer.
+     * @throws java.nio.BufferOverflowException if there are less than {@link #SIZE} bytes remaining
+     */
+    public void encode(ByteBuffer dst) {
+        final float scale = (type == TYPE_STATUS) ? ANGLE_UNITS_PER_RAD : RATE_UNITS_PER_RAD_S;
+        final int start = dst.position();
+        dst.put(SYNC);
+        dst.put((byte) type);
+        putShort(dst, seq);
+        putShort(dst, timeUs);
+        putShort(dst, timeUs >>> 16);
+        putShort(dst, toShort(pan * scale));
+        putShort(dst, toShort(tilt * scale));
+        dst.put((byte) flags);
+        dst.put(crc8(dst, start, SIZE - 1));
+    }
+
+    /**
+     * Decode the next valid packet from the buffer (between position and limit). Bytes before
+     * it (garbage, corrupted packets) are skipped. On success the position is moved past the
+     * packet. If no complete packet is available the position is left at the first byte which
+     * may start one, so the caller can compact the buffer and read more.
+     *
+     * @return true if a packet has been decoded into this instance
+     */
+    public boolean decode(ByteBuffer src) {
+        while (src.remaining() >= SIZE) {
+            final int p = src.position();
+            if (src.get(p) == SYNC && src.get(p + SIZE - 1) == crc8(src, p, SIZE - 1)) {
+                type = src.get(p + 1) & 0xFF;
+                seq = getShort(src, p + 2);
+                timeUs = getShort(src, p + 4) | (getShort(src, p + 6) << 16);
+                final float scale = (type == TYPE_STATUS) ? ANGLE_UNITS_PER_RAD : RATE_UNITS_PER_RAD_S;
+                pan = (short) getShort(src, p + 8) / scale;
+                tilt = (short) getShort(src, p + 10) / scale;
+                flags = src.get(p + 12) & 0xFF;
+                src.position(p + SIZE);
+                return true;
+            }
+            src.position(p + 1);
+        }
+        // Keep a possible packet start for the next read
+        while (src.hasRemaining() && src.get(src.position()) != SYNC) {
+            src.position(src.position() + 1);
+        }
+        return false;
+    }
+
+    public static byte crc8(ByteBuffer buf, int offset, int length) {
+        int c = 0;
+        for (int i=offset, end=offset+length; i<end; i++) {
+            c = CRC8_TABLE[(c ^ buf.get(i)) & 0xFF];
+        }
+        return (byte) c;
+    }
+
+    private static int toShort(float v) {
+        final int i = Math.round(v);
+        return (i > Short.MAX_VALUE) ? Short.MAX_VALUE : ((i < Short.MIN_VALUE) ? Short.MIN_VALUE : i);
+    }
+
+    private static void putShort(ByteBuffer dst, int v) {
+        dst.put((byte) v);
+        dst.put((byte) (v >>> 8));
+    }
+
+    private static int getShort(ByteBuffer src, int p) {
+        return (src.get(p) & 0xFF) | ((src.get(p + 1) & 0xFF) << 8);
+    }
+}
@@ -0,0 +1,195 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Loopback stand-in for the gimbal: a TCP server on the loopback interface which accepts one
+ * controller at a time, executes its rate commands on two simulated axes and answers every command
+ * with a {@link GimbalPacket#TYPE_STATUS} packet. So the whole output stage, including the socket
+ * round trip, can be run and measured on a regular Linux box (see
+ * {@link com.alperez.hyrocam.orientation.tools.GimbalLoopBench}).
+ * <p>
+ * Each axis follows the commanded rate with a first-order lag and a rate limit, and its angle
+ * is the integral of the rate, wrapped to +-pi. A command without {@link GimbalPacket#FLAG_ACTIVE}
+ * brings the axis to a stop.
+ */
+public class GimbalSimulator implements Closeable {
+
+    private final ServerSocketChannel mServer;
+    private Thread mThread;
+    private volatile boolean running;
+    private volatile SocketChannel mClient;
+
+    private volatile float mMaxRate = 10f;
+    private volatile float mTimeConstant = 0.03f;
+
+    //--- Simulated state, written on the simulator thread ---
+    private final float[] mAngle = new float[2];
+    private final float[] mRate = new float[2];
+    private final float[] mCommandedRate = new float[2];
+    private long mLastUpdateNs;
+    private volatile float mPanAngle;
+    private volatile float mTiltAngle;
+    private volatile long mCommandsCount;
+
+    /**
+     * @param port TCP port on the loopback interface, 0 - any free port (see {@link #getPort()})
+     */
+    public GimbalSimulator(int port) throws IOException {
+        mServer = ServerSocketChannel.open();
+        try {
+            mServer.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+        } catch (IOException e) {
+            mServer.close();
+            throw e;
+        }
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(mServer.socket().getInetAddress(), getPort());
+    }
+
+    /**
+     * @param maxRate axis rate limit, rad/s
+     * @param timeConstant time constant of the axis response to a rate command, s
+     */
+    public void setDynamics(float maxRate, float timeConstant) {
+        if (maxRate <= 0 || timeConstant < 0) {
+            throw new IllegalArgumentException("Bad dynamics - maxRate="+maxRate+", timeConstant="+timeConstant);
+        }
+        mMaxRate = maxRate;
+        mTimeConstant = timeConstant;
+    }
+
+    public synchronized void start() {
+        if (mThread == null) {
+            running = true;
+            mThread = new Thread(mServe, "GimbalSimulator");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * @return simulated pan angle as of the last command, rad
+     */
+    public float getPanAngle() {
+        return mPanAngle;
+    }
+
+    public float getTiltAngle() {
+        return mTiltAngle;
+    }
+
+    public long getCommandsCount() {
+        return mCommandsCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final Thread t;
+        synchronized (this) {
+            running = false;
+            t = mThread;
+            mThread = null;
+        }
+        mServer.close();
+        final SocketChannel c = mClient;
+        if (c != null) {
+            c.close();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final Runnable mServe = new Runnable() {
+        @Override
+        public void run() {
+            final ByteBuffer rx = ByteBuffer.allocateDirect(GimbalPacket.SIZE * 64);
+            final ByteBuffer tx = ByteBuffer.allocateDirect(GimbalPacket.SIZE);
+            final GimbalPacket packet = new GimbalPacket();
+            while (running) {
+                try {
+                    final SocketChannel client = mServer.accept();
+                    client.socket().setTcpNoDelay(true);
+                    mClient = client;
+                    mLastUpdateNs = 0;
+                    rx.clear();
+                    try {
+                        while (running && client.read(rx) >= 0) {
+                            rx.flip();
+                            while (packet.decode(rx)) {
+                                if (packet.type == GimbalPacket.TYPE_RATE_COMMAND) {
+                                    execute(packet);
+                                    packet.setStatus(packet.seq, packet.timeUs, mAngle[0], mAngle[1], packet.flags);
+                                    tx.clear();
+                                    packet.encode(tx);
+                                    tx.flip();
+                                    while (tx.hasRemaining()) {
+                                        client.write(tx);
+                                    }
+                                }
+                            }
+                            rx.compact();
+                        }
+                    } finally {
+                        mClient = null;
+                        client.close();
+                    }
+                } catch (IOException e) {
+                    // Client disconnected or the server is closed. Accept the next one while running.
+                }
+            }
+        }
+    };
+
+    private void execute(GimbalPacket command) {
+        final long now = System.nanoTime();
+        if (mLastUpdateNs != 0) {
+            advance((now - mLastUpdateNs) / 1e9f);
+        }
+        mLastUpdateNs = now;
+        final boolean active = (command.flags & GimbalPacket.FLAG_ACTIVE) != 0;
+        mCommandedRate[0] = active ? command.pan : 0;
+        mCommandedRate[1] = active ? command.tilt : 0;
+        mCommandsCount ++;
+    }
+
+    /**
+     * Integrate both axes over dt with the rates commanded so far.
+     */
+    private void advance(float dt) {
+        final float maxRate = mMaxRate;
+        final float tau = mTimeConstant;
+        final float k = (tau > 0) ? (float) (1 - Math.exp(-dt / tau)) : 1f;
+        for (int i=0; i<2; i++) {
+            float rate = mRate[i] + k * (mCommandedRate[i] - mRate[i]);
+            rate = Math.max(-maxRate, Math.min(maxRate, rate));
+            mRate[i] = rate;
+            float a = mAngle[i] + rate * dt;
+            if (a > Math.PI) {
+                a -= 2 * Math.PI;
+            } else if (a < -Math.PI) {
+                a += 2 * Math.PI;
+            }
+            mAngle[i] = a;
+        }
+        mPanAngle = mAngle[0];
+        mTiltAngle = mAngle[1];
+    }
+}
@@ -0,0 +1,43 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte stream to the gimbal, e.g. a socket ({@link SocketChannelTransport}) or a serial line.
+ * All methods are called on the control loop thread (see {@link GimbalController}), so
+ * {@link #send(ByteBuffer)} and {@link #receive(ByteBuffer)} must not block.
+ */
+public interface GimbalTransport extends Closeable {
+
+    /**
+     * Start opening the connection. Must not block either: a connection which takes time, e.g.
+     * a TCP handshake, is completed by {@link #finishOpen()}.
+     */
+    void open() throws IOException;
+
+    /**
+     * Complete the connection started by {@link #open()}, without blocking.
+     * @return true if the transport is open now, false if it is still connecting
+     * @throws IOException if the connection has failed
+     */
+    boolean finishOpen() throws IOException;
+
+    /**
+     * @return true if the connection is complete, so packets can be sent
+     */
+    boolean isOpen();
+
+    /**
+     * Write all the bytes between the position and the limit of the buffer, or nothing at all.
+     * @return false if the packet has been dropped because the stream is congested
+     */
+    boolean send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Read the bytes available right now.
+     * @return number of bytes read, 0 if there are none, -1 if the stream is closed by the peer
+     */
+    int receive(ByteBuffer dst) throws IOException;
+}
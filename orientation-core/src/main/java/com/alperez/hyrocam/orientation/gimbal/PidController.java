@@ -0,0 +1,135 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+/**
+ * Discrete PID controller with a feed-forward term, for one gimbal axis.
+ * <pre>
+ *     u = kP * e + kI * sum(e * dt) + kD * lowpass(de/dt) + kFF * ff
+ * </pre>
+ * The output is clamped to +-outputLimit. The integral does not wind up: it is clamped so the
+ * integral term alone stays within +-integralLimit, and it is not accumulated further while
+ * the output is saturated in the direction of the error. The derivative is low-pass filtered,
+ * since the error changes in steps at the sensor rate while the controller runs at a higher
+ * fixed rate.
+ * <p>
+ * Instances are not thread-safe and allocate nothing.
+ */
+public class PidController {
+
+    private float mKp;
+    private float mKi;
+    private float mKd;
+    private float mKff;
+    private float mOutputLimit = Float.MAX_VALUE;
+    private float mIntegralLimit = Float.MAX_VALUE;
+    private float mDerivativeTimeConstant = 0.02f;
+
+    private float mIntegral;
+    private float mPrevError;
+    private float mDerivative;
+    private boolean hasPrevError;
+
+    public PidController(float kp, float ki, float kd) {
+        setGains(kp, ki, kd);
+    }
+
+    public void setGains(float kp, float ki, float kd) {
+        mKp = kp;
+        mKi = ki;
+        mKd = kd;
+    }
+
+    /**
+     * @param kff gain of the feed-forward input of {@link #update(float, float, float)}
+     */
+    public void setFeedForwardGain(float kff) {
+        mKff = kff;
+    }
+
+    public void setOutputLimit(float limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Output limit must be positive - "+limit);
+        }
+        mOutputLimit = limit;
+    }
+
+    /**
+     * @param limit maximum magnitude of the integral term (kI * sum(e * dt))
+     */
+    public void setIntegralLimit(float limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Integral limit must not be negative - "+limit);
+        }
+        mIntegralLimit = limit;
+    }
+
+    /**
+     * @param seconds time constant of the derivative low-pass filter, 0 - no filtering
+     */
+    public void setDerivativeTimeConstant(float seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("Time constant must not be negative - "+seconds);
+        }
+        mDerivativeTimeConstant = seconds;
+    }
+
+    public float getKp() {
+        return mKp;
+    }
+
+    public float getKi() {
+        return mKi;
+    }
+
+    public float getKd() {
+        return mKd;
+    }
+
+    public float getKff() {
+        return mKff;
+    }
+
+    public void reset() {
+        mIntegral = 0;
+        mPrevError = 0;
+        mDerivative = 0;
+        hasPrevError = false;
+    }
+
+    /**
+     * @param error setpoint - measurement
+     * @param feedForward feed-forward input, e.g. the known rate of the setpoint
+     * @param dt time since the previous update, s
+     * @return control output
+     */
+    public float update(float error, float feedForward, float dt) {
+        if (dt <= 0) {
+            throw new IllegalArgumentException("Time step must be positive - "+dt);
+        }
+
+        //----  Derivative of the error, low-pass filtered  ----
+        if (hasPrevError) {
+            final float raw = (error - mPrevError) / dt;
+            mDerivative += (dt / (mDerivativeTimeConstant + dt)) * (raw - mDerivative);
+        }
+        mPrevError = error;
+        hasPrevError = true;
+
+        //----  Integral, clamped  ----
+        final float prevIntegral = mIntegral;
+        if (mKi != 0) {
+            final float maxIntegral = mIntegralLimit / Math.abs(mKi);
+            mIntegral = Math.max(-maxIntegral, Math.min(maxIntegral, mIntegral + error * dt));
+        }
+
+        float u = mKp * error + mKi * mIntegral + mKd * mDerivative + mKff * feedForward;
+        if (u > mOutputLimit || u < -mOutputLimit) {
+            // Saturated: do not integrate further in the direction that drives the saturation
+            if ((u > 0) == (error > 0)) {
+                u -= mKi * (mIntegral - prevIntegral);
+                mIntegral = prevIntegral;
+            }
+            u = Math.max(-mOutputLimit, Math.min(mOutputLimit, u));
+        }
+        return u;
+    }
+}
@@ -0,0 +1,110 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link GimbalTransport} over a TCP socket, e.g. to {@link GimbalSimulator} or to a bridge to
+ * the servo board. The channel is non-blocking from the start, the connection is completed by
+ * {@link #finishOpen()} polled on the loop ticks, so an unreachable peer never stalls the loop.
+ * Nagle's algorithm is disabled so every command leaves immediately.
+ * <p>
+ * A command which the socket cannot take right now is not queued: the remainder of a partially
+ * written one is kept and completed before anything else, newer commands are dropped until then.
+ * A late servo command is worse than a dropped one.
+ */
+public class SocketChannelTransport implements GimbalTransport {
+
+    private final SocketAddress mAddress;
+    private SocketChannel mChannel;
+    private boolean connected;
+    private final ByteBuffer mPending = ByteBuffer.allocateDirect(GimbalPacket.SIZE * 4);
+    private long mDroppedCount;
+
+    public SocketChannelTransport(SocketAddress address) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address must be provided");
+        }
+        mAddress = address;
+    }
+
+    @Override
+    public void open() throws IOException {
+        close();
+        final SocketChannel ch = SocketChannel.open();
+        try {
+            ch.socket().setTcpNoDelay(true);
+            ch.configureBlocking(false);
+            connected = ch.connect(mAddress);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        mPending.clear().flip();
+        mChannel = ch;
+    }
+
+    @Override
+    public boolean finishOpen() throws IOException {
+        final SocketChannel ch = channel();
+        if (!connected) {
+            connected = ch.finishConnect();
+        }
+        return connected;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connected && (mChannel != null) && mChannel.isOpen();
+    }
+
+    @Override
+    public boolean send(ByteBuffer packet) throws IOException {
+        final SocketChannel ch = channel();
+        if (mPending.hasRemaining()) {
+            ch.write(mPending);
+            if (mPending.hasRemaining()) {
+                mDroppedCount ++;
+                return false;
+            }
+        }
+        ch.write(packet);
+        if (packet.hasRemaining()) {
+            mPending.clear();
+            mPending.put(packet);
+            mPending.flip();
+        }
+        return true;
+    }
+
+    @Override
+    public int receive(ByteBuffer dst) throws IOException {
+        return channel().read(dst);
+    }
+
+    /**
+     * @return number of packets dropped because the socket buffer was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final SocketChannel ch = mChannel;
+        mChannel = null;
+        connected = false;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    private SocketChannel channel() throws IOException {
+        if (mChannel == null) {
+            throw new IOException("Transport is not open");
+        }
+        return mChannel;
+    }
+}
@@ -0,0 +1,362 @@
+package com.alperez.hyrocam.orientation.tools;
+
+import com.alperez.hyrocam.orientation.AnglesCalculator;
+import com.alperez.hyrocam.orientation.FastMath;
+import com.alperez.hyrocam.orientation.QuaternionMath;
+import com.alperez.hyrocam.orientation.RotationMath;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Accuracy and throughput of the {@link FastMath} kernels against java.lang.Math, and of the
+ * fast-math mode of {@link AnglesCalculator} against the exact one.
+ * <p>
+ * Accuracy is checked over the whole input domain, against Math in double:
+ * <ul>
+ *     <li>asin, acos - every float in [-1, 1] (every stride-th one by default)</li>
+ *     <li>invSqrt - every float in [1, 4): the relative error repeats with every even power of 2,
+ *         so this covers all positive normal floats</li>
+ *     <li>atan2 - points on circles of radii from 1e-30 to 1e30 at every 1e-4 rad of the angle,
+ *         plus the axes and the diagonals</li>
+ * </ul>
+ * Throughput is a plain timed loop over pre-generated inputs, enough to compare the variants;
+ * see {@code bench.FastMathBenchmark} for the JMH numbers.
+ * <pre>
+ *   FastMathCheck [options]
+ *     --exhaustive       check asin/acos at every float (slow), default every 16-th
+ *     --seed N           seed of the throughput inputs (default 42)
+ * </pre>
+ * Or from Gradle: {@code ./gradlew :orientation-core:fastMathCheck [-PcheckArgs="--exhaustive"]}
+ */
+public class FastMathCheck {
+
+    private static final int THROUGHPUT_SIZE = 1 << 16;
+    private static final int THROUGHPUT_ROUNDS = 200;
+
+    // Keeps the JIT from dropping the timed loops
+    private static volatile float sink;
+
+    public static void main(String[] args) {
+        int stride = 16;
+        long seed = 42;
+        for (int i=0; i<args.length; i++) {
+            if ("--exhaustive".equals(args[i])) {
+                stride = 1;
+            } else if ("--seed".equals(args[i])) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option - "+args[i]);
+            }
+        }
+
+        System.out.println("Accuracy, max error against java.lang.Math:");
+        checkAsinAcos(stride);
+        checkInvSqrt();
+        checkAtan2();
+        checkCalculator(seed);
+
+        System.out.println("Throughput, ns/op:");
+        measureThroughput(seed);
+    }
+
+    /**********************************************************************************************/
+    /*************************************   Accuracy   *******************************************/
+    /**********************************************************************************************/
+
+    private static void checkAsinAcos(int stride) {
+        double maxAsin = 0, maxAcos = 0;
+        float argAsin = 0, argAcos = 0;
+        long n = 0;
+        // Bit patterns of the floats in [0, 1] are consecutive ints, both signs are checked
+        final int last = Float.floatToRawIntBits(1f);
+        for (int bits=0; bits<=last; bits+=stride) {
+            for (int sign=0; sign<2; sign++) {
+                final float x = (sign == 0) ? Float.intBitsToFloat(bits) : -Float.intBitsToFloat(bits);
+                final double eAsin = Math.abs(FastMath.asin(x) - Math.asin(x));
+                final double eAcos = Math.abs(FastMath.acos(x) - Math.acos(x));
+                if (eAsin > maxAsin) {
+                    maxAsin = eAsin;
+                    argAsin = x;
+                }
+                if (eAcos > maxAcos) {
+                    maxAcos = eAcos;
+                    argAcos = x;
+                }
+                n ++;
+            }
+        }
+        final boolean nanOk = Float.isNaN(FastMath.asin(1.0001f)) && Float.isNaN(FastMath.acos(-1.0001f)) && Float.isNaN(FastMath.asin(Float.NaN));
+        System.out.println(String.format(Locale.US, "  asin     %.2e rad  at x=%s   (%d points%s)", maxAsin, argAsin, n, nanOk ? "" : ", NaN CHECK FAILED"));
+        System.out.println(String.format(Locale.US, "  acos     %.2e rad  at x=%s", maxAcos, argAcos));
+    }
+
+    private static void checkInvSqrt() {
+        double max = 0;
+        float arg = 0;
+        final int first = Float.floatToRawIntBits(1f);
+        final int end = Float.floatToRawIntBits(4f);
+        for (int bits=first; bits<end; bits++) {
+            final float x = Float.intBitsToFloat(bits);
+            final double exact = 1.0 / Math.sqrt(x);
+            final double e = Math.abs(FastMath.invSqrt(x) - exact) / exact;
+            if (e > max) {
+                max = e;
+                arg = x;
+            }
+        }
+        // Spot check of the claim that [1, 4) covers the whole domain
+        double maxOther = 0;
+        for (float x=1e-30f; x<1e30f; x*=1.37f) {
+            final double exact = 1.0 / Math.sqrt(x);
+            maxOther = Math.max(maxOther, Math.abs(FastMath.invSqrt(x) - exact) / exact);
+        }
+        System.out.println(String.format(Locale.US, "  invSqrt  %.2e rel  at x=%s   (%d points; 1e-30..1e30: %.2e)", max, arg, end - first, maxOther));
+    }
+
+    private static void checkAtan2() {
+        double max = 0;
+        float argY = 0, argX = 0;
+        long n = 0;
+        for (double radius=1e-30; radius<=1e30; radius*=10) {
+            for (double a=-Math.PI; a<Math.PI; a+=1e-4) {
+                final float y = (float) (radius * Math.sin(a));
+                final float x = (float) (radius * Math.cos(a));
+                final double e = angleError(FastMath.atan2(y, x), Math.atan2(y, x));
+                if (e > max) {
+                    max = e;
+                    argY = y;
+                    argX = x;
+                }
+                n ++;
+            }
+        }
+        final float[] special = new float[]{0f, 1f, -1f, Float.MIN_NORMAL, -Float.MIN_NORMAL, Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (float y : special) {
+            for (float x : special) {
+                if (x == 0 && y == 0) {
+                    continue;
+                }
+                final double e = angleError(FastMath.atan2(y, x), Math.atan2(y, x));
+                if (e > max) {
+                    max = e;
+                    argY = y;
+                    argX = x;
+                }
+                n ++;
+            }
+        }
+        System.out.println(String.format(Locale.US, "  atan2    %.2e rad  at (%s, %s)   (%d points)", max, argY, argX, n));
+    }
+
+    /**
+     * @return difference of the angles, with PI and -PI the same
+     */
+    private static double angleError(double a, double b) {
+        final double d = Math.abs(a - b);
+        return Math.min(d, 2*Math.PI - d);
+    }
+
+    /**
+     * Both modes of the calculator, both paths, against the angles calculated in double
+     */
+    private static void checkCalculator(long seed) {
+        final AnglesCalculator exact = new AnglesCalculator();
+        final AnglesCalculator fast = new AnglesCalculator();
+        fast.setFastMath(true);
+        for (AnglesCalculator c : new AnglesCalculator[]{exact, fast}) {
+            c.setTargetLocation(CHECK_TARGET);
+            c.setSelfLocation(CHECK_SELF);
+        }
+
+        final Random rnd = new Random(seed);
+        final float[] q = new float[4];
+        final float[] R = new float[9];
+        final double[] ref = new double[5];
+        final double[] t = new double[3];
+        // Index: [exact matrix, fast matrix, exact quaternion, fast quaternion][angle]
+        final double[][] max = new double[4][5];
+        for (int i=0; i<1000000; i++) {
+            randomQuaternion(rnd, q);
+            toRotationMatrix(q, R);
+            referenceAngles(q, t, ref);
+            exact.calculate(R);
+            accumulate(exact, ref, max[0]);
+            fast.calculate(R);
+            accumulate(fast, ref, max[1]);
+            exact.calculateFromQuaternion(q);
+            accumulate(exact, ref, max[2]);
+            fast.calculateFromQuaternion(q);
+            accumulate(fast, ref, max[3]);
+        }
+        System.out.println("  AnglesCalculator against double, deg (yaw and roll within 1 deg of +-90 pitch excluded):");
+        System.out.println("                       yaw      pitch    roll     azimuth  inclination");
+        final String[] labels = new String[]{"matrix, exact", "matrix, fast", "quaternion, exact", "quaternion, fast"};
+        for (int k=0; k<4; k++) {
+            System.out.println(String.format(Locale.US, "    %-19s%.1e  %.1e  %.1e  %.1e  %.1e", labels[k],
+                    Math.toDegrees(max[k][0]), Math.toDegrees(max[k][1]), Math.toDegrees(max[k][2]), Math.toDegrees(max[k][3]), Math.toDegrees(max[k][4])));
+        }
+    }
+
+    private static final float[] CHECK_TARGET = new float[]{150, 600, 220};
+    private static final float[] CHECK_SELF = new float[]{0, 0, 500};
+
+    /**
+     * @param ref destination for yaw, pitch, roll, azimuth and inclination; NaN yaw and roll
+     *            near the gimbal lock
+     */
+    private static void referenceAngles(float[] q, double[] t, double[] ref) {
+        final double w = q[0], x = q[1], y = q[2], z = q[3];
+        final double r1 = 2 * (x*y - w*z);
+        final double r4 = 1 - 2 * (x*x + z*z);
+        final double r6 = 2 * (x*z - w*y);
+        final double r7 = 2 * (y*z + w*x);
+        final double r8 = 1 - 2 * (x*x + y*y);
+        ref[1] = Math.asin(Math.max(-1, Math.min(1, -r7)));
+        final boolean locked = Math.abs(ref[1]) > Math.toRadians(89);
+        ref[0] = locked ? Double.NaN : Math.atan2(r1, r4);
+        ref[2] = locked ? Double.NaN : Math.atan2(-r6, r8);
+        QuaternionMath.rotateInverse(q, (double) CHECK_TARGET[0] - CHECK_SELF[0], (double) CHECK_TARGET[1] - CHECK_SELF[1], (double) CHECK_TARGET[2] - CHECK_SELF[2], t);
+        ref[3] = Math.atan2(t[1], t[0]);
+        ref[4] = Math.atan2(Math.abs(t[2]), Math.hypot(t[0], t[1]));
+    }
+
+    private static void accumulate(AnglesCalculator c, double[] ref, double[] max) {
+        final float[] angles = new float[]{c.getYaw(), c.getPitch(), c.getRoll(), c.getAzimuth(), c.getInclination()};
+        for (int i=0; i<5; i++) {
+            if (!Double.isNaN(ref[i])) {
+                max[i] = Math.max(max[i], angleError(angles[i], ref[i]));
+            }
+        }
+    }
+
+    private static void randomQuaternion(Random rnd, float[] q) {
+        final double w = rnd.nextGaussian(), x = rnd.nextGaussian(), y = rnd.nextGaussian(), z = rnd.nextGaussian();
+        final double len = Math.sqrt(w*w + x*x + y*y + z*z);
+        q[0] = (float) (w / len);
+        q[1] = (float) (x / len);
+        q[2] = (float) (y / len);
+        q[3] = (float) (z / len);
+    }
+
+    private static void toRotationMatrix(float[] q, float[] R) {
+        // Rotation vector is (x, y, z, w)
+        RotationMath.getRotationMatrixFromVector(R, new float[]{q[1], q[2], q[3], q[0]}, 4);
+    }
+
+    /**********************************************************************************************/
+    /************************************   Throughput   ******************************************/
+    /**********************************************************************************************/
+
+    private static void measureThroughput(long seed) {
+        final Random rnd = new Random(seed);
+        final int n = THROUGHPUT_SIZE;
+        final float[] unit = new float[n];
+        final float[] xs = new float[n];
+        final float[] ys = new float[n];
+        final float[] positive = new float[n];
+        for (int i=0; i<n; i++) {
+            unit[i] = 2 * rnd.nextFloat() - 1;
+            xs[i] = (float) rnd.nextGaussian();
+            ys[i] = (float) rnd.nextGaussian();
+            positive[i] = 1e-3f + 1e3f * rnd.nextFloat();
+        }
+
+        // Twice: the first round is the warm-up
+        for (int round=0; round<2; round++) {
+            final boolean print = (round == 1);
+            report(print, "asin", timeAsin(unit, false), timeAsin(unit, true));
+            report(print, "acos", timeAcos(unit, false), timeAcos(unit, true));
+            report(print, "atan2", timeAtan2(ys, xs, false), timeAtan2(ys, xs, true));
+            report(print, "invSqrt", timeInvSqrt(positive, false), timeInvSqrt(positive, true));
+            report(print, "calculate", timeCalculator(seed, false, false), timeCalculator(seed, false, true));
+            report(print, "calculateFromQuaternion", timeCalculator(seed, true, false), timeCalculator(seed, true, true));
+        }
+    }
+
+    private static void report(boolean print, String name, double exactNs, double fastNs) {
+        if (print) {
+            System.out.println(String.format(Locale.US, "  %-24s Math %6.2f   Fast %6.2f   x%.1f", name, exactNs, fastNs, exactNs / fastNs));
+        }
+    }
+
+    private static double timeAsin(float[] in, boolean fast) {
+        float acc = 0;
+        final long t0 = System.nanoTime();
+        for (int r=0; r<THROUGHPUT_ROUNDS; r++) {
+            for (float x : in) {
+                acc += fast ? FastMath.asin(x) : (float) Math.asin(x);
+            }
+        }
+        return finish(t0, acc, in.length);
+    }
+
+    private static double timeAcos(float[] in, boolean fast) {
+        float acc = 0;
+        final long t0 = System.nanoTime();
+        for (int r=0; r<THROUGHPUT_ROUNDS; r++) {
+            for (float x : in) {
+                acc += fast ? FastMath.acos(x) : (float) Math.acos(x);
+            }
+        }
+        return finish(t0, acc, in.length);
+    }
+
+    private static double timeAtan2(float[] ys, float[] xs, boolean fast) {
+        float acc = 0;
+        final long t0 = System.nanoTime();
+        for (int r=0; r<THROUGHPUT_ROUNDS; r++) {
+            for (int i=0; i<xs.length; i++) {
+                acc += fast ? FastMath.atan2(ys[i], xs[i]) : (float) Math.atan2(ys[i], xs[i]);
+            }
+        }
+        return finish(t0, acc, xs.length);
+    }
+
+    private static double timeInvSqrt(float[] in, boolean fast) {
+        float acc = 0;
+        final long t0 = System.nanoTime();
+        for (int r=0; r<THROUGHPUT_ROUNDS; r++) {
+            for (float x : in) {
+                acc += fast ? FastMath.invSqrt(x) : (float) (1.0 / Math.sqrt(x));
+            }
+        }
+        return finish(t0, acc, in.length);
+    }
+
+    private static double timeCalculator(long seed, boolean quaternion, boolean fast) {
+        final int n = 1024;
+        final Random rnd = new Random(seed);
+        final float[][] qs = new float[n][4];
+        final float[][] ms = new float[n][9];
+        for (int i=0; i<n; i++) {
+            randomQuaternion(rnd, qs[i]);
+            toRotationMatrix(qs[i], ms[i]);
+        }
+        final AnglesCalculator c = new AnglesCalculator();
+        c.setTargetLocation(new float[]{150, 600, 220});
+        c.setSelfLocation(new float[]{0, 0, 500});
+        c.setFastMath(fast);
+        float acc = 0;
+        final int rounds = THROUGHPUT_ROUNDS * 8;
+        final long t0 = System.nanoTime();
+        for (int r=0; r<rounds; r++) {
+            for (int i=0; i<n; i++) {
+                if (quaternion) {
+                    c.calculateFromQuaternion(qs[i]);
+                } else {
+                    c.calculate(ms[i]);
+                }
+                acc += c.getAzimuth();
+            }
+        }
+        sink = acc;
+        return (System.nanoTime() - t0) / ((double) rounds * n);
+    }
+
+    private static double finish(long t0, float acc, int n) {
+        final long dt = System.nanoTime() - t0;
+        sink = acc;
+        return dt / ((double) THROUGHPUT_ROUNDS * n);
+    }
+}
@@ -0,0 +1,178 @@
+package com.alperez.hyrocam.orientation.tools;
+
+import com.alperez.hyrocam.orientation.gimbal.FixedRateLoop;
+import com.alperez.hyrocam.orientation.gimbal.GimbalController;
+import com.alperez.hyrocam.orientation.gimbal.GimbalSimulator;
+import com.alperez.hyrocam.orientation.gimbal.SocketChannelTransport;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs the gimbal output stage in a closed loop against {@link GimbalSimulator} over a loopback
+ * socket and reports the loop jitter, the command round trip and the tracking error.
+ * <p>
+ * The target moves on a Lissajous curve (pan 0.2 Hz, tilt 0.13 Hz). On every tick the pointing
+ * errors are taken as the target angles minus the axis angles reported by the simulator, just
+ * as the camera would see them if it were mounted on the gimbal. The analytic rate of the
+ * target is the feed-forward input.
+ * <pre>
+ *   GimbalLoopBench [options]
+ *     --rate HZ          control loop rate (default 200)
+ *     --seconds S        duration (default 10)
+ *     --pid kp,ki,kd     gains of both axes (default 4,0.5,0.05)
+ *     --ff K             feed-forward gain (default 1, 0 - pure PID)
+ *     --spin US          busy-wait threshold of the loop, us (default 200)
+ * </pre>
+ * Or from Gradle: {@code ./gradlew :orientation-core:gimbalBench [-PbenchArgs="..."]}
+ */
+public class GimbalLoopBench {
+
+    private static final float PAN_AMPLITUDE = 0.8f;
+    private static final float PAN_FREQUENCY = 0.2f;
+    private static final float TILT_AMPLITUDE = 0.4f;
+    private static final float TILT_FREQUENCY = 0.13f;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rate = 200;
+        int seconds = 10;
+        float[] pid = new float[]{4f, 0.5f, 0.05f};
+        float ff = 1f;
+        long spinUs = 200;
+        for (int i=0; i<args.length; i++) {
+            if ("--rate".equals(args[i])) {
+                rate = Integer.parseInt(args[++i]);
+            } else if ("--seconds".equals(args[i])) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if ("--pid".equals(args[i])) {
+                final String[] parts = args[++i].split(",");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Expected kp,ki,kd - "+args[i]);
+                }
+                for (int k=0; k<3; k++) {
+                    pid[k] = Float.parseFloat(parts[k].trim());
+                }
+            } else if ("--ff".equals(args[i])) {
+                ff = Float.parseFloat(args[++i]);
+            } else if ("--spin".equals(args[i])) {
+                spinUs = Long.parseLong(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option - "+args[i]);
+            }
+        }
+
+        final GimbalSimulator simulator = new GimbalSimulator(0);
+        simulator.start();
+        try {
+            final GimbalController controller = new GimbalController(new SocketChannelTransport(simulator.getAddress()));
+            controller.getPanPid().setGains(pid[0], pid[1], pid[2]);
+            controller.getTiltPid().setGains(pid[0], pid[1], pid[2]);
+            controller.getPanPid().setFeedForwardGain(ff);
+            controller.getTiltPid().setFeedForwardGain(ff);
+            controller.setMaxRate(8f);
+
+            final long periodNs = 1000000000L / rate;
+            final BenchTask task = new BenchTask(controller, rate * seconds + 16);
+            final FixedRateLoop loop = new FixedRateLoop("GimbalLoopBench", task, periodNs);
+            loop.setSpinThresholdNanos(spinUs * 1000);
+
+            System.out.println(String.format(Locale.US, "Gimbal loop at %d Hz for %d s, simulator on port %d, pid=%s, ff=%.2f",
+                    rate, seconds, simulator.getPort(), Arrays.toString(pid), ff));
+            loop.start();
+            Thread.sleep(seconds * 1000L);
+            loop.stop();
+
+            report(loop, controller, simulator, task);
+        } finally {
+            simulator.close();
+        }
+    }
+
+    private static void report(FixedRateLoop loop, GimbalController controller, GimbalSimulator simulator, BenchTask task) {
+        final int n = task.mCount;
+        System.out.println(String.format(Locale.US, "Ticks: %d, missed deadlines: %d", loop.getTicksCount(), loop.getMissedCount()));
+        if (n > 0) {
+            final long[] jitter = task.mJitter;
+            Arrays.sort(jitter, 0, n);
+            System.out.println(String.format(Locale.US, "Jitter, us: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                    percentile(jitter, n, 0.5) / 1e3, percentile(jitter, n, 0.9) / 1e3, percentile(jitter, n, 0.99) / 1e3,
+                    percentile(jitter, n, 0.999) / 1e3, jitter[n - 1] / 1e3));
+        }
+        System.out.println("Tick duration: "+loop.getTickDurationStats());
+        System.out.println("Command round trip: "+controller.getRoundTripStats());
+        System.out.println(String.format(Locale.US, "Commands: sent=%d dropped=%d executed=%d statuses=%d transportErrors=%d",
+                controller.getSentCount(), controller.getDroppedCount(), simulator.getCommandsCount(),
+                controller.getStatusCount(), controller.getTransportErrorsCount()));
+        if (controller.getLastTransportError() != null) {
+            System.out.println("Last transport error: "+controller.getLastTransportError());
+        }
+        // Skip the first second - the initial acquisition of the target
+        final int settled = task.mTrackedCount;
+        if (settled > 0) {
+            System.out.println(String.format(Locale.US, "Tracking error after 1 s, deg: rms=%.3f max=%.3f",
+                    Math.toDegrees(Math.sqrt(task.mSquaredErrorSum / settled)), Math.toDegrees(task.mMaxError)));
+        }
+    }
+
+    private static long percentile(long[] sorted, int n, double p) {
+        final int i = (int) Math.ceil(p * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, i))];
+    }
+
+    /**
+     * Feeds the controller with the errors of the simulated target, then runs its tick.
+     */
+    private static class BenchTask implements FixedRateLoop.Task {
+        private final GimbalController mController;
+        private final long[] mJitter;
+        private int mCount;
+        private long mStartNs;
+        private double mSquaredErrorSum;
+        private double mMaxError;
+        private int mTrackedCount;
+
+        BenchTask(GimbalController controller, int capacity) {
+            mController = controller;
+            mJitter = new long[capacity];
+        }
+
+        @Override
+        public void onLoopStarted() {
+            mController.onLoopStarted();
+        }
+
+        @Override
+        public void onTick(long deadlineNanos, long periodNanos) {
+            final long now = System.nanoTime();
+            if (mCount < mJitter.length) {
+                mJitter[mCount++] = now - deadlineNanos;
+            }
+            if (mStartNs == 0) {
+                mStartNs = now;
+            }
+            final double t = (now - mStartNs) / 1e9;
+            final double wPan = 2 * Math.PI * PAN_FREQUENCY;
+            final double wTilt = 2 * Math.PI * TILT_FREQUENCY;
+            final float targetPan = (float) (PAN_AMPLITUDE * Math.sin(wPan * t));
+            final float targetTilt = (float) (TILT_AMPLITUDE * Math.sin(wTilt * t));
+            final float panRate = (float) (PAN_AMPLITUDE * wPan * Math.cos(wPan * t));
+            final float tiltRate = (float) (TILT_AMPLITUDE * wTilt * Math.cos(wTilt * t));
+            final float panError = targetPan - mController.getReportedPan();
+            final float tiltError = targetTilt - mController.getReportedTilt();
+            if (t > 1) {
+                final double e = Math.sqrt(panError*panError + tiltError*tiltError);
+                mSquaredErrorSum += e * e;
+                mMaxError = Math.max(mMaxError, e);
+                mTrackedCount ++;
+            }
+            mController.setErrors(panError, tiltError, panRate, tiltRate);
+            mController.onTick(deadlineNanos, periodNanos);
+        }
+
+        @Override
+        public void onLoopStopped() {
+            mController.onLoopStopped();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.alperez.hyrocam.orientation.tools;
+
+import com.alperez.hyrocam.orientation.OrientationPipeline;
+import com.alperez.hyrocam.orientation.PipelineMetrics;
+import com.alperez.hyrocam.orientation.SensorSourceType;
+import com.alperez.hyrocam.orientation.SensorTraceReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays a recorded sensor trace through {@link OrientationPipeline} as fast as possible and
+ * reports the throughput, per-event latency percentiles and the output angles.
+ * <pre>
+ *   ReplayDriver &lt;trace file&gt; [options]
+ *     --repeat N         replay the trace N times (the first run is a warm-up if N > 1)
+ *     --matrix           process ROTATION_VECTOR through the rotation matrix instead of quaternions
+ *     --target x,y,z     target location (default 150,600,220)
+ *     --self x,y,z       device location (default 0,0,500)
+ *     --angles FILE      write all output angles of the last run to a CSV file
+ *     --metrics          collect {@link PipelineMetrics} (stage histograms, counters) in the last run
+ * </pre>
+ * Or from Gradle: {@code ./gradlew :orientation-core:replay -Ptrace=FILE [-PreplayArgs="..."]}
+ */
+public class ReplayDriver {
+
+    private static final SensorSourceType[] SOURCES = SensorSourceType.values();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayDriver <trace file> [--repeat N] [--matrix] [--target x,y,z] [--self x,y,z] [--angles FILE] [--metrics]");
+            System.exit(1);
+        }
+        final File traceFile = new File(args[0]);
+        int repeat = 1;
+        boolean matrix = false;
+        float[] target = new float[]{150, 600, 220};
+        float[] self = new float[]{0, 0, 500};
+        File anglesFile = null;
+        boolean metrics = false;
+        for (int i=1; i<args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            } else if ("--matrix".equals(args[i])) {
+                matrix = true;
+            } else if ("--target".equals(args[i])) {
+                target = parseVector(args[++i]);
+            } else if ("--self".equals(args[i])) {
+                self = parseVector(args[++i]);
+            } else if ("--angles".equals(args[i])) {
+                anglesFile = new File(args[++i]);
+            } else if ("--metrics".equals(args[i])) {
+                metrics = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option - "+args[i]);
+            }
+        }
+
+        final SensorTraceReader reader = new SensorTraceReader(traceFile);
+        try {
+            final int n = reader.getRecordsCount();
+            System.out.println(String.format(Locale.US, "Trace %s: %d records", traceFile.getName(), n));
+            if (n == 0) {
+                return;
+            }
+
+            final long[] latencies = new long[n];
+            final OutputCollector output = new OutputCollector((anglesFile != null) ? n : 0);
+            for (int run=0; run<repeat; run++) {
+                output.reset();
+                final OrientationPipeline pipeline = new OrientationPipeline(output);
+                pipeline.setQuaternionEngineEnabled(!matrix);
+                pipeline.getCalculator().setTargetLocation(target);
+                pipeline.setSelfLocation(self);
+                if (metrics && run == repeat - 1) {
+                    pipeline.setMetrics(new PipelineMetrics());
+                }
+
+                reader.rewind();
+                final long tStart = System.nanoTime();
+                int i = 0;
+                while (reader.next()) {
+                    final long t0 = System.nanoTime();
+                    reader.dispatchTo(pipeline);
+                    latencies[i++] = System.nanoTime() - t0;
+                }
+                final long elapsed = System.nanoTime() - tStart;
+
+                if (run == repeat - 1) {
+                    report(reader, n, elapsed, latencies, output, pipeline);
+                }
+            }
+
+            if (anglesFile != null) {
+                output.writeCsv(anglesFile);
+                System.out.println("Angles written to "+anglesFile);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void report(SensorTraceReader reader, int n, long elapsedNs, long[] latencies, OutputCollector output, OrientationPipeline pipeline) {
+        reader.rewind();
+        long firstTs = 0, lastTs = 0;
+        if (reader.next()) {
+            firstTs = reader.getTimestamp();
+        }
+        while (reader.next()) {
+            lastTs = reader.getTimestamp();
+        }
+        final double traceSec = (lastTs - firstTs) / 1e9;
+        final double elapsedSec = elapsedNs / 1e9;
+
+        Arrays.sort(latencies, 0, n);
+        System.out.println(String.format(Locale.US, "Replayed %.1f s of sensor time in %.3f s (x%.0f real time)", traceSec, elapsedSec, traceSec / elapsedSec));
+        System.out.println(String.format(Locale.US, "Throughput: %.0f events/s", n / elapsedSec));
+        System.out.println(String.format(Locale.US, "Latency, ns: p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                percentile(latencies, n, 0.5), percentile(latencies, n, 0.9), percentile(latencies, n, 0.99), percentile(latencies, n, 0.999), latencies[n - 1]));
+        for (int s=0; s<SOURCES.length; s++) {
+            if (output.counts[s] > 0) {
+                final float[] a = output.last[s];
+                System.out.println(String.format(Locale.US, "%-16s results=%-9d last: yaw=%.2f pitch=%.2f roll=%.2f az=%.2f incl=%.2f (deg)",
+                        SOURCES[s], output.counts[s], Math.toDegrees(a[0]), Math.toDegrees(a[1]), Math.toDegrees(a[2]), Math.toDegrees(a[3]), Math.toDegrees(a[4])));
+            }
+        }
+        System.out.println(String.format(Locale.US, "RAW pairing: pairs=%d interpolated=%d extrapolated=%d rejected=%d alignment mean=%.2f ms max=%.2f ms",
+                pipeline.getRawPairsCount(), pipeline.getRawPairsInterpolatedCount(), pipeline.getRawPairsExtrapolatedCount(),
+                pipeline.getRawPairsRejectedCount(),
+                pipeline.getRawAlignmentErrorMeanNs() / 1e6, pipeline.getRawAlignmentErrorMaxNs() / 1e6));
+        if (pipeline.getMetrics() != null) {
+            System.out.print(pipeline.getMetrics());
+        }
+    }
+
+    private static long percentile(long[] sorted, int n, double p) {
+        final int i = (int) Math.min(n - 1, Math.round(p * (n - 1)));
+        return sorted[i];
+    }
+
+    private static float[] parseVector(String s) {
+        final String[] parts = s.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected x,y,z - "+s);
+        }
+        return new float[]{Float.parseFloat(parts[0]), Float.parseFloat(parts[1]), Float.parseFloat(parts[2])};
+    }
+
+    /**
+     * Keeps per-source statistics and, optionally, all the results in pre-allocated arrays,
+     * so the timed loop does no I/O and no allocation.
+     */
+    private static class OutputCollector implements OrientationPipeline.Output {
+        final long[] counts = new long[SOURCES.length];
+        final float[][] last = new float[SOURCES.length][5];
+
+        private final int mCapacity;
+        private final long[] mTs;
+        private final int[] mSrc;
+        private final float[] mAngles;
+        private int mSize;
+
+        OutputCollector(int capacity) {
+            mCapacity = capacity;
+            mTs = new long[capacity];
+            mSrc = new int[capacity];
+            mAngles = new float[capacity * 5];
+        }
+
+        void reset() {
+            Arrays.fill(counts, 0);
+            mSize = 0;
+        }
+
+        @Override
+        public void onAnglesCalculated(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+            final int s = srcType.ordinal();
+            counts[s] ++;
+            final float[] a = last[s];
+            a[0] = yaw;
+            a[1] = pitch;
+            a[2] = roll;
+            a[3] = camRelAzimuth;
+            a[4] = camRelInclination;
+            if (mSize < mCapacity) {
+                final int i = mSize++;
+                mTs[i] = timestamp;
+                mSrc[i] = s;
+                System.arraycopy(a, 0, mAngles, i*5, 5);
+            }
+        }
+
+        void writeCsv(File file) throws IOException {
+            final BufferedWriter w = new BufferedWriter(new FileWriter(file));
+            try {
+                w.write("timestamp_ns,source,yaw,pitch,roll,azimuth,inclination");
+                w.newLine();
+                for (int i=0; i<mSize; i++) {
+                    final int o = i*5;
+                    w.write(String.format(Locale.US, "%d,%s,%.6f,%.6f,%.6f,%.6f,%.6f", mTs[i], SOURCES[mSrc[i]], mAngles[o], mAngles[o+1], mAngles[o+2], mAngles[o+3], mAngles[o+4]));
+                    w.newLine();
+                }
+            } finally {
+                w.close();
+            }
+        }
+    }
+}
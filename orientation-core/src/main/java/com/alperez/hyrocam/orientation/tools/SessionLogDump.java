@@ -0,0 +1,66 @@
+package com.alperez.hyrocam.orientation.tools;
+
+import com.alperez.hyrocam.orientation.SessionLogReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Locale;
+
+/**
+ * Streams a session log out as CSV.
+ * <pre>
+ *   SessionLogDump &lt;session dir&gt; [--angles | --sensors]
+ *     --angles    only the calculated angles
+ *     --sensors   only the raw sensor inputs
+ * </pre>
+ * Or from Gradle: {@code ./gradlew :orientation-core:dumpSessionLog -Plog=DIR [-PdumpArgs="--angles"]}
+ */
+public class SessionLogDump {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SessionLogDump <session dir> [--angles | --sensors]");
+            System.exit(1);
+        }
+        boolean angles = true;
+        boolean sensors = true;
+        for (int i=1; i<args.length; i++) {
+            if ("--angles".equals(args[i])) {
+                sensors = false;
+            } else if ("--sensors".equals(args[i])) {
+                angles = false;
+            } else {
+                throw new IllegalArgumentException("Unknown option - "+args[i]);
+            }
+        }
+
+        final SessionLogReader reader = new SessionLogReader(new File(args[0]));
+        final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            out.write("segment,timestamp_ns,kind,type,v0,v1,v2,v3,v4,residual");
+            out.newLine();
+            while (reader.next()) {
+                final float[] v = reader.getValues();
+                if (reader.isAngles()) {
+                    if (angles) {
+                        out.write(String.format(Locale.US, "%d,%d,ANGLES,%s,%.6f,%.6f,%.6f,%.6f,%.6f,%.6e",
+                                reader.getSegmentIndex(), reader.getTimestamp(), reader.getSourceType(), v[0], v[1], v[2], v[3], v[4], reader.getResidual()));
+                        out.newLine();
+                    }
+                } else if (sensors) {
+                    out.write(String.format(Locale.US, "%d,%d,SENSOR,%d", reader.getSegmentIndex(), reader.getTimestamp(), reader.getSensorType()));
+                    for (int i=0; i<v.length; i++) {
+                        out.write((i < reader.getLength()) ? String.format(Locale.US, ",%.6f", v[i]) : ",");
+                    }
+                    out.write(",");
+                    out.newLine();
+                }
+            }
+        } finally {
+            out.flush();
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.alperez.hyrocam.orientation;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AngleRingBufferTest {
+
+    private static void publish(AngleRingBuffer buffer, long seq) {
+        // Every field is derived from the sequence, so a torn copy does not pass check()
+        buffer.publish(seq * 10, (int) (seq % 3), seq & 0xFFFF, -(seq & 0xFFFF), (seq >> 16) & 0xFFFF,
+                seq & 0xFF, (seq >> 8) & 0xFF, seq);
+    }
+
+    private static void check(AngleRingBuffer.Sample s) {
+        final long seq = s.getSequence();
+        assertEquals(seq * 10, s.getTimestamp());
+        assertEquals((int) (seq % 3), s.getSourceType());
+        assertEquals(seq & 0xFFFF, s.getYaw(), 0);
+        assertEquals(-(seq & 0xFFFF), s.getPitch(), 0);
+        assertEquals((seq >> 16) & 0xFFFF, s.getRoll(), 0);
+        assertEquals(seq & 0xFF, s.getAzimuth(), 0);
+        assertEquals((seq >> 8) & 0xFF, s.getInclination(), 0);
+        assertEquals(seq, s.getResidual(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOf2() {
+        new AngleRingBuffer(12);
+    }
+
+    @Test
+    public void readsInOrder() {
+        final AngleRingBuffer buffer = new AngleRingBuffer(8);
+        final AngleRingBuffer.Reader reader = buffer.newReader();
+        final AngleRingBuffer.Sample s = new AngleRingBuffer.Sample();
+        assertFalse(reader.poll(s));
+
+        for (long seq=0; seq<5; seq++) {
+            publish(buffer, seq);
+        }
+        assertEquals(4, buffer.getPublishedSequence());
+        assertEquals(5, reader.getLag());
+        for (long seq=0; seq<5; seq++) {
+            assertTrue(reader.poll(s));
+            assertEquals(seq, s.getSequence());
+            check(s);
+        }
+        assertFalse(reader.poll(s));
+        assertEquals(0, reader.getLag());
+        assertEquals(0, reader.getDropped());
+    }
+
+    @Test
+    public void newReaderStartsAfterPublished() {
+        final AngleRingBuffer buffer = new AngleRingBuffer(8);
+        publish(buffer, 0);
+        publish(buffer, 1);
+        final AngleRingBuffer.Reader reader = buffer.newReader();
+        final AngleRingBuffer.Sample s = new AngleRingBuffer.Sample();
+        assertFalse(reader.poll(s));
+        publish(buffer, 2);
+        assertTrue(reader.poll(s));
+        assertEquals(2, s.getSequence());
+    }
+
+    @Test
+    public void overflowCountsDropped() {
+        final AngleRingBuffer buffer = new AngleRingBuffer(8);
+        final AngleRingBuffer.Reader reader = buffer.newReader();
+        final AngleRingBuffer.Sample s = new AngleRingBuffer.Sample();
+        for (long seq=0; seq<20; seq++) {
+            publish(buffer, seq);
+        }
+        assertEquals(20, reader.getLag());
+
+        //----  The oldest 12 are overwritten, the last 8 are still there  ----
+        for (long seq=12; seq<20; seq++) {
+            assertTrue(reader.poll(s));
+            assertEquals(seq, s.getSequence());
+            check(s);
+        }
+        assertFalse(reader.poll(s));
+        assertEquals(12, reader.getDropped());
+    }
+
+    @Test
+    public void pollLatestCountsSkipped() {
+        final AngleRingBuffer buffer = new AngleRingBuffer(8);
+        final AngleRingBuffer.Reader reader = buffer.newReader();
+        final AngleRingBuffer.Sample s = new AngleRingBuffer.Sample();
+        for (long seq=0; seq<5; seq++) {
+            publish(buffer, seq);
+        }
+        assertTrue(reader.pollLatest(s));
+        assertEquals(4, s.getSequence());
+        check(s);
+        assertEquals(4, reader.getDropped());
+        assertFalse(reader.pollLatest(s));
+
+        //----  Beyond the capacity the same way  ----
+        for (long seq=5; seq<30; seq++) {
+            publish(buffer, seq);
+        }
+        assertTrue(reader.pollLatest(s));
+        assertEquals(29, s.getSequence());
+        assertEquals(4 + 24, reader.getDropped());
+    }
+
+    /**
+     * One producer overruns a small buffer while several readers copy from it. No copy may be
+     * torn, every reader sees increasing sequences, and whatever it has not read is counted as
+     * dropped.
+     */
+    @Test(timeout = 60000)
+    public void concurrentReadsAreNotTorn() throws Exception {
+        final int nSamples = 2000000;
+        final int nReaders = 3;
+        final AngleRingBuffer buffer = new AngleRingBuffer(4);
+        final AngleRingBuffer.Reader[] readers = new AngleRingBuffer.Reader[nReaders];
+        final long[] nRead = new long[nReaders];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[nReaders];
+
+        for (int r=0; r<nReaders; r++) {
+            final int ri = r;
+            readers[r] = buffer.newReader();
+            threads[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final AngleRingBuffer.Reader reader = readers[ri];
+                    final AngleRingBuffer.Sample s = new AngleRingBuffer.Sample();
+                    long last = -1;
+                    try {
+                        while (last < nSamples - 1) {
+                            if (reader.poll(s)) {
+                                check(s);
+                                if (s.getSequence() <= last) {
+                                    fail("Sequence "+s.getSequence()+" after "+last);
+                                }
+                                last = s.getSequence();
+                                nRead[ri] ++;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[r].start();
+        }
+
+        for (long seq=0; seq<nSamples && failure.get() == null; seq++) {
+            publish(buffer, seq);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        for (int r=0; r<nReaders; r++) {
+            assertEquals(nSamples, nRead[r] + readers[r].getDropped());
+            assertEquals(0, readers[r].getLag());
+        }
+    }
+}
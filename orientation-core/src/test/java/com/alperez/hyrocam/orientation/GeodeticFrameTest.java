@@ -0,0 +1,110 @@
+package com.alperez.hyrocam.orientation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeodeticFrameTest {
+
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_B = 6356752.314245;
+
+    private static final double LAT = 50.4501;
+    private static final double LON = 30.5234;
+    private static final double ALT = 180;
+
+    /** Degrees of latitude per meter along the meridian at LAT, rounded */
+    private static final double LAT_DEG_PER_M = 1.0 / 111238;
+
+    private final double[] mEcef = new double[3];
+    private final float[] mEnu = new float[3];
+
+    @Test
+    public void ecefOfKnownPoints() {
+        GeodeticFrame.geodeticToEcef(0, 0, 0, mEcef);
+        assertEquals(WGS84_A, mEcef[0], 1e-6);
+        assertEquals(0, mEcef[1], 1e-6);
+        assertEquals(0, mEcef[2], 1e-6);
+
+        GeodeticFrame.geodeticToEcef(0, 90, 100, mEcef);
+        assertEquals(0, mEcef[0], 1e-6);
+        assertEquals(WGS84_A + 100, mEcef[1], 1e-6);
+        assertEquals(0, mEcef[2], 1e-6);
+
+        GeodeticFrame.geodeticToEcef(90, 0, 0, mEcef);
+        assertEquals(0, mEcef[0], 1e-6);
+        assertEquals(0, mEcef[1], 1e-6);
+        assertEquals(WGS84_B, mEcef[2], 1e-3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void conversionNeedsReference() {
+        new GeodeticFrame().toEnu(LAT, LON, ALT, mEnu);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rebuildDistanceMustBePositive() {
+        new GeodeticFrame().setRebuildDistance(0);
+    }
+
+    @Test
+    public void enuAxes() {
+        final GeodeticFrame f = new GeodeticFrame();
+        assertTrue(f.setSelf(LAT, LON, ALT));
+        assertTrue(f.hasReference());
+
+        f.getSelfEnu(mEnu);
+        assertEquals(0, mEnu[0], 1e-3f);
+        assertEquals(0, mEnu[1], 1e-3f);
+        assertEquals(0, mEnu[2], 1e-3f);
+
+        //----  Up  ----
+        f.toEnu(LAT, LON, ALT + 100, mEnu);
+        assertEquals(0, mEnu[0], 1e-3f);
+        assertEquals(0, mEnu[1], 1e-3f);
+        assertEquals(100, mEnu[2], 1e-3f);
+
+        //----  North: 500 m along the meridian, the earth curvature drops it ~2 cm  ----
+        f.toEnu(LAT + 500 * LAT_DEG_PER_M, LON, ALT, mEnu);
+        assertEquals(0, mEnu[0], 1e-3f);
+        assertEquals(500, mEnu[1], 0.5f);
+        assertEquals(-0.02f, mEnu[2], 0.01f);
+
+        //----  East  ----
+        f.toEnu(LAT, LON + 0.01, ALT, mEnu);
+        assertTrue(mEnu[0] > 700);
+        assertEquals(0, mEnu[1], 0.1f);
+        assertTrue(mEnu[2] < 0);
+    }
+
+    @Test
+    public void rebuildsOnlyBeyondDistance() {
+        final GeodeticFrame f = new GeodeticFrame();
+        f.setRebuildDistance(1000);
+        assertTrue(f.setSelf(LAT, LON, ALT));
+        assertEquals(1, f.getRebuildCount());
+
+        //----  900 m north: same frame, the device is off the origin  ----
+        assertFalse(f.setSelf(LAT + 900 * LAT_DEG_PER_M, LON, ALT));
+        assertEquals(1, f.getRebuildCount());
+        f.getSelfEnu(mEnu);
+        assertEquals(900, mEnu[1], 1f);
+
+        //----  The stale frame is tilted by ~900 m / earth radius only  ----
+        f.toEnu(LAT + 900 * LAT_DEG_PER_M, LON, ALT + 100, mEnu);
+        final float[] self = new float[3];
+        f.getSelfEnu(self);
+        assertEquals(100, mEnu[2] - self[2], 1e-2f);
+        assertEquals(0, mEnu[1] - self[1], 0.1f);
+
+        //----  1100 m north: rebuilt around the device  ----
+        assertTrue(f.setSelf(LAT + 1100 * LAT_DEG_PER_M, LON, ALT));
+        assertEquals(2, f.getRebuildCount());
+        f.getSelfEnu(mEnu);
+        assertEquals(0, mEnu[0], 1e-3f);
+        assertEquals(0, mEnu[1], 1e-3f);
+        assertEquals(0, mEnu[2], 1e-3f);
+    }
+}
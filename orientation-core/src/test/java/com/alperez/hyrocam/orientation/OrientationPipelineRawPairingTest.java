@@ -0,0 +1,119 @@
+package com.alperez.hyrocam.orientation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pairing of the accelerometer samples with the magnetometer for the RAW source
+ */
+public class OrientationPipelineRawPairingTest {
+
+    private static final long ACCEL_PERIOD_NS = 5000000;
+    private static final long MAGNET_PERIOD_NS = 20000000;
+    private static final int N_MAGNET = 50;
+
+    private static final float[] GRAVITY = {0, 0, 9.81f};
+
+    private static class CountingOutput implements OrientationPipeline.Output {
+        int raw;
+
+        @Override
+        public void onAnglesCalculated(SensorSourceType srcType, long timestamp, float yaw, float pitch, float roll, float camRelAzimuth, float camRelInclination, double testScalProd) {
+            if (srcType == SensorSourceType.RAW) {
+                raw ++;
+            }
+        }
+    }
+
+    private static OrientationPipeline newPipeline(CountingOutput output) {
+        final OrientationPipeline p = new OrientationPipeline(output);
+        p.setMagneticDisturbanceDetection(false);
+        p.setOnlineMagnetCalibration(false);
+        return p;
+    }
+
+    /**
+     * Field slowly turning around the vertical axis, k-th magnetometer sample
+     */
+    private static float[] magnet(int k) {
+        final double a = 0.01 * k;
+        return new float[] {(float) (20 * Math.sin(a)), (float) (20 * Math.cos(a)), -40};
+    }
+
+    /**
+     * The sensors one by one in time order: every accelerometer sample between two magnetometer
+     * samples is newer than all the stored ones, so it is paired with the extrapolated value
+     */
+    @Test
+    public void accelerometerNewerThanMagnetIsExtrapolated() {
+        final CountingOutput output = new CountingOutput();
+        final OrientationPipeline p = newPipeline(output);
+        final long t0 = 1000000000L;
+        int nAccel = 0;
+        for (int k=0; k<N_MAGNET; k++) {
+            final long tm = t0 + k * MAGNET_PERIOD_NS;
+            p.onMagneticField(tm, magnet(k));
+            for (long ta=tm + 1000000; ta<tm + MAGNET_PERIOD_NS; ta+=ACCEL_PERIOD_NS) {
+                p.onAccelerometer(ta, GRAVITY);
+                nAccel ++;
+            }
+        }
+        // The ones after the first magnetometer sample have no previous one to extrapolate from
+        final int nFirst = (int) (MAGNET_PERIOD_NS / ACCEL_PERIOD_NS);
+        assertEquals(nAccel, p.getRawPairsCount());
+        assertEquals(0, p.getRawPairsRejectedCount());
+        assertEquals(nAccel - nFirst, p.getRawPairsExtrapolatedCount());
+        assertEquals(0, p.getRawPairsInterpolatedCount());
+        assertTrue(p.getRawAlignmentErrorMaxNs() < MAGNET_PERIOD_NS);
+        assertEquals(nAccel, output.raw);
+    }
+
+    /**
+     * The same samples as one burst: the magnetometer samples later in the burst are known, so
+     * the accelerometer samples before them are interpolated
+     */
+    @Test
+    public void batchInterpolatesWithLaterMagnetSamples() {
+        final CountingOutput output = new CountingOutput();
+        final OrientationPipeline p = newPipeline(output);
+        final SensorBatch batch = new SensorBatch(512);
+        final long t0 = 1000000000L;
+        int nAccel = 0;
+        for (int k=0; k<N_MAGNET; k++) {
+            final long tm = t0 + k * MAGNET_PERIOD_NS;
+            // Delivered out of order, as from two hardware FIFOs
+            for (long ta=tm + 1000000; ta<tm + MAGNET_PERIOD_NS; ta+=ACCEL_PERIOD_NS) {
+                batch.add(SensorInputType.ACCELEROMETER, ta, GRAVITY, 3);
+                nAccel ++;
+            }
+            batch.add(SensorInputType.MAGNETIC_FIELD, tm, magnet(k), 3);
+        }
+        p.onBatch(batch);
+
+        // Only the ones after the last magnetometer sample have nothing newer to interpolate to
+        final int nLast = (int) (MAGNET_PERIOD_NS / ACCEL_PERIOD_NS);
+        assertEquals(nAccel, p.getRawPairsCount());
+        assertEquals(nAccel - nLast, p.getRawPairsInterpolatedCount());
+        assertEquals(nLast, p.getRawPairsExtrapolatedCount());
+        assertEquals(0, p.getRawAlignmentErrorMaxNs());
+        assertEquals(nAccel, output.raw);
+    }
+
+    @Test
+    public void extrapolationCanBeTurnedOff() {
+        final CountingOutput output = new CountingOutput();
+        final OrientationPipeline p = newPipeline(output);
+        p.setMaxRawExtrapolationNs(0);
+        final long t0 = 1000000000L;
+        for (int k=0; k<N_MAGNET; k++) {
+            final long tm = t0 + k * MAGNET_PERIOD_NS;
+            p.onMagneticField(tm, magnet(k));
+            p.onAccelerometer(tm + 1000000, GRAVITY);
+        }
+        assertEquals(N_MAGNET, p.getRawPairsCount());
+        assertEquals(0, p.getRawPairsExtrapolatedCount());
+        assertEquals(1000000, p.getRawAlignmentErrorMeanNs());
+    }
+}
@@ -0,0 +1,146 @@
+package com.alperez.hyrocam.orientation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import Jama.Matrix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlaneProjectionSolverTest {
+
+    private static final int N_PLANES = 100000;
+
+    private final PlaneProjectionSolver mSolver = new PlaneProjectionSolver();
+    private final float[] mT = new float[3];
+    private final float[] mP = new float[3];
+
+    private static void randomVector(Random rnd, float[] v, float scale) {
+        v[0] = (float) rnd.nextGaussian() * scale;
+        v[1] = (float) rnd.nextGaussian() * scale;
+        v[2] = (float) rnd.nextGaussian() * scale;
+    }
+
+    private static double length(float[] v) {
+        return Math.sqrt((double)v[0]*v[0] + (double)v[1]*v[1] + (double)v[2]*v[2]);
+    }
+
+    /**
+     * Reference solve of the (corrected) linear system the projection used to be found from
+     */
+    private static double[] jamaSolve(float A, float B, float C, float[] T) {
+        final Matrix M = new Matrix(new double[][] {
+                {B, -A, 0},
+                {C, 0, -A},
+                {A, B, C}});
+        final Matrix V = new Matrix(new double[][] {
+                {T[0]*B - T[1]*A},
+                {T[0]*C - T[2]*A},
+                {0}});
+        final Matrix P = M.solve(V);
+        return new double[] {P.get(0, 0), P.get(1, 0), P.get(2, 0)};
+    }
+
+    /**
+     * P must lie on the plane and T - P must be parallel to the normal
+     */
+    private static void assertProjection(float A, float B, float C, float[] T, float[] P, double tolerance) {
+        final double lenN = Math.sqrt((double)A*A + (double)B*B + (double)C*C);
+        final double a = A / lenN, b = B / lenN, c = C / lenN;
+        assertEquals(0, a*P[0] + b*P[1] + c*P[2], tolerance);
+        final double dx = T[0] - P[0], dy = T[1] - P[1], dz = T[2] - P[2];
+        assertEquals(0, b*dz - c*dy, tolerance);
+        assertEquals(0, c*dx - a*dz, tolerance);
+        assertEquals(0, a*dy - b*dx, tolerance);
+    }
+
+    @Test
+    public void matchesJamaOnRandomPlanes() {
+        final Random rnd = new Random(1);
+        final float[] n = new float[3];
+        int nCompared = 0;
+        for (int k=0; k<N_PLANES; k++) {
+            randomVector(rnd, n, 1);
+            randomVector(rnd, mT, 1000);
+            if (Math.abs(n[0]) < 0.1 * length(n)) {
+                // Jama is ill-conditioned there, see the class doc
+                continue;
+            }
+            assertTrue(mSolver.project(n[0], n[1], n[2], mT, mP));
+            final double[] ref = jamaSolve(n[0], n[1], n[2], mT);
+            final double tolerance = PlaneProjectionSolver.MAX_DEVIATION_FROM_JAMA * length(mT);
+            assertEquals(ref[0], mP[0], tolerance);
+            assertEquals(ref[1], mP[1], tolerance);
+            assertEquals(ref[2], mP[2], tolerance);
+            nCompared ++;
+        }
+        assertTrue(nCompared > N_PLANES / 2);
+    }
+
+    @Test
+    public void projectsOnRandomPlanes() {
+        final Random rnd = new Random(2);
+        final float[] n = new float[3];
+        for (int k=0; k<N_PLANES; k++) {
+            randomVector(rnd, n, 1);
+            randomVector(rnd, mT, 1000);
+            assertTrue(mSolver.project(n[0], n[1], n[2], mT, mP));
+            assertProjection(n[0], n[1], n[2], mT, mP, 1e-6 * length(mT));
+        }
+    }
+
+    /**
+     * Normals along the axes, where the Jama system is singular (A == 0)
+     */
+    @Test
+    public void projectsOnAxisPlanes() {
+        mT[0] = 3;
+        mT[1] = -4;
+        mT[2] = 5;
+        assertTrue(mSolver.project(0, 0, 1, mT, mP));
+        assertEquals(3, mP[0], 0);
+        assertEquals(-4, mP[1], 0);
+        assertEquals(0, mP[2], 0);
+        assertTrue(mSolver.project(0, 2, 0, mT, mP));
+        assertEquals(3, mP[0], 0);
+        assertEquals(0, mP[1], 0);
+        assertEquals(5, mP[2], 0);
+    }
+
+    /**
+     * n&middot;n close to 0: the projection does not depend on the length of the normal, so a tiny
+     * normal must give the same point as the unit one.
+     */
+    @Test
+    public void nearDegenerateNormal() {
+        final Random rnd = new Random(3);
+        final float[] n = new float[3];
+        final float[] expected = new float[3];
+        for (float scale : new float[] {1e-5f, 1e-10f, 1e-18f}) {
+            for (int k=0; k<1000; k++) {
+                randomVector(rnd, n, 1);
+                randomVector(rnd, mT, 1000);
+                assertTrue(mSolver.project(n[0], n[1], n[2], mT, expected));
+                assertTrue(mSolver.project(n[0]*scale, n[1]*scale, n[2]*scale, mT, mP));
+                final double tolerance = 1e-6 * length(mT);
+                assertEquals(expected[0], mP[0], tolerance);
+                assertEquals(expected[1], mP[1], tolerance);
+                assertEquals(expected[2], mP[2], tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void zeroNormalCopiesTarget() {
+        mT[0] = 1;
+        mT[1] = 2;
+        mT[2] = 3;
+        assertFalse(mSolver.project(0, 0, 0, mT, mP));
+        assertEquals(1, mP[0], 0);
+        assertEquals(2, mP[1], 0);
+        assertEquals(3, mP[2], 0);
+    }
+}
@@ -0,0 +1,140 @@
+package com.alperez.hyrocam.orientation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SensorSampleHistoryTest {
+
+    private final float[] mOut = new float[3];
+
+    /**
+     * Samples every 10 ms from t = 1 s, value = (k, -k, 2k) for the k-th sample
+     */
+    private static SensorSampleHistory fill(int capacity, int count) {
+        final SensorSampleHistory h = new SensorSampleHistory(capacity);
+        for (int k=0; k<count; k++) {
+            h.add(timeOf(k), new float[] {k, -k, 2*k});
+        }
+        return h;
+    }
+
+    private static long timeOf(int k) {
+        return 1000000000L + k * 10000000L;
+    }
+
+    private void assertOut(float x) {
+        assertEquals(x, mOut[0], 1e-4f);
+        assertEquals(-x, mOut[1], 1e-4f);
+        assertEquals(2*x, mOut[2], 1e-4f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOf2() {
+        new SensorSampleHistory(6);
+    }
+
+    @Test
+    public void emptyHistory() {
+        final SensorSampleHistory h = new SensorSampleHistory(8);
+        assertTrue(h.isEmpty());
+        assertEquals(-1, h.getAt(123, mOut));
+
+        h.add(100, new float[] {1, 2, 3});
+        assertFalse(h.isEmpty());
+        h.clear();
+        assertTrue(h.isEmpty());
+        assertEquals(-1, h.getAt(100, mOut));
+    }
+
+    @Test
+    public void interpolatesBetweenSamples() {
+        final SensorSampleHistory h = fill(8, 5);
+        assertEquals(timeOf(4), h.getLatestTimestamp());
+
+        //----  Exactly at a sample  ----
+        assertEquals(0, h.getAt(timeOf(2), mOut));
+        assertOut(2);
+
+        //----  A quarter of the way from sample 1 to sample 2  ----
+        assertEquals(0, h.getAt(timeOf(1) + 2500000, mOut));
+        assertOut(1.25f);
+    }
+
+    @Test
+    public void newerThanLatestUsesLatest() {
+        final SensorSampleHistory h = fill(8, 5);
+        assertEquals(3000000, h.getAt(timeOf(4) + 3000000, mOut));
+        assertOut(4);
+    }
+
+    @Test
+    public void extrapolatesAheadOfLatest() {
+        final SensorSampleHistory h = fill(8, 5);
+        h.setMaxExtrapolationNs(15000000);
+
+        //----  Newer than every stored sample, within the limits  ----
+        assertEquals(0, h.getAt(timeOf(4) + 4000000, mOut));
+        assertOut(4.4f);
+        assertEquals(0, h.getAt(timeOf(4) + 10000000, mOut));
+        assertOut(5);
+
+        //----  Further than the interval of the last two samples  ----
+        assertEquals(12000000, h.getAt(timeOf(4) + 12000000, mOut));
+        assertOut(4);
+
+        //----  Further than the limit  ----
+        h.setMaxExtrapolationNs(5000000);
+        assertEquals(6000000, h.getAt(timeOf(4) + 6000000, mOut));
+        assertOut(4);
+    }
+
+    @Test
+    public void noExtrapolationFromSingleSample() {
+        final SensorSampleHistory h = fill(8, 1);
+        h.setMaxExtrapolationNs(15000000);
+        assertEquals(2000000, h.getAt(timeOf(0) + 2000000, mOut));
+        assertOut(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void extrapolationMustNotBeNegative() {
+        new SensorSampleHistory(8).setMaxExtrapolationNs(-1);
+    }
+
+    @Test
+    public void olderThanOldestUsesOldest() {
+        final SensorSampleHistory h = fill(8, 5);
+        assertEquals(7000000, h.getAt(timeOf(0) - 7000000, mOut));
+        assertOut(0);
+    }
+
+    @Test
+    public void keepsOnlyCapacityAfterWrapping() {
+        final SensorSampleHistory h = fill(8, 20);
+        assertEquals(timeOf(19), h.getLatestTimestamp());
+
+        //----  Samples 12..19 are kept  ----
+        assertEquals(0, h.getAt(timeOf(15) + 5000000, mOut));
+        assertOut(15.5f);
+        assertEquals(0, h.getAt(timeOf(12), mOut));
+        assertOut(12);
+
+        //----  Sample 11 and older are gone  ----
+        assertEquals(5000000, h.getAt(timeOf(11) + 5000000, mOut));
+        assertOut(12);
+    }
+
+    @Test
+    public void equalTimestamps() {
+        final SensorSampleHistory h = new SensorSampleHistory(4);
+        h.add(100, new float[] {1, -1, 2});
+        h.add(100, new float[] {3, -3, 6});
+        assertEquals(0, h.getAt(100, mOut));
+        assertOut(3);
+        assertEquals(10, h.getAt(90, mOut));
+        assertOut(1);
+    }
+}
@@ -0,0 +1,105 @@
+package com.alperez.hyrocam.orientation.filter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FilterChainTest {
+
+    private static final long PERIOD_NS = 10000000;
+
+    @Test
+    public void stagesRunInOrder() {
+        // The median removes the spike before the average sees it
+        final FilterChain chain = new FilterChain(new MedianFilter(1, 3), new MovingAverageFilter(1, 2));
+        final float[] input = {1, 1, 100, 1, 1};
+        final float[] v = new float[1];
+        for (int k=0; k<input.length; k++) {
+            v[0] = input[k];
+            chain.apply(k * PERIOD_NS, v, 1);
+            assertEquals("k="+k, 1, v[0], 0);
+        }
+        assertEquals(2, chain.size());
+    }
+
+    @Test
+    public void resetRestartsAllStages() {
+        final LowPassFilter lowPass = new LowPassFilter(1, 1);
+        final FilterChain chain = new FilterChain(lowPass);
+        assertSame(lowPass, chain.getStage(0));
+        final float[] v = {0};
+        chain.apply(0, v, 1);
+        v[0] = 10;
+        chain.apply(PERIOD_NS, v, 1);
+        assertTrue(v[0] < 10);
+
+        chain.reset();
+        v[0] = 10;
+        chain.apply(2 * PERIOD_NS, v, 1);
+        assertEquals(10, v[0], 0);
+    }
+
+    @Test
+    public void gapAndTimeGoingBackRestart() {
+        final LowPassFilter f = new LowPassFilter(1, 1);
+        f.setMaxGapNs(100 * PERIOD_NS);
+        final float[] v = {0};
+        f.apply(0, v, 1);
+
+        //----  Gap longer than the maximum  ----
+        v[0] = 10;
+        f.apply(101 * PERIOD_NS, v, 1);
+        assertEquals(10, v[0], 0);
+
+        //----  Timestamp going back  ----
+        v[0] = -5;
+        f.apply(50 * PERIOD_NS, v, 1);
+        assertEquals(-5, v[0], 0);
+
+        //----  A normal step is filtered again  ----
+        v[0] = 5;
+        f.apply(51 * PERIOD_NS, v, 1);
+        assertTrue(v[0] < 5 && v[0] > -5);
+    }
+
+    @Test
+    public void channelCountChangeRestarts() {
+        final MovingAverageFilter f = new MovingAverageFilter(3, 4);
+        final float[] v = {0, 0, 0};
+        f.apply(0, v, 3);
+        v[0] = 8;
+        v[1] = 8;
+        v[2] = 8;
+        f.apply(PERIOD_NS, v, 3);
+        assertEquals(4, v[0], 0);
+
+        //----  Fewer values: passes through as the first sample of a restart  ----
+        v[0] = 2;
+        v[1] = 2;
+        f.apply(2 * PERIOD_NS, v, 2);
+        assertEquals(2, v[0], 0);
+        assertEquals(2, v[1], 0);
+
+        //----  Back to all the values: restarts again  ----
+        v[0] = 6;
+        v[1] = 6;
+        v[2] = 6;
+        f.apply(3 * PERIOD_NS, v, 3);
+        assertEquals(6, v[2], 0);
+        v[2] = 10;
+        f.apply(4 * PERIOD_NS, v, 3);
+        assertEquals(8, v[2], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stageMustNotBeNull() {
+        new FilterChain(new LowPassFilter(1, 1), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void channelsMustBePositive() {
+        new LowPassFilter(0, 1);
+    }
+}
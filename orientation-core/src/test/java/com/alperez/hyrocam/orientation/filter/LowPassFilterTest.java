@@ -0,0 +1,69 @@
+package com.alperez.hyrocam.orientation.filter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LowPassFilterTest {
+
+    private static final float CUTOFF_HZ = 5;
+    private static final double TAU = 1 / (2 * Math.PI * CUTOFF_HZ);
+
+    /** Divisible by all the sampling periods below */
+    private static final long STEP_DURATION_NS = 40000000;
+
+    /**
+     * Step from 0 to 1 sampled every periodNs, the output after STEP_DURATION_NS
+     */
+    private static float stepResponse(long periodNs) {
+        final LowPassFilter f = new LowPassFilter(1, CUTOFF_HZ);
+        final float[] v = new float[1];
+        f.apply(0, v, 1);
+        float out = 0;
+        for (long t=periodNs; t<=STEP_DURATION_NS; t+=periodNs) {
+            v[0] = 1;
+            f.apply(t, v, 1);
+            out = v[0];
+        }
+        return out;
+    }
+
+    @Test
+    public void firstSamplePassesThrough() {
+        final LowPassFilter f = new LowPassFilter(3, CUTOFF_HZ);
+        final float[] v = {1, 2, 3};
+        f.apply(100, v, 3);
+        assertEquals(1, v[0], 0);
+        assertEquals(2, v[1], 0);
+        assertEquals(3, v[2], 0);
+    }
+
+    @Test
+    public void stepResponseDoesNotDependOnRate() {
+        // Continuous first-order response is 1 - exp(-t / tau)
+        final double expected = 1 - Math.exp(-STEP_DURATION_NS / 1e9 / TAU);
+        assertEquals(expected, stepResponse(1000000), 0.01);
+        assertEquals(expected, stepResponse(2500000), 0.02);
+        assertEquals(expected, stepResponse(5000000), 0.03);
+    }
+
+    @Test
+    public void valuesAboveChannelsAreKept() {
+        final LowPassFilter f = new LowPassFilter(2, CUTOFF_HZ);
+        final float[] v = {0, 0, 0};
+        f.apply(0, v, 3);
+        v[0] = 1;
+        v[1] = 1;
+        v[2] = 1;
+        f.apply(10000000, v, 3);
+        assertEquals(v[0], v[1], 0);
+        assertEquals(1, v[2], 0);
+        assertTrue(v[0] < 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cutoffMustBePositive() {
+        new LowPassFilter(1, 0);
+    }
+}
@@ -0,0 +1,100 @@
+package com.alperez.hyrocam.orientation.filter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MedianFilterTest {
+
+    private static final long PERIOD_NS = 10000000;
+
+    private static float median(float[][] input, int channel, int from, int to) {
+        final float[] w = new float[to - from + 1];
+        for (int j=from; j<=to; j++) {
+            w[j - from] = input[j][channel];
+        }
+        Arrays.sort(w);
+        final int mid = w.length >> 1;
+        return ((w.length & 1) != 0) ? w[mid] : 0.5f * (w[mid - 1] + w[mid]);
+    }
+
+    private static float[][] randomInput(Random rnd, int nSamples, int channels) {
+        final float[][] input = new float[nSamples][channels];
+        for (float[] s : input) {
+            for (int c=0; c<channels; c++) {
+                // Coarse values, so the windows often hold equal ones
+                s[c] = rnd.nextInt(20);
+            }
+        }
+        return input;
+    }
+
+    @Test
+    public void matchesBruteForceMedian() {
+        final Random rnd = new Random(5);
+        for (int window : new int[] {3, 5, 9, MedianFilter.MAX_WINDOW}) {
+            final int channels = 2;
+            final float[][] input = randomInput(rnd, 2000, channels);
+            final MedianFilter f = new MedianFilter(channels, window);
+            final float[] v = new float[channels];
+            for (int k=0; k<input.length; k++) {
+                System.arraycopy(input[k], 0, v, 0, channels);
+                f.apply(k * PERIOD_NS, v, channels);
+                for (int c=0; c<channels; c++) {
+                    assertEquals("window="+window+" k="+k, median(input, c, Math.max(0, k - window + 1), k), v[c], 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * A sample with fewer values restarts the stage, so the left out channel does not keep a
+     * window out of step with the others
+     */
+    @Test
+    public void shorterSampleRestarts() {
+        final MedianFilter f = new MedianFilter(2, 3);
+        final float[] v = new float[2];
+        final float[][] input = {{1, 10}, {2, 20}, {3, 30}, {4, 0}, {5, 50}, {6, 60}, {7, 70}};
+        // The 4-th sample has one value only, the stage restarts on it and on the next one
+        final float[][] expected = {{1, 10}, {1.5f, 15}, {2, 20}, {4, 0}, {5, 50}, {5.5f, 55}, {6, 60}};
+        for (int k=0; k<input.length; k++) {
+            System.arraycopy(input[k], 0, v, 0, 2);
+            final int len = (k == 3) ? 1 : 2;
+            f.apply(k * PERIOD_NS, v, len);
+            assertEquals("k="+k, expected[k][0], v[0], 0);
+            if (len == 2) {
+                assertEquals("k="+k, expected[k][1], v[1], 0);
+            } else {
+                assertEquals("untouched", input[k][1], v[1], 0);
+            }
+        }
+    }
+
+    @Test
+    public void outlierThresholdReplacesOnlySpikes() {
+        final MedianFilter f = new MedianFilter(1, 5);
+        f.setOutlierThreshold(3);
+        final float[] input = {10, 11, 10.5f, 40, 11.5f, 12, -20, 12.5f};
+        final float[] expected = {10, 11, 10.5f, 10.75f, 11.5f, 12, 11.5f, 12.5f};
+        final float[] v = new float[1];
+        for (int k=0; k<input.length; k++) {
+            v[0] = input[k];
+            f.apply(k * PERIOD_NS, v, 1);
+            assertEquals("k="+k, expected[k], v[0], 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowMustBeOdd() {
+        new MedianFilter(1, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowMustNotExceedMax() {
+        new MedianFilter(1, MedianFilter.MAX_WINDOW + 2);
+    }
+}
@@ -0,0 +1,58 @@
+package com.alperez.hyrocam.orientation.filter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MovingAverageFilterTest {
+
+    private static final long PERIOD_NS = 10000000;
+
+    @Test
+    public void matchesBruteForceMean() {
+        final int window = 7;
+        final int channels = 3;
+        final int nSamples = 10000;
+        final Random rnd = new Random(4);
+        final float[][] input = new float[nSamples][channels];
+        for (float[] s : input) {
+            for (int c=0; c<channels; c++) {
+                // Large offset, so accumulated rounding in the running sums would show up
+                s[c] = 10000 + (float) rnd.nextGaussian();
+            }
+        }
+
+        final MovingAverageFilter f = new MovingAverageFilter(channels, window);
+        final float[] v = new float[channels];
+        for (int k=0; k<nSamples; k++) {
+            System.arraycopy(input[k], 0, v, 0, channels);
+            f.apply(k * PERIOD_NS, v, channels);
+            for (int c=0; c<channels; c++) {
+                double sum = 0;
+                final int from = Math.max(0, k - window + 1);
+                for (int j=from; j<=k; j++) {
+                    sum += input[j][c];
+                }
+                assertEquals("k="+k, sum / (k - from + 1), v[c], 2e-3);
+            }
+        }
+    }
+
+    @Test
+    public void windowOfOnePassesThrough() {
+        final MovingAverageFilter f = new MovingAverageFilter(1, 1);
+        final float[] v = new float[1];
+        for (int k=0; k<10; k++) {
+            v[0] = k * k;
+            f.apply(k * PERIOD_NS, v, 1);
+            assertEquals(k * k, v[0], 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowMustBePositive() {
+        new MovingAverageFilter(1, 0);
+    }
+}
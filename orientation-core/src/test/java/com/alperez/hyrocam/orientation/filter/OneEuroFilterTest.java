@@ -0,0 +1,76 @@
+package com.alperez.hyrocam.orientation.filter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OneEuroFilterTest {
+
+    private static final long PERIOD_NS = 10000000;
+    private static final float DT = PERIOD_NS / 1e9f;
+
+    @Test
+    public void withoutBetaIsLowPass() {
+        final OneEuroFilter euro = new OneEuroFilter(1, 2, 0, 1);
+        final LowPassFilter lowPass = new LowPassFilter(1, 2);
+        final Random rnd = new Random(6);
+        final float[] a = new float[1];
+        final float[] b = new float[1];
+        for (int k=0; k<1000; k++) {
+            a[0] = b[0] = (float) rnd.nextGaussian();
+            euro.apply(k * PERIOD_NS, a, 1);
+            lowPass.apply(k * PERIOD_NS, b, 1);
+            assertEquals(b[0], a[0], 1e-5f);
+        }
+    }
+
+    /**
+     * Lag behind a ramp of 1 unit/s after it has settled
+     */
+    private static float rampLag(float beta) {
+        final OneEuroFilter f = new OneEuroFilter(1, 1, beta, 1);
+        final float[] v = new float[1];
+        float x = 0;
+        for (int k=0; k<500; k++) {
+            x = k * DT;
+            v[0] = x;
+            f.apply(k * PERIOD_NS, v, 1);
+        }
+        return x - v[0];
+    }
+
+    @Test
+    public void speedRaisesCutoff() {
+        final float lagLowPass = rampLag(0);
+        final float lagAdaptive = rampLag(10);
+        // tau = 1 / (2 * pi * 1 Hz)
+        assertEquals(0.159f, lagLowPass, 0.01f);
+        assertTrue("lag="+lagAdaptive, lagAdaptive < 0.2f * lagLowPass);
+    }
+
+    @Test
+    public void sameTimestampRepeatsOutput() {
+        final OneEuroFilter f = new OneEuroFilter(1, 1, 0, 1);
+        final float[] v = {0};
+        f.apply(0, v, 1);
+        v[0] = 1;
+        f.apply(PERIOD_NS, v, 1);
+        final float out = v[0];
+        v[0] = 100;
+        f.apply(PERIOD_NS, v, 1);
+        assertEquals(out, v[0], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void minCutoffMustBePositive() {
+        new OneEuroFilter(1, 0, 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void betaMustNotBeNegative() {
+        new OneEuroFilter(1, 1, -1, 1);
+    }
+}
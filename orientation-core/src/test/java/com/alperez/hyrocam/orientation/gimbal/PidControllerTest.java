@@ -0,0 +1,107 @@
+package com.alperez.hyrocam.orientation.gimbal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PidControllerTest {
+
+    private static final float DT = 0.01f;
+
+    @Test
+    public void proportionalAndFeedForward() {
+        final PidController pid = new PidController(2, 0, 0);
+        assertEquals(1f, pid.update(0.5f, 10, DT), 1e-6f);
+        pid.setFeedForwardGain(0.1f);
+        assertEquals(2f, pid.update(0.5f, 10, DT), 1e-6f);
+    }
+
+    @Test
+    public void integralAccumulatesAndIsClamped() {
+        final PidController pid = new PidController(0, 2, 0);
+        pid.setIntegralLimit(0.5f);
+        float u = 0;
+        for (int k=1; k<=10; k++) {
+            u = pid.update(1, 0, DT);
+            if (k == 10) {
+                assertEquals(2 * 10 * DT, u, 1e-5f);
+            }
+        }
+        //----  kI * integral may not exceed 0.5  ----
+        for (int k=0; k<100; k++) {
+            u = pid.update(1, 0, DT);
+        }
+        assertEquals(0.5f, u, 1e-5f);
+        for (int k=0; k<100; k++) {
+            u = pid.update(-1, 0, DT);
+        }
+        assertEquals(-0.5f, u, 1e-5f);
+    }
+
+    @Test
+    public void derivativeWithoutFiltering() {
+        final PidController pid = new PidController(0, 0, 1);
+        pid.setDerivativeTimeConstant(0);
+        assertEquals(0, pid.update(1, 0, DT), 0);
+        assertEquals(0.5f / DT, pid.update(1.5f, 0, DT), 1e-3f);
+        assertEquals(0, pid.update(1.5f, 0, DT), 1e-6f);
+    }
+
+    @Test
+    public void derivativeIsLowPassFiltered() {
+        final PidController pid = new PidController(0, 0, 1);
+        pid.setDerivativeTimeConstant(0.09f);
+        pid.update(0, 0, DT);
+        //----  A step of the error: 1/10 of the raw derivative at first  ----
+        assertEquals(0.1f * (1 / DT), pid.update(1, 0, DT), 1e-3f);
+    }
+
+    @Test
+    public void outputIsClampedWithoutWindup() {
+        final PidController pid = new PidController(1, 10, 0);
+        pid.setOutputLimit(1);
+        for (int k=0; k<1000; k++) {
+            assertEquals(1f, pid.update(5, 0, DT), 0);
+        }
+        //----  The integral did not grow while saturated, so the output follows a reversed error at once  ----
+        final float u = pid.update(-0.5f, 0, DT);
+        assertTrue("u="+u, u < 0);
+    }
+
+    @Test
+    public void resetClearsState() {
+        final PidController pid = new PidController(0, 1, 1);
+        pid.setDerivativeTimeConstant(0);
+        for (int k=0; k<10; k++) {
+            pid.update(k, 0, DT);
+        }
+        pid.reset();
+        //----  No integral, no derivative from the previous error  ----
+        assertEquals(DT, pid.update(1, 0, DT), 1e-6f);
+    }
+
+    @Test
+    public void closedLoopSettles() {
+        final PidController pid = new PidController(8, 4, 0.1f);
+        pid.setOutputLimit(5);
+        // Plant: the axis rate follows the output, with a constant disturbance rate
+        float position = 0;
+        final float setpoint = 1;
+        for (int k=0; k<2000; k++) {
+            final float u = pid.update(setpoint - position, 0, DT);
+            position += (u - 0.3f) * DT;
+        }
+        assertEquals(setpoint, position, 1e-3f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timeStepMustBePositive() {
+        new PidController(1, 0, 0).update(1, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputLimitMustBePositive() {
+        new PidController(1, 0, 0).setOutputLimit(0);
+    }
+}